@@ -38,6 +38,7 @@ import com.android.builder.internal.SymbolLoader;
 import com.android.builder.internal.SymbolWriter;
 import com.android.builder.internal.TestManifestGenerator;
 import com.android.builder.internal.compiler.AidlProcessor;
+import com.android.builder.internal.compiler.InProcessDexExecutor;
 import com.android.builder.internal.compiler.JackConversionCache;
 import com.android.builder.internal.compiler.LeafFolderGatherer;
 import com.android.builder.internal.compiler.PreDexCache;
@@ -138,7 +139,7 @@ import java.util.zip.ZipFile;
  * {@link #processResources(AaptPackageProcessBuilder, boolean, ProcessOutputHandler)}
  * {@link #compileAllAidlFiles(List, File, File, List, DependencyFileProcessor, ProcessOutputHandler)}
  * {@link #convertByteCode(Collection, Collection, File, boolean, File, DexOptions, List, File, boolean, boolean, ProcessOutputHandler)}
- * {@link #packageApk(String, File, Collection, Collection, String, Collection, File, Set, boolean, SigningConfig, PackagingOptions, SignedJarBuilder.IZipEntryFilter, String)}
+ * {@link #packageApk(String, File, Collection, Collection, String, Collection, File, Set, boolean, SigningConfig, PackagingOptions, SignedJarBuilder.IZipEntryFilter, String, File)}
  *
  * Java compilation is not handled but the builder provides the bootclasspath with
  * {@link #getBootClasspath()}.
@@ -163,6 +164,8 @@ public class AndroidBuilder {
     @NonNull
     private final JavaProcessExecutor mJavaProcessExecutor;
     @NonNull
+    private final JavaProcessExecutor mDexProcessExecutor;
+    @NonNull
     private final ErrorReporter mErrorReporter;
 
     private final boolean mVerboseExec;
@@ -201,6 +204,7 @@ public class AndroidBuilder {
         mJavaProcessExecutor = checkNotNull(javaProcessExecutor);
         mErrorReporter = checkNotNull(errorReporter);
         mLogger = checkNotNull(logger);
+        mDexProcessExecutor = new InProcessDexExecutor(mJavaProcessExecutor, mLogger);
         mVerboseExec = verboseExec;
     }
 
@@ -498,6 +502,11 @@ public class AndroidBuilder {
 
     /**
      * Invoke the Manifest Merger version 2.
+     *
+     * @param reportFile the optional file to write the merging report to.
+     * @param blameLogFile the optional file to stream the merging actions to, see
+     *        {@link Invoker#setMergeBlameLogFile(File)}. The actions are then only read back
+     *        from the file if a report is written.
      */
     public void mergeManifests(
             @NonNull File mainManifest,
@@ -513,7 +522,8 @@ public class AndroidBuilder {
             @Nullable String outAaptSafeManifestLocation,
             ManifestMerger2.MergeType mergeType,
             Map<String, String> placeHolders,
-            @Nullable File reportFile) {
+            @Nullable File reportFile,
+            @Nullable File blameLogFile) {
 
         try {
             Invoker manifestMergerInvoker =
@@ -523,6 +533,9 @@ public class AndroidBuilder {
                             manifestOverlays.toArray(new File[manifestOverlays.size()]))
                     .addLibraryManifests(collectLibraries(libraries))
                     .setMergeReportFile(reportFile);
+            if (blameLogFile != null) {
+                manifestMergerInvoker.setMergeBlameLogFile(blameLogFile);
+            }
 
             if (mergeType == ManifestMerger2.MergeType.APPLICATION) {
                 manifestMergerInvoker.withFeatures(Invoker.Feature.REMOVE_TOOLS_DECLARATIONS);
@@ -540,11 +553,17 @@ public class AndroidBuilder {
                     // fall through since these are just warnings.
                 case SUCCESS:
                     XmlDocument xmlDocument = mergingReport.getMergedDocument().get();
-                    try {
-                        String annotatedDocument = mergingReport.getActions().blame(xmlDocument);
-                        mLogger.verbose(annotatedDocument);
-                    } catch (Exception e) {
-                        mLogger.error(e, "cannot print resulting xml");
+                    if (blameLogFile == null) {
+                        try {
+                            String annotatedDocument =
+                                    mergingReport.getActions().blame(xmlDocument);
+                            mLogger.verbose(annotatedDocument);
+                        } catch (Exception e) {
+                            mLogger.error(e, "cannot print resulting xml");
+                        }
+                    } else {
+                        // don't read all the actions back from the log just to print them.
+                        mLogger.verbose("Merging actions logged to " + blameLogFile);
                     }
                     save(xmlDocument, new File(outManifestLocation));
                     if (outAaptSafeManifestLocation != null) {
@@ -1249,7 +1268,7 @@ public class AndroidBuilder {
 
         JavaProcessInfo javaProcessInfo = builder.build(buildToolInfo, dexOptions);
 
-        ProcessResult result = mJavaProcessExecutor.execute(javaProcessInfo, processOutputHandler);
+        ProcessResult result = mDexProcessExecutor.execute(javaProcessInfo, processOutputHandler);
         result.rethrowFailure().assertNormalExitValue();
     }
 
@@ -1312,7 +1331,7 @@ public class AndroidBuilder {
                 dexOptions,
                 buildToolInfo,
                 mVerboseExec,
-                mJavaProcessExecutor,
+                mDexProcessExecutor,
                 processOutputHandler);
     }
 
@@ -1725,6 +1744,9 @@ public class AndroidBuilder {
      * @param signingConfig the signing configuration
      * @param packagingOptions the packaging options
      * @param outApkLocation location of the APK.
+     * @param incrementalFolder optional folder to keep the index of the APK entries. If set,
+     *                          the next packaging of the APK only writes the entries that
+     *                          changed.
      * @throws DuplicateFileException
      * @throws FileNotFoundException if the store location was not found
      * @throws KeytoolException
@@ -1746,7 +1768,8 @@ public class AndroidBuilder {
             @Nullable SigningConfig signingConfig,
             @Nullable PackagingOptions packagingOptions,
             @Nullable SignedJarBuilder.IZipEntryFilter packagingOptionsFilter,
-            @NonNull String outApkLocation)
+            @NonNull String outApkLocation,
+            @Nullable File incrementalFolder)
             throws DuplicateFileException, FileNotFoundException,
             KeytoolException, PackagerException, SigningException {
         checkNotNull(androidResPkgLocation, "androidResPkgLocation cannot be null.");
@@ -1766,7 +1789,8 @@ public class AndroidBuilder {
         try {
             Packager packager = new Packager(
                     outApkLocation, androidResPkgLocation, mergingFolder,
-                    certificateInfo, mCreatedBy, packagingOptions, packagingOptionsFilter, mLogger);
+                    certificateInfo, mCreatedBy, packagingOptions, packagingOptionsFilter,
+                    incrementalFolder, mLogger);
 
             // add dex folder to the apk root.
             if (dexFolder != null) {
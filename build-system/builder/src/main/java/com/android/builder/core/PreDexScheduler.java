@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.core;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.annotations.concurrency.GuardedBy;
+import com.android.builder.profile.ExecutionType;
+import com.android.builder.profile.Recorder;
+import com.android.builder.internal.compiler.DexWorkerPool;
+import com.android.builder.profile.ThreadRecorder;
+import com.android.ide.common.internal.LoggedErrorException;
+import com.android.ide.common.internal.WaitableExecutor;
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Schedules the pre-dexing of libraries.
+ *
+ * Each pre-dexing job runs dx in its own JVM, with a maximum heap size given by
+ * {@link DexOptions#getJavaMaxHeapSize()}. To avoid running out of memory on machines with many
+ * cores, the number of dx JVMs running at the same time is bounded by a heap budget, shared by
+ * all the schedulers of the current process (so that pre-dex tasks of different projects running
+ * in parallel also share the budget). The budget is not used when dx runs in-process, see
+ * {@link DexWorkerPool}.
+ *
+ * The jobs are started largest input first so that the longest jobs do not end up running alone
+ * at the end of the build.
+ *
+ * The execution of each job is recorded with {@link ThreadRecorder}.
+ */
+public class PreDexScheduler {
+
+    /** Heap size of dx when none is specified in the dex options, see {@link DexProcessBuilder}. */
+    @VisibleForTesting
+    static final long DEFAULT_DEX_HEAP_SIZE_MB = 1024;
+
+    private static final Object sBudgetLock = new Object();
+
+    @GuardedBy("sBudgetLock")
+    private static long sHeapBudgetMb = 0;
+    @GuardedBy("sBudgetLock")
+    private static Semaphore sHeapBudget = null;
+    @GuardedBy("sBudgetLock")
+    private static int sHeapBudgetPermits = 0;
+
+    private static final class Job {
+        @NonNull
+        final File input;
+        final long size;
+        @NonNull
+        final Callable<Void> action;
+
+        Job(@NonNull File input, @NonNull Callable<Void> action) {
+            this.input = input;
+            this.size = getSize(input);
+            this.action = action;
+        }
+    }
+
+    private final long mJobHeapSizeMb;
+    @NonNull
+    private final List<Job> mJobs = Lists.newArrayList();
+
+    /**
+     * Creates a scheduler for jobs running dx with the given options.
+     */
+    public PreDexScheduler(@NonNull DexOptions dexOptions) {
+        mJobHeapSizeMb = parseHeapSizeMb(dexOptions.getJavaMaxHeapSize());
+    }
+
+    /**
+     * Sets the total heap, in MB, that the dx processes started by the pre-dexing jobs can use.
+     *
+     * If 0 or less, the budget is computed from the physical memory of the machine.
+     *
+     * <b>Caution</b>: this has no effect on jobs already waiting for the budget.
+     */
+    public static void setHeapBudgetMb(long heapBudgetMb) {
+        synchronized (sBudgetLock) {
+            if (heapBudgetMb != sHeapBudgetMb) {
+                sHeapBudgetMb = heapBudgetMb;
+                sHeapBudget = null;
+            }
+        }
+    }
+
+    /**
+     * Adds a pre-dexing job.
+     *
+     * @param input the library to pre-dex. Its size is used to order the jobs.
+     * @param action the action pre-dexing the library.
+     */
+    public void add(@NonNull File input, @NonNull Callable<Void> action) {
+        mJobs.add(new Job(input, action));
+    }
+
+    /**
+     * Runs all the jobs, and waits for them to be done.
+     *
+     * @throws InterruptedException
+     * @throws LoggedErrorException
+     */
+    public void run() throws InterruptedException, LoggedErrorException {
+        List<Job> jobs = sortJobs(mJobs);
+        mJobs.clear();
+
+        WaitableExecutor<Void> executor = new WaitableExecutor<Void>();
+        if (DexWorkerPool.canRunInProcess(mJobHeapSizeMb)) {
+            // in-process dx uses the heap of the current process, not a heap of its own.
+            for (final Job job : jobs) {
+                executor.execute(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        return runJob(job);
+                    }
+                });
+            }
+            executor.waitForTasksWithQuickFail(false);
+            return;
+        }
+
+        final Semaphore budget;
+        final int permits;
+        synchronized (sBudgetLock) {
+            budget = getHeapBudget();
+            permits = getPermits(mJobHeapSizeMb, sHeapBudgetPermits);
+        }
+
+        // the budget is acquired before submitting each job, so that the threads of the executor
+        // never wait for it, and the jobs start in order.
+        for (final Job job : jobs) {
+            try {
+                budget.acquire(permits);
+            } catch (InterruptedException e) {
+                // the jobs already submitted release their share of the budget when done.
+                executor.waitForAllTasks();
+                throw e;
+            }
+            executor.execute(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        return runJob(job);
+                    } finally {
+                        budget.release(permits);
+                    }
+                }
+            });
+        }
+
+        executor.waitForTasksWithQuickFail(false);
+    }
+
+    @Nullable
+    private static Void runJob(@NonNull final Job job) throws Exception {
+        final Exception[] failure = new Exception[1];
+        ThreadRecorder.get().record(ExecutionType.TASK_PRE_DEX_LIBRARY,
+                new Recorder.Block<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        return job.action.call();
+                    }
+
+                    @Override
+                    public void handleException(@NonNull Exception e) {
+                        failure[0] = e;
+                    }
+                },
+                new Recorder.Property("library", job.input.getName()),
+                new Recorder.Property("size", Long.toString(job.size)));
+
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return null;
+    }
+
+    /**
+     * Returns the jobs sorted largest input first.
+     */
+    @NonNull
+    private static List<Job> sortJobs(@NonNull List<Job> jobs) {
+        List<Job> sortedJobs = Lists.newArrayList(jobs);
+        Collections.sort(sortedJobs, new Comparator<Job>() {
+            @Override
+            public int compare(Job job1, Job job2) {
+                return job1.size > job2.size ? -1 : (job1.size == job2.size ? 0 : 1);
+            }
+        });
+        return sortedJobs;
+    }
+
+    /**
+     * Returns the heap budget shared by the schedulers, one permit per MB.
+     */
+    @VisibleForTesting
+    @NonNull
+    static Semaphore getSharedHeapBudget() {
+        synchronized (sBudgetLock) {
+            return getHeapBudget();
+        }
+    }
+
+    @NonNull
+    @GuardedBy("sBudgetLock")
+    private static Semaphore getHeapBudget() {
+        if (sHeapBudget == null) {
+            sHeapBudgetPermits = toPermits(
+                    sHeapBudgetMb > 0 ? sHeapBudgetMb : getDefaultHeapBudgetMb());
+            sHeapBudget = new Semaphore(sHeapBudgetPermits, true /*fair*/);
+        }
+        return sHeapBudget;
+    }
+
+    /**
+     * Returns the number of permits a job needs. A job can never need more than the whole budget,
+     * otherwise it would never run.
+     */
+    @VisibleForTesting
+    static int getPermits(long jobHeapSizeMb, long heapBudgetMb) {
+        return toPermits(Math.min(jobHeapSizeMb, heapBudgetMb));
+    }
+
+    private static int toPermits(long sizeMb) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, sizeMb));
+    }
+
+    /**
+     * Returns half the physical memory of the machine, or an unbounded budget if it cannot be
+     * found.
+     */
+    private static long getDefaultHeapBudgetMb() {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+            long physicalMemory =
+                    ((com.sun.management.OperatingSystemMXBean) bean).getTotalPhysicalMemorySize();
+            if (physicalMemory > 0) {
+                return physicalMemory / 2 / (1024 * 1024);
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Parses a heap size as given to the -Xmx JVM flag (for instance "2048m" or "4g") into MB.
+     */
+    public static long parseHeapSizeMb(@Nullable String heapSize) {
+        if (heapSize == null || heapSize.isEmpty()) {
+            return DEFAULT_DEX_HEAP_SIZE_MB;
+        }
+
+        String value = heapSize.trim();
+        long multiplier = 1;
+        long divider = 1024 * 1024;
+        char unit = Character.toLowerCase(value.charAt(value.length() - 1));
+        if (unit == 'k') {
+            multiplier = 1024;
+        } else if (unit == 'm') {
+            multiplier = 1024 * 1024;
+        } else if (unit == 'g') {
+            multiplier = 1024 * 1024 * 1024;
+        }
+        if (multiplier != 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+
+        try {
+            return Math.max(1, Long.parseLong(value) * multiplier / divider);
+        } catch (NumberFormatException e) {
+            return DEFAULT_DEX_HEAP_SIZE_MB;
+        }
+    }
+
+    private static long getSize(@NonNull File file) {
+        if (file.isFile()) {
+            return file.length();
+        }
+
+        long size = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                size += getSize(child);
+            }
+        }
+        return size;
+    }
+}
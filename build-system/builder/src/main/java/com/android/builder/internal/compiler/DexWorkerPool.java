@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.compiler;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.concurrency.GuardedBy;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Pool of in-process dx workers.
+ *
+ * Running dx in a new JVM for each library or variant means paying the JVM startup and the JIT
+ * warm-up every time. Instead, the workers of this pool load dx once from the dx.jar of the
+ * build tools, and are reused for all the dex calls of the build (and of the following builds
+ * run by the same Gradle daemon), keeping the dx classes loaded and compiled.
+ *
+ * dx keeps some of its state in static fields (for instance its console streams), so each worker
+ * loads dx in its own isolated class loader and runs a single dex call at a time.
+ *
+ * In-process dex calls use the heap of the current process, so dx only runs in-process when that
+ * heap can give the maximum heap size of the dex options to every worker, see
+ * {@link #canRunInProcess(long)}.
+ *
+ * There is one pool per dx.jar, see {@link #getPool(File)}. The pools are disabled until
+ * {@link #setMaxWorkers(int)} is called with a positive number.
+ */
+public class DexWorkerPool {
+
+    private static final String DX_MAIN = "com.android.dx.command.dexer.Main";
+    private static final String DX_ARGUMENTS = "com.android.dx.command.dexer.Main$Arguments";
+    private static final String DX_CONSOLE = "com.android.dx.command.DxConsole";
+
+    private static final Object sLock = new Object();
+
+    @GuardedBy("sLock")
+    private static int sMaxWorkers = 0;
+
+    @GuardedBy("sLock")
+    private static final Map<File, DexWorkerPool> sPools = Maps.newHashMap();
+
+    /**
+     * A dx instance, loaded in its own class loader.
+     */
+    private static final class DexWorker {
+        @NonNull
+        private final Class<?> mArgumentsClass;
+        @NonNull
+        private final Method mParseMethod;
+        @NonNull
+        private final Method mRunMethod;
+        @NonNull
+        private final Field mOutField;
+        @NonNull
+        private final Field mErrField;
+
+        DexWorker(@NonNull File dxJar) throws Exception {
+            // the parent is the bootstrap class loader so that dx does not see the classes of
+            // the build.
+            ClassLoader classLoader = new URLClassLoader(
+                    new URL[] { dxJar.toURI().toURL() }, null);
+
+            Class<?> mainClass = classLoader.loadClass(DX_MAIN);
+            mArgumentsClass = classLoader.loadClass(DX_ARGUMENTS);
+            mParseMethod = mArgumentsClass.getMethod("parse", String[].class);
+            mParseMethod.setAccessible(true);
+            mRunMethod = mainClass.getMethod("run", mArgumentsClass);
+
+            Class<?> consoleClass = classLoader.loadClass(DX_CONSOLE);
+            mOutField = consoleClass.getField("out");
+            mErrField = consoleClass.getField("err");
+        }
+
+        int run(
+                @NonNull List<String> args,
+                @NonNull OutputStream standardOutput,
+                @NonNull OutputStream errorOutput) throws Exception {
+            PrintStream out = new PrintStream(standardOutput, true);
+            PrintStream err = new PrintStream(errorOutput, true);
+            mOutField.set(null, out);
+            mErrField.set(null, err);
+            try {
+                Object arguments = mArgumentsClass.newInstance();
+                mParseMethod.invoke(arguments, (Object) args.toArray(new String[args.size()]));
+                return (Integer) mRunMethod.invoke(null, arguments);
+            } catch (InvocationTargetException e) {
+                // dx failures (bad arguments, invalid class files...) are reported as errors of
+                // the dex call, like a failing dx process would.
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                cause.printStackTrace(err);
+                return 1;
+            } finally {
+                out.flush();
+                err.flush();
+                mOutField.set(null, System.out);
+                mErrField.set(null, System.err);
+            }
+        }
+    }
+
+    @NonNull
+    private final File mDxJar;
+    private final int mMaxWorkers;
+    @NonNull
+    private final BlockingQueue<DexWorker> mIdleWorkers = new LinkedBlockingQueue<DexWorker>();
+    @GuardedBy("this")
+    private int mWorkerCount = 0;
+
+    private DexWorkerPool(@NonNull File dxJar, int maxWorkers) {
+        mDxJar = dxJar;
+        mMaxWorkers = maxWorkers;
+    }
+
+    /**
+     * Sets the maximum number of workers of each pool. 0 disables the in-process workers, which
+     * makes dx run in its own process.
+     *
+     * Changing the value releases the existing pools.
+     */
+    public static void setMaxWorkers(int maxWorkers) {
+        synchronized (sLock) {
+            if (maxWorkers != sMaxWorkers) {
+                sMaxWorkers = maxWorkers;
+                sPools.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns whether dex calls with the given maximum heap size run in-process. They do if the
+     * in-process workers are enabled, and the heap of the current process can give that much to
+     * each of the workers of a pool.
+     */
+    public static boolean canRunInProcess(long heapSizeMb) {
+        synchronized (sLock) {
+            return sMaxWorkers > 0
+                    && heapSizeMb * 1024 * 1024 * sMaxWorkers <= Runtime.getRuntime().maxMemory();
+        }
+    }
+
+    /**
+     * Returns the pool for a given dx.jar, or null if the in-process workers are disabled.
+     */
+    @Nullable
+    public static DexWorkerPool getPool(@NonNull File dxJar) {
+        synchronized (sLock) {
+            if (sMaxWorkers <= 0) {
+                return null;
+            }
+
+            DexWorkerPool pool = sPools.get(dxJar);
+            if (pool == null) {
+                pool = new DexWorkerPool(dxJar, sMaxWorkers);
+                sPools.put(dxJar, pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Releases all the pools, and the dx class loaders with them.
+     */
+    public static void shutdown() {
+        synchronized (sLock) {
+            sPools.clear();
+        }
+    }
+
+    /**
+     * Runs dx with the given arguments, blocking until a worker is available.
+     *
+     * @param args the arguments of the dexer, not including "--dex".
+     * @param standardOutput the standard output of dx.
+     * @param errorOutput the error output of dx.
+     * @return the exit code of dx.
+     * @throws DexWorkerException if dx cannot be loaded from the dx.jar. In this case, dx should
+     *     be run in its own process instead.
+     * @throws Exception
+     */
+    public int run(
+            @NonNull List<String> args,
+            @NonNull OutputStream standardOutput,
+            @NonNull OutputStream errorOutput) throws Exception {
+        DexWorker worker = acquireWorker();
+        try {
+            return worker.run(args, standardOutput, errorOutput);
+        } finally {
+            mIdleWorkers.add(worker);
+        }
+    }
+
+    @NonNull
+    private DexWorker acquireWorker() throws Exception {
+        DexWorker worker = mIdleWorkers.poll();
+        if (worker != null) {
+            return worker;
+        }
+
+        boolean createWorker;
+        synchronized (this) {
+            createWorker = mWorkerCount < mMaxWorkers;
+            if (createWorker) {
+                mWorkerCount++;
+            }
+        }
+
+        if (!createWorker) {
+            return mIdleWorkers.take();
+        }
+
+        try {
+            return new DexWorker(mDxJar);
+        } catch (Exception e) {
+            throw createWorkerFailure(e);
+        } catch (LinkageError e) {
+            // a dx.jar with missing or incompatible classes.
+            throw createWorkerFailure(e);
+        }
+    }
+
+    @NonNull
+    private DexWorkerException createWorkerFailure(@NonNull Throwable cause) {
+        synchronized (this) {
+            mWorkerCount--;
+        }
+        return new DexWorkerException("Failed to load dx from " + mDxJar, cause);
+    }
+
+    /**
+     * Exception thrown when dx cannot be loaded in a worker.
+     */
+    public static final class DexWorkerException extends Exception {
+        DexWorkerException(@NonNull String message, @NonNull Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
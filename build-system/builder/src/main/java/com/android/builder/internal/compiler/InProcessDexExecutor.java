@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.compiler;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.core.PreDexScheduler;
+import com.android.ide.common.process.JavaProcessExecutor;
+import com.android.ide.common.process.JavaProcessInfo;
+import com.android.ide.common.process.ProcessException;
+import com.android.ide.common.process.ProcessOutput;
+import com.android.ide.common.process.ProcessOutputHandler;
+import com.android.ide.common.process.ProcessResult;
+import com.android.utils.ILogger;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link JavaProcessExecutor} running the dex calls in the current process with a
+ * {@link DexWorkerPool}.
+ *
+ * Java processes other than dx, and all the dex calls when the in-process workers are disabled,
+ * are delegated to another executor. The dex calls are also delegated if dx cannot be loaded
+ * in-process, or if the dx process needs an environment or JVM arguments that cannot be applied
+ * in-process, so that the build falls back to running dx in its own process.
+ */
+public class InProcessDexExecutor implements JavaProcessExecutor {
+
+    private static final String DX_COMMAND_MAIN = "com.android.dx.command.Main";
+    private static final String DX_DEX_ARG = "--dex";
+    private static final String MAX_HEAP_SIZE_ARG = "-Xmx";
+
+    @NonNull
+    private final JavaProcessExecutor mDelegate;
+    @NonNull
+    private final ILogger mLogger;
+    @NonNull
+    private final AtomicBoolean mFallbackWarned = new AtomicBoolean();
+
+    public InProcessDexExecutor(@NonNull JavaProcessExecutor delegate, @NonNull ILogger logger) {
+        mDelegate = delegate;
+        mLogger = logger;
+    }
+
+    @NonNull
+    @Override
+    public ProcessResult execute(
+            @NonNull JavaProcessInfo javaProcessInfo,
+            @NonNull ProcessOutputHandler processOutputHandler) {
+        List<String> args = javaProcessInfo.getArgs();
+        if (!DX_COMMAND_MAIN.equals(javaProcessInfo.getMainClass())
+                || args.isEmpty()
+                || !DX_DEX_ARG.equals(args.get(0))) {
+            return mDelegate.execute(javaProcessInfo, processOutputHandler);
+        }
+
+        DexWorkerPool pool = DexWorkerPool.getPool(new File(javaProcessInfo.getClasspath()));
+        if (pool == null) {
+            return mDelegate.execute(javaProcessInfo, processOutputHandler);
+        }
+
+        String processOnlyReason = getProcessOnlyReason(javaProcessInfo);
+        if (processOnlyReason != null) {
+            String message = "Running dx in its own process: %s";
+            if (mFallbackWarned.compareAndSet(false, true)) {
+                mLogger.warning(message, processOnlyReason);
+            } else {
+                mLogger.info(message, processOnlyReason);
+            }
+            return mDelegate.execute(javaProcessInfo, processOutputHandler);
+        }
+
+        ProcessOutput output = processOutputHandler.createOutput();
+        int exitValue;
+        try {
+            exitValue = pool.run(
+                    args.subList(1, args.size()),
+                    output.getStandardOutput(),
+                    output.getErrorOutput());
+        } catch (DexWorkerPool.DexWorkerException e) {
+            mLogger.warning("Unable to run dx in process, running it in its own process: %s",
+                    e.getCause());
+            return mDelegate.execute(javaProcessInfo, processOutputHandler);
+        } catch (Exception e) {
+            return new InProcessResult(-1, new ProcessException(e));
+        }
+
+        try {
+            processOutputHandler.handleOutput(output);
+        } catch (ProcessException e) {
+            return new InProcessResult(exitValue, e);
+        }
+
+        return new InProcessResult(exitValue, null);
+    }
+
+    /**
+     * Returns why a dex call has to run in its own process, or null if it can run in-process.
+     *
+     * The environment and the JVM arguments of the dx process cannot be applied to the current
+     * process, except for a maximum heap size that the heap of the current process can give to
+     * the workers, see {@link DexWorkerPool#canRunInProcess(long)}.
+     */
+    @Nullable
+    private static String getProcessOnlyReason(@NonNull JavaProcessInfo javaProcessInfo) {
+        if (!javaProcessInfo.getEnvironment().isEmpty()) {
+            return "the environment of dx cannot be set in-process";
+        }
+
+        for (String jvmArg : javaProcessInfo.getJvmArgs()) {
+            if (!jvmArg.startsWith(MAX_HEAP_SIZE_ARG)) {
+                return "the JVM argument " + jvmArg + " cannot be applied in-process";
+            }
+
+            long heapSizeMb = PreDexScheduler.parseHeapSizeMb(
+                    jvmArg.substring(MAX_HEAP_SIZE_ARG.length()));
+            if (!DexWorkerPool.canRunInProcess(heapSizeMb)) {
+                return String.format(
+                        "the maximum heap of this process (%1$d MB) cannot give %2$s to each "
+                                + "in-process dx worker",
+                        Runtime.getRuntime().maxMemory() / (1024 * 1024),
+                        jvmArg);
+            }
+        }
+
+        return null;
+    }
+
+    private static final class InProcessResult implements ProcessResult {
+        private final int mExitValue;
+        @Nullable
+        private final ProcessException mFailure;
+
+        InProcessResult(int exitValue, @Nullable ProcessException failure) {
+            mExitValue = exitValue;
+            mFailure = failure;
+        }
+
+        @Override
+        public ProcessResult assertNormalExitValue() throws ProcessException {
+            if (mExitValue != 0) {
+                throw new ProcessException(
+                        String.format("Return code %d for in-process dex", mExitValue));
+            }
+            return this;
+        }
+
+        @Override
+        public int getExitValue() {
+            return mExitValue;
+        }
+
+        @Override
+        public ProcessResult rethrowFailure() throws ProcessException {
+            if (mFailure != null) {
+                throw mFailure;
+            }
+            return this;
+        }
+    }
+}
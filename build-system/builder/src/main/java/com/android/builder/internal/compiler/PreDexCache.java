@@ -27,7 +27,9 @@ import com.android.ide.common.process.ProcessException;
 import com.android.ide.common.process.ProcessOutputHandler;
 import com.android.sdklib.BuildToolInfo;
 import com.android.sdklib.repository.FullRevision;
+import com.android.utils.ILogger;
 import com.android.utils.Pair;
+import com.google.common.hash.HashCode;
 import com.google.common.io.Files;
 
 import org.w3c.dom.Attr;
@@ -58,6 +60,10 @@ import java.util.logging.Logger;
  *
  * After a build a call to {@link #clear(java.io.File, com.android.utils.ILogger)} with a file
  * will allow saving the known pre-dexed libraries for future reuse.
+ *
+ * Optionally, a {@link SharedPreDexCache} can be set with {@link #setSharedCache(SharedPreDexCache)}
+ * so that the pre-dexed libraries are also reused across projects and builds, based on the
+ * content of the libraries rather than their location.
  */
 public class PreDexCache extends PreProcessCache<DexKey> {
 
@@ -69,6 +75,21 @@ public class PreDexCache extends PreProcessCache<DexKey> {
         return sSingleton;
     }
 
+    @Nullable
+    private volatile SharedPreDexCache mSharedCache;
+
+    /**
+     * Sets the cache shared across projects and builds, or null to disable it.
+     */
+    public void setSharedCache(@Nullable SharedPreDexCache sharedCache) {
+        mSharedCache = sharedCache;
+    }
+
+    @Nullable
+    public SharedPreDexCache getSharedCache() {
+        return mSharedCache;
+    }
+
     @Override
     @NonNull
     protected KeyFactory<DexKey> getKeyFactory() {
@@ -118,21 +139,57 @@ public class PreDexCache extends PreProcessCache<DexKey> {
         // if this is a new item
         if (pair.getSecond()) {
             try {
-                // haven't process this file yet so do it and record it.
-                List<File> files = AndroidBuilder.preDexLibrary(
-                        inputFile,
-                        outFile,
-                        multiDex,
-                        dexOptions,
-                        buildToolInfo,
-                        verbose,
-                        processExecutor,
-                        processOutputHandler);
+                SharedPreDexCache sharedCache = mSharedCache;
+                String sharedKey = null;
+                List<File> files = null;
+                if (sharedCache != null) {
+                    HashCode inputHash = getHash(inputFile);
+                    if (inputHash != null) {
+                        sharedKey = SharedPreDexCache.computeKey(
+                                inputHash,
+                                buildToolInfo.getRevision(),
+                                dexOptions.getJumboMode(),
+                                multiDex);
+                        try {
+                            files = sharedCache.restore(sharedKey, outFile, multiDex);
+                        } catch (IOException e) {
+                            // a corrupt or unreadable entry, pre-dex the library instead.
+                            Logger.getAnonymousLogger().warning(String.format(
+                                    "Failed to restore %s from the shared pre-dex cache: %s",
+                                    inputFile, e.getMessage()));
+                        }
+                    }
+                }
+
+                if (files != null) {
+                    incrementHits();
+                } else {
+                    // haven't process this file yet so do it and record it.
+                    files = AndroidBuilder.preDexLibrary(
+                            inputFile,
+                            outFile,
+                            multiDex,
+                            dexOptions,
+                            buildToolInfo,
+                            verbose,
+                            processExecutor,
+                            processOutputHandler);
+
+                    if (sharedCache != null && sharedKey != null) {
+                        try {
+                            sharedCache.store(sharedKey, files);
+                        } catch (IOException e) {
+                            // the library was pre-dexed fine, only the cache is affected.
+                            Logger.getAnonymousLogger().warning(String.format(
+                                    "Failed to store %s in the shared pre-dex cache: %s",
+                                    inputFile, e.getMessage()));
+                        }
+                    }
+                    incrementMisses();
+                }
 
                 item.getOutputFiles().clear();
                 item.getOutputFiles().addAll(files);
-
-                incrementMisses();
             } catch (ProcessException exception) {
                 // in case of error, delete (now obsolete) output file
                 outFile.delete();
@@ -171,6 +228,20 @@ public class PreDexCache extends PreProcessCache<DexKey> {
         }
     }
 
+    @Override
+    public synchronized void clear(@Nullable File itemStorage, @Nullable ILogger logger)
+            throws IOException {
+        SharedPreDexCache sharedCache = mSharedCache;
+        if (sharedCache != null) {
+            sharedCache.trim();
+            if (logger != null) {
+                sharedCache.logStats(logger);
+            }
+        }
+
+        super.clear(itemStorage, logger);
+    }
+
     @Nullable
     @Override
     protected Node createItemNode(
@@ -359,7 +359,7 @@ public abstract class PreProcessCache<T extends PreProcessCache.Key> {
     }
 
     @Nullable
-    private static HashCode getHash(@NonNull File file) {
+    protected static HashCode getHash(@NonNull File file) {
         try {
             return Files.hash(file, Hashing.sha1());
         } catch (IOException ignored) {
@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.compiler;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.annotations.concurrency.GuardedBy;
+import com.android.sdklib.repository.FullRevision;
+import com.android.utils.FileUtils;
+import com.android.utils.ILogger;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Content-addressed, on-disk cache of pre-dexed libraries that can be shared by several projects
+ * and several builds (for instance all the modules of a project and all the CI workspaces on
+ * a machine).
+ *
+ * Unlike {@link PreDexCache}, which is keyed on the path of the library, entries here are keyed
+ * on the content of the library, the version of the build tools and the dex options that
+ * influence the output. This allows the output of pre-dexing a given library to be reused
+ * regardless of where the library is located.
+ *
+ * The cache is bounded in size. Each time an entry is read its timestamp is updated, and
+ * {@link #trim()} removes the least recently used entries until the cache fits in its size
+ * budget.
+ *
+ * All the operations that modify the cache folder are done while holding an exclusive file lock
+ * on the cache folder, so that several Gradle daemons can safely use the same cache. Entries are
+ * restored under a shared lock, so that builds reading from the cache don't wait for each other.
+ */
+public class SharedPreDexCache {
+
+    private static final String FN_LOCK = "cache.lock";
+    private static final String FD_ENTRIES = "entries";
+    private static final String FD_TMP = "tmp";
+
+    /** Version of the cache layout, part of the key so that layout changes invalidate entries. */
+    private static final String CACHE_VERSION = "1";
+
+    /**
+     * File locks are held by the JVM, and trying to lock a file already locked by another thread
+     * of the same JVM throws, so in-process access is coordinated with this lock first: readers
+     * share a single shared file lock, see {@link #acquireSharedLock()}, and writers hold the
+     * write lock while they hold the exclusive file lock.
+     */
+    private static final ReadWriteLock sProcessLock = new ReentrantReadWriteLock();
+
+    /** The shared file locks held by the readers of this process, by cache root. */
+    @GuardedBy("sSharedLocks")
+    private static final Map<File, SharedLock> sSharedLocks = Maps.newHashMap();
+
+    @NonNull
+    private final File mRoot;
+    private final long mMaxSize;
+
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+    private final AtomicInteger mEvictions = new AtomicInteger();
+
+    /**
+     * Creates a cache.
+     *
+     * @param root the root folder of the cache. It is created if needed.
+     * @param maxSize the maximum size, in bytes, of the content of the cache.
+     */
+    public SharedPreDexCache(@NonNull File root, long maxSize) {
+        mRoot = root;
+        mMaxSize = maxSize;
+    }
+
+    @NonNull
+    public File getRoot() {
+        return mRoot;
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Computes the key of an entry.
+     *
+     * @param inputHash the hash of the content of the library
+     * @param buildToolsRevision the revision of the build tools doing the pre-dexing
+     * @param jumboMode whether jumbo mode is enabled
+     * @param multiDex whether multi-dex is enabled
+     * @return the key of the entry.
+     */
+    @NonNull
+    public static String computeKey(
+            @NonNull HashCode inputHash,
+            @NonNull FullRevision buildToolsRevision,
+            boolean jumboMode,
+            boolean multiDex) {
+        return Hashing.sha1().newHasher()
+                .putString(CACHE_VERSION, Charsets.UTF_8)
+                .putString(inputHash.toString(), Charsets.UTF_8)
+                .putString(buildToolsRevision.toString(), Charsets.UTF_8)
+                .putBoolean(jumboMode)
+                .putBoolean(multiDex)
+                .hash()
+                .toString();
+    }
+
+    /**
+     * Copies the content of a cached entry into the given output.
+     *
+     * @param key the key of the entry, see {@link #computeKey(HashCode, FullRevision, boolean, boolean)}
+     * @param outFile the output file, or the output folder if multiDex is true.
+     * @param multiDex whether multi-dex is enabled.
+     * @return the list of restored files, or null if the entry is not in the cache.
+     * @throws IOException
+     */
+    @Nullable
+    public List<File> restore(
+            @NonNull String key,
+            @NonNull File outFile,
+            boolean multiDex) throws IOException {
+        sProcessLock.readLock().lock();
+        try {
+            acquireSharedLock();
+            try {
+                File entry = getEntryFolder(key);
+                File[] files = entry.listFiles();
+                if (files == null || files.length == 0) {
+                    mMisses.incrementAndGet();
+                    return null;
+                }
+                Arrays.sort(files);
+
+                List<File> restoredFiles = Lists.newArrayListWithCapacity(files.length);
+                if (multiDex) {
+                    for (File file : files) {
+                        File destFile = new File(outFile, file.getName());
+                        Files.copy(file, destFile);
+                        restoredFiles.add(destFile);
+                    }
+                } else {
+                    Files.copy(files[0], outFile);
+                    restoredFiles.add(outFile);
+                }
+
+                // mark the entry as recently used.
+                entry.setLastModified(System.currentTimeMillis());
+
+                mHits.incrementAndGet();
+                return restoredFiles;
+            } finally {
+                releaseSharedLock();
+            }
+        } finally {
+            sProcessLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Records the output of pre-dexing a library in the cache.
+     *
+     * If the cache already contains an entry for the key (for instance because another process
+     * pre-dexed the same library concurrently), the cache is left untouched.
+     *
+     * @param key the key of the entry, see {@link #computeKey(HashCode, FullRevision, boolean, boolean)}
+     * @param outputFiles the files generated by dx.
+     * @throws IOException
+     */
+    public void store(@NonNull String key, @NonNull List<File> outputFiles) throws IOException {
+        if (outputFiles.isEmpty()) {
+            return;
+        }
+
+        // copy the files outside of the lock, then publish them atomically with a rename.
+        File tmpFolder = new File(new File(mRoot, FD_TMP), UUID.randomUUID().toString());
+        mkdirs(tmpFolder);
+        try {
+            for (File file : outputFiles) {
+                Files.copy(file, new File(tmpFolder, file.getName()));
+            }
+
+            sProcessLock.writeLock().lock();
+            try {
+                FileLock lock = acquireLock(false);
+                try {
+                    File entry = getEntryFolder(key);
+                    if (!entry.isDirectory()) {
+                        mkdirs(entry.getParentFile());
+                        if (!tmpFolder.renameTo(entry)) {
+                            throw new IOException("Failed to create cache entry " + entry);
+                        }
+                    }
+                } finally {
+                    lock.release();
+                    lock.channel().close();
+                }
+            } finally {
+                sProcessLock.writeLock().unlock();
+            }
+        } finally {
+            if (tmpFolder.exists()) {
+                FileUtils.deleteFolder(tmpFolder);
+            }
+        }
+    }
+
+    /**
+     * Removes the least recently used entries until the cache fits in its maximum size.
+     *
+     * @throws IOException
+     */
+    public void trim() throws IOException {
+        sProcessLock.writeLock().lock();
+        try {
+            FileLock lock = acquireLock(false);
+            try {
+                List<File> entries = Lists.newArrayList();
+                File[] buckets = new File(mRoot, FD_ENTRIES).listFiles();
+                if (buckets == null) {
+                    return;
+                }
+                for (File bucket : buckets) {
+                    File[] bucketEntries = bucket.listFiles();
+                    if (bucketEntries != null) {
+                        Collections.addAll(entries, bucketEntries);
+                    }
+                }
+
+                long totalSize = 0;
+                for (File entry : entries) {
+                    totalSize += getEntrySize(entry);
+                }
+                if (totalSize <= mMaxSize) {
+                    return;
+                }
+
+                // oldest first.
+                Collections.sort(entries, new Comparator<File>() {
+                    @Override
+                    public int compare(File f1, File f2) {
+                        long t1 = f1.lastModified();
+                        long t2 = f2.lastModified();
+                        return t1 < t2 ? -1 : (t1 == t2 ? f1.compareTo(f2) : 1);
+                    }
+                });
+
+                for (File entry : entries) {
+                    if (totalSize <= mMaxSize) {
+                        break;
+                    }
+                    totalSize -= getEntrySize(entry);
+                    FileUtils.deleteFolder(entry);
+                    mEvictions.incrementAndGet();
+                }
+            } finally {
+                lock.release();
+                lock.channel().close();
+            }
+        } finally {
+            sProcessLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Logs the statistics of the cache, and resets them.
+     */
+    public void logStats(@NonNull ILogger logger) {
+        logger.info("SHARED PREDEX CACHE HITS:      " + mHits.getAndSet(0));
+        logger.info("SHARED PREDEX CACHE MISSES:    " + mMisses.getAndSet(0));
+        logger.info("SHARED PREDEX CACHE EVICTIONS: " + mEvictions.getAndSet(0));
+    }
+
+    @VisibleForTesting
+    int getHits() {
+        return mHits.get();
+    }
+
+    @VisibleForTesting
+    int getMisses() {
+        return mMisses.get();
+    }
+
+    @VisibleForTesting
+    int getEvictions() {
+        return mEvictions.get();
+    }
+
+    @NonNull
+    @VisibleForTesting
+    File getEntryFolder(@NonNull String key) {
+        // spread the entries in buckets to avoid very large folders.
+        return new File(new File(new File(mRoot, FD_ENTRIES), key.substring(0, 2)), key);
+    }
+
+    @NonNull
+    private FileLock acquireLock(boolean shared) throws IOException {
+        mkdirs(mRoot);
+        FileChannel channel = new RandomAccessFile(new File(mRoot, FN_LOCK), "rw").getChannel();
+        try {
+            return channel.lock(0L, Long.MAX_VALUE, shared);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Acquires the shared file lock of the cache for this process, or shares it with the other
+     * readers already holding it. Must be called while holding the read lock of
+     * {@link #sProcessLock}.
+     */
+    private void acquireSharedLock() throws IOException {
+        synchronized (sSharedLocks) {
+            SharedLock sharedLock = sSharedLocks.get(mRoot);
+            if (sharedLock == null) {
+                sharedLock = new SharedLock(acquireLock(true));
+                sSharedLocks.put(mRoot, sharedLock);
+            }
+            sharedLock.mReaders++;
+        }
+    }
+
+    private void releaseSharedLock() throws IOException {
+        synchronized (sSharedLocks) {
+            SharedLock sharedLock = sSharedLocks.get(mRoot);
+            if (sharedLock != null && --sharedLock.mReaders == 0) {
+                sSharedLocks.remove(mRoot);
+                sharedLock.mLock.release();
+                sharedLock.mLock.channel().close();
+            }
+        }
+    }
+
+    private static final class SharedLock {
+        @NonNull
+        private final FileLock mLock;
+        private int mReaders;
+
+        SharedLock(@NonNull FileLock lock) {
+            mLock = lock;
+        }
+    }
+
+    private static void mkdirs(@NonNull File folder) throws IOException {
+        if (!folder.isDirectory() && !folder.mkdirs() && !folder.isDirectory()) {
+            throw new IOException("Failed to create folder " + folder);
+        }
+    }
+
+    private static long getEntrySize(@NonNull File entry) {
+        long size = 0;
+        File[] files = entry.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+}
@@ -26,17 +26,16 @@ import com.android.builder.model.PackagingOptions;
 import com.android.builder.packaging.DuplicateFileException;
 import com.android.builder.packaging.PackagerException;
 import com.android.builder.packaging.SealedPackageException;
+import com.android.builder.signing.JarEntryIndex;
+import com.android.builder.signing.ParallelSignedJarBuilder;
 import com.android.builder.signing.SignedJarBuilder;
 import com.android.builder.signing.SignedJarBuilder.IZipEntryFilter;
 import com.android.ide.common.signing.CertificateInfo;
 import com.android.utils.FileUtils;
 import com.android.utils.ILogger;
-import com.google.common.io.Closeables;
 import com.google.common.io.Files;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
@@ -45,6 +44,9 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
@@ -67,6 +69,9 @@ public final class Packager implements IArchiveBuilder {
     private static final Pattern PATTERN_NATIVELIB_EXT = Pattern.compile("^.+\\.so$",
             Pattern.CASE_INSENSITIVE);
 
+    /** Name of the index of the APK entries, in the incremental folder. */
+    private static final String FN_ENTRY_INDEX = "apk-entries.txt";
+
     /**
      * Filter to detect duplicate entries
      *
@@ -117,7 +122,8 @@ public final class Packager implements IArchiveBuilder {
         }
     }
 
-    private SignedJarBuilder mBuilder = null;
+    private ParallelSignedJarBuilder mBuilder = null;
+    @Nullable private final File mEntryIndexFile;
     private final ILogger mLogger;
     private boolean mJniDebugMode = false;
     private boolean mIsSealed = false;
@@ -144,6 +150,8 @@ public final class Packager implements IArchiveBuilder {
      * @param resLocation the file representing the packaged resource file.
      * @param mergingFolder the folder to store files that are being merged.
      * @param certificateInfo the signing information used to sign the package. Optional the OS path to the debug keystore, if needed or null.
+     * @param incrementalFolder the folder to store the index of the APK entries, to update the
+     *     APK rather than writing it again in the next build, or null to always write the APK.
      * @param logger the logger.
      * @throws com.android.builder.packaging.PackagerException
      */
@@ -155,6 +163,7 @@ public final class Packager implements IArchiveBuilder {
             @Nullable String createdBy,
             @Nullable PackagingOptions packagingOptions,
             @Nullable SignedJarBuilder.IZipEntryFilter packagingOptionsFilter,
+            @Nullable File incrementalFolder,
             ILogger logger) throws PackagerException {
 
         try {
@@ -172,16 +181,11 @@ public final class Packager implements IArchiveBuilder {
             }
 
             mPackagingOptionsFilter = packagingOptionsFilter;
+            mEntryIndexFile = incrementalFolder != null
+                    ? new File(incrementalFolder, FN_ENTRY_INDEX) : null;
             mLogger = logger;
 
-            mBuilder = new SignedJarBuilder(
-                    new FileOutputStream(apkFile, false /* append */),
-                    certificateInfo != null ? certificateInfo.getKey() : null,
-                    certificateInfo != null ? certificateInfo.getCertificate() : null,
-                    getLocalVersion(),
-                    createdBy);
-
-            mLogger.verbose("Packaging %s", apkFile.getName());
+            mBuilder = createBuilder(apkFile, certificateInfo, createdBy);
 
             // add the resources
             addZipFile(resFile);
@@ -199,6 +203,41 @@ public final class Packager implements IArchiveBuilder {
         }
     }
 
+    /**
+     * Creates the builder writing the APK, updating the previous APK if possible.
+     */
+    @NonNull
+    private ParallelSignedJarBuilder createBuilder(
+            @NonNull File apkFile,
+            @Nullable CertificateInfo certificateInfo,
+            @Nullable String createdBy) throws IOException, NoSuchAlgorithmException {
+        PrivateKey key = certificateInfo != null ? certificateInfo.getKey() : null;
+        X509Certificate certificate =
+                certificateInfo != null ? certificateInfo.getCertificate() : null;
+
+        if (mEntryIndexFile != null) {
+            JarEntryIndex previousIndex = JarEntryIndex.load(mEntryIndexFile);
+
+            // the index is not valid anymore once the APK starts changing.
+            if (mEntryIndexFile.exists() && !mEntryIndexFile.delete()) {
+                throw new IOException("Failed to delete " + mEntryIndexFile);
+            }
+
+            if (previousIndex != null) {
+                ParallelSignedJarBuilder builder = ParallelSignedJarBuilder.openForUpdate(
+                        apkFile, previousIndex, key, certificate, getLocalVersion(), createdBy);
+                if (builder != null) {
+                    mLogger.verbose("Updating %s", apkFile.getName());
+                    return builder;
+                }
+            }
+        }
+
+        mLogger.verbose("Packaging %s", apkFile.getName());
+        return new ParallelSignedJarBuilder(
+                apkFile, key, certificate, getLocalVersion(), createdBy);
+    }
+
     public void addDexFiles(@NonNull File mainDexFolder, @NonNull Collection<File> extraDexFiles)
             throws DuplicateFileException, SealedPackageException, PackagerException {
 
@@ -284,7 +323,6 @@ public final class Packager implements IArchiveBuilder {
             throw new SealedPackageException("APK is already sealed");
         }
 
-        FileInputStream fis = null;
         try {
             mLogger.verbose("%s:", zipFile);
 
@@ -292,20 +330,13 @@ public final class Packager implements IArchiveBuilder {
             mNoDuplicateFilter.reset(zipFile);
 
             // ask the builder to add the content of the file.
-            fis = new FileInputStream(zipFile);
-            mBuilder.writeZip(fis, mNoDuplicateFilter, null /* ZipEntryExtractor */);
+            mBuilder.writeZip(zipFile, mNoDuplicateFilter, null /* ZipEntryExtractor */);
         } catch (DuplicateFileException e) {
             mBuilder.cleanUp();
             throw e;
         } catch (Exception e) {
             mBuilder.cleanUp();
             throw new PackagerException(e, "Failed to add %s", zipFile);
-        } finally {
-            try {
-                Closeables.close(fis, true /* swallowIOException */);
-            } catch (IOException e) {
-                // ignore
-            }
         }
     }
 
@@ -322,13 +353,12 @@ public final class Packager implements IArchiveBuilder {
             throws PackagerException, DuplicateFileException {
 
         mNoDuplicateFilter.reset(jarFileOrDirectory);
-        InputStream fis = null;
         try {
             if (jarFileOrDirectory.isDirectory()) {
                 addResourcesFromDirectory(jarFileOrDirectory, "");
             } else {
-                fis = new BufferedInputStream(new FileInputStream(jarFileOrDirectory));
-                mBuilder.writeZip(fis, mNoBinaryZipFilter, null /* ZipEntryExtractor */);
+                mBuilder.writeZip(jarFileOrDirectory, mNoBinaryZipFilter,
+                        null /* ZipEntryExtractor */);
             }
         } catch (DuplicateFileException e) {
             mBuilder.cleanUp();
@@ -336,14 +366,6 @@ public final class Packager implements IArchiveBuilder {
         } catch (Exception e) {
             mBuilder.cleanUp();
             throw new PackagerException(e, "Failed to add %s", jarFileOrDirectory);
-        } finally {
-            try {
-                if (fis != null) {
-                    Closeables.close(fis, true /* swallowIOException */);
-                }
-            } catch (IOException e) {
-                // ignore.
-            }
         }
     }
 
@@ -469,6 +491,11 @@ public final class Packager implements IArchiveBuilder {
         try {
             mBuilder.close();
             mIsSealed = true;
+
+            JarEntryIndex entryIndex = mBuilder.getEntryIndex();
+            if (mEntryIndexFile != null && entryIndex != null) {
+                entryIndex.save(mEntryIndexFile);
+            }
         } catch (Exception e) {
             throw new PackagerException(e, "Failed to seal APK");
         } finally {
@@ -20,16 +20,22 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 import com.android.annotations.NonNull;
+import com.android.builder.profile.ExecutionType;
+import com.android.builder.profile.Recorder;
+import com.android.builder.profile.ThreadRecorder;
 import com.android.ide.common.res2.ResourcePreprocessor;
 import com.android.ide.common.resources.configuration.DensityQualifier;
 import com.android.ide.common.resources.configuration.FolderConfiguration;
 import com.android.ide.common.resources.configuration.VersionQualifier;
 import com.android.ide.common.vectordrawable.VdPreview;
+import com.android.ide.common.vectordrawable.VdTree;
 import com.android.resources.Density;
 import com.android.resources.ResourceFolderType;
 import com.android.utils.ILogger;
 import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
 
 import org.w3c.dom.Document;
@@ -38,24 +44,49 @@ import org.w3c.dom.Element;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
-import javax.imageio.ImageIO;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 
 /**
  * Generates PNG images (and XML copies) from VectorDrawable files.
+ *
+ * All the PNG images of a VectorDrawable are generated together, when the first one is requested:
+ * the file is parsed once, and drawn at each density in parallel. The hash of the file is saved
+ * along the images, so that they are only generated again when the file changes. The generation
+ * of the images of each file is recorded with {@link ThreadRecorder}.
  */
 @SuppressWarnings("MethodMayBeStatic")
 public class VectorDrawableRenderer implements ResourcePreprocessor {
     /** Projects with minSdk set to this or higher don't need to generate PNGs. */
     public static final int MIN_SDK_WITH_VECTOR_SUPPORT = 21;
 
+    /** Folder of the output directory where the hashes of the rendered files are saved. */
+    private static final String HASHES_FOLDER = "hashes";
+
+    private static ExecutorService sExecutor;
+
     private final ILogger mLogger;
     private final File mOutputDir;
     private final Collection<Density> mDensities;
 
+    /**
+     * The generation of the PNG images of each file, by path and hash of the file, so that the
+     * requests for its other images wait for the images to be generated.
+     */
+    private final ConcurrentMap<String, Future<Void>> mRenderings = Maps.newConcurrentMap();
+
     public VectorDrawableRenderer(File outputDir, Collection<Density> densities, ILogger logger) {
         mOutputDir = outputDir;
         mDensities = densities;
@@ -114,26 +145,166 @@ public class VectorDrawableRenderer implements ResourcePreprocessor {
         if (isXml(toBeGenerated)) {
             Files.copy(original, toBeGenerated);
         } else {
+            renderPngs(original);
+        }
+    }
+
+    /**
+     * Generates all the PNG images of the file, unless another thread is already doing so or they
+     * are up to date, and waits for them to be generated.
+     */
+    private void renderPngs(@NonNull final File original) throws IOException {
+        final byte[] content = Files.toByteArray(original);
+        final String hash = Hashing.sha1().hashBytes(content).toString();
+
+        FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                renderPngs(original, content, hash);
+                return null;
+            }
+        });
+        Future<Void> rendering = mRenderings.putIfAbsent(original.getPath() + ':' + hash, task);
+        if (rendering == null) {
+            rendering = task;
+            task.run();
+        }
+        waitFor(rendering);
+    }
+
+    private void renderPngs(@NonNull final File original, @NonNull final byte[] content,
+            @NonNull String hash) throws IOException {
+        final List<File> pngFiles = Lists.newArrayList();
+        for (File file : getFilesToBeGenerated(original)) {
+            if (!isXml(file)) {
+                pngFiles.add(file);
+            }
+        }
+
+        File hashFile = new File(new File(new File(mOutputDir, HASHES_FOLDER),
+                original.getParentFile().getName()), original.getName() + ".sha1");
+        if (isUpToDate(hashFile, hash, pngFiles)) {
+            mLogger.info("PNGs of [%s] are up to date", original.getAbsolutePath());
+            return;
+        }
+        // Only save the new hash once all the images are generated.
+        if (hashFile.isFile() && !hashFile.delete()) {
+            throw new IOException("Failed to delete " + hashFile);
+        }
+
+        final IOException[] failure = new IOException[1];
+        ThreadRecorder.get().record(ExecutionType.TASK_RENDER_VECTOR_DRAWABLE,
+                new Recorder.Block<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        drawPngs(original, content, pngFiles);
+                        return null;
+                    }
+
+                    @Override
+                    public void handleException(@NonNull Exception e) {
+                        failure[0] = e instanceof IOException
+                                ? (IOException) e : new IOException(e);
+                    }
+                },
+                new Recorder.Property("file", original.getName()),
+                new Recorder.Property("densities", Integer.toString(pngFiles.size())));
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        Files.createParentDirs(hashFile);
+        Files.write(hash, hashFile, Charsets.UTF_8);
+    }
+
+    private void drawPngs(@NonNull File original, @NonNull byte[] content,
+            @NonNull List<File> pngFiles) throws IOException {
+        final VdTree vdTree = VdPreview.parseVdTree(new String(content, Charsets.UTF_8), null);
+        checkState(vdTree != null, "Parsing [%s] failed.", original.getAbsolutePath());
+
+        List<Future<Void>> drawings = Lists.newArrayListWithCapacity(pngFiles.size());
+        for (final File pngFile : pngFiles) {
             mLogger.info(
                     "Generating PNG: [%s] from [%s]",
-                    toBeGenerated.getAbsolutePath(),
+                    pngFile.getAbsolutePath(),
                     original.getAbsolutePath());
 
-            FolderConfiguration folderConfiguration = getFolderConfiguration(toBeGenerated);
+            FolderConfiguration folderConfiguration = getFolderConfiguration(pngFile);
             checkState(folderConfiguration.getDensityQualifier() != null);
-            Density density = folderConfiguration.getDensityQualifier().getValue();
+            final Density density = folderConfiguration.getDensityQualifier().getValue();
+
+            drawings.add(getExecutor().submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    float scaleFactor =
+                            density.getDpiValue() / (float) Density.MEDIUM.getDpiValue();
+                    if (scaleFactor <= 0) {
+                        scaleFactor = 1.0f;
+                    }
+
+                    VdPreview.TargetSize imageSize =
+                            VdPreview.TargetSize.createSizeFromScale(scaleFactor);
+                    BufferedImage image = VdPreview.getPreviewFromVdTree(imageSize, vdTree, null);
+                    Files.createParentDirs(pngFile);
+                    PngWriter.write(image, pngFile);
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> drawing : drawings) {
+            waitFor(drawing);
+        }
+    }
 
-            String xmlContent = Files.toString(original, Charsets.UTF_8);
-            float scaleFactor = density.getDpiValue() / (float) Density.MEDIUM.getDpiValue();
-            if (scaleFactor <= 0) {
-                scaleFactor = 1.0f;
+    private static boolean isUpToDate(@NonNull File hashFile, @NonNull String hash,
+            @NonNull List<File> pngFiles) throws IOException {
+        if (!hashFile.isFile() || !hash.equals(Files.toString(hashFile, Charsets.UTF_8))) {
+            return false;
+        }
+        for (File pngFile : pngFiles) {
+            if (!pngFile.isFile()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void waitFor(@NonNull Future<Void> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while generating PNGs");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
             }
+            throw new IOException(cause);
+        }
+    }
 
-            final VdPreview.TargetSize imageSize = VdPreview.TargetSize.createSizeFromScale(scaleFactor);
-            BufferedImage image = VdPreview.getPreviewFromVectorXml(imageSize, xmlContent, null);
-            checkState(image != null, "Generating the image failed.");
-            ImageIO.write(image, "png", toBeGenerated);
+    /**
+     * Returns the executor drawing the images. The files themselves are processed on the threads
+     * of the resource merger, so the images are drawn on threads of their own.
+     */
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(@NonNull Runnable r) {
+                            Thread thread = new Thread(r, "VectorDrawableRenderer");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
         }
+        return sExecutor;
     }
 
     @NonNull
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.signing;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Index of the entries of an archive written by {@link ParallelSignedJarBuilder}: the path,
+ * size, CRC and digest of each entry.
+ *
+ * The index is saved next to the state of a build so that the next build can update the archive
+ * instead of writing it again, see
+ * {@link ParallelSignedJarBuilder#openForUpdate(File, JarEntryIndex, java.security.PrivateKey,
+ * java.security.cert.X509Certificate, String, String)}.
+ *
+ * The index also records the size and the time stamp of the archive, so that an archive
+ * modified by another tool is not updated from a stale index.
+ */
+public final class JarEntryIndex {
+
+    private static final String VERSION = "1";
+    private static final String SEPARATOR = "\t";
+    private static final String NO_DIGEST = "-";
+
+    /**
+     * An entry of the index.
+     */
+    static final class Entry {
+        @NonNull
+        final String name;
+        final long crc;
+        final long size;
+        @Nullable
+        final String digest;
+
+        Entry(@NonNull String name, long crc, long size, @Nullable String digest) {
+            this.name = name;
+            this.crc = crc;
+            this.size = size;
+            this.digest = digest;
+        }
+    }
+
+    private final long mArchiveSize;
+    private final long mArchiveTimestamp;
+    @NonNull
+    private final Map<String, Entry> mEntries;
+
+    JarEntryIndex(long archiveSize, long archiveTimestamp, @NonNull Collection<Entry> entries) {
+        mArchiveSize = archiveSize;
+        mArchiveTimestamp = archiveTimestamp;
+        ImmutableMap.Builder<String, Entry> builder = ImmutableMap.builder();
+        for (Entry entry : entries) {
+            builder.put(entry.name, entry);
+        }
+        mEntries = builder.build();
+    }
+
+    /**
+     * Loads an index.
+     *
+     * @return the index, or null if the file does not exist or is not a valid index.
+     */
+    @Nullable
+    public static JarEntryIndex load(@NonNull File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        BufferedReader reader = Files.newReader(file, Charsets.UTF_8);
+        try {
+            String header = reader.readLine();
+            if (header == null) {
+                return null;
+            }
+            String[] headerValues = header.split(SEPARATOR);
+            if (headerValues.length != 3 || !VERSION.equals(headerValues[0])) {
+                return null;
+            }
+            long archiveSize = Long.parseLong(headerValues[1]);
+            long archiveTimestamp = Long.parseLong(headerValues[2]);
+
+            Map<String, Entry> entries = Maps.newLinkedHashMap();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // the name is last as it is the only value that can contain anything.
+                String[] values = line.split(SEPARATOR, 4);
+                if (values.length != 4) {
+                    return null;
+                }
+                String digest = NO_DIGEST.equals(values[2]) ? null : values[2];
+                entries.put(values[3], new Entry(values[3], Long.parseLong(values[0]),
+                        Long.parseLong(values[1]), digest));
+            }
+            return new JarEntryIndex(archiveSize, archiveTimestamp, entries.values());
+        } catch (NumberFormatException e) {
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Saves the index.
+     */
+    public void save(@NonNull File file) throws IOException {
+        Files.createParentDirs(file);
+        Writer writer = Files.newWriter(file, Charsets.UTF_8);
+        try {
+            writer.write(VERSION + SEPARATOR + mArchiveSize + SEPARATOR + mArchiveTimestamp + "\n");
+            for (Entry entry : mEntries.values()) {
+                writer.write(entry.crc + SEPARATOR + entry.size + SEPARATOR
+                        + (entry.digest != null ? entry.digest : NO_DIGEST) + SEPARATOR
+                        + entry.name + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Returns whether the archive is still the one described by the index.
+     */
+    boolean matches(@NonNull File archive) {
+        return archive.isFile()
+                && archive.length() == mArchiveSize
+                && archive.lastModified() == mArchiveTimestamp;
+    }
+
+    @Nullable
+    Entry get(@NonNull String name) {
+        return mEntries.get(name);
+    }
+}
@@ -0,0 +1,790 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.signing;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.signing.SignedJarBuilder.IZipEntryFilter;
+import com.android.builder.signing.SignedJarBuilder.IZipEntryFilter.ZipAbortException;
+import com.android.builder.signing.SignedJarBuilder.ZipEntryExtractor;
+import com.android.ide.common.internal.ExecutorSingleton;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.util.encoders.Base64;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+/**
+ * A Jar file builder with signature support, writing the archive with several threads.
+ *
+ * This produces the same archive content as {@link SignedJarBuilder}, but:
+ * <ul>
+ * <li>the entries of the input archives are copied without being inflated and deflated again.
+ * They are read from the central directory of the archive, and their compressed content is
+ * copied as is. When signing, the content is still inflated to compute its digest, but never
+ * deflated again.</li>
+ * <li>new entries are compressed, and all the entries digested, in parallel, using the
+ * {@link ExecutorSingleton} executor.</li>
+ * </ul>
+ *
+ * The entries are always written in the order they are added, whatever the order in which their
+ * content is ready, so the output is deterministic. The number of entries being prepared at the
+ * same time is bounded to limit the memory used.
+ *
+ * Input archives that cannot be read from their central directory (for instance zip64 archives)
+ * are read with a {@link ZipInputStream} instead, and their entries compressed again.
+ *
+ * An archive written by this builder can also be updated in place by the next build, see
+ * {@link #openForUpdate(File, JarEntryIndex, PrivateKey, X509Certificate, String, String)}.
+ */
+public class ParallelSignedJarBuilder {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_PENDING_ENTRIES_PER_THREAD = 4;
+    /** An archive is written again rather than updated when more than half of it is unused. */
+    private static final int MAX_UNUSED_RATIO = 2;
+
+    /** Inflaters created with nowrap need an extra byte of input at the end of the data. */
+    private static final byte[] INFLATER_PADDING = new byte[1];
+
+    /**
+     * An entry ready to be written: either its compressed content, the location of its
+     * compressed content in an input archive, or the location of the entry in the archive being
+     * updated.
+     */
+    private static final class PreparedEntry {
+        @NonNull
+        final String name;
+        final int method;
+        final int dosTime;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        @Nullable
+        final byte[] data;
+        @Nullable
+        final FileChannel source;
+        final long sourceOffset;
+        /** Offset of the entry in the archive being updated, or -1 if it is written. */
+        final long existingOffset;
+        @Nullable
+        final String digest;
+
+        PreparedEntry(@NonNull String name, int method, int dosTime, long crc,
+                long compressedSize, long size, @Nullable byte[] data,
+                @Nullable FileChannel source, long sourceOffset, long existingOffset,
+                @Nullable String digest) {
+            this.name = name;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.data = data;
+            this.source = source;
+            this.sourceOffset = sourceOffset;
+            this.existingOffset = existingOffset;
+            this.digest = digest;
+        }
+    }
+
+    @NonNull
+    private final File mOutFile;
+    @Nullable
+    private RawZipWriter mWriter;
+    @Nullable
+    private final PrivateKey mKey;
+    @Nullable
+    private final X509Certificate mCertificate;
+    @Nullable
+    private final Manifest mManifest;
+    private final int mMaxPendingEntries;
+
+    /** Index of the archive being updated, or null when writing a new archive. */
+    @Nullable
+    private final JarEntryIndex mPreviousIndex;
+    /** The entries of the archive being updated, by name. */
+    @NonNull
+    private final Map<String, ZipCentralDirectory.Entry> mPreviousEntries;
+    @NonNull
+    private final List<JarEntryIndex.Entry> mIndexEntries = Lists.newArrayList();
+    @Nullable
+    private JarEntryIndex mEntryIndex;
+
+    private final Deque<FutureTask<PreparedEntry>> mPendingEntries =
+            new ArrayDeque<FutureTask<PreparedEntry>>();
+    private final List<FileChannel> mInputChannels = Lists.newArrayList();
+
+    /**
+     * Creates a {@link ParallelSignedJarBuilder} with a given output file, and signing
+     * information.
+     * <p/>If either <code>key</code> or <code>certificate</code> is <code>null</code> then
+     * the archive will not be signed.
+     * @param outFile the {@link File} where to write the Jar archive.
+     * @param key the {@link PrivateKey} used to sign the archive, or <code>null</code>.
+     * @param certificate the {@link X509Certificate} used to sign the archive, or
+     * <code>null</code>.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public ParallelSignedJarBuilder(@NonNull File outFile,
+                                    @Nullable PrivateKey key,
+                                    @Nullable X509Certificate certificate,
+                                    @Nullable String builtBy,
+                                    @Nullable String createdBy)
+            throws IOException, NoSuchAlgorithmException {
+        this(outFile, new RawZipWriter(outFile), null,
+                Collections.<String, ZipCentralDirectory.Entry>emptyMap(),
+                key, certificate, builtBy, createdBy);
+    }
+
+    private ParallelSignedJarBuilder(@NonNull File outFile,
+                                     @NonNull RawZipWriter writer,
+                                     @Nullable JarEntryIndex previousIndex,
+                                     @NonNull Map<String, ZipCentralDirectory.Entry> previousEntries,
+                                     @Nullable PrivateKey key,
+                                     @Nullable X509Certificate certificate,
+                                     @Nullable String builtBy,
+                                     @Nullable String createdBy)
+            throws NoSuchAlgorithmException {
+        mOutFile = outFile;
+        mWriter = writer;
+        mPreviousIndex = previousIndex;
+        mPreviousEntries = previousEntries;
+        mMaxPendingEntries =
+                Runtime.getRuntime().availableProcessors() * MAX_PENDING_ENTRIES_PER_THREAD;
+
+        if (key != null && certificate != null) {
+            mKey = key;
+            mCertificate = certificate;
+            mManifest = new Manifest();
+            Attributes main = mManifest.getMainAttributes();
+            main.putValue("Manifest-Version", "1.0");
+            if (builtBy != null) {
+                main.putValue("Built-By", builtBy);
+            }
+            if (createdBy != null) {
+                main.putValue("Created-By", createdBy);
+            }
+
+            // fail early if the digest algorithm is not available.
+            MessageDigest.getInstance(SignedJarBuilder.DIGEST_ALGORITHM);
+        } else {
+            mKey = null;
+            mCertificate = null;
+            mManifest = null;
+        }
+    }
+
+    /**
+     * Creates a {@link ParallelSignedJarBuilder} updating an archive written by a previous
+     * builder.
+     *
+     * The entries added to the builder that have the same content as in the archive, compared
+     * with the digests of the index, are kept where they are rather than written again. The
+     * other entries are appended to the archive, followed by a new central directory. The
+     * entries of the archive that are not added again are left unused in the archive.
+     *
+     * If the archive cannot be updated (because it does not match the index, or too much of it
+     * is already unused), null is returned and the archive should be written from scratch.
+     *
+     * @param outFile the Jar archive to update.
+     * @param previousIndex the index of the archive, see {@link #getEntryIndex()}.
+     * @param key the {@link PrivateKey} used to sign the archive, or <code>null</code>.
+     * @param certificate the {@link X509Certificate} used to sign the archive, or
+     * <code>null</code>.
+     * @return the builder, or null if the archive cannot be updated.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    @Nullable
+    public static ParallelSignedJarBuilder openForUpdate(@NonNull File outFile,
+                                                         @NonNull JarEntryIndex previousIndex,
+                                                         @Nullable PrivateKey key,
+                                                         @Nullable X509Certificate certificate,
+                                                         @Nullable String builtBy,
+                                                         @Nullable String createdBy)
+            throws IOException, NoSuchAlgorithmException {
+        if (!previousIndex.matches(outFile)) {
+            return null;
+        }
+
+        ZipCentralDirectory directory;
+        RandomAccessFile file = new RandomAccessFile(outFile, "r");
+        try {
+            directory = ZipCentralDirectory.read(file.getChannel());
+        } catch (ZipException e) {
+            return null;
+        } finally {
+            file.close();
+        }
+
+        Map<String, ZipCentralDirectory.Entry> previousEntries = Maps.newHashMap();
+        long usedSize = 0;
+        for (ZipCentralDirectory.Entry entry : directory.entries) {
+            previousEntries.put(entry.name, entry);
+            usedSize += ZipCentralDirectory.LOCAL_HEADER_SIZE
+                    + entry.name.getBytes(Charsets.UTF_8).length + entry.compressedSize;
+        }
+        if ((directory.offset - usedSize) * MAX_UNUSED_RATIO > directory.offset) {
+            return null;
+        }
+
+        // the new entries overwrite the central directory.
+        return new ParallelSignedJarBuilder(outFile,
+                new RawZipWriter(outFile, directory.offset), previousIndex, previousEntries,
+                key, certificate, builtBy, createdBy);
+    }
+
+    /**
+     * Writes a new {@link File} into the archive.
+     * @param inputFile the {@link File} to write.
+     * @param jarPath the filepath inside the archive.
+     * @throws IOException
+     */
+    public void writeFile(@NonNull final File inputFile, @NonNull final String jarPath)
+            throws IOException {
+        final int dosTime = ZipCentralDirectory.toDosTime(inputFile.lastModified());
+        submit(new Callable<PreparedEntry>() {
+            @Override
+            public PreparedEntry call() throws Exception {
+                return compress(jarPath, ZipEntry.DEFLATED, dosTime,
+                        Files.toByteArray(inputFile));
+            }
+        });
+    }
+
+    /**
+     * Copies the content of a Jar/Zip archive into the receiver archive.
+     * <p/>An optional {@link IZipEntryFilter} allows to selectively choose which files
+     * to copy over.
+     * @param input the Jar/Zip to copy.
+     * @param filter the filter or <code>null</code>
+     * @param extractor the extractor or <code>null</code>
+     * @throws IOException
+     * @throws ZipAbortException if the {@link IZipEntryFilter} filter indicated that the write
+     *                           must be aborted.
+     */
+    public void writeZip(
+            @NonNull File input,
+            @Nullable IZipEntryFilter filter,
+            @Nullable ZipEntryExtractor extractor) throws IOException, ZipAbortException {
+        RandomAccessFile file = new RandomAccessFile(input, "r");
+        FileChannel channel = file.getChannel();
+        List<ZipCentralDirectory.Entry> entries;
+        try {
+            entries = ZipCentralDirectory.read(channel).entries;
+        } catch (ZipException e) {
+            file.close();
+            writeZipFromStream(input, filter, extractor);
+            return;
+        }
+
+        // the channel is read by the tasks preparing the entries, so it is only closed once all
+        // the entries are written.
+        mInputChannels.add(channel);
+
+        for (final ZipCentralDirectory.Entry entry : entries) {
+            if (SignedJarBuilder.isIgnoredEntry(entry.name)) {
+                continue;
+            }
+
+            // if we have an extractor, we check the entry to see if it's a file that should be
+            // extracted.
+            if (extractor != null && extractor.checkEntry(entry.name)) {
+                InputStream content = openEntry(channel, entry);
+                try {
+                    extractor.extract(entry.name, content);
+                } finally {
+                    content.close();
+                }
+                continue;
+            }
+
+            // if we have a filter, we check the entry against it
+            if (filter != null && !filter.checkEntry(entry.name)) {
+                continue;
+            }
+
+            final FileChannel source = channel;
+            submit(new Callable<PreparedEntry>() {
+                @Override
+                public PreparedEntry call() throws Exception {
+                    return prepareRawEntry(source, entry);
+                }
+            });
+        }
+    }
+
+    /**
+     * Closes the Jar archive by creating the manifest, and signing the archive.
+     * @throws IOException
+     * @throws SigningException
+     */
+    public void close() throws IOException, SigningException {
+        RawZipWriter writer = getWriter();
+        writePendingEntries(0);
+
+        if (mManifest != null) {
+            // the entries generated here are written with a fixed time so that signing does
+            // not make the archive depend on the time of the build. They are written without
+            // being added to the manifest, which must not change once it is serialized.
+            try {
+                ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+                mManifest.write(manifest);
+                write(compress(JarFile.MANIFEST_NAME, ZipEntry.DEFLATED,
+                        ZipCentralDirectory.DOS_EPOCH, manifest.toByteArray()));
+
+                // CERT.SF
+                ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+                SignedJarBuilder.writeSignatureFile(mManifest, signatureFile);
+                byte[] signedData = signatureFile.toByteArray();
+                write(compress("META-INF/CERT.SF", ZipEntry.DEFLATED,
+                        ZipCentralDirectory.DOS_EPOCH, signedData));
+
+                // CERT.*
+                ByteArrayOutputStream signatureBlock = new ByteArrayOutputStream();
+                //noinspection ConstantConditions - set together with the manifest.
+                SignedJarBuilder.writeSignatureBlock(new CMSProcessableByteArray(signedData),
+                        mCertificate, mKey, signatureBlock);
+                write(compress("META-INF/CERT." + mKey.getAlgorithm(), ZipEntry.DEFLATED,
+                        ZipCentralDirectory.DOS_EPOCH, signatureBlock.toByteArray()));
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new SigningException(e);
+            }
+        }
+
+        writer.finish();
+        mWriter = null;
+        closeInputs();
+
+        mEntryIndex = new JarEntryIndex(mOutFile.length(), mOutFile.lastModified(),
+                mIndexEntries);
+    }
+
+    /**
+     * Returns the index of the archive, to update it in a later build.
+     *
+     * @return the index, or null if the archive is not closed yet.
+     */
+    @Nullable
+    public JarEntryIndex getEntryIndex() {
+        return mEntryIndex;
+    }
+
+    /**
+     * Clean up of the builder for interrupted workflow.
+     * This does nothing if {@link #close()} was called successfully.
+     */
+    public void cleanUp() {
+        for (FutureTask<PreparedEntry> pendingEntry : mPendingEntries) {
+            pendingEntry.cancel(false /*mayInterruptIfRunning*/);
+        }
+        mPendingEntries.clear();
+
+        if (mWriter != null) {
+            try {
+                Closeables.close(mWriter, true /* swallowIOException */);
+            } catch (IOException e) {
+                // pass
+            }
+            mWriter = null;
+        }
+        closeInputs();
+    }
+
+    /**
+     * Copies the content of an archive that cannot be read from its central directory.
+     */
+    private void writeZipFromStream(
+            @NonNull File input,
+            @Nullable IZipEntryFilter filter,
+            @Nullable ZipEntryExtractor extractor) throws IOException, ZipAbortException {
+        ZipInputStream zis = new ZipInputStream(new FileInputStream(input));
+        try {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                final String name = entry.getName();
+                if (SignedJarBuilder.isIgnoredEntry(name)) {
+                    continue;
+                }
+
+                if (extractor != null && extractor.checkEntry(name)) {
+                    extractor.extract(name, zis);
+                    continue;
+                }
+
+                if (filter != null && !filter.checkEntry(name)) {
+                    continue;
+                }
+
+                // Preserve the STORED method of the input entry.
+                final int method = entry.getMethod() == ZipEntry.STORED
+                        ? ZipEntry.STORED : ZipEntry.DEFLATED;
+                final int dosTime = ZipCentralDirectory.toDosTime(entry.getTime());
+                final byte[] content = ByteStreams.toByteArray(zis);
+                submit(new Callable<PreparedEntry>() {
+                    @Override
+                    public PreparedEntry call() throws Exception {
+                        return compress(name, method, dosTime, content);
+                    }
+                });
+
+                zis.closeEntry();
+            }
+        } finally {
+            zis.close();
+        }
+    }
+
+    /**
+     * Submits the preparation of an entry, and writes the entries that are ready.
+     */
+    private void submit(@NonNull Callable<PreparedEntry> preparation) throws IOException {
+        getWriter();
+        FutureTask<PreparedEntry> pendingEntry = new FutureTask<PreparedEntry>(preparation);
+        ExecutorSingleton.getExecutor().execute(pendingEntry);
+        mPendingEntries.add(pendingEntry);
+        writePendingEntries(mMaxPendingEntries);
+    }
+
+    /**
+     * Writes the pending entries, in order, until at most <var>maxPendingEntries</var> are left
+     * and the next one is not ready yet.
+     */
+    private void writePendingEntries(int maxPendingEntries) throws IOException {
+        while (!mPendingEntries.isEmpty()
+                && (mPendingEntries.size() > maxPendingEntries
+                        || mPendingEntries.peek().isDone())) {
+            FutureTask<PreparedEntry> pendingEntry = mPendingEntries.poll();
+            // prepare the entry in this thread if no thread of the executor has started it yet,
+            // so that waiting for it never depends on the executor being available.
+            pendingEntry.run();
+            add(getPreparedEntry(pendingEntry));
+        }
+    }
+
+    /**
+     * Writes an entry, and adds it to the manifest and the index.
+     */
+    private void add(@NonNull PreparedEntry entry) throws IOException {
+        write(entry);
+
+        // the manifest and the signature files are generated when closing the archive, and
+        // must not be digested in the manifest.
+        if (mManifest != null && !SignedJarBuilder.isSignatureFile(entry.name)) {
+            // update the manifest for this entry.
+            Attributes attr = mManifest.getAttributes(entry.name);
+            if (attr == null) {
+                attr = new Attributes();
+                mManifest.getEntries().put(entry.name, attr);
+            }
+            attr.putValue(SignedJarBuilder.DIGEST_ATTR, entry.digest);
+        }
+
+        mIndexEntries.add(new JarEntryIndex.Entry(entry.name, entry.crc, entry.size,
+                entry.digest));
+    }
+
+    private void write(@NonNull PreparedEntry entry) throws IOException {
+        RawZipWriter writer = getWriter();
+        if (entry.existingOffset >= 0) {
+            writer.addExistingEntry(entry.name, entry.method, entry.dosTime, entry.crc,
+                    entry.compressedSize, entry.size, entry.existingOffset);
+        } else if (entry.data != null) {
+            writer.writeEntry(entry.name, entry.method, entry.dosTime, entry.crc, entry.size,
+                    ByteBuffer.wrap(entry.data));
+        } else {
+            //noinspection ConstantConditions - source is set when data is not.
+            writer.copyEntry(entry.name, entry.method, entry.dosTime, entry.crc,
+                    entry.compressedSize, entry.size, entry.source, entry.sourceOffset);
+        }
+    }
+
+    /**
+     * Returns whether the entries copied from input archives must be digested: to sign the
+     * archive, or to find the entries of the archive being updated that can be kept.
+     */
+    private boolean needsDigest() {
+        return mManifest != null || mPreviousIndex != null;
+    }
+
+    /**
+     * Returns the entry of the archive being updated with the given content, if it can be kept
+     * as is.
+     *
+     * The content is matched on its SHA-1 digest, as it is easy to make different contents with
+     * the same CRC. Entries copied from an input archive by a builder that was neither signing
+     * nor updating an archive have no digest in the index, and are never kept.
+     */
+    @Nullable
+    private PreparedEntry findExistingEntry(@NonNull String name, int method, long size,
+            @NonNull String digest) {
+        if (mPreviousIndex == null) {
+            return null;
+        }
+
+        JarEntryIndex.Entry indexEntry = mPreviousIndex.get(name);
+        ZipCentralDirectory.Entry entry = mPreviousEntries.get(name);
+        if (indexEntry == null || entry == null
+                || entry.method != method
+                || entry.crc != indexEntry.crc
+                || entry.size != size || indexEntry.size != size
+                || !digest.equals(indexEntry.digest)) {
+            return null;
+        }
+
+        return new PreparedEntry(name, entry.method, entry.dosTime, entry.crc,
+                entry.compressedSize, entry.size, null, null, 0, entry.localHeaderOffset,
+                digest);
+    }
+
+    /**
+     * Prepares an entry whose content is given uncompressed.
+     *
+     * @param method the compression method of the entry in the output archive.
+     */
+    @NonNull
+    private PreparedEntry compress(@NonNull String name, int method, int dosTime,
+            @NonNull byte[] content) throws IOException, NoSuchAlgorithmException {
+        // the content is always digested, as this is cheap compared to compressing it.
+        MessageDigest messageDigest =
+                MessageDigest.getInstance(SignedJarBuilder.DIGEST_ALGORITHM);
+        messageDigest.update(content);
+        String digest = encodeDigest(messageDigest);
+
+        PreparedEntry existingEntry = findExistingEntry(name, method, content.length, digest);
+        if (existingEntry != null) {
+            return existingEntry;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(content);
+
+        byte[] data = content;
+        if (method == ZipEntry.DEFLATED) {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true /*nowrap*/);
+            try {
+                ByteArrayOutputStream compressed =
+                        new ByteArrayOutputStream(Math.max(64, content.length / 2));
+                DeflaterOutputStream dos =
+                        new DeflaterOutputStream(compressed, deflater, BUFFER_SIZE);
+                dos.write(content);
+                dos.finish();
+                data = compressed.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        return new PreparedEntry(name, method, dosTime, crc.getValue(), data.length,
+                content.length, data, null, 0, -1, digest);
+    }
+
+    /**
+     * Prepares an entry copied from an input archive. The content is only read here if it needs
+     * to be digested, otherwise it is copied straight from the input archive when written.
+     */
+    @NonNull
+    private PreparedEntry prepareRawEntry(
+            @NonNull FileChannel channel,
+            @NonNull ZipCentralDirectory.Entry entry) throws IOException, NoSuchAlgorithmException {
+        long dataOffset = ZipCentralDirectory.getDataOffset(channel, entry);
+        if (!needsDigest()) {
+            return new PreparedEntry(entry.name, entry.method, entry.dosTime, entry.crc,
+                    entry.compressedSize, entry.size, null, channel, dataOffset, -1, null);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(checkSize(entry, entry.compressedSize));
+        ZipCentralDirectory.readFully(channel, buffer, dataOffset);
+        byte[] data = buffer.array();
+
+        MessageDigest messageDigest = MessageDigest.getInstance(SignedJarBuilder.DIGEST_ALGORITHM);
+        CRC32 crc = new CRC32();
+        long size;
+        if (entry.method == ZipEntry.STORED) {
+            messageDigest.update(data);
+            crc.update(data);
+            size = data.length;
+        } else {
+            size = inflate(entry, data, messageDigest, crc);
+        }
+
+        if (crc.getValue() != entry.crc || size != entry.size) {
+            throw new ZipException("Invalid content for " + entry.name);
+        }
+
+        String digest = encodeDigest(messageDigest);
+        PreparedEntry existingEntry = findExistingEntry(entry.name, entry.method, size, digest);
+        if (existingEntry != null) {
+            return existingEntry;
+        }
+
+        return new PreparedEntry(entry.name, entry.method, entry.dosTime, entry.crc,
+                data.length, size, data, null, 0, -1, digest);
+    }
+
+    /**
+     * Inflates deflated content into a digest and a CRC, and returns the inflated size.
+     */
+    private static long inflate(
+            @NonNull ZipCentralDirectory.Entry entry,
+            @NonNull byte[] data,
+            @NonNull MessageDigest messageDigest,
+            @NonNull CRC32 crc) throws ZipException {
+        Inflater inflater = new Inflater(true /*nowrap*/);
+        try {
+            inflater.setInput(data);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            boolean padded = false;
+            long size = 0;
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count > 0) {
+                    messageDigest.update(buffer, 0, count);
+                    crc.update(buffer, 0, count);
+                    size += count;
+                } else if (inflater.needsInput() && !padded) {
+                    inflater.setInput(INFLATER_PADDING);
+                    padded = true;
+                } else if (inflater.needsInput() || inflater.needsDictionary()) {
+                    throw new ZipException("Invalid deflated content for " + entry.name);
+                }
+            }
+            return size;
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid deflated content for " + entry.name);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Opens the uncompressed content of an entry of an input archive.
+     */
+    @NonNull
+    private static InputStream openEntry(
+            @NonNull FileChannel channel,
+            @NonNull ZipCentralDirectory.Entry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(checkSize(entry, entry.compressedSize));
+        ZipCentralDirectory.readFully(channel, buffer,
+                ZipCentralDirectory.getDataOffset(channel, entry));
+        InputStream data = new ByteArrayInputStream(buffer.array());
+        if (entry.method == ZipEntry.STORED) {
+            return data;
+        }
+        return new InflaterInputStream(
+                new SequenceInputStream(data, new ByteArrayInputStream(INFLATER_PADDING)),
+                new Inflater(true /*nowrap*/),
+                BUFFER_SIZE);
+    }
+
+    @NonNull
+    private static PreparedEntry getPreparedEntry(@NonNull FutureTask<PreparedEntry> pendingEntry)
+            throws IOException {
+        try {
+            return pendingEntry.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing the archive");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    @NonNull
+    private RawZipWriter getWriter() throws IOException {
+        if (mWriter == null) {
+            throw new IOException("The archive is already closed");
+        }
+        return mWriter;
+    }
+
+    private void closeInputs() {
+        for (FileChannel channel : mInputChannels) {
+            try {
+                Closeables.close(channel, true /* swallowIOException */);
+            } catch (IOException e) {
+                // pass
+            }
+        }
+        mInputChannels.clear();
+    }
+
+    private static int checkSize(@NonNull ZipCentralDirectory.Entry entry, long size)
+            throws ZipException {
+        if (size > Integer.MAX_VALUE) {
+            throw new ZipException("Entry too large: " + entry.name);
+        }
+        return (int) size;
+    }
+
+    @NonNull
+    private static String encodeDigest(@NonNull MessageDigest messageDigest) throws IOException {
+        return new String(Base64.encode(messageDigest.digest()), "ASCII");
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.signing;
+
+import static com.android.builder.signing.ZipCentralDirectory.CENTRAL_HEADER_SIGNATURE;
+import static com.android.builder.signing.ZipCentralDirectory.CENTRAL_HEADER_SIZE;
+import static com.android.builder.signing.ZipCentralDirectory.END_SIGNATURE;
+import static com.android.builder.signing.ZipCentralDirectory.END_SIZE;
+import static com.android.builder.signing.ZipCentralDirectory.FLAG_UTF8;
+import static com.android.builder.signing.ZipCentralDirectory.LOCAL_HEADER_SIGNATURE;
+import static com.android.builder.signing.ZipCentralDirectory.LOCAL_HEADER_SIZE;
+
+import com.android.annotations.NonNull;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a zip archive from entries whose content is already compressed.
+ *
+ * The entries are written in the order they are added, with their CRC and sizes in the local
+ * header (no data descriptor) and without extra fields, so the output only depends on the
+ * entries written.
+ *
+ * The writer can also update an existing archive: the new entries are then appended after the
+ * entries of the archive, and the entries to keep are only listed in the new central directory,
+ * see {@link #RawZipWriter(File, long)} and {@link #addExistingEntry}.
+ */
+final class RawZipWriter implements Closeable {
+
+    private static final int VERSION_NEEDED = 20;
+    private static final long MAX_32BIT_VALUE = 0xffffffffL;
+
+    private static final class WrittenEntry {
+        final byte[] name;
+        final int method;
+        final int dosTime;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long offset;
+
+        WrittenEntry(byte[] name, int method, int dosTime, long crc, long compressedSize,
+                long size, long offset) {
+            this.name = name;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+    }
+
+    @NonNull
+    private final RandomAccessFile mOutput;
+    @NonNull
+    private final FileChannel mChannel;
+    private final List<WrittenEntry> mEntries = Lists.newArrayList();
+    private final Set<String> mNames = Sets.newHashSet();
+    private long mOffset;
+
+    /**
+     * Creates a writer for a new archive.
+     */
+    RawZipWriter(@NonNull File file) throws IOException {
+        this(file, 0);
+    }
+
+    /**
+     * Creates a writer updating an existing archive.
+     *
+     * @param startOffset the offset from which to write the new entries. Everything in the
+     *     archive after this offset, typically its central directory, is discarded.
+     */
+    RawZipWriter(@NonNull File file, long startOffset) throws IOException {
+        mOutput = new RandomAccessFile(file, "rw");
+        mOutput.setLength(startOffset);
+        mChannel = mOutput.getChannel();
+        mChannel.position(startOffset);
+        mOffset = startOffset;
+    }
+
+    /**
+     * Writes an entry from its compressed content.
+     *
+     * @param data the compressed content, from its position to its limit.
+     */
+    void writeEntry(@NonNull String name, int method, int dosTime, long crc, long size,
+            @NonNull ByteBuffer data) throws IOException {
+        long compressedSize = data.remaining();
+        writeLocalHeader(name, method, dosTime, crc, compressedSize, size);
+        while (data.hasRemaining()) {
+            mChannel.write(data);
+        }
+        mOffset += compressedSize;
+    }
+
+    /**
+     * Writes an entry by copying its compressed content from another file.
+     *
+     * @param source the file containing the compressed content.
+     * @param sourceOffset the offset of the content in the file.
+     */
+    void copyEntry(@NonNull String name, int method, int dosTime, long crc, long compressedSize,
+            long size, @NonNull FileChannel source, long sourceOffset) throws IOException {
+        writeLocalHeader(name, method, dosTime, crc, compressedSize, size);
+        long copied = 0;
+        while (copied < compressedSize) {
+            long count = source.transferTo(
+                    sourceOffset + copied, compressedSize - copied, mChannel);
+            if (count <= 0) {
+                throw new ZipException("Unexpected end of data for " + name);
+            }
+            copied += count;
+        }
+        mOffset += compressedSize;
+    }
+
+    /**
+     * Adds an entry already present in the archive being updated. Nothing is written until the
+     * central directory.
+     *
+     * @param localHeaderOffset the offset of the local header of the entry.
+     */
+    void addExistingEntry(@NonNull String name, int method, int dosTime, long crc,
+            long compressedSize, long size, long localHeaderOffset) throws IOException {
+        if (!mNames.add(name)) {
+            throw new ZipException("duplicate entry: " + name);
+        }
+        mEntries.add(new WrittenEntry(name.getBytes(Charsets.UTF_8), method, dosTime, crc,
+                compressedSize, size, localHeaderOffset));
+    }
+
+    /**
+     * Writes the central directory and closes the archive.
+     */
+    void finish() throws IOException {
+        if (mEntries.size() >= 0xffff) {
+            throw new ZipException("Too many entries for a zip archive: " + mEntries.size());
+        }
+
+        long directoryOffset = mOffset;
+        for (WrittenEntry entry : mEntries) {
+            ByteBuffer header = ZipCentralDirectory.allocate(CENTRAL_HEADER_SIZE);
+            header.putInt(CENTRAL_HEADER_SIGNATURE);
+            header.putShort((short) VERSION_NEEDED); // version made by
+            header.putShort((short) VERSION_NEEDED);
+            header.putShort((short) FLAG_UTF8);
+            header.putShort((short) entry.method);
+            header.putInt(entry.dosTime);
+            header.putInt((int) entry.crc);
+            header.putInt((int) entry.compressedSize);
+            header.putInt((int) entry.size);
+            header.putShort((short) entry.name.length);
+            header.putShort((short) 0); // extra length
+            header.putShort((short) 0); // comment length
+            header.putShort((short) 0); // disk number
+            header.putShort((short) 0); // internal attributes
+            header.putInt(0); // external attributes
+            header.putInt((int) entry.offset);
+            header.flip();
+            write(header);
+            write(ByteBuffer.wrap(entry.name));
+        }
+        long directorySize = mOffset - directoryOffset;
+        checkOffset(mOffset);
+
+        ByteBuffer end = ZipCentralDirectory.allocate(END_SIZE);
+        end.putInt(END_SIGNATURE);
+        end.putShort((short) 0); // disk number
+        end.putShort((short) 0); // disk of the central directory
+        end.putShort((short) mEntries.size());
+        end.putShort((short) mEntries.size());
+        end.putInt((int) directorySize);
+        end.putInt((int) directoryOffset);
+        end.putShort((short) 0); // comment length
+        end.flip();
+        write(end);
+
+        close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOutput.close();
+    }
+
+    private void writeLocalHeader(@NonNull String name, int method, int dosTime, long crc,
+            long compressedSize, long size) throws IOException {
+        if (!mNames.add(name)) {
+            throw new ZipException("duplicate entry: " + name);
+        }
+        if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+            throw new ZipException("Unsupported compression method for " + name);
+        }
+        checkOffset(mOffset + LOCAL_HEADER_SIZE + compressedSize);
+
+        byte[] nameBytes = name.getBytes(Charsets.UTF_8);
+        mEntries.add(new WrittenEntry(
+                nameBytes, method, dosTime, crc, compressedSize, size, mOffset));
+
+        ByteBuffer header = ZipCentralDirectory.allocate(LOCAL_HEADER_SIZE);
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        header.putShort((short) VERSION_NEEDED);
+        header.putShort((short) FLAG_UTF8);
+        header.putShort((short) method);
+        header.putInt(dosTime);
+        header.putInt((int) crc);
+        header.putInt((int) compressedSize);
+        header.putInt((int) size);
+        header.putShort((short) nameBytes.length);
+        header.putShort((short) 0); // extra length
+        header.flip();
+        write(header);
+        write(ByteBuffer.wrap(nameBytes));
+    }
+
+    private void write(@NonNull ByteBuffer buffer) throws IOException {
+        mOffset += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
+    private static void checkOffset(long offset) throws ZipException {
+        if (offset > MAX_32BIT_VALUE) {
+            throw new ZipException("Zip archives larger than 4GB are not supported");
+        }
+    }
+}
@@ -60,6 +60,7 @@ import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -67,8 +68,8 @@ import java.util.zip.ZipInputStream;
  * A Jar file builder with signature support.
  */
 public class SignedJarBuilder {
-    private static final String DIGEST_ALGORITHM = "SHA1";
-    private static final String DIGEST_ATTR = "SHA1-Digest";
+    static final String DIGEST_ALGORITHM = "SHA1";
+    static final String DIGEST_ATTR = "SHA1-Digest";
     private static final String DIGEST_MANIFEST_ATTR = "SHA1-Digest-Manifest";
 
     /** Write to another stream and track how many bytes have been
@@ -178,7 +179,7 @@ public class SignedJarBuilder {
                             @Nullable String createdBy)
             throws IOException, NoSuchAlgorithmException {
         mOutputJar = new JarOutputStream(new BufferedOutputStream(out));
-        mOutputJar.setLevel(9);
+        mOutputJar.setLevel(Deflater.DEFAULT_COMPRESSION);
         mKey = key;
         mCertificate = certificate;
 
@@ -250,35 +251,10 @@ public class SignedJarBuilder {
             while ((entry = zis.getNextEntry()) != null) {
                 String name = entry.getName();
 
-                // do not take directories or anything inside a potential META-INF folder.
-                if (entry.isDirectory()) {
+                if (isIgnoredEntry(name)) {
                     continue;
                 }
 
-                // ignore some of the content in META-INF/ but not all
-                if (name.startsWith("META-INF/")) {
-                    // ignore the manifest file.
-                    String subName = name.substring(9);
-                    if ("MANIFEST.MF".equals(subName)) {
-                        continue;
-                    }
-
-                    // special case for Maven meta-data because we really don't care about them in apks.
-                    if (name.startsWith("META-INF/maven/")) {
-                        continue;
-                    }
-
-
-                    // check for subfolder
-                    int index = subName.indexOf('/');
-                    if (index == -1) {
-                        // no sub folder, ignores signature files.
-                        if (subName.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA")) {
-                            continue;
-                        }
-                    }
-                }
-
                 // if we have a filter, we check the entry to see if it's a file that should be extracted.
                 if (extractor != null && extractor.checkEntry(name)) {
                     extractor.extract(name, zis);
@@ -309,6 +285,48 @@ public class SignedJarBuilder {
         }
     }
 
+    /**
+     * Returns whether an entry of an input archive must not be copied into the output archive.
+     * This is the case of the directories, and of the manifest and signature files of the input
+     * archive.
+     * @param name the archive path of the entry.
+     */
+    static boolean isIgnoredEntry(@NonNull String name) {
+        // do not take directories or anything inside a potential META-INF folder.
+        if (name.endsWith("/")) {
+            return true;
+        }
+
+        // ignore some of the content in META-INF/ but not all
+        if (isSignatureFile(name)) {
+            return true;
+        }
+
+        // special case for Maven meta-data because we really don't care about them in apks.
+        return name.startsWith("META-INF/maven/");
+    }
+
+    /**
+     * Returns whether an entry is the manifest or a signature file. These are generated when
+     * signing, and must not have a digest in the manifest.
+     * @param name the archive path of the entry.
+     */
+    static boolean isSignatureFile(@NonNull String name) {
+        if (!name.startsWith("META-INF/")) {
+            return false;
+        }
+
+        String subName = name.substring(9);
+        if ("MANIFEST.MF".equals(subName)) {
+            return true;
+        }
+
+        // only the files directly in META-INF/ are signature files.
+        return subName.indexOf('/') == -1
+                && (subName.endsWith(".SF") || subName.endsWith(".RSA")
+                        || subName.endsWith(".DSA"));
+    }
+
     /**
      * Closes the Jar archive by creating the manifest, and signing the archive.
      * @throws IOException
@@ -327,13 +345,14 @@ public class SignedJarBuilder {
                 mOutputJar.putNextEntry(new JarEntry("META-INF/CERT.SF"));
 
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                writeSignatureFile(baos);
+                writeSignatureFile(mManifest, baos);
                 byte[] signedData = baos.toByteArray();
                 mOutputJar.write(signedData);
 
                 // CERT.*
                 mOutputJar.putNextEntry(new JarEntry("META-INF/CERT." + mKey.getAlgorithm()));
-                writeSignatureBlock(new CMSProcessableByteArray(signedData), mCertificate, mKey);
+                writeSignatureBlock(new CMSProcessableByteArray(signedData), mCertificate, mKey,
+                        mOutputJar);
             } catch (Exception e) {
                 throw new SigningException(e);
             }
@@ -394,7 +413,7 @@ public class SignedJarBuilder {
     }
 
     /** Writes a .SF file with a digest to the manifest. */
-    private void writeSignatureFile(OutputStream out)
+    static void writeSignatureFile(Manifest manifest, OutputStream out)
             throws IOException, GeneralSecurityException {
         Manifest sf = new Manifest();
         Attributes main = sf.getMainAttributes();
@@ -407,11 +426,11 @@ public class SignedJarBuilder {
                 true, SdkConstants.UTF_8);
 
         // Digest of the entire manifest
-        mManifest.write(print);
+        manifest.write(print);
         print.flush();
         main.putValue(DIGEST_MANIFEST_ATTR, new String(Base64.encode(md.digest()), "ASCII"));
 
-        Map<String, Attributes> entries = mManifest.getEntries();
+        Map<String, Attributes> entries = manifest.getEntries();
         for (Map.Entry<String, Attributes> entry : entries.entrySet()) {
             // Digest of the manifest stanza for this entry.
             print.print("Name: " + entry.getKey() + "\r\n");
@@ -439,8 +458,8 @@ public class SignedJarBuilder {
     }
 
     /** Write the certificate file with a digital signature. */
-    private void writeSignatureBlock(CMSTypedData data, X509Certificate publicKey,
-            PrivateKey privateKey)
+    static void writeSignatureBlock(CMSTypedData data, X509Certificate publicKey,
+            PrivateKey privateKey, OutputStream out)
                         throws IOException,
                         CertificateEncodingException,
                         OperatorCreationException,
@@ -464,7 +483,7 @@ public class SignedJarBuilder {
         CMSSignedData sigData = gen.generate(data, false);
 
         ASN1InputStream asn1 = new ASN1InputStream(sigData.getEncoded());
-        DEROutputStream dos = new DEROutputStream(mOutputJar);
+        DEROutputStream dos = new DEROutputStream(out);
         dos.writeObject(asn1.readObject());
 
         dos.flush();
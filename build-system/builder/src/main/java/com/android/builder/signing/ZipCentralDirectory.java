@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.signing;
+
+import com.android.annotations.NonNull;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the entries of a zip archive from its central directory, without reading or inflating
+ * the content of the entries.
+ *
+ * Only the zip features produced by the Android tools are supported: archives with more than
+ * 65535 entries or larger than 4GB (zip64), encrypted entries and compression methods other than
+ * stored and deflated are rejected with a {@link ZipException}.
+ */
+final class ZipCentralDirectory {
+
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int END_SIGNATURE = 0x06054b50;
+
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int END_SIZE = 22;
+
+    static final int FLAG_ENCRYPTED = 0x1;
+    static final int FLAG_UTF8 = 0x800;
+
+    /** DOS time of 1980-01-01 00:00:00, the earliest time a zip entry can have. */
+    static final int DOS_EPOCH = (1 << 21) | (1 << 16);
+
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final long MAX_32BIT_VALUE = 0xffffffffL;
+
+    /**
+     * An entry of the central directory.
+     */
+    static final class Entry {
+        @NonNull
+        final String name;
+        final int method;
+        final int dosTime;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+
+        Entry(@NonNull String name, int method, int dosTime, long crc, long compressedSize,
+                long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    /** The entries, in the order of the central directory. */
+    @NonNull
+    final List<Entry> entries;
+    /** The offset of the central directory, which is also the end of the entries. */
+    final long offset;
+
+    private ZipCentralDirectory(@NonNull List<Entry> entries, long offset) {
+        this.entries = entries;
+        this.offset = offset;
+    }
+
+    /**
+     * Reads the central directory of an archive.
+     *
+     * @throws ZipException if the archive is invalid or uses an unsupported zip feature.
+     */
+    @NonNull
+    static ZipCentralDirectory read(@NonNull FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < END_SIZE) {
+            throw new ZipException("Not a zip archive");
+        }
+
+        // the end of central directory record is followed by a comment of at most 64K.
+        int tailSize = (int) Math.min(fileSize, END_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = allocate(tailSize);
+        readFully(channel, tail, fileSize - tailSize);
+
+        int end = -1;
+        for (int i = tailSize - END_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIGNATURE
+                    && i + END_SIZE + (tail.getShort(i + 20) & 0xffff) <= tailSize) {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) {
+            throw new ZipException("End of central directory not found");
+        }
+
+        int diskNumber = tail.getShort(end + 4) & 0xffff;
+        int centralDirectoryDisk = tail.getShort(end + 6) & 0xffff;
+        int entryCount = tail.getShort(end + 10) & 0xffff;
+        long centralDirectorySize = tail.getInt(end + 12) & MAX_32BIT_VALUE;
+        long centralDirectoryOffset = tail.getInt(end + 16) & MAX_32BIT_VALUE;
+        if (diskNumber != 0 || centralDirectoryDisk != 0) {
+            throw new ZipException("Multi-disk archives are not supported");
+        }
+        if (entryCount == 0xffff
+                || centralDirectorySize == MAX_32BIT_VALUE
+                || centralDirectoryOffset == MAX_32BIT_VALUE) {
+            throw new ZipException("Zip64 archives are not supported");
+        }
+        if (centralDirectoryOffset + centralDirectorySize > fileSize) {
+            throw new ZipException("Invalid central directory");
+        }
+
+        ByteBuffer directory = allocate((int) centralDirectorySize);
+        readFully(channel, directory, centralDirectoryOffset);
+
+        List<Entry> entries = Lists.newArrayListWithCapacity(entryCount);
+        int position = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (position + CENTRAL_HEADER_SIZE > centralDirectorySize
+                    || directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid central directory");
+            }
+
+            int flags = directory.getShort(position + 8) & 0xffff;
+            int method = directory.getShort(position + 10) & 0xffff;
+            int dosTime = directory.getInt(position + 12);
+            long crc = directory.getInt(position + 16) & MAX_32BIT_VALUE;
+            long compressedSize = directory.getInt(position + 20) & MAX_32BIT_VALUE;
+            long size = directory.getInt(position + 24) & MAX_32BIT_VALUE;
+            int nameLength = directory.getShort(position + 28) & 0xffff;
+            int extraLength = directory.getShort(position + 30) & 0xffff;
+            int commentLength = directory.getShort(position + 32) & 0xffff;
+            long localHeaderOffset = directory.getInt(position + 42) & MAX_32BIT_VALUE;
+
+            if (position + CENTRAL_HEADER_SIZE + nameLength > centralDirectorySize) {
+                throw new ZipException("Invalid central directory");
+            }
+            byte[] nameBytes = new byte[nameLength];
+            directory.position(position + CENTRAL_HEADER_SIZE);
+            directory.get(nameBytes);
+            // like ZipInputStream, names are always decoded as UTF-8.
+            String name = new String(nameBytes, Charsets.UTF_8);
+
+            if ((flags & FLAG_ENCRYPTED) != 0) {
+                throw new ZipException("Encrypted entries are not supported: " + name);
+            }
+            if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+                throw new ZipException("Unsupported compression method for " + name);
+            }
+            if (compressedSize == MAX_32BIT_VALUE || size == MAX_32BIT_VALUE
+                    || localHeaderOffset == MAX_32BIT_VALUE) {
+                throw new ZipException("Zip64 archives are not supported");
+            }
+
+            entries.add(new Entry(name, method, dosTime, crc, compressedSize, size,
+                    localHeaderOffset));
+            position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+
+        return new ZipCentralDirectory(entries, centralDirectoryOffset);
+    }
+
+    /**
+     * Returns the offset of the content of an entry in the archive, right after its local
+     * header.
+     */
+    static long getDataOffset(@NonNull FileChannel channel, @NonNull Entry entry)
+            throws IOException {
+        ByteBuffer header = allocate(LOCAL_HEADER_SIZE);
+        readFully(channel, header, entry.localHeaderOffset);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local header for " + entry.name);
+        }
+
+        // the extra field of the local header can be different from the central directory one.
+        int nameLength = header.getShort(26) & 0xffff;
+        int extraLength = header.getShort(28) & 0xffff;
+        return entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    /**
+     * Fills a buffer with the content of a channel, starting at the given position. The
+     * position of the channel itself is not changed, so several threads can read from the same
+     * channel.
+     */
+    static void readFully(@NonNull FileChannel channel, @NonNull ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new EOFException("Unexpected end of zip archive");
+            }
+            position += count;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Converts a Java time into a DOS time, in the local time zone like {@link ZipEntry}.
+     */
+    static int toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return DOS_EPOCH;
+        }
+        return (year - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    @NonNull
+    static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.core;
+
+import com.android.annotations.Nullable;
+import com.android.builder.internal.compiler.DexWorkerPool;
+import com.android.utils.FileUtils;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class PreDexSchedulerTest extends TestCase {
+
+    private static class FakeDexOptions implements DexOptions {
+        private final String mHeapSize;
+
+        FakeDexOptions(@Nullable String heapSize) {
+            mHeapSize = heapSize;
+        }
+
+        @Override
+        public boolean getIncremental() {
+            return false;
+        }
+
+        @Override
+        public boolean getPreDexLibraries() {
+            return true;
+        }
+
+        @Override
+        public boolean getJumboMode() {
+            return false;
+        }
+
+        @Nullable
+        @Override
+        public String getJavaMaxHeapSize() {
+            return mHeapSize;
+        }
+
+        @Nullable
+        @Override
+        public Integer getThreadCount() {
+            return null;
+        }
+    }
+
+    private File mTmpFolder;
+
+    private final AtomicReference<Throwable> mFailure = new AtomicReference<Throwable>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpFolder = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        PreDexScheduler.setHeapBudgetMb(0);
+        DexWorkerPool.setMaxWorkers(0);
+        FileUtils.deleteFolder(mTmpFolder);
+        super.tearDown();
+    }
+
+    public void testParseHeapSize() {
+        assertEquals(PreDexScheduler.DEFAULT_DEX_HEAP_SIZE_MB,
+                PreDexScheduler.parseHeapSizeMb(null));
+        assertEquals(2048, PreDexScheduler.parseHeapSizeMb("2048m"));
+        assertEquals(2048, PreDexScheduler.parseHeapSizeMb("2048M"));
+        assertEquals(4096, PreDexScheduler.parseHeapSizeMb("4g"));
+        assertEquals(1, PreDexScheduler.parseHeapSizeMb("1024k"));
+        assertEquals(512, PreDexScheduler.parseHeapSizeMb("536870912"));
+        assertEquals(PreDexScheduler.DEFAULT_DEX_HEAP_SIZE_MB,
+                PreDexScheduler.parseHeapSizeMb("lots"));
+    }
+
+    public void testPermitsNeverExceedBudget() {
+        assertEquals(1024, PreDexScheduler.getPermits(1024, 8192));
+        assertEquals(512, PreDexScheduler.getPermits(1024, 512));
+    }
+
+    public void testLargestFirstWithinBudget() throws Exception {
+        // budget for a single dx process at a time.
+        PreDexScheduler.setHeapBudgetMb(1024);
+        final Semaphore budget = PreDexScheduler.getSharedHeapBudget();
+        PreDexScheduler scheduler = new PreDexScheduler(new FakeDexOptions("1g"));
+
+        final List<String> order = Collections.synchronizedList(Lists.<String>newArrayList());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger maxWaiting = new AtomicInteger();
+
+        for (String name : ImmutableList.of("small", "large", "medium")) {
+            final File input = createFile(name,
+                    "large".equals(name) ? 300 : ("medium".equals(name) ? 200 : 100));
+            scheduler.add(input, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    int current = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), current));
+                        maxWaiting.set(Math.max(maxWaiting.get(), budget.getQueueLength()));
+                    }
+                    order.add(input.getName());
+                    running.decrementAndGet();
+                    return null;
+                }
+            });
+        }
+
+        // no job can start until the test releases the budget.
+        budget.acquire(1024);
+        CountDownLatch done = start(scheduler);
+        while (!budget.hasQueuedThreads()) {
+            Thread.yield();
+        }
+        assertTrue(order.isEmpty());
+        budget.release(1024);
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertNull(mFailure.get());
+        assertEquals(1, maxRunning.get());
+        // only the thread submitting the jobs waits for the budget, not the executor threads.
+        assertTrue(maxWaiting.get() <= 1);
+        assertEquals(ImmutableList.of("large", "medium", "small"), order);
+    }
+
+    public void testInProcessDexIgnoresBudget() throws Exception {
+        PreDexScheduler.setHeapBudgetMb(1024);
+        Semaphore budget = PreDexScheduler.getSharedHeapBudget();
+        DexWorkerPool.setMaxWorkers(1);
+        // small enough for the heap of the test to give it to the worker.
+        PreDexScheduler scheduler = new PreDexScheduler(new FakeDexOptions("16m"));
+
+        final AtomicInteger count = new AtomicInteger();
+        for (String name : ImmutableList.of("first", "second")) {
+            scheduler.add(createFile(name, 100), new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    count.incrementAndGet();
+                    return null;
+                }
+            });
+        }
+
+        budget.acquire(1024);
+        try {
+            assertTrue(start(scheduler).await(10, TimeUnit.SECONDS));
+        } finally {
+            budget.release(1024);
+        }
+        assertNull(mFailure.get());
+        assertEquals(2, count.get());
+    }
+
+    /**
+     * Runs the jobs of a scheduler in a new thread, returning a latch counted down once they are
+     * done.
+     */
+    private CountDownLatch start(final PreDexScheduler scheduler) {
+        final CountDownLatch done = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    scheduler.run();
+                } catch (Throwable t) {
+                    mFailure.set(t);
+                } finally {
+                    done.countDown();
+                }
+            }
+        }.start();
+        return done;
+    }
+
+    private File createFile(String name, int size) throws IOException {
+        File file = new File(mTmpFolder, name);
+        Files.write(new byte[size], file);
+        return file;
+    }
+}
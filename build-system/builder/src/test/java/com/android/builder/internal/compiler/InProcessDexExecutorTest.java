@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.compiler;
+
+import com.android.annotations.NonNull;
+import com.android.ide.common.process.CachedProcessOutputHandler;
+import com.android.ide.common.process.JavaProcessExecutor;
+import com.android.ide.common.process.JavaProcessInfo;
+import com.android.ide.common.process.ProcessInfoBuilder;
+import com.android.ide.common.process.ProcessOutputHandler;
+import com.android.ide.common.process.ProcessResult;
+import com.android.sdklib.BuildToolInfo;
+import com.android.sdklib.SdkManager;
+import com.android.testutils.TestUtils;
+import com.android.utils.StdLogger;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+public class InProcessDexExecutorTest extends TestCase {
+
+    private static class CountingExecutor implements JavaProcessExecutor {
+        final AtomicInteger mCount = new AtomicInteger();
+
+        @NonNull
+        @Override
+        public ProcessResult execute(
+                @NonNull JavaProcessInfo javaProcessInfo,
+                @NonNull ProcessOutputHandler processOutputHandler) {
+            mCount.incrementAndGet();
+            return new ProcessResult() {
+                @Override
+                public ProcessResult assertNormalExitValue() {
+                    return this;
+                }
+
+                @Override
+                public int getExitValue() {
+                    return 0;
+                }
+
+                @Override
+                public ProcessResult rethrowFailure() {
+                    return this;
+                }
+            };
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        DexWorkerPool.setMaxWorkers(0);
+        super.tearDown();
+    }
+
+    public void testNonDexProcessIsDelegated() throws Exception {
+        DexWorkerPool.setMaxWorkers(2);
+        CountingExecutor delegate = new CountingExecutor();
+        InProcessDexExecutor executor = new InProcessDexExecutor(
+                delegate, new StdLogger(StdLogger.Level.WARNING));
+
+        ProcessInfoBuilder builder = new ProcessInfoBuilder();
+        builder.setClasspath("dx.jar");
+        builder.setMain("com.android.multidex.ClassReferenceListBuilder");
+        builder.addArgs("roots.jar", "all.jar");
+
+        executor.execute(builder.createJavaProcess(), new CachedProcessOutputHandler())
+                .rethrowFailure()
+                .assertNormalExitValue();
+        assertEquals(1, delegate.mCount.get());
+    }
+
+    public void testDisabledPoolIsDelegated() throws Exception {
+        CountingExecutor delegate = new CountingExecutor();
+        InProcessDexExecutor executor = new InProcessDexExecutor(
+                delegate, new StdLogger(StdLogger.Level.WARNING));
+
+        executor.execute(createDexProcess(new File("dx.jar")), new CachedProcessOutputHandler())
+                .rethrowFailure()
+                .assertNormalExitValue();
+        assertEquals(1, delegate.mCount.get());
+    }
+
+    public void testFallbackWhenDxCannotBeLoaded() throws Exception {
+        DexWorkerPool.setMaxWorkers(2);
+        CountingExecutor delegate = new CountingExecutor();
+        InProcessDexExecutor executor = new InProcessDexExecutor(
+                delegate, new StdLogger(StdLogger.Level.ERROR));
+
+        File missingDxJar = new File("does-not-exist", "dx.jar");
+        executor.execute(createDexProcess(missingDxJar), new CachedProcessOutputHandler())
+                .rethrowFailure()
+                .assertNormalExitValue();
+        assertEquals(1, delegate.mCount.get());
+    }
+
+    public void testEnvironmentIsDelegated() throws Exception {
+        DexWorkerPool.setMaxWorkers(2);
+        CountingExecutor delegate = new CountingExecutor();
+        InProcessDexExecutor executor = new InProcessDexExecutor(
+                delegate, new StdLogger(StdLogger.Level.ERROR));
+
+        ProcessInfoBuilder builder = createDexProcessBuilder(new File("dx.jar"));
+        builder.addEnvironment("ANDROID_LOG_TAGS", "*:v");
+        executor.execute(builder.createJavaProcess(), new CachedProcessOutputHandler())
+                .rethrowFailure()
+                .assertNormalExitValue();
+        assertEquals(1, delegate.mCount.get());
+    }
+
+    public void testJvmArgumentsAreDelegated() throws Exception {
+        DexWorkerPool.setMaxWorkers(2);
+        CountingExecutor delegate = new CountingExecutor();
+        InProcessDexExecutor executor = new InProcessDexExecutor(
+                delegate, new StdLogger(StdLogger.Level.ERROR));
+
+        ProcessInfoBuilder builder = createDexProcessBuilder(new File("dx.jar"));
+        builder.addJvmArg("-Xss4m");
+        executor.execute(builder.createJavaProcess(), new CachedProcessOutputHandler())
+                .rethrowFailure()
+                .assertNormalExitValue();
+        assertEquals(1, delegate.mCount.get());
+    }
+
+    public void testHeapTooLargeIsDelegated() throws Exception {
+        DexWorkerPool.setMaxWorkers(2);
+        CountingExecutor delegate = new CountingExecutor();
+        InProcessDexExecutor executor = new InProcessDexExecutor(
+                delegate, new StdLogger(StdLogger.Level.ERROR));
+
+        ProcessInfoBuilder builder = createDexProcessBuilder(new File("dx.jar"));
+        builder.addJvmArg("-Xmx1000000g");
+        executor.execute(builder.createJavaProcess(), new CachedProcessOutputHandler())
+                .rethrowFailure()
+                .assertNormalExitValue();
+        assertEquals(1, delegate.mCount.get());
+    }
+
+    public void testInProcessDex() throws Exception {
+        DexWorkerPool.setMaxWorkers(2);
+        CountingExecutor delegate = new CountingExecutor();
+        InProcessDexExecutor executor = new InProcessDexExecutor(
+                delegate, new StdLogger(StdLogger.Level.WARNING));
+
+        File tmpFolder = TestUtils.createTempDirDeletedOnExit();
+        File input = new File(tmpFolder, "input.jar");
+        File output = new File(tmpFolder, "classes.dex");
+        String className = Dexed.class.getName().replace('.', '/');
+        JarOutputStream jar = new JarOutputStream(new FileOutputStream(input));
+        try {
+            jar.putNextEntry(new JarEntry(className + ".class"));
+            jar.write(Resources.toByteArray(Dexed.class.getResource("/" + className + ".class")));
+            jar.closeEntry();
+        } finally {
+            jar.close();
+        }
+
+        ProcessInfoBuilder builder = new ProcessInfoBuilder();
+        builder.setClasspath(getDxJar().getPath());
+        builder.setMain("com.android.dx.command.Main");
+        builder.addJvmArg("-Xmx16m");
+        builder.addArgs("--dex", "--output", output.getPath(), input.getPath());
+        executor.execute(builder.createJavaProcess(), new CachedProcessOutputHandler())
+                .rethrowFailure()
+                .assertNormalExitValue();
+
+        assertEquals(0, delegate.mCount.get());
+        String dex = new String(Files.toByteArray(output), Charsets.ISO_8859_1);
+        assertTrue(dex.startsWith("dex\n"));
+        assertTrue(dex.contains("L" + className + ";"));
+    }
+
+    /**
+     * Class dexed by {@link #testInProcessDex()}.
+     */
+    public static class Dexed {
+        @Override
+        public String toString() {
+            return "dexed";
+        }
+    }
+
+    @NonNull
+    private static File getDxJar() {
+        String androidHome = System.getenv("ANDROID_HOME");
+        if (androidHome == null || !new File(androidHome).isDirectory()) {
+            throw new IllegalStateException("SDK not defined with ANDROID_HOME");
+        }
+
+        SdkManager sdkManager = SdkManager.createManager(
+                androidHome, new StdLogger(StdLogger.Level.VERBOSE));
+        assert sdkManager != null;
+        BuildToolInfo buildToolInfo = sdkManager.getLatestBuildTool();
+        if (buildToolInfo == null) {
+            throw new RuntimeException("Test requires build-tools");
+        }
+        return new File(buildToolInfo.getPath(BuildToolInfo.PathId.DX_JAR));
+    }
+
+    @NonNull
+    private static JavaProcessInfo createDexProcess(@NonNull File dxJar) {
+        return createDexProcessBuilder(dxJar).createJavaProcess();
+    }
+
+    @NonNull
+    private static ProcessInfoBuilder createDexProcessBuilder(@NonNull File dxJar) {
+        ProcessInfoBuilder builder = new ProcessInfoBuilder();
+        builder.setClasspath(dxJar.getPath());
+        builder.setMain("com.android.dx.command.Main");
+        builder.addArgs("--dex", "--output", "classes.dex", "input.jar");
+        return builder;
+    }
+}
@@ -412,6 +412,83 @@ public class PreDexCacheTest extends TestCase {
         assertEquals(1, cache.getHits());
     }
 
+    public void testSharedCacheHit() throws IOException, ProcessException, InterruptedException {
+        File sharedFolder = Files.createTempDir();
+        try {
+            PreDexCache cache = PreDexCache.getCache();
+            cache.setSharedCache(new SharedPreDexCache(sharedFolder, 1024 * 1024));
+
+            String content = "Some Content";
+            File input = createInputFile(content);
+            File output = File.createTempFile("predex", ".jar");
+            output.deleteOnExit();
+            cache.preDexLibrary(input, output, false /*multidex*/, new FakeDexOptions(),
+                    mBuildToolInfo, false /*verbose*/, new FakeJavaProcessExecutor(),
+                    new FakeProcessOutputHandler());
+            assertEquals(1, cache.getMisses());
+
+            // as in a different build: restored from the shared cache, without running dx.
+            cache.clear(null, null);
+            File output2 = File.createTempFile("predex", ".jar");
+            output2.deleteOnExit();
+            cache.preDexLibrary(input, output2, false /*multidex*/, new FakeDexOptions(),
+                    mBuildToolInfo, false /*verbose*/, new FailingExecutor(),
+                    new FakeProcessOutputHandler());
+
+            checkOutputFile(content, output2);
+            assertEquals(0, cache.getMisses());
+            assertEquals(1, cache.getHits());
+        } finally {
+            PreDexCache.getCache().setSharedCache(null);
+            deleteFolder(sharedFolder);
+        }
+    }
+
+    public void testCorruptSharedCacheEntry()
+            throws IOException, ProcessException, InterruptedException {
+        File sharedFolder = Files.createTempDir();
+        try {
+            PreDexCache cache = PreDexCache.getCache();
+            cache.setSharedCache(new SharedPreDexCache(sharedFolder, 1024 * 1024));
+
+            String content = "Some Content";
+            File input = createInputFile(content);
+            File output = File.createTempFile("predex", ".jar");
+            output.deleteOnExit();
+            cache.preDexLibrary(input, output, false /*multidex*/, new FakeDexOptions(),
+                    mBuildToolInfo, false /*verbose*/, new FakeJavaProcessExecutor(),
+                    new FakeProcessOutputHandler());
+
+            // replace the dex file of the entry with a folder, which cannot be copied.
+            File[] buckets = new File(sharedFolder, "entries").listFiles();
+            assertNotNull(buckets);
+            assertEquals(1, buckets.length);
+            File[] entries = buckets[0].listFiles();
+            assertNotNull(entries);
+            assertEquals(1, entries.length);
+            File[] files = entries[0].listFiles();
+            assertNotNull(files);
+            assertEquals(1, files.length);
+            assertTrue(files[0].delete());
+            assertTrue(files[0].mkdir());
+
+            // dx runs instead.
+            cache.clear(null, null);
+            File output2 = File.createTempFile("predex", ".jar");
+            output2.deleteOnExit();
+            cache.preDexLibrary(input, output2, false /*multidex*/, new FakeDexOptions(),
+                    mBuildToolInfo, false /*verbose*/, new FakeJavaProcessExecutor(),
+                    new FakeProcessOutputHandler());
+
+            checkOutputFile(content, output2);
+            assertEquals(1, cache.getMisses());
+            assertEquals(0, cache.getHits());
+        } finally {
+            PreDexCache.getCache().setSharedCache(null);
+            deleteFolder(sharedFolder);
+        }
+    }
+
     private static File createInputFile(String content) throws IOException {
         File input = File.createTempFile("predex", ".jar");
         input.deleteOnExit();
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.compiler;
+
+import com.android.sdklib.repository.FullRevision;
+import com.android.utils.FileUtils;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+public class SharedPreDexCacheTest extends TestCase {
+
+    private File mTmpFolder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpFolder = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteFolder(mTmpFolder);
+        super.tearDown();
+    }
+
+    public void testKeyDependsOnOptions() {
+        HashCode hash = Hashing.sha1().hashString("content", Charsets.UTF_8);
+        FullRevision revision = new FullRevision(21, 1, 2);
+
+        String key = SharedPreDexCache.computeKey(hash, revision, false, false);
+        assertEquals(key, SharedPreDexCache.computeKey(hash, revision, false, false));
+        assertFalse(key.equals(SharedPreDexCache.computeKey(hash, revision, true, false)));
+        assertFalse(key.equals(SharedPreDexCache.computeKey(hash, revision, false, true)));
+        assertFalse(key.equals(
+                SharedPreDexCache.computeKey(hash, new FullRevision(22, 0, 0), false, false)));
+    }
+
+    public void testStoreAndRestore() throws IOException {
+        SharedPreDexCache cache = new SharedPreDexCache(new File(mTmpFolder, "cache"), 1024);
+        String key = createKey("lib");
+
+        File outFile = new File(mTmpFolder, "out.jar");
+        assertNull(cache.restore(key, outFile, false));
+        assertEquals(1, cache.getMisses());
+
+        File dexFile = createFile("dex.jar", "dexed-lib");
+        cache.store(key, ImmutableList.of(dexFile));
+
+        List<File> files = cache.restore(key, outFile, false);
+        assertNotNull(files);
+        assertEquals(ImmutableList.of(outFile), files);
+        assertEquals("dexed-lib", Files.toString(outFile, Charsets.UTF_8));
+        assertEquals(1, cache.getHits());
+    }
+
+    public void testMultiDexRestore() throws IOException {
+        SharedPreDexCache cache = new SharedPreDexCache(new File(mTmpFolder, "cache"), 1024);
+        String key = createKey("lib");
+
+        cache.store(key, ImmutableList.of(
+                createFile("classes.dex", "1"), createFile("classes2.dex", "2")));
+
+        File outFolder = new File(mTmpFolder, "out");
+        assertTrue(outFolder.mkdirs());
+        List<File> files = cache.restore(key, outFolder, true);
+        assertNotNull(files);
+        assertEquals(2, files.size());
+        assertEquals("1", Files.toString(new File(outFolder, "classes.dex"), Charsets.UTF_8));
+        assertEquals("2", Files.toString(new File(outFolder, "classes2.dex"), Charsets.UTF_8));
+    }
+
+    public void testLeastRecentlyUsedEviction() throws IOException {
+        // room for 2 entries of 10 bytes.
+        SharedPreDexCache cache = new SharedPreDexCache(new File(mTmpFolder, "cache"), 25);
+
+        String key1 = createKey("lib1");
+        String key2 = createKey("lib2");
+        String key3 = createKey("lib3");
+        cache.store(key1, ImmutableList.of(createFile("1.jar", "0123456789")));
+        cache.store(key2, ImmutableList.of(createFile("2.jar", "0123456789")));
+        cache.store(key3, ImmutableList.of(createFile("3.jar", "0123456789")));
+
+        long now = System.currentTimeMillis();
+        assertTrue(cache.getEntryFolder(key1).setLastModified(now - 30000));
+        assertTrue(cache.getEntryFolder(key2).setLastModified(now - 20000));
+        assertTrue(cache.getEntryFolder(key3).setLastModified(now - 10000));
+
+        // using the first entry makes the second one the least recently used.
+        assertNotNull(cache.restore(key1, new File(mTmpFolder, "out.jar"), false));
+
+        cache.trim();
+
+        assertEquals(1, cache.getEvictions());
+        assertTrue(cache.getEntryFolder(key1).isDirectory());
+        assertFalse(cache.getEntryFolder(key2).exists());
+        assertTrue(cache.getEntryFolder(key3).isDirectory());
+    }
+
+    public void testConcurrentRestore() throws Exception {
+        final SharedPreDexCache cache =
+                new SharedPreDexCache(new File(mTmpFolder, "cache"), 1024);
+        final String key = createKey("lib");
+        cache.store(key, ImmutableList.of(createFile("dex.jar", "dexed-lib")));
+
+        // readers share the lock of the cache, and don't get in the way of a writer.
+        final List<Throwable> failures = Collections.synchronizedList(
+                Lists.<Throwable>newArrayList());
+        List<Thread> threads = Lists.newArrayList();
+        for (int i = 0; i < 8; i++) {
+            final File outFile = new File(mTmpFolder, "out" + i + ".jar");
+            final boolean writer = i == 0;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 20; j++) {
+                            if (writer) {
+                                cache.trim();
+                            } else {
+                                assertNotNull(cache.restore(key, outFile, false));
+                                assertEquals("dexed-lib",
+                                        Files.toString(outFile, Charsets.UTF_8));
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.<Throwable>emptyList(), failures);
+        assertEquals(140, cache.getHits());
+    }
+
+    private File createFile(String name, String content) throws IOException {
+        File file = new File(mTmpFolder, name);
+        Files.write(content, file, Charsets.UTF_8);
+        return file;
+    }
+
+    private static String createKey(String content) {
+        return SharedPreDexCache.computeKey(
+                Hashing.sha1().hashString(content, Charsets.UTF_8),
+                new FullRevision(21, 1, 2),
+                false,
+                false);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.png;
+
+import com.android.resources.Density;
+import com.android.utils.FileUtils;
+import com.android.utils.StdLogger;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+public class VectorDrawableRendererTest extends TestCase {
+
+    private static final String VECTOR = ""
+            + "<vector xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+            + "        android:width=\"24dp\"\n"
+            + "        android:height=\"24dp\"\n"
+            + "        android:viewportWidth=\"24.0\"\n"
+            + "        android:viewportHeight=\"24.0\">\n"
+            + "    <path\n"
+            + "            android:fillColor=\"#FF000000\"\n"
+            + "            android:pathData=\"M12,2L22,22L2,22Z\"/>\n"
+            + "</vector>\n";
+
+    private File mDir;
+    private File mInput;
+    private VectorDrawableRenderer mRenderer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = Files.createTempDir();
+        mInput = new File(new File(mDir, "drawable"), "icon.xml");
+        Files.createParentDirs(mInput);
+        Files.write(VECTOR, mInput, Charsets.UTF_8);
+        mRenderer = new VectorDrawableRenderer(new File(mDir, "out"),
+                ImmutableList.of(Density.MEDIUM, Density.HIGH, Density.XXHIGH),
+                new StdLogger(StdLogger.Level.WARNING));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteFolder(mDir);
+        super.tearDown();
+    }
+
+    public void testGeneratesAllDensities() throws IOException {
+        assertTrue(mRenderer.needsPreprocessing(mInput));
+        List<File> pngFiles = generate(mRenderer);
+        assertEquals(3, pngFiles.size());
+        int[] sizes = {24, 36, 72};
+        for (int i = 0; i < pngFiles.size(); i++) {
+            BufferedImage image = ImageIO.read(pngFiles.get(i));
+            assertEquals(sizes[i], image.getWidth());
+            assertEquals(sizes[i], image.getHeight());
+            // The middle of the triangle is filled, the corners are not.
+            assertEquals(0xff000000, image.getRGB(sizes[i] / 2, sizes[i] * 3 / 4));
+            assertEquals(0, image.getRGB(0, 0));
+        }
+    }
+
+    public void testSkipsUnchangedFiles() throws IOException {
+        List<File> pngFiles = generate(mRenderer);
+        File pngFile = pngFiles.get(0);
+        Files.write(new byte[0], pngFile);
+
+        // A new renderer, as for a new build: the input did not change.
+        generate(newRenderer());
+        assertEquals(0, pngFile.length());
+
+        // The input changed.
+        Files.write(VECTOR.replace("#FF000000", "#FFFF0000"), mInput, Charsets.UTF_8);
+        generate(newRenderer());
+        assertEquals(0xffff0000, ImageIO.read(pngFile).getRGB(12, 18));
+    }
+
+    private VectorDrawableRenderer newRenderer() {
+        return new VectorDrawableRenderer(new File(mDir, "out"),
+                ImmutableList.of(Density.MEDIUM, Density.HIGH, Density.XXHIGH),
+                new StdLogger(StdLogger.Level.WARNING));
+    }
+
+    private List<File> generate(VectorDrawableRenderer renderer) throws IOException {
+        List<File> pngFiles = Lists.newArrayList();
+        for (File file : renderer.getFilesToBeGenerated(mInput)) {
+            renderer.generateFile(file, mInput);
+            assertTrue(file.isFile());
+            if (file.getName().endsWith(".png")) {
+                pngFiles.add(file);
+            }
+        }
+        return pngFiles;
+    }
+}
@@ -0,0 +1,553 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.signing;
+
+import com.android.builder.signing.SignedJarBuilder.IZipEntryFilter;
+import com.android.builder.signing.SignedJarBuilder.ZipEntryExtractor;
+import com.android.ide.common.signing.CertificateInfo;
+import com.android.ide.common.signing.KeystoreHelper;
+import com.android.utils.FileUtils;
+import com.android.utils.NullLogger;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class ParallelSignedJarBuilderTest extends TestCase {
+
+    private File mTmpFolder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpFolder = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteFolder(mTmpFolder);
+        super.tearDown();
+    }
+
+    public void testCompressedEntriesAreCopiedRaw() throws Exception {
+        File input = new File(mTmpFolder, "input.zip");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(input));
+        // a low compression level, so that compressing again would give a different size.
+        zos.setLevel(1);
+        try {
+            addEntry(zos, "res/layout/main.xml", repeat("<LinearLayout/>", 500), false);
+            addEntry(zos, "resources.arsc", repeat("arsc", 300), true);
+            addEntry(zos, "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\n", false);
+            addEntry(zos, "META-INF/CERT.SF", "signature", false);
+            zos.putNextEntry(new ZipEntry("res/raw/"));
+            zos.closeEntry();
+        } finally {
+            zos.close();
+        }
+
+        File output = new File(mTmpFolder, "output.apk");
+        ParallelSignedJarBuilder builder = createBuilder(output);
+        builder.writeZip(input, null, null);
+        builder.close();
+
+        ZipFile inputZip = new ZipFile(input);
+        ZipFile outputZip = new ZipFile(output);
+        try {
+            assertEquals(ImmutableList.of("res/layout/main.xml", "resources.arsc"),
+                    getEntryNames(outputZip));
+            for (String name : getEntryNames(outputZip)) {
+                ZipEntry inputEntry = inputZip.getEntry(name);
+                ZipEntry outputEntry = outputZip.getEntry(name);
+                assertEquals(inputEntry.getMethod(), outputEntry.getMethod());
+                assertEquals(inputEntry.getCompressedSize(), outputEntry.getCompressedSize());
+                assertEquals(inputEntry.getCrc(), outputEntry.getCrc());
+                assertEquals(readEntry(inputZip, name), readEntry(outputZip, name));
+            }
+        } finally {
+            inputZip.close();
+            outputZip.close();
+        }
+    }
+
+    public void testSameCompressionAsSignedJarBuilder() throws Exception {
+        File input = new File(mTmpFolder, "classes.dex");
+        Files.write(repeat("compressed the same way by both builders", 2000), input,
+                Charsets.UTF_8);
+
+        File parallelOutput = new File(mTmpFolder, "parallel.apk");
+        ParallelSignedJarBuilder parallelBuilder = createBuilder(parallelOutput);
+        parallelBuilder.writeFile(input, "classes.dex");
+        parallelBuilder.close();
+
+        File serialOutput = new File(mTmpFolder, "serial.apk");
+        SignedJarBuilder serialBuilder = new SignedJarBuilder(
+                new FileOutputStream(serialOutput), null, null, null, null);
+        serialBuilder.writeFile(input, "classes.dex");
+        serialBuilder.close();
+
+        ZipFile parallelZip = new ZipFile(parallelOutput);
+        ZipFile serialZip = new ZipFile(serialOutput);
+        try {
+            ZipEntry parallelEntry = parallelZip.getEntry("classes.dex");
+            ZipEntry serialEntry = serialZip.getEntry("classes.dex");
+            assertEquals(ZipEntry.DEFLATED, parallelEntry.getMethod());
+            assertEquals(serialEntry.getMethod(), parallelEntry.getMethod());
+            assertEquals(serialEntry.getCompressedSize(), parallelEntry.getCompressedSize());
+            assertEquals(serialEntry.getCrc(), parallelEntry.getCrc());
+        } finally {
+            parallelZip.close();
+            serialZip.close();
+        }
+    }
+
+    public void testFilterAndExtractor() throws Exception {
+        File input = new File(mTmpFolder, "input.jar");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(input));
+        try {
+            addEntry(zos, "com/example/Foo.class", "class", false);
+            addEntry(zos, "com/example/foo.properties", "foo=bar", false);
+            addEntry(zos, "META-INF/services/com.example.Service", "com.example.Impl", false);
+        } finally {
+            zos.close();
+        }
+
+        final Map<String, String> extracted = Maps.newHashMap();
+        ZipEntryExtractor extractor = new ZipEntryExtractor() {
+            @Override
+            public boolean checkEntry(String archivePath) {
+                return archivePath.startsWith("META-INF/services/");
+            }
+
+            @Override
+            public void extract(String archivePath, InputStream zis) throws IOException {
+                extracted.put(archivePath, new String(ByteStreams.toByteArray(zis),
+                        Charsets.UTF_8));
+            }
+        };
+        IZipEntryFilter filter = new IZipEntryFilter() {
+            @Override
+            public boolean checkEntry(String archivePath) {
+                return !archivePath.endsWith(".class");
+            }
+        };
+
+        File output = new File(mTmpFolder, "output.apk");
+        ParallelSignedJarBuilder builder = createBuilder(output);
+        builder.writeZip(input, filter, extractor);
+        builder.close();
+
+        assertEquals("com.example.Impl", extracted.get("META-INF/services/com.example.Service"));
+        ZipFile outputZip = new ZipFile(output);
+        try {
+            assertEquals(ImmutableList.of("com/example/foo.properties"),
+                    getEntryNames(outputZip));
+            assertEquals("foo=bar", readEntry(outputZip, "com/example/foo.properties"));
+        } finally {
+            outputZip.close();
+        }
+    }
+
+    public void testOutputIsDeterministic() throws Exception {
+        List<File> files = Lists.newArrayList();
+        for (int i = 0; i < 50; i++) {
+            File file = new File(mTmpFolder, "file" + i + ".txt");
+            // files of very different sizes, so that they are not compressed in order.
+            Files.write(repeat("content " + i, (i % 7) * 2000 + 1), file, Charsets.UTF_8);
+            files.add(file);
+        }
+
+        File output1 = new File(mTmpFolder, "output1.apk");
+        File output2 = new File(mTmpFolder, "output2.apk");
+        for (File output : ImmutableList.of(output1, output2)) {
+            ParallelSignedJarBuilder builder = createBuilder(output);
+            for (File file : files) {
+                builder.writeFile(file, "assets/" + file.getName());
+            }
+            builder.close();
+        }
+
+        assertTrue(Files.equal(output1, output2));
+
+        ZipFile outputZip = new ZipFile(output1);
+        try {
+            List<String> names = getEntryNames(outputZip);
+            assertEquals(files.size(), names.size());
+            for (int i = 0; i < files.size(); i++) {
+                File file = files.get(i);
+                assertEquals("assets/" + file.getName(), names.get(i));
+                assertEquals(Files.toString(file, Charsets.UTF_8),
+                        readEntry(outputZip, names.get(i)));
+            }
+        } finally {
+            outputZip.close();
+        }
+    }
+
+    public void testDuplicateEntry() throws Exception {
+        File file = new File(mTmpFolder, "classes.dex");
+        Files.write("dex", file, Charsets.UTF_8);
+
+        ParallelSignedJarBuilder builder = createBuilder(new File(mTmpFolder, "output.apk"));
+        try {
+            builder.writeFile(file, "classes.dex");
+            builder.writeFile(file, "classes.dex");
+            builder.close();
+            fail("Expected a duplicate entry failure");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("classes.dex"));
+        } finally {
+            builder.cleanUp();
+        }
+    }
+
+    public void testUpdateOnlyWritesChangedEntries() throws Exception {
+        File dex = new File(mTmpFolder, "classes.dex");
+        File lib = new File(mTmpFolder, "libfoo.so");
+        Files.write(repeat("dex", 1000), dex, Charsets.UTF_8);
+        Files.write(repeat("lib", 5000), lib, Charsets.UTF_8);
+
+        File output = new File(mTmpFolder, "output.apk");
+        ParallelSignedJarBuilder builder = createBuilder(output);
+        builder.writeFile(dex, "classes.dex");
+        builder.writeFile(lib, "lib/x86/libfoo.so");
+        builder.close();
+        File indexFile = new File(mTmpFolder, "index/apk-entries.txt");
+        builder.getEntryIndex().save(indexFile);
+        long libOffset = getLocalHeaderOffset(output, "lib/x86/libfoo.so");
+
+        Files.write(repeat("new dex", 1000), dex, Charsets.UTF_8);
+        JarEntryIndex index = JarEntryIndex.load(indexFile);
+        assertNotNull(index);
+        builder = ParallelSignedJarBuilder.openForUpdate(output, index, null, null, null, null);
+        assertNotNull(builder);
+        builder.writeFile(dex, "classes.dex");
+        builder.writeFile(lib, "lib/x86/libfoo.so");
+        builder.close();
+
+        // the unchanged entry is kept where it was.
+        assertEquals(libOffset, getLocalHeaderOffset(output, "lib/x86/libfoo.so"));
+        ZipFile outputZip = new ZipFile(output);
+        try {
+            assertEquals(ImmutableList.of("classes.dex", "lib/x86/libfoo.so"),
+                    getEntryNames(outputZip));
+            assertEquals(Files.toString(dex, Charsets.UTF_8),
+                    readEntry(outputZip, "classes.dex"));
+            assertEquals(Files.toString(lib, Charsets.UTF_8),
+                    readEntry(outputZip, "lib/x86/libfoo.so"));
+        } finally {
+            outputZip.close();
+        }
+    }
+
+    public void testUpdateRejectedWhenArchiveChanged() throws Exception {
+        File dex = new File(mTmpFolder, "classes.dex");
+        Files.write("dex", dex, Charsets.UTF_8);
+
+        File output = new File(mTmpFolder, "output.apk");
+        ParallelSignedJarBuilder builder = createBuilder(output);
+        builder.writeFile(dex, "classes.dex");
+        builder.close();
+        JarEntryIndex index = builder.getEntryIndex();
+        assertNotNull(index);
+
+        Files.append("garbage", output, Charsets.UTF_8);
+        assertNull(ParallelSignedJarBuilder.openForUpdate(output, index, null, null, null, null));
+    }
+
+    public void testUpdateSignedArchive() throws Exception {
+        File resources = new File(mTmpFolder, "resources.ap_");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(resources));
+        try {
+            addEntry(zos, "res/layout/main.xml", repeat("<LinearLayout/>", 500), false);
+            addEntry(zos, "resources.arsc", repeat("arsc", 300), true);
+        } finally {
+            zos.close();
+        }
+        File dex = new File(mTmpFolder, "classes.dex");
+        File lib = new File(mTmpFolder, "libfoo.so");
+        File asset = new File(mTmpFolder, "asset.txt");
+        Files.write(repeat("dex", 1000), dex, Charsets.UTF_8);
+        Files.write(repeat("lib", 5000), lib, Charsets.UTF_8);
+        Files.write(repeat("asset", 100), asset, Charsets.UTF_8);
+
+        CertificateInfo signingInfo = createSigningInfo();
+        File output = new File(mTmpFolder, "output.apk");
+        ParallelSignedJarBuilder builder = new ParallelSignedJarBuilder(output,
+                signingInfo.getKey(), signingInfo.getCertificate(), null, null);
+        builder.writeZip(resources, null, null);
+        builder.writeFile(dex, "classes.dex");
+        builder.writeFile(lib, "lib/x86/libfoo.so");
+        builder.writeFile(asset, "assets/asset.txt");
+        builder.close();
+        JarEntryIndex index = builder.getEntryIndex();
+        assertNotNull(index);
+        long layoutOffset = getLocalHeaderOffset(output, "res/layout/main.xml");
+        long libOffset = getLocalHeaderOffset(output, "lib/x86/libfoo.so");
+
+        // replace the dex file, remove the asset and add a new one.
+        Files.write(repeat("new dex", 1000), dex, Charsets.UTF_8);
+        File newAsset = new File(mTmpFolder, "new.txt");
+        Files.write(repeat("new asset", 100), newAsset, Charsets.UTF_8);
+        builder = ParallelSignedJarBuilder.openForUpdate(output, index,
+                signingInfo.getKey(), signingInfo.getCertificate(), null, null);
+        assertNotNull(builder);
+        builder.writeZip(resources, null, null);
+        builder.writeFile(dex, "classes.dex");
+        builder.writeFile(lib, "lib/x86/libfoo.so");
+        builder.writeFile(newAsset, "assets/new.txt");
+        builder.close();
+
+        // the unchanged entries are kept where they were.
+        assertEquals(layoutOffset, getLocalHeaderOffset(output, "res/layout/main.xml"));
+        assertEquals(libOffset, getLocalHeaderOffset(output, "lib/x86/libfoo.so"));
+        List<String> names = ImmutableList.of("res/layout/main.xml", "resources.arsc",
+                "classes.dex", "lib/x86/libfoo.so", "assets/new.txt");
+        assertSigned(output, names);
+        ZipFile outputZip = new ZipFile(output);
+        try {
+            assertEquals(Files.toString(dex, Charsets.UTF_8),
+                    readEntry(outputZip, "classes.dex"));
+            assertEquals(Files.toString(newAsset, Charsets.UTF_8),
+                    readEntry(outputZip, "assets/new.txt"));
+        } finally {
+            outputZip.close();
+        }
+    }
+
+    public void testUpdateReplacesEntryWithSameCrc() throws Exception {
+        byte[] content = repeat("dex", 1000).getBytes(Charsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        byte[] newContent = forceCrc(repeat("xed", 1000).getBytes(Charsets.UTF_8),
+                crc.getValue());
+        File dex = new File(mTmpFolder, "classes.dex");
+        Files.write(content, dex);
+
+        File output = new File(mTmpFolder, "output.apk");
+        ParallelSignedJarBuilder builder = createBuilder(output);
+        builder.writeFile(dex, "classes.dex");
+        builder.close();
+        JarEntryIndex index = builder.getEntryIndex();
+        assertNotNull(index);
+
+        // a different content of the same size and CRC is not mistaken for the previous one.
+        Files.write(newContent, dex);
+        builder = ParallelSignedJarBuilder.openForUpdate(output, index, null, null, null, null);
+        assertNotNull(builder);
+        builder.writeFile(dex, "classes.dex");
+        builder.close();
+
+        ZipFile outputZip = new ZipFile(output);
+        try {
+            ZipEntry entry = outputZip.getEntry("classes.dex");
+            assertEquals(crc.getValue(), entry.getCrc());
+            assertEquals(new String(newContent, Charsets.UTF_8),
+                    readEntry(outputZip, "classes.dex"));
+        } finally {
+            outputZip.close();
+        }
+    }
+
+    public void testSignedArchiveIsVerified() throws Exception {
+        File input = new File(mTmpFolder, "input.jar");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(input));
+        try {
+            addEntry(zos, "res/layout/main.xml", repeat("<LinearLayout/>", 500), false);
+            addEntry(zos, "resources.arsc", repeat("arsc", 300), true);
+            // the signature files of the input are replaced by the ones of the output.
+            addEntry(zos, "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\n", false);
+            addEntry(zos, "META-INF/CERT.SF", "signature", false);
+            addEntry(zos, "META-INF/CERT.RSA", "signature block", false);
+        } finally {
+            zos.close();
+        }
+        File dex = new File(mTmpFolder, "classes.dex");
+        Files.write(repeat("dex", 1000), dex, Charsets.UTF_8);
+
+        CertificateInfo signingInfo = createSigningInfo();
+        File output = new File(mTmpFolder, "output.apk");
+        ParallelSignedJarBuilder builder = new ParallelSignedJarBuilder(output,
+                signingInfo.getKey(), signingInfo.getCertificate(), null, null);
+        builder.writeZip(input, null, null);
+        builder.writeFile(dex, "classes.dex");
+        builder.close();
+
+        assertSigned(output,
+                ImmutableList.of("res/layout/main.xml", "resources.arsc", "classes.dex"));
+    }
+
+    /**
+     * Checks that an archive is signed, and that exactly the given entries are signed, by reading
+     * all of its entries with a verifying {@link JarFile}.
+     */
+    static void assertSigned(File archive, List<String> signedNames) throws IOException {
+        JarFile jarFile = new JarFile(archive, true /*verify*/);
+        try {
+            // the manifest only has digests for the signed entries, and not for the signature
+            // files generated after it.
+            Manifest manifest = jarFile.getManifest();
+            assertNotNull(manifest);
+            assertEquals(ImmutableSet.copyOf(signedNames), manifest.getEntries().keySet());
+
+            List<String> names = Lists.newArrayList();
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                // the entries are verified once they are fully read, which throws a
+                // SecurityException if they don't match the signature.
+                InputStream stream = jarFile.getInputStream(entry);
+                try {
+                    ByteStreams.toByteArray(stream);
+                } finally {
+                    stream.close();
+                }
+                if (!entry.getName().startsWith("META-INF/")) {
+                    assertNotNull(entry.getName(), entry.getCertificates());
+                    names.add(entry.getName());
+                }
+            }
+            assertEquals(signedNames, names);
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    private CertificateInfo createSigningInfo() throws Exception {
+        File keystore = new File(mTmpFolder, "debug.keystore");
+        assertTrue(KeystoreHelper.createDebugStore(null, keystore, "android", "android",
+                "AndroidDebugKey", NullLogger.getLogger()));
+        CertificateInfo signingInfo = KeystoreHelper.getCertificateInfo(null, keystore,
+                "android", "android", "AndroidDebugKey");
+        assertNotNull(signingInfo);
+        return signingInfo;
+    }
+
+    private static long getLocalHeaderOffset(File zip, String name) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(zip, "r");
+        try {
+            for (ZipCentralDirectory.Entry entry
+                    : ZipCentralDirectory.read(file.getChannel()).entries) {
+                if (entry.name.equals(name)) {
+                    return entry.localHeaderOffset;
+                }
+            }
+        } finally {
+            file.close();
+        }
+        throw new AssertionError("Missing entry " + name);
+    }
+
+    /**
+     * Returns a copy of the content with its last 4 bytes changed so that it has the given CRC.
+     */
+    private static byte[] forceCrc(byte[] content, long targetCrc) {
+        int[] table = new int[256];
+        int[] reverseTable = new int[256];
+        for (int i = 0; i < 256; i++) {
+            int value = i;
+            for (int j = 0; j < 8; j++) {
+                value = (value & 1) != 0 ? (value >>> 1) ^ 0xEDB88320 : value >>> 1;
+            }
+            table[i] = value;
+            reverseTable[value >>> 24] = i;
+        }
+
+        byte[] result = content.clone();
+        int length = result.length - 4;
+        CRC32 prefixCrc = new CRC32();
+        prefixCrc.update(result, 0, length);
+
+        // run the CRC backwards from the target to find the 4 bytes leading to it.
+        int value = ~(int) targetCrc;
+        for (int i = 0; i < 4; i++) {
+            int index = reverseTable[value >>> 24];
+            value = ((value ^ table[index]) << 8) | index;
+        }
+        value ^= ~(int) prefixCrc.getValue();
+        for (int i = 0; i < 4; i++) {
+            result[length + i] = (byte) (value >>> (8 * i));
+        }
+        return result;
+    }
+
+    private static ParallelSignedJarBuilder createBuilder(File output) throws Exception {
+        return new ParallelSignedJarBuilder(output, null, null, null, null);
+    }
+
+    private static void addEntry(ZipOutputStream zos, String name, String content,
+            boolean stored) throws IOException {
+        byte[] data = content.getBytes(Charsets.UTF_8);
+        ZipEntry entry = new ZipEntry(name);
+        if (stored) {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(data.length);
+            entry.setCrc(crc.getValue());
+        }
+        zos.putNextEntry(entry);
+        zos.write(data);
+        zos.closeEntry();
+    }
+
+    private static List<String> getEntryNames(ZipFile zipFile) {
+        List<String> names = Lists.newArrayList();
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            names.add(entries.nextElement().getName());
+        }
+        return names;
+    }
+
+    private static String readEntry(ZipFile zipFile, String name) throws IOException {
+        InputStream stream = zipFile.getInputStream(zipFile.getEntry(name));
+        try {
+            return new String(ByteStreams.toByteArray(stream), Charsets.UTF_8);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static String repeat(String value, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(value).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -37,6 +37,9 @@ public class AndroidGradleOptions {
     private static final String PROPERTY_BENCHMARK_NAME = "com.android.benchmark.name";
     private static final String PROPERTY_BENCHMARK_MODE = "com.android.benchmark.mode";
 
+    private static final String PROPERTY_MANIFEST_MERGER_BLAME_LOG =
+            "android.manifestMerger.blameLog";
+
     @NonNull
     public static Map<String, String> getExtraInstrumentationTestRunnerArgs(@NonNull Project project) {
         Map<String, String> argsMap = Maps.newHashMap();
@@ -74,6 +77,14 @@ public class AndroidGradleOptions {
         return getBoolean(project, AndroidProject.PROPERTY_BUILD_MODEL_ONLY_ADVANCED);
     }
 
+    /**
+     * Returns true if the manifest merging actions should be streamed to a binary log, rather
+     * than kept in memory and written to a text report.
+     */
+    public static boolean useManifestMergerBlameLog(@NonNull Project project) {
+        return getBoolean(project, PROPERTY_MANIFEST_MERGER_BLAME_LOG);
+    }
+
     @Nullable
     public static String getApkLocation(@NonNull Project project) {
         return getString(project, AndroidProject.PROPERTY_APK_LOCATION);
@@ -16,13 +16,29 @@
 
 package com.android.build.gradle.internal;
 
+import com.android.builder.core.PreDexScheduler;
+import com.android.builder.internal.compiler.DexWorkerPool;
+import com.android.builder.internal.compiler.PreDexCache;
+import com.android.builder.internal.compiler.SharedPreDexCache;
 import com.android.ide.common.internal.ExecutorSingleton;
 
 import org.gradle.api.Project;
 
+import java.io.File;
+
 public class ExecutionConfigurationUtil {
 
     private static final String THREAD_POOL_SIZE_PROPERTY = "com.android.build.threadPoolSize";
+    private static final String SHARED_DEX_CACHE_DIR_PROPERTY =
+            "com.android.build.sharedDexCacheDir";
+    private static final String SHARED_DEX_CACHE_SIZE_PROPERTY =
+            "com.android.build.sharedDexCacheSizeMb";
+    private static final String PRE_DEX_HEAP_BUDGET_PROPERTY =
+            "com.android.build.preDexHeapBudgetMb";
+    private static final String DEX_IN_PROCESS_WORKERS_PROPERTY =
+            "com.android.build.dexInProcessWorkers";
+
+    private static final long DEFAULT_SHARED_DEX_CACHE_SIZE_MB = 2048;
 
     public static void setThreadPoolSize(Project project) {
         if (!project.hasProperty(THREAD_POOL_SIZE_PROPERTY)) {
@@ -37,4 +53,61 @@ public class ExecutionConfigurationUtil {
             project.getLogger().error("com.android.threadPoolSize should be an integer.");
         }
     }
+
+    public static void setSharedPreDexCache(Project project) {
+        if (!project.hasProperty(SHARED_DEX_CACHE_DIR_PROPERTY)) {
+            PreDexCache.getCache().setSharedCache(null);
+            return;
+        }
+
+        File cacheDir = project.getRootProject().file(project.property(SHARED_DEX_CACHE_DIR_PROPERTY).toString());
+
+        long maxSizeMb = DEFAULT_SHARED_DEX_CACHE_SIZE_MB;
+        if (project.hasProperty(SHARED_DEX_CACHE_SIZE_PROPERTY)) {
+            try {
+                maxSizeMb = Long.parseLong(
+                        project.property(SHARED_DEX_CACHE_SIZE_PROPERTY).toString());
+            } catch (NumberFormatException e) {
+                project.getLogger().error(SHARED_DEX_CACHE_SIZE_PROPERTY + " should be an integer.");
+            }
+        }
+
+        // keep the current instance (and its statistics) if it matches the configuration.
+        long maxSize = maxSizeMb * 1024 * 1024;
+        SharedPreDexCache current = PreDexCache.getCache().getSharedCache();
+        if (current == null || !current.getRoot().equals(cacheDir)
+                || current.getMaxSize() != maxSize) {
+            PreDexCache.getCache().setSharedCache(new SharedPreDexCache(cacheDir, maxSize));
+        }
+    }
+
+    public static void setPreDexHeapBudget(Project project) {
+        if (!project.hasProperty(PRE_DEX_HEAP_BUDGET_PROPERTY)) {
+            PreDexScheduler.setHeapBudgetMb(0);
+            return;
+        }
+
+        String heapBudgetProperty = project.property(PRE_DEX_HEAP_BUDGET_PROPERTY).toString();
+
+        try {
+            PreDexScheduler.setHeapBudgetMb(Long.parseLong(heapBudgetProperty));
+        } catch (NumberFormatException e) {
+            project.getLogger().error(PRE_DEX_HEAP_BUDGET_PROPERTY + " should be an integer.");
+        }
+    }
+
+    public static void setDexInProcessWorkers(Project project) {
+        if (!project.hasProperty(DEX_IN_PROCESS_WORKERS_PROPERTY)) {
+            DexWorkerPool.setMaxWorkers(0);
+            return;
+        }
+
+        String workersProperty = project.property(DEX_IN_PROCESS_WORKERS_PROPERTY).toString();
+
+        try {
+            DexWorkerPool.setMaxWorkers(Integer.parseInt(workersProperty));
+        } catch (NumberFormatException e) {
+            project.getLogger().error(DEX_IN_PROCESS_WORKERS_PROPERTY + " should be an integer.");
+        }
+    }
 }
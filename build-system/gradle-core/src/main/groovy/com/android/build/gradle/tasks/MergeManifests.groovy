@@ -16,6 +16,7 @@
 package com.android.build.gradle.tasks
 
 import com.android.annotations.NonNull
+import com.android.build.gradle.AndroidGradleOptions
 import com.android.build.gradle.internal.dependency.ManifestDependencyImpl
 import com.android.build.gradle.internal.scope.ConventionMappingHelper
 import com.android.build.gradle.internal.scope.TaskConfigAction
@@ -86,6 +87,9 @@ public class MergeManifests extends ManifestProcessorTask {
     @Input @Optional
     File reportFile
 
+    @Input @Optional
+    File blameLogFile
+
     /**
      * Return a serializable version of our map of key value pairs for placeholder substitution.
      * This serialized form is only used by gradle to compare past and present tasks to determine
@@ -137,7 +141,8 @@ public class MergeManifests extends ManifestProcessorTask {
                 null /* aaptFriendlyManifestOutputFile */ ,
                 ManifestMerger2.MergeType.APPLICATION,
                 variantConfiguration.getManifestPlaceholders(),
-                getReportFile())
+                getReportFile(),
+                getBlameLogFile())
     }
 
     // ----- ConfigAction -----
@@ -234,11 +239,27 @@ public class MergeManifests extends ManifestProcessorTask {
                 scope.getManifestOutputFile()
             }
 
+            // the blame log replaces the text report, which would need all the actions in
+            // memory again.
+            boolean blameLog = AndroidGradleOptions.useManifestMergerBlameLog(
+                    scope.globalScope.project)
+
             ConventionMappingHelper.map(processManifestTask, "reportFile") {
+                if (blameLog) {
+                    return null
+                }
                 new File(
                         "${scope.getGlobalScope().getBuildDir()}/${FD_OUTPUTS}/logs/manifest-merger-${config.baseName}-report.txt")
             }
 
+            ConventionMappingHelper.map(processManifestTask, "blameLogFile") {
+                if (!blameLog) {
+                    return null
+                }
+                new File(
+                        "${scope.getGlobalScope().getBuildDir()}/${FD_OUTPUTS}/logs/manifest-merger-${config.baseName}-blame.bin")
+            }
+
         }
 
         @NonNull
@@ -220,7 +220,8 @@ public class PackageApplication extends IncrementalTask implements FileSupplier
                     getMergingFolder(), getAbiFilters(), getJniDebugBuild(), getSigningConfig(),
                     getPackagingOptions(),
                     getPackagingOptionsFilter(),
-                    getOutputFile().getAbsolutePath());
+                    getOutputFile().getAbsolutePath(),
+                    getIncrementalFolder());
         } catch (DuplicateFileException e) {
             Logger logger = getLogger();
             logger.error("Error: duplicate files during packaging of APK " + getOutputFile()
@@ -360,6 +361,14 @@ public class PackageApplication extends IncrementalTask implements FileSupplier
             packageApp.setMergingFolder(new File(scope.getGlobalScope().getIntermediatesDir(),
                     variantOutputData.getFullName() + "/merging"));
 
+            // debug APKs are updated rather than written again when possible. Release APKs are
+            // always written from scratch so that they contain no unused space.
+            if (config.getBuildType().isDebuggable()) {
+                packageApp.setIncrementalFolder(new File(
+                        scope.getGlobalScope().getIntermediatesDir(),
+                        "incremental/package/" + variantOutputData.getFullName()));
+            }
+
 
             ConventionMappingHelper.map(packageApp, "jniFolders", new Callable<Set<File>>() {
                 @Override
@@ -149,7 +149,8 @@ public class PackageSplitAbi extends SplitRelatedTask {
                         getSigningConfig(),
                         getPackagingOptions(),
                         getPackagingOptionsFilter(),
-                        outFile.getAbsolutePath());
+                        outFile.getAbsolutePath(),
+                        null /* incrementalFolder */);
                 unprocessedSplits.remove(matcher.group(1));
             }
         }
@@ -25,10 +25,10 @@ import com.android.build.gradle.internal.variant.TestVariantData;
 import com.android.build.gradle.internal.PostCompilationData;
 import com.android.builder.core.AndroidBuilder;
 import com.android.builder.core.DexOptions;
+import com.android.builder.core.PreDexScheduler;
 import com.android.builder.core.VariantConfiguration;
 import com.android.builder.core.VariantType;
 import com.android.ide.common.internal.LoggedErrorException;
-import com.android.ide.common.internal.WaitableExecutor;
 import com.android.ide.common.process.LoggedProcessOutputHandler;
 import com.android.ide.common.process.ProcessOutputHandler;
 import com.android.utils.FileUtils;
@@ -90,7 +90,7 @@ public class PreDex extends BaseTask {
         }
 
         final Set<String> hashs = Sets.newHashSet();
-        final WaitableExecutor<Void> executor = new WaitableExecutor<Void>();
+        final PreDexScheduler scheduler = new PreDexScheduler(getDexOptions());
         final List<File> inputFileDetails = Lists.newArrayList();
 
         taskInputs.outOfDate(new Action<InputFileDetails>() {
@@ -104,7 +104,7 @@ public class PreDex extends BaseTask {
         for (final File file : inputFileDetails) {
             Callable<Void> action = new PreDexTask(outFolder, file, hashs,
                     multiDexEnabled, outputHandler);
-            executor.execute(action);
+            scheduler.add(file, action);
         }
 
         if (incremental) {
@@ -123,7 +123,7 @@ public class PreDex extends BaseTask {
             });
         }
 
-        executor.waitForTasksWithQuickFail(false);
+        scheduler.run();
     }
 
     private final class PreDexTask implements Callable<Void> {
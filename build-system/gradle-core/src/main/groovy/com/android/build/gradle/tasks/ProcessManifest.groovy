@@ -102,7 +102,8 @@ class ProcessManifest extends ManifestProcessorTask {
                 getAaptFriendlyManifestOutputFile()?.absolutePath,
                 ManifestMerger2.MergeType.LIBRARY,
                 variantConfiguration.getManifestPlaceholders(),
-                getReportFile())
+                getReportFile(),
+                null /* blameLogFile */)
     }
 
     public static class ConfigAction implements TaskConfigAction<ProcessManifest> {
@@ -126,6 +126,9 @@ public class BaseComponentModelPlugin implements Plugin<Project> {
     @Override
     public void apply(Project project) {
         ExecutionConfigurationUtil.setThreadPoolSize(project);
+        ExecutionConfigurationUtil.setSharedPreDexCache(project);
+        ExecutionConfigurationUtil.setPreDexHeapBudget(project);
+        ExecutionConfigurationUtil.setDexInProcessWorkers(project);
         try {
             List<Recorder.Property> propertyList = Lists.newArrayList(
                     new Recorder.Property("plugin_version", Version.ANDROID_GRADLE_PLUGIN_VERSION),
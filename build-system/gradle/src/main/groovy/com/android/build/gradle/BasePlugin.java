@@ -270,6 +270,9 @@ public abstract class BasePlugin {
         this.project = project;
 
         ExecutionConfigurationUtil.setThreadPoolSize(project);
+        ExecutionConfigurationUtil.setSharedPreDexCache(project);
+        ExecutionConfigurationUtil.setPreDexHeapBudget(project);
+        ExecutionConfigurationUtil.setDexInProcessWorkers(project);
         checkPathForErrors();
         checkModulesForErrors();
 
@@ -23,9 +23,13 @@ import com.android.annotations.Nullable;
 import com.android.annotations.concurrency.GuardedBy;
 import com.android.ide.common.blame.SourceFilePosition;
 import com.android.ide.common.blame.SourcePosition;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -78,6 +82,12 @@ import java.util.Map;
  *     <li>{@link AttributeOperationType} the highest priority annotation justifying the merging
  *     tool decision.</li>
  * </ul>
+ *
+ * <p>
+ * When created with an {@link ActionsLog}, the records are appended to the log as they are
+ * recorded rather than kept in memory. Only a small index of the recorded action types, and of
+ * the attribute creation records, is kept to answer the merging tool's own queries, and the
+ * log is only read back when {@link #build()} is called.
  */
 public class ActionRecorder {
 
@@ -88,6 +98,20 @@ public class ActionRecorder {
     private final Map<NodeKey, Actions.DecisionTreeRecord> mRecords =
             new LinkedHashMap<NodeKey, Actions.DecisionTreeRecord>();
 
+    // optional log the records are streamed to, in which case only an index of the recorded
+    // elements is kept in memory.
+    @Nullable private final ActionsLog mLog;
+    @GuardedBy("this")
+    private final Map<NodeKey, LoggedNode> mLoggedNodes = new HashMap<NodeKey, LoggedNode>();
+
+    ActionRecorder() {
+        this(null);
+    }
+
+    ActionRecorder(@Nullable ActionsLog log) {
+        mLog = log;
+    }
+
     /**
      * When the first xml file is loaded, there is nothing to merge with, however, each xml element
      * and attribute added to the initial merged file need to be recorded.
@@ -95,7 +119,7 @@ public class ActionRecorder {
      * @param xmlElement xml element added to the initial merged document.
      */
     void recordDefaultNodeAction(XmlElement xmlElement) {
-        if (!mRecords.containsKey(xmlElement.getOriginalId())) {
+        if (!isRecorded(xmlElement.getOriginalId())) {
             recordNodeAction(xmlElement, Actions.ActionType.ADDED);
             for (XmlAttribute xmlAttribute : xmlElement.getAttributes()) {
                 AttributeOperationType attributeOperation = xmlElement
@@ -117,12 +141,6 @@ public class ActionRecorder {
      * @param reason optional contextual information whey the implied element was added.
      */
     void recordImpliedNodeAction(XmlElement xmlElement, String reason) {
-        NodeKey storageKey = xmlElement.getOriginalId();
-        Actions.DecisionTreeRecord nodeDecisionTree = mRecords.get(storageKey);
-        if (nodeDecisionTree == null) {
-            nodeDecisionTree = new Actions.DecisionTreeRecord();
-            mRecords.put(storageKey, nodeDecisionTree);
-        }
         Actions.NodeRecord record = new Actions.NodeRecord(Actions.ActionType.IMPLIED,
                 new SourceFilePosition(
                         xmlElement.getDocument().getSourceFile(),
@@ -131,7 +149,7 @@ public class ActionRecorder {
                 reason,
                 xmlElement.getOperationType()
         );
-        nodeDecisionTree.addNodeRecord(record);
+        recordNodeAction(xmlElement, record);
     }
 
     /**
@@ -180,6 +198,20 @@ public class ActionRecorder {
             Actions.NodeRecord nodeRecord) {
 
         NodeKey storageKey = mergedElement.getOriginalId();
+        if (mLog != null) {
+            LoggedNode loggedNode = mLoggedNodes.get(storageKey);
+            if (loggedNode == null) {
+                loggedNode = new LoggedNode();
+                mLoggedNodes.put(storageKey, loggedNode);
+            }
+            loggedNode.mNodeActions.add(nodeRecord.getActionType());
+            try {
+                mLog.write(storageKey, nodeRecord);
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+            return;
+        }
         Actions.DecisionTreeRecord nodeDecisionTree = mRecords.get(storageKey);
         if (nodeDecisionTree == null) {
             nodeDecisionTree = new Actions.DecisionTreeRecord();
@@ -243,6 +275,10 @@ public class ActionRecorder {
             XmlAttribute attribute,
             Actions.AttributeRecord attributeRecord) {
 
+        if (mLog != null) {
+            writeAttributeRecord(attribute, attributeRecord);
+            return;
+        }
         List<Actions.AttributeRecord> attributeRecords = getAttributeRecords(attribute);
         attributeRecords.add(attributeRecord);
     }
@@ -258,7 +294,6 @@ public class ActionRecorder {
             @NonNull XmlAttribute attribute,
             @NonNull XmlElement implicitAttributeOwner) {
 
-        List<Actions.AttributeRecord> attributeRecords = getAttributeRecords(attribute);
         Actions.AttributeRecord attributeRecord = new Actions.AttributeRecord(
                 Actions.ActionType.REJECTED,
                 new SourceFilePosition(
@@ -268,7 +303,7 @@ public class ActionRecorder {
                 null, /* reason */
                 AttributeOperationType.REPLACE
         );
-        attributeRecords.add(attributeRecord);
+        recordAttributeAction(attribute, attributeRecord);
     }
 
     /**
@@ -277,6 +312,13 @@ public class ActionRecorder {
      */
     @Nullable
     synchronized Actions.AttributeRecord getAttributeCreationRecord(XmlAttribute attribute) {
+        if (mLog != null) {
+            LoggedNode loggedNode =
+                    mLoggedNodes.get(attribute.getOwnerElement().getOriginalId());
+            return loggedNode != null
+                    ? loggedNode.mAttributeCreations.get(attribute.getName())
+                    : null;
+        }
         for (Actions.AttributeRecord attributeRecord : getAttributeRecords(attribute)) {
             if (attributeRecord.getActionType() == Actions.ActionType.ADDED) {
                 return attributeRecord;
@@ -285,6 +327,100 @@ public class ActionRecorder {
         return null;
     }
 
+    /**
+     * Returns true if an action of the passed type was recorded for an element.
+     *
+     * @param storageKey the key of the element.
+     * @param actionType the action's type.
+     */
+    synchronized boolean isNodeActionRecorded(
+            @NonNull NodeKey storageKey,
+            @NonNull Actions.ActionType actionType) {
+        if (mLog != null) {
+            LoggedNode loggedNode = mLoggedNodes.get(storageKey);
+            return loggedNode != null && loggedNode.mNodeActions.contains(actionType);
+        }
+        Actions.DecisionTreeRecord nodeDecisionTree = mRecords.get(storageKey);
+        if (nodeDecisionTree != null) {
+            for (Actions.NodeRecord nodeRecord : nodeDecisionTree.getNodeRecords()) {
+                if (nodeRecord.getActionType() == actionType) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if an action of the passed type was recorded for an attribute of an element.
+     *
+     * @param storageKey the key of the element owning the attribute.
+     * @param attributeName the attribute name.
+     * @param actionType the action's type.
+     */
+    synchronized boolean isAttributeActionRecorded(
+            @NonNull NodeKey storageKey,
+            @NonNull XmlNode.NodeName attributeName,
+            @NonNull Actions.ActionType actionType) {
+        if (mLog != null) {
+            LoggedNode loggedNode = mLoggedNodes.get(storageKey);
+            if (loggedNode == null) {
+                return false;
+            }
+            EnumSet<Actions.ActionType> actionTypes =
+                    loggedNode.mAttributeActions.get(attributeName);
+            return actionTypes != null && actionTypes.contains(actionType);
+        }
+        Actions.DecisionTreeRecord nodeDecisionTree = mRecords.get(storageKey);
+        if (nodeDecisionTree != null) {
+            for (Actions.AttributeRecord attributeRecord
+                    : nodeDecisionTree.getAttributeRecords(attributeName)) {
+                if (attributeRecord.getActionType() == actionType) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the log the records are written to, if any.
+     */
+    @Nullable
+    ActionsLog getLog() {
+        return mLog;
+    }
+
+    private boolean isRecorded(NodeKey storageKey) {
+        return mLog != null
+                ? mLoggedNodes.containsKey(storageKey)
+                : mRecords.containsKey(storageKey);
+    }
+
+    private void writeAttributeRecord(XmlAttribute attribute,
+            Actions.AttributeRecord attributeRecord) {
+        NodeKey storageKey = attribute.getOwnerElement().getOriginalId();
+        LoggedNode loggedNode = mLoggedNodes.get(storageKey);
+        // by now the node should have been added for this element.
+        assert loggedNode != null;
+        XmlNode.NodeName attributeName = attribute.getName();
+        EnumSet<Actions.ActionType> actionTypes = loggedNode.mAttributeActions.get(attributeName);
+        if (actionTypes == null) {
+            actionTypes = EnumSet.noneOf(Actions.ActionType.class);
+            loggedNode.mAttributeActions.put(attributeName, actionTypes);
+        }
+        actionTypes.add(attributeRecord.getActionType());
+        if (attributeRecord.getActionType() == Actions.ActionType.ADDED
+                && !loggedNode.mAttributeCreations.containsKey(attributeName)) {
+            loggedNode.mAttributeCreations.put(attributeName, attributeRecord);
+        }
+        try {
+            mLog.write(storageKey, attribute.getName(), attributeRecord);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
     private List<Actions.AttributeRecord> getAttributeRecords(XmlAttribute attribute) {
         XmlElement originElement = attribute.getOwnerElement();
         NodeKey storageKey = originElement.getOriginalId();
@@ -300,8 +436,30 @@ public class ActionRecorder {
         return attributeRecords;
     }
 
-    Actions build() {
+    /**
+     * Returns all the recorded actions. When the records were written to a log, they are read
+     * back from it, so this should only be called when the records themselves are needed.
+     */
+    synchronized Actions build() {
+        if (mLog != null) {
+            try {
+                return mLog.read();
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
         return new Actions(new ImmutableMap.Builder<NodeKey, Actions.DecisionTreeRecord>()
                 .putAll(mRecords).build());
     }
+
+    /** What is kept in memory of the records of an element written to the log */
+    private static final class LoggedNode {
+        final EnumSet<Actions.ActionType> mNodeActions =
+                EnumSet.noneOf(Actions.ActionType.class);
+        final Map<XmlNode.NodeName, EnumSet<Actions.ActionType>> mAttributeActions =
+                new HashMap<XmlNode.NodeName, EnumSet<Actions.ActionType>>();
+        // the first ADDED record of each attribute, see getAttributeCreationRecord.
+        final Map<XmlNode.NodeName, Actions.AttributeRecord> mAttributeCreations =
+                new HashMap<XmlNode.NodeName, Actions.AttributeRecord>();
+    }
 }
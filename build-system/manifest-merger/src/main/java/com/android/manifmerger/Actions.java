@@ -39,11 +39,11 @@ import com.google.gson.JsonParseException;
 
 import org.xml.sax.SAXException;
 
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringReader;
+import java.io.Writer;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -128,34 +128,46 @@ public class Actions {
     }
 
     /**
-     * Dump merging tool actions to a text file.
-     * @param fileWriter the file to write all actions into.
+     * Dump merging tool actions to a text file. The actions are written element by element,
+     * the whole report is never held in memory.
+     * @param writer the file to write all actions into.
      * @throws IOException
      */
-    void log(FileWriter fileWriter) throws IOException {
-        fileWriter.append(getLogs());
+    void log(Writer writer) throws IOException {
+        writer.append(HEADER);
+        StringBuilder stringBuilder = new StringBuilder();
+        for (Map.Entry<XmlNode.NodeKey, Actions.DecisionTreeRecord> record : mRecords.entrySet()) {
+            stringBuilder.setLength(0);
+            appendLogs(record.getKey(), record.getValue(), stringBuilder);
+            writer.append(stringBuilder);
+        }
     }
 
     private String getLogs() {
         StringBuilder stringBuilder = new StringBuilder();
         stringBuilder.append(HEADER);
         for (Map.Entry<XmlNode.NodeKey, Actions.DecisionTreeRecord> record : mRecords.entrySet()) {
-            stringBuilder.append(record.getKey()).append("\n");
-            for (Actions.NodeRecord nodeRecord : record.getValue().getNodeRecords()) {
-                nodeRecord.print(stringBuilder);
+            appendLogs(record.getKey(), record.getValue(), stringBuilder);
+        }
+        return stringBuilder.toString();
+    }
+
+    private static void appendLogs(XmlNode.NodeKey key, DecisionTreeRecord decisionTreeRecord,
+            StringBuilder stringBuilder) {
+        stringBuilder.append(key).append("\n");
+        for (Actions.NodeRecord nodeRecord : decisionTreeRecord.getNodeRecords()) {
+            nodeRecord.print(stringBuilder);
+            stringBuilder.append('\n');
+        }
+        for (Map.Entry<XmlNode.NodeName, List<Actions.AttributeRecord>> attributeRecords :
+                decisionTreeRecord.mAttributeRecords.entrySet()) {
+            stringBuilder.append('\t').append(attributeRecords.getKey()).append('\n');
+            for (Actions.AttributeRecord attributeRecord : attributeRecords.getValue()) {
+                stringBuilder.append("\t\t");
+                attributeRecord.print(stringBuilder);
                 stringBuilder.append('\n');
             }
-            for (Map.Entry<XmlNode.NodeName, List<Actions.AttributeRecord>> attributeRecords :
-                    record.getValue().mAttributeRecords.entrySet()) {
-                stringBuilder.append('\t').append(attributeRecords.getKey()).append('\n');
-                for (Actions.AttributeRecord attributeRecord : attributeRecords.getValue()) {
-                    stringBuilder.append("\t\t");
-                    attributeRecord.print(stringBuilder);
-                    stringBuilder.append('\n');
-                }
-            }
         }
-        return stringBuilder.toString();
     }
 
     /**
@@ -244,6 +256,11 @@ public class Actions {
             this.mNodeOperationType = Preconditions.checkNotNull(nodeOperationType);
         }
 
+        @NonNull
+        public NodeOperationType getOperationType() {
+            return mNodeOperationType;
+        }
+
         @Override
         public String toString() {
             return "Id=" + mTargetId.toString() + " actionType=" + getActionType()
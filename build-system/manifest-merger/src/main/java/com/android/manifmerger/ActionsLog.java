@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.manifmerger;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ide.common.blame.SourceFile;
+import com.android.ide.common.blame.SourceFilePosition;
+import com.android.ide.common.blame.SourcePosition;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary log of the actions taken by the merging tool.
+ * <p>
+ * An {@link ActionRecorder} created with a log appends each record to the log as it is
+ * recorded, instead of keeping all of them in memory for the duration of the merge. The strings
+ * of the records (element keys, file paths, ...) are only written the first time they are used
+ * and referenced by index afterwards, so the log stays small even for large merges.
+ * <p>
+ * Tools can reconstruct the {@link Actions} of a merge from its log with {@link #read(File)}.
+ */
+public final class ActionsLog {
+
+    private static final int MAGIC = 0x4D424C47; // MBLG
+    private static final int VERSION = 1;
+
+    private static final byte NODE_RECORD = 1;
+    private static final byte ATTRIBUTE_RECORD = 2;
+
+    private static final byte NAME = 1;
+    private static final byte NAMESPACE_AWARE_NAME = 2;
+
+    @NonNull private final File mFile;
+    @NonNull private final DataOutputStream mOutput;
+    // index of the strings written so far.
+    @NonNull private final Map<String, Integer> mStrings = Maps.newHashMap();
+
+    private ActionsLog(@NonNull File file, @NonNull DataOutputStream output) {
+        mFile = file;
+        mOutput = output;
+    }
+
+    /**
+     * Creates a new empty log, replacing the existing file if any.
+     *
+     * @param file the log file.
+     * @return the log to write the records to.
+     * @throws IOException if the file cannot be created.
+     */
+    @NonNull
+    static ActionsLog create(@NonNull File file) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory " + parent);
+        }
+        DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        return new ActionsLog(file, output);
+    }
+
+    /**
+     * Appends a node record to the log.
+     *
+     * @param storageKey the key of the element the record was recorded for.
+     * @param record the node record.
+     */
+    synchronized void write(@NonNull XmlNode.NodeKey storageKey,
+            @NonNull Actions.NodeRecord record) throws IOException {
+        mOutput.writeByte(NODE_RECORD);
+        writeString(storageKey.toString());
+        writeRecord(record);
+        mOutput.writeByte(record.getOperationType().ordinal());
+    }
+
+    /**
+     * Appends an attribute record to the log.
+     *
+     * @param storageKey the key of the element owning the attribute.
+     * @param attributeName the attribute name.
+     * @param record the attribute record.
+     */
+    synchronized void write(@NonNull XmlNode.NodeKey storageKey,
+            @NonNull XmlNode.NodeName attributeName,
+            @NonNull Actions.AttributeRecord record) throws IOException {
+        mOutput.writeByte(ATTRIBUTE_RECORD);
+        writeString(storageKey.toString());
+        if (attributeName instanceof XmlNode.NamespaceAwareName) {
+            XmlNode.NamespaceAwareName name = (XmlNode.NamespaceAwareName) attributeName;
+            mOutput.writeByte(NAMESPACE_AWARE_NAME);
+            writeString(name.getNamespaceURI());
+            writeString(name.getPrefix());
+            writeString(name.getLocalName());
+        } else {
+            mOutput.writeByte(NAME);
+            writeString(attributeName.getLocalName());
+        }
+        writeRecord(record);
+        AttributeOperationType operationType = record.getOperationType();
+        mOutput.writeByte(operationType != null ? operationType.ordinal() : -1);
+    }
+
+    /**
+     * Returns all the actions written to this log so far.
+     */
+    @NonNull
+    synchronized Actions read() throws IOException {
+        mOutput.flush();
+        return read(mFile);
+    }
+
+    /**
+     * Returns the log file.
+     */
+    @NonNull
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Closes the log, no records can be written afterwards.
+     */
+    synchronized void close() throws IOException {
+        mOutput.close();
+    }
+
+    private void writeRecord(@NonNull Actions.Record record) throws IOException {
+        mOutput.writeByte(record.getActionType().ordinal());
+        writeString(record.getTargetId().toString());
+        writeString(record.mReason);
+        SourceFilePosition location = record.getActionLocation();
+        File sourceFile = location.getFile().getSourceFile();
+        writeString(sourceFile != null ? sourceFile.getPath() : null);
+        writeString(location.getFile().getDescription());
+        SourcePosition position = location.getPosition();
+        mOutput.writeInt(position.getStartLine());
+        mOutput.writeInt(position.getStartColumn());
+        mOutput.writeInt(position.getStartOffset());
+        mOutput.writeInt(position.getEndLine());
+        mOutput.writeInt(position.getEndColumn());
+        mOutput.writeInt(position.getEndOffset());
+    }
+
+    // strings are written as their index, followed by the string itself on first use.
+    private void writeString(@Nullable String string) throws IOException {
+        if (string == null) {
+            mOutput.writeInt(-1);
+            return;
+        }
+        Integer index = mStrings.get(string);
+        if (index != null) {
+            mOutput.writeInt(index);
+        } else {
+            index = mStrings.size();
+            mStrings.put(string, index);
+            mOutput.writeInt(index);
+            mOutput.writeUTF(string);
+        }
+    }
+
+    /**
+     * Reads the actions of a merge from its log.
+     *
+     * @param file the log file.
+     * @return the actions recorded in the log, in the order they were recorded.
+     * @throws IOException if the file cannot be read or is not a valid log.
+     */
+    @NonNull
+    public static Actions read(@NonNull File file) throws IOException {
+        DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Unsupported merging actions log " + file);
+            }
+            Reader reader = new Reader(input);
+            LinkedHashMap<XmlNode.NodeKey, Actions.DecisionTreeRecord> records =
+                    new LinkedHashMap<XmlNode.NodeKey, Actions.DecisionTreeRecord>();
+            while (true) {
+                int type;
+                try {
+                    type = input.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                XmlNode.NodeKey storageKey = new XmlNode.NodeKey(reader.readString());
+                Actions.DecisionTreeRecord decisionTreeRecord = records.get(storageKey);
+                if (decisionTreeRecord == null) {
+                    decisionTreeRecord = new Actions.DecisionTreeRecord();
+                    records.put(storageKey, decisionTreeRecord);
+                }
+                if (type == NODE_RECORD) {
+                    decisionTreeRecord.addNodeRecord(reader.readNodeRecord());
+                } else if (type == ATTRIBUTE_RECORD) {
+                    XmlNode.NodeName attributeName = reader.readName();
+                    List<Actions.AttributeRecord> attributeRecords =
+                            decisionTreeRecord.mAttributeRecords.get(attributeName);
+                    if (attributeRecords == null) {
+                        attributeRecords = new ArrayList<Actions.AttributeRecord>();
+                        decisionTreeRecord.mAttributeRecords.put(attributeName, attributeRecords);
+                    }
+                    attributeRecords.add(reader.readAttributeRecord());
+                } else {
+                    throw new IOException("Invalid merging actions log " + file);
+                }
+            }
+            return new Actions(ImmutableMap.copyOf(records));
+        } catch (EOFException e) {
+            throw new IOException("Truncated merging actions log " + file, e);
+        } finally {
+            Closeables.closeQuietly(input);
+        }
+    }
+
+    /** Decodes the records of a log, keeping track of the strings read so far */
+    private static final class Reader {
+        @NonNull private final DataInputStream mInput;
+        @NonNull private final List<String> mStrings = Lists.newArrayList();
+        // positions are shared by many records, reuse them.
+        @NonNull private final Map<SourceFilePosition, SourceFilePosition> mLocations =
+                Maps.newHashMap();
+
+        private Reader(@NonNull DataInputStream input) {
+            mInput = input;
+        }
+
+        @Nullable
+        String readString() throws IOException {
+            int index = mInput.readInt();
+            if (index < 0) {
+                return null;
+            }
+            if (index < mStrings.size()) {
+                return mStrings.get(index);
+            }
+            if (index != mStrings.size()) {
+                throw new IOException("Invalid string reference " + index);
+            }
+            String string = mInput.readUTF();
+            mStrings.add(string);
+            return string;
+        }
+
+        @NonNull
+        XmlNode.NodeName readName() throws IOException {
+            byte type = mInput.readByte();
+            if (type == NAMESPACE_AWARE_NAME) {
+                return XmlNode.fromNSName(readString(), readString(), readString());
+            } else if (type == NAME) {
+                return XmlNode.fromName(readString());
+            }
+            throw new IOException("Invalid attribute name type " + type);
+        }
+
+        @NonNull
+        Actions.NodeRecord readNodeRecord() throws IOException {
+            Actions.ActionType actionType = readActionType();
+            XmlNode.NodeKey targetId = new XmlNode.NodeKey(readString());
+            String reason = readString();
+            SourceFilePosition location = readLocation();
+            NodeOperationType operationType =
+                    readEnum(NodeOperationType.values(), mInput.readByte());
+            if (operationType == null) {
+                throw new IOException("Missing node operation type");
+            }
+            return new Actions.NodeRecord(actionType, location, targetId, reason, operationType);
+        }
+
+        @NonNull
+        Actions.AttributeRecord readAttributeRecord() throws IOException {
+            Actions.ActionType actionType = readActionType();
+            XmlNode.NodeKey targetId = new XmlNode.NodeKey(readString());
+            String reason = readString();
+            SourceFilePosition location = readLocation();
+            AttributeOperationType operationType =
+                    readEnum(AttributeOperationType.values(), mInput.readByte());
+            return new Actions.AttributeRecord(actionType, location, targetId, reason,
+                    operationType);
+        }
+
+        @NonNull
+        private Actions.ActionType readActionType() throws IOException {
+            Actions.ActionType actionType =
+                    readEnum(Actions.ActionType.values(), mInput.readByte());
+            if (actionType == null) {
+                throw new IOException("Missing action type");
+            }
+            return actionType;
+        }
+
+        @NonNull
+        private SourceFilePosition readLocation() throws IOException {
+            String path = readString();
+            String description = readString();
+            SourceFile sourceFile;
+            if (path != null) {
+                sourceFile = description != null
+                        ? new SourceFile(new File(path), description)
+                        : new SourceFile(new File(path));
+            } else {
+                sourceFile = description != null
+                        ? new SourceFile(description)
+                        : SourceFile.UNKNOWN;
+            }
+            SourcePosition position = new SourcePosition(mInput.readInt(), mInput.readInt(),
+                    mInput.readInt(), mInput.readInt(), mInput.readInt(), mInput.readInt());
+            SourceFilePosition location = new SourceFilePosition(sourceFile, position);
+            SourceFilePosition previous = mLocations.get(location);
+            if (previous != null) {
+                return previous;
+            }
+            mLocations.put(location, location);
+            return location;
+        }
+
+        @Nullable
+        private static <T extends Enum<T>> T readEnum(@NonNull T[] values, int ordinal)
+                throws IOException {
+            if (ordinal == -1) {
+                return null;
+            }
+            if (ordinal < 0 || ordinal >= values.length) {
+                throw new IOException("Invalid value " + ordinal);
+            }
+            return values[ordinal];
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.manifmerger;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.utils.PositionXmlParser;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+
+import org.w3c.dom.Document;
+
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Process wide cache of the library manifests loaded by {@link ManifestMerger2}.
+ * <p>
+ * The same library manifests are typically merged into the manifest of every variant of a
+ * project, and loaded again for each of them. This cache keeps the parsed documents, after
+ * placeholder substitution, keyed by the library manifest contents and by everything the
+ * substitution depends on, such that unchanged library manifests are only parsed once.
+ * <p>
+ * The documents are mutated by the merging process so the cached documents are never handed
+ * out, callers get a copy of them instead. They are kept in memory as long as there is
+ * enough of it.
+ */
+final class LibraryManifestCache {
+
+    private static final Map<String, SoftReference<Document>> sCache = Maps.newHashMap();
+
+    private LibraryManifestCache() {}
+
+    /**
+     * Returns the cache key of a library manifest.
+     *
+     * @param contents the library manifest file contents.
+     * @param mergeType the type of merging the library is loaded for.
+     * @param placeHolderValues the placeholder values, or null if placeholders are not
+     *                          substituted.
+     * @return the key to use with {@link #get(String)} and {@link #put(String, Document)}
+     */
+    @NonNull
+    static String getKey(@NonNull byte[] contents,
+            @NonNull ManifestMerger2.MergeType mergeType,
+            @Nullable Map<String, Object> placeHolderValues) {
+        StringBuilder key = new StringBuilder();
+        key.append(Hashing.sha1().hashBytes(contents).toString());
+        key.append(':').append(mergeType.name());
+        if (placeHolderValues != null) {
+            SortedMap<String, Object> sorted = Maps.newTreeMap();
+            sorted.putAll(placeHolderValues);
+            for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+                key.append('\n').append(entry.getKey()).append('=').append(entry.getValue());
+            }
+        } else {
+            key.append(":raw"); //$NON-NLS-1$
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns a copy of the document stored for the given key, or null if there is none.
+     */
+    @Nullable
+    static Document get(@NonNull String key) {
+        Document document;
+        synchronized (sCache) {
+            SoftReference<Document> reference = sCache.get(key);
+            document = reference != null ? reference.get() : null;
+        }
+        if (document == null) {
+            return null;
+        }
+        // DOM implementations are not thread safe, not even for reading
+        synchronized (document) {
+            return PositionXmlParser.copy(document);
+        }
+    }
+
+    /**
+     * Stores a copy of the given document, as it is before merging.
+     */
+    static void put(@NonNull String key, @NonNull Document document) {
+        Document copy = PositionXmlParser.copy(document);
+        synchronized (sCache) {
+            // Drop the entries of the documents collected so far
+            Iterator<SoftReference<Document>> iterator = sCache.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().get() == null) {
+                    iterator.remove();
+                }
+            }
+            sCache.put(key, new SoftReference<Document>(copy));
+        }
+    }
+
+    /** Drops all the cached documents */
+    @VisibleForTesting
+    static void clear() {
+        synchronized (sCache) {
+            sCache.clear();
+        }
+    }
+}
@@ -24,10 +24,13 @@ import com.android.SdkConstants;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.annotations.concurrency.Immutable;
+import com.android.ide.common.blame.SourceFile;
 import com.android.ide.common.blame.SourceFilePosition;
 import com.android.ide.common.blame.SourcePosition;
+import com.android.ide.common.internal.ExecutorSingleton;
 import com.android.utils.ILogger;
 import com.android.utils.Pair;
+import com.android.utils.PositionXmlParser;
 import com.android.utils.SdkUtils;
 import com.android.utils.StdLogger;
 import com.android.utils.XmlUtils;
@@ -36,17 +39,26 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
 
 import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
 
 /**
  * merges android manifest files, idempotent.
@@ -69,6 +81,7 @@ public class ManifestMerger2 {
     private final ImmutableList<Invoker.Feature> mOptionalFeatures;
     private final MergeType mMergeType;
     private final Optional<File> mReportFile;
+    private final Optional<File> mBlameLogFile;
 
     private ManifestMerger2(
             @NonNull ILogger logger,
@@ -79,7 +92,8 @@ public class ManifestMerger2 {
             @NonNull Map<String, Object> placeHolderValues,
             @NonNull KeyBasedValueResolver<SystemProperty> systemPropertiesResolver,
             @NonNull MergeType mergeType,
-            @NonNull Optional<File> reportFile) {
+            @NonNull Optional<File> reportFile,
+            @NonNull Optional<File> blameLogFile) {
         this.mSystemPropertyResolver = systemPropertiesResolver;
         this.mPlaceHolderValues = placeHolderValues;
         this.mManifestFile = mainManifestFile;
@@ -89,6 +103,7 @@ public class ManifestMerger2 {
         this.mOptionalFeatures = optionalFeatures;
         this.mMergeType = mergeType;
         this.mReportFile = reportFile;
+        this.mBlameLogFile = blameLogFile;
     }
 
     /**
@@ -100,8 +115,34 @@ public class ManifestMerger2 {
      * files cannot be loaded).
      */
     private MergingReport merge() throws MergeFailureException {
-        // initiate a new merging report
-        MergingReport.Builder mergingReportBuilder = new MergingReport.Builder(mLogger);
+        if (!mBlameLogFile.isPresent()) {
+            // initiate a new merging report
+            return merge(new MergingReport.Builder(mLogger));
+        }
+
+        // stream the merging actions to the blame log rather than keeping them in memory.
+        ActionsLog blameLog;
+        try {
+            blameLog = ActionsLog.create(mBlameLogFile.get());
+        } catch (IOException e) {
+            throw new MergeFailureException(e);
+        }
+        try {
+            return merge(new MergingReport.Builder(mLogger, new ActionRecorder(blameLog)));
+        } finally {
+            try {
+                blameLog.close();
+            } catch (IOException e) {
+                mLogger.warning(String.format(
+                        "Error '%1$s' while closing the merger blame log file %2$s",
+                        e.getMessage(),
+                        mBlameLogFile.get().getAbsolutePath()));
+            }
+        }
+    }
+
+    private MergingReport merge(MergingReport.Builder mergingReportBuilder)
+            throws MergeFailureException {
 
         SelectorResolver selectors = new SelectorResolver();
         // load all the libraries xml files up front to have a list of all possible node:selector
@@ -299,7 +340,7 @@ public class ManifestMerger2 {
      * @param mergingReport the merging activities report to serialize.
      */
     private void writeReport(MergingReport mergingReport) {
-        FileWriter fileWriter = null;
+        Writer fileWriter = null;
         try {
             if (!mReportFile.get().getParentFile().exists()
                     && !mReportFile.get().getParentFile().mkdirs()) {
@@ -309,7 +350,7 @@ public class ManifestMerger2 {
                                 + "will not be documented",
                         mReportFile.get().getAbsolutePath()));
             } else {
-                fileWriter = new FileWriter(mReportFile.get());
+                fileWriter = new BufferedWriter(new FileWriter(mReportFile.get()));
                 mergingReport.getActions().log(fileWriter);
             }
         } catch (IOException e) {
@@ -478,51 +519,137 @@ public class ManifestMerger2 {
         return result;
     }
 
-    private List<LoadedManifestInfo> loadLibraries(SelectorResolver selectors,
-            MergingReport.Builder mergingReportBuilder) throws MergeFailureException {
+    private List<LoadedManifestInfo> loadLibraries(final SelectorResolver selectors,
+            final MergingReport.Builder mergingReportBuilder) throws MergeFailureException {
 
-        ImmutableList.Builder<LoadedManifestInfo> loadedLibraryDocuments = ImmutableList.builder();
-        for (Pair<String, File> libraryFile : mLibraryFiles) {
+        // the library manifests do not depend on each other so they are loaded in parallel,
+        // the selectors are only used once the documents are merged.
+        List<FutureTask<Pair<LoadedManifestInfo, MergingReport.Builder>>> tasks =
+                new ArrayList<FutureTask<Pair<LoadedManifestInfo, MergingReport.Builder>>>(
+                        mLibraryFiles.size());
+        ExecutorService executor = ExecutorSingleton.getExecutor();
+        for (final Pair<String, File> libraryFile : mLibraryFiles) {
             mLogger.info("Loading library manifest " + libraryFile.getSecond().getPath());
-            ManifestInfo manifestInfo = new ManifestInfo(libraryFile.getFirst(),
-                    libraryFile.getSecond(),
-                    XmlDocument.Type.LIBRARY, Optional.<String>absent());
-            XmlDocument libraryDocument;
+            FutureTask<Pair<LoadedManifestInfo, MergingReport.Builder>> task =
+                    new FutureTask<Pair<LoadedManifestInfo, MergingReport.Builder>>(
+                            new Callable<Pair<LoadedManifestInfo, MergingReport.Builder>>() {
+                                @Override
+                                public Pair<LoadedManifestInfo, MergingReport.Builder> call()
+                                        throws Exception {
+                                    return loadLibrary(libraryFile, selectors,
+                                            mergingReportBuilder.getLogger());
+                                }
+                            });
+            tasks.add(task);
+            if (mLibraryFiles.size() > 1) {
+                executor.execute(task);
+            }
+        }
+
+        ImmutableList.Builder<LoadedManifestInfo> loadedLibraryDocuments = ImmutableList.builder();
+        for (int i = 0; i < tasks.size(); i++) {
+            FutureTask<Pair<LoadedManifestInfo, MergingReport.Builder>> task = tasks.get(i);
+            // run the task in this thread if no executor thread picked it up yet, this is a
+            // no-op otherwise.
+            task.run();
+            Pair<LoadedManifestInfo, MergingReport.Builder> loaded;
             try {
-                libraryDocument = XmlLoader.load(selectors,
-                        mSystemPropertyResolver,
-                        manifestInfo.mName, manifestInfo.mLocation,
-                        XmlDocument.Type.LIBRARY,
-                        Optional.<String>absent()  /* mainManifestPackageName */);
-            } catch (Exception e) {
+                loaded = task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
                 throw new MergeFailureException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new MergeFailureException((Exception) cause);
             }
+            LoadedManifestInfo libraryInfo = loaded.getFirst();
+            XmlDocument libraryDocument = libraryInfo.getXmlDocument();
+
             // extract the package name...
             String libraryPackage = libraryDocument.getRootNode().getXml().getAttribute("package");
             // save it in the selector instance.
             if (!Strings.isNullOrEmpty(libraryPackage)) {
-                selectors.addSelector(libraryPackage, libraryFile.getFirst());
+                selectors.addSelector(libraryPackage, mLibraryFiles.get(i).getFirst());
             }
 
-            // perform placeholder substitution, this is useful when the library is using
-            // a placeholder in a key element, we however do not need to record these
-            // substitutions so feed it with a fake merging report.
-            MergingReport.Builder builder = new MergingReport.Builder(mergingReportBuilder.getLogger());
-            builder.getActionRecorder().recordDefaultNodeAction(libraryDocument.getRootNode());
-            performPlaceHolderSubstitution(manifestInfo, libraryDocument, builder);
-            if (builder.hasErrors()) {
+            MergingReport.Builder builder = loaded.getSecond();
+            if (builder != null && builder.hasErrors()) {
                 // we log the errors but continue, in case the error is of no consequence
                 // to the application consuming the library.
                 builder.build().log(mLogger);
             }
 
-            loadedLibraryDocuments.add(new LoadedManifestInfo(manifestInfo,
-                    Optional.fromNullable(libraryDocument.getPackageName()),
-                    libraryDocument));
+            loadedLibraryDocuments.add(libraryInfo);
         }
         return loadedLibraryDocuments.build();
     }
 
+    /**
+     * Loads a library manifest and performs its placeholder substitution. Library manifests
+     * are cached by {@link LibraryManifestCache} so that the ones shared between several
+     * merging invocations are only parsed once.
+     *
+     * @return the loaded library and the report of its placeholder substitution, the report
+     * is null if the document was cached.
+     */
+    private Pair<LoadedManifestInfo, MergingReport.Builder> loadLibrary(
+            Pair<String, File> libraryFile,
+            SelectorResolver selectors,
+            ILogger logger) throws Exception {
+
+        ManifestInfo manifestInfo = new ManifestInfo(libraryFile.getFirst(),
+                libraryFile.getSecond(),
+                XmlDocument.Type.LIBRARY, Optional.<String>absent());
+        SourceFile sourceFile = new SourceFile(manifestInfo.mLocation, manifestInfo.mName);
+
+        byte[] contents = Files.toByteArray(manifestInfo.mLocation);
+        String key = LibraryManifestCache.getKey(contents, mMergeType,
+                mOptionalFeatures.contains(Invoker.Feature.NO_PLACEHOLDER_REPLACEMENT)
+                        ? null
+                        : mPlaceHolderValues);
+        Document cachedDocument = LibraryManifestCache.get(key);
+        if (cachedDocument != null) {
+            XmlDocument libraryDocument = XmlLoader.load(selectors,
+                    mSystemPropertyResolver,
+                    sourceFile,
+                    cachedDocument,
+                    XmlDocument.Type.LIBRARY,
+                    Optional.<String>absent()  /* mainManifestPackageName */);
+            return Pair.of(new LoadedManifestInfo(manifestInfo,
+                    Optional.fromNullable(libraryDocument.getPackageName()),
+                    libraryDocument), null);
+        }
+
+        Document domDocument = PositionXmlParser.parse(contents);
+        XmlDocument libraryDocument = XmlLoader.load(selectors,
+                mSystemPropertyResolver,
+                sourceFile,
+                domDocument,
+                XmlDocument.Type.LIBRARY,
+                Optional.<String>absent()  /* mainManifestPackageName */);
+
+        // perform placeholder substitution, this is useful when the library is using
+        // a placeholder in a key element, we however do not need to record these
+        // substitutions so feed it with a fake merging report.
+        MergingReport.Builder builder = new MergingReport.Builder(logger);
+        builder.getActionRecorder().recordDefaultNodeAction(libraryDocument.getRootNode());
+        performPlaceHolderSubstitution(manifestInfo, libraryDocument, builder);
+        if (!builder.hasErrors()) {
+            // only cache the documents which do not need reporting.
+            LibraryManifestCache.put(key, domDocument);
+        }
+
+        return Pair.of(new LoadedManifestInfo(manifestInfo,
+                Optional.fromNullable(libraryDocument.getPackageName()),
+                libraryDocument), builder);
+    }
+
     /**
      * Creates a new {@link com.android.manifmerger.ManifestMerger2.Invoker} instance to invoke
      * the merging tool to merge manifest files for an application.
@@ -807,6 +934,8 @@ public class ManifestMerger2 {
         private final MergeType mMergeType;
         @Nullable private File mReportFile;
 
+        @Nullable private File mBlameLogFile;
+
         /**
          * Sets a value for a {@link com.android.manifmerger.ManifestMerger2.SystemProperty}
          * @param override the property to set
@@ -895,6 +1024,19 @@ public class ManifestMerger2 {
             return this;
         }
 
+        /**
+         * Sets the file to stream the merging actions to, in a compact binary format, as they
+         * are recorded. The actions are then not kept in memory while merging, which matters
+         * for large merges. They can be read back with {@link ActionsLog#read(File)}, and
+         * {@link MergingReport#getActions()} only reads them back when called.
+         * @param blameLog the file to write the actions in.
+         * @return itself.
+         */
+        public Invoker setMergeBlameLogFile(@NonNull File blameLog) {
+            mBlameLogFile = blameLog;
+            return this;
+        }
+
         /**
          * Add one library file manifest, will be added last in the list of library files which will
          * make the parameter the lowest priority library manifest file.
@@ -1001,7 +1143,8 @@ public class ManifestMerger2 {
                             mPlaceholders.build(),
                             new MapBasedKeyBasedValueResolver<SystemProperty>(systemProperties),
                             mMergeType,
-                            Optional.fromNullable(mReportFile));
+                            Optional.fromNullable(mReportFile),
+                            Optional.fromNullable(mBlameLogFile));
             return manifestMerger.merge();
         }
 
@@ -17,6 +17,7 @@
 package com.android.manifmerger;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.annotations.concurrency.Immutable;
 import com.android.ide.common.blame.SourceFile;
@@ -25,8 +26,12 @@ import com.android.ide.common.blame.SourcePosition;
 import com.android.utils.ILogger;
 import com.google.common.base.CaseFormat;
 import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
 
+import java.io.File;
+
 /**
  * Contains the result of 2 files merging.
  *
@@ -40,18 +45,23 @@ public class MergingReport {
     // list of logging events, ordered by their recording time.
     private final ImmutableList<Record> mRecords;
     private final ImmutableList<String> mIntermediaryStages;
-    private final Actions mActions;
+    // the actions are only built when asked for, as they are read back from the log file when
+    // the merging actions were logged.
+    private final Supplier<Actions> mActions;
+    @Nullable private final File mActionsLogFile;
 
     private MergingReport(Optional<XmlDocument> mergedDocument,
             @NonNull Result result,
             @NonNull ImmutableList<Record> records,
             @NonNull ImmutableList<String> intermediaryStages,
-            @NonNull Actions actions) {
+            @NonNull Supplier<Actions> actions,
+            @Nullable File actionsLogFile) {
         mMergedDocument = mergedDocument;
         mResult = result;
         mRecords = records;
         mIntermediaryStages = intermediaryStages;
         mActions = actions;
+        mActionsLogFile = actionsLogFile;
     }
 
     /**
@@ -73,7 +83,11 @@ public class MergingReport {
                     logger.error(null /* throwable */, "Unhandled record type " + record.mSeverity);
             }
         }
-        mActions.log(logger);
+        if (mActionsLogFile != null) {
+            logger.verbose("Merging actions logged to " + mActionsLogFile);
+        } else {
+            mActions.get().log(logger);
+        }
 
         if (!mResult.isSuccess()) {
             logger.warning("\nSee http://g.co/androidstudio/manifest-merger for more information"
@@ -130,9 +144,14 @@ public class MergingReport {
         return mRecords;
     }
 
+    /**
+     * Returns the actions taken by the merging tool. When the actions were logged to a file, see
+     * {@link ManifestMerger2.Invoker#setMergeBlameLogFile(File)}, the first call reads them back
+     * from the file.
+     */
     @NonNull
     public Actions getActions() {
-        return mActions;
+        return mActions.get();
     }
 
     @NonNull
@@ -208,11 +227,16 @@ public class MergingReport {
         private ImmutableList.Builder<String> mIntermediaryStages = new ImmutableList.Builder<String>();
         private boolean mHasWarnings = false;
         private boolean mHasErrors = false;
-        private ActionRecorder mActionRecorder = new ActionRecorder();
+        private final ActionRecorder mActionRecorder;
         private final ILogger mLogger;
 
         Builder(ILogger logger) {
+            this(logger, new ActionRecorder());
+        }
+
+        Builder(ILogger logger, ActionRecorder actionRecorder) {
             mLogger = logger;
+            mActionRecorder = actionRecorder;
         }
 
 
@@ -281,12 +305,21 @@ public class MergingReport {
                             ? Result.WARNING
                             : Result.SUCCESS;
 
+            ActionsLog actionsLog = mActionRecorder.getLog();
             return new MergingReport(
                     mMergedDocument,
                     result,
                     mRecordBuilder.build(),
                     mIntermediaryStages.build(),
-                    mActionRecorder.build());
+                    actionsLog != null
+                            ? Suppliers.memoize(new Supplier<Actions>() {
+                                @Override
+                                public Actions get() {
+                                    return mActionRecorder.build();
+                                }
+                            })
+                            : Suppliers.ofInstance(mActionRecorder.build()),
+                    actionsLog != null ? actionsLog.getFile() : null);
         }
 
         public ILogger getLogger() {
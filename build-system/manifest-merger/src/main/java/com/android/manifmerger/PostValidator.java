@@ -59,7 +59,7 @@ public class PostValidator {
         enforceAndroidNamespaceDeclaration(xmlDocument);
         reOrderElements(xmlDocument.getRootNode());
         validate(xmlDocument.getRootNode(),
-                mergingReport.getActionRecorder().build(),
+                mergingReport.getActionRecorder(),
                 mergingReport);
     }
 
@@ -162,20 +162,20 @@ public class PostValidator {
      * instructions were applied.
      *
      * @param xmlElement xml element to validate.
-     * @param actions the actions recorded during the merging activities.
+     * @param actionRecorder the actions recorded during the merging activities.
      * @param mergingReport report for errors and warnings.
      * instructions were applied once or {@link MergingReport.Result#WARNING} otherwise.
      */
     private static void validate(
             XmlElement xmlElement,
-            Actions actions,
+            ActionRecorder actionRecorder,
             MergingReport.Builder mergingReport) {
 
         NodeOperationType operationType = xmlElement.getOperationType();
         switch (operationType) {
             case REPLACE:
                 // we should find at least one rejected twin.
-                if (!isNodeOperationPresent(xmlElement, actions, ActionType.REJECTED)) {
+                if (!isNodeOperationPresent(xmlElement, actionRecorder, ActionType.REJECTED)) {
                     xmlElement.addMessage(mergingReport, MergingReport.Record.Severity.WARNING,
                             String.format(
                                     "%1$s was tagged at %2$s:%3$d to replace another declaration "
@@ -189,7 +189,7 @@ public class PostValidator {
             case REMOVE:
             case REMOVE_ALL:
                 // we should find at least one rejected twin.
-                if (!isNodeOperationPresent(xmlElement, actions, ActionType.REJECTED)) {
+                if (!isNodeOperationPresent(xmlElement, actionRecorder, ActionType.REJECTED)) {
                     xmlElement.addMessage(mergingReport, MergingReport.Record.Severity.WARNING,
                             String.format(
                                     "%1$s was tagged at %2$s:%3$d to remove other declarations "
@@ -201,10 +201,10 @@ public class PostValidator {
                 }
                 break;
         }
-        validateAttributes(xmlElement, actions, mergingReport);
+        validateAttributes(xmlElement, actionRecorder, mergingReport);
         validateAndroidAttributes(xmlElement, mergingReport);
         for (XmlElement child : xmlElement.getMergeableElements()) {
-            validate(child, actions, mergingReport);
+            validate(child, actionRecorder, mergingReport);
         }
     }
 
@@ -214,7 +214,7 @@ public class PostValidator {
      */
     private static void validateAttributes(
             XmlElement xmlElement,
-            Actions actions,
+            ActionRecorder actionRecorder,
             MergingReport.Builder mergingReport) {
 
         Collection<Map.Entry<XmlNode.NodeName, AttributeOperationType>> attributeOperations
@@ -224,7 +224,7 @@ public class PostValidator {
             switch (attributeOperation.getValue()) {
                 case REMOVE:
                     if (!isAttributeOperationPresent(
-                            xmlElement, attributeOperation, actions, ActionType.REJECTED)) {
+                            xmlElement, attributeOperation, actionRecorder, ActionType.REJECTED)) {
                         xmlElement.addMessage(mergingReport, MergingReport.Record.Severity.WARNING,
                                 String.format(
                                         "%1$s@%2$s was tagged at %3$s:%4$d to remove other"
@@ -238,7 +238,7 @@ public class PostValidator {
                     break;
                 case REPLACE:
                     if (!isAttributeOperationPresent(
-                            xmlElement, attributeOperation, actions, ActionType.REJECTED)) {
+                            xmlElement, attributeOperation, actionRecorder, ActionType.REJECTED)) {
                         xmlElement.addMessage(mergingReport, MergingReport.Record.Severity.WARNING,
                                 String.format(
                                         "%1$s@%2$s was tagged at %3$s:%4$d to replace other"
@@ -261,15 +261,10 @@ public class PostValidator {
      * @return true if it was applied, false otherwise.
      */
     private static boolean isNodeOperationPresent(XmlElement xmlElement,
-            Actions actions,
+            ActionRecorder actionRecorder,
             ActionType action) {
 
-        for (Actions.NodeRecord nodeRecord : actions.getNodeRecords(xmlElement.getId())) {
-            if (nodeRecord.getActionType() == action) {
-                return true;
-            }
-        }
-        return false;
+        return actionRecorder.isNodeActionRecorded(xmlElement.getId(), action);
     }
 
     /**
@@ -279,16 +274,11 @@ public class PostValidator {
      */
     private static boolean isAttributeOperationPresent(XmlElement xmlElement,
             Map.Entry<XmlNode.NodeName, AttributeOperationType> attributeOperation,
-            Actions actions,
+            ActionRecorder actionRecorder,
             ActionType action) {
 
-        for (Actions.AttributeRecord attributeRecord : actions.getAttributeRecords(
-                xmlElement.getId(), attributeOperation.getKey())) {
-            if (attributeRecord.getActionType() == action) {
-                return true;
-            }
-        }
-        return false;
+        return actionRecorder.isAttributeActionRecorded(
+                xmlElement.getId(), attributeOperation.getKey(), action);
     }
 
     /**
@@ -29,9 +29,12 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import org.w3c.dom.Attr;
 import org.w3c.dom.Element;
@@ -73,6 +76,8 @@ public class XmlElement extends OrphanXmlElement {
     @Nullable private final Selector mSelector;
     // optional list of libraries that we should ignore the minSdk version
     @NonNull private final List<Selector> mOverrideUsesSdkLibrarySelectors;
+    // index of the children elements, only available while merging children.
+    @Nullable private ChildrenIndex mChildrenIndex;
 
 
     public XmlElement(@NonNull Element xml, @NonNull XmlDocument document) {
@@ -328,6 +333,9 @@ public class XmlElement extends OrphanXmlElement {
             ManifestModel.NodeTypes type,
             @Nullable String keyValue) {
 
+        if (mChildrenIndex != null) {
+            return Optional.fromNullable(mChildrenIndex.getNodeByTypeAndKey(type, keyValue));
+        }
         for (XmlElement xmlElement : mMergeableChildren) {
             if (xmlElement.isA(type) &&
                     (keyValue == null || keyValue.equals(xmlElement.getKey()))) {
@@ -344,6 +352,9 @@ public class XmlElement extends OrphanXmlElement {
      * @return the list (potentially empty) of children.
      */
     public ImmutableList<XmlElement> getAllNodesByType(ManifestModel.NodeTypes type) {
+        if (mChildrenIndex != null) {
+            return ImmutableList.copyOf(mChildrenIndex.getCurrentNodesByType(type));
+        }
         ImmutableList.Builder<XmlElement> listBuilder = ImmutableList.builder();
         for (XmlElement mergeableChild : initMergeableChildren()) {
             if (mergeableChild.isA(type)) {
@@ -360,12 +371,19 @@ public class XmlElement extends OrphanXmlElement {
         // read all lower priority mergeable nodes.
         // if the same node is not defined in this document merge it in.
         // if the same is defined, so far, give an error message.
-        for (XmlElement lowerPriorityChild : lowerPriorityNode.getMergeableElements()) {
+        // children are looked up for each lower priority child, index them for the duration of
+        // the merge.
+        mChildrenIndex = new ChildrenIndex();
+        try {
+            for (XmlElement lowerPriorityChild : lowerPriorityNode.getMergeableElements()) {
 
-            if (shouldIgnore(lowerPriorityChild, mergingReport)) {
-                continue;
+                if (shouldIgnore(lowerPriorityChild, mergingReport)) {
+                    continue;
+                }
+                mergeChild(lowerPriorityChild, mergingReport);
             }
-            mergeChild(lowerPriorityChild, mergingReport);
+        } finally {
+            mChildrenIndex = null;
         }
     }
 
@@ -481,8 +499,12 @@ public class XmlElement extends OrphanXmlElement {
 
         Preconditions.checkArgument(lowerPriorityChild.getType().areMultipleDeclarationAllowed());
         if (lowerPriorityChild.getType().areMultipleDeclarationAllowed()) {
-            for (XmlElement sameTypeChild : getAllNodesByType(lowerPriorityChild.getType())) {
-                if (sameTypeChild.getId().equals(lowerPriorityChild.getId()) &&
+            Iterable<XmlElement> sameTypeChildren = mChildrenIndex != null
+                    ? mChildrenIndex.getCurrentNodesById(lowerPriorityChild.getId())
+                    : getAllNodesByType(lowerPriorityChild.getType());
+            for (XmlElement sameTypeChild : sameTypeChildren) {
+                if (sameTypeChild.isA(lowerPriorityChild.getType()) &&
+                        sameTypeChild.getId().equals(lowerPriorityChild.getId()) &&
                         sameTypeChild.isEquals(lowerPriorityChild)) {
                     return;
                 }
@@ -637,6 +659,9 @@ public class XmlElement extends OrphanXmlElement {
         // only in the new file, just import it.
         Node node = getXml().getOwnerDocument().adoptNode(elementToBeAdded.getXml());
         getXml().appendChild(node);
+        if (mChildrenIndex != null) {
+            mChildrenIndex.addCurrentNode((Element) node);
+        }
 
         // also adopt the child's comments if any.
         for (Node comment : comments) {
@@ -851,6 +876,91 @@ public class XmlElement extends OrphanXmlElement {
         return mergeableNodes.build();
     }
 
+    /**
+     * Index of the children of this element, used while merging a lower priority element to
+     * avoid scanning all the children for each of the lower priority children.
+     * <p>
+     * Lookups by type and key return the same elements as a scan of {@link #mMergeableChildren}
+     * would, while the current children by type and id also include the elements added to this
+     * element since the index was created. Both are built on first use.
+     */
+    private final class ChildrenIndex {
+
+        // first child of each type.
+        private Map<ManifestModel.NodeTypes, XmlElement> mFirstByType;
+        // first child of each type and key, for the children with a key.
+        private Map<ManifestModel.NodeTypes, Map<String, XmlElement>> mFirstByTypeAndKey;
+        // current children, by type and by id.
+        private ListMultimap<ManifestModel.NodeTypes, XmlElement> mCurrentByType;
+        private ListMultimap<NodeKey, XmlElement> mCurrentById;
+
+        @Nullable
+        XmlElement getNodeByTypeAndKey(
+                @NonNull ManifestModel.NodeTypes type,
+                @Nullable String keyValue) {
+            if (mFirstByType == null) {
+                mFirstByType = Maps.newEnumMap(ManifestModel.NodeTypes.class);
+                mFirstByTypeAndKey = Maps.newEnumMap(ManifestModel.NodeTypes.class);
+                for (XmlElement xmlElement : mMergeableChildren) {
+                    ManifestModel.NodeTypes childType = xmlElement.getType();
+                    if (!mFirstByType.containsKey(childType)) {
+                        mFirstByType.put(childType, xmlElement);
+                    }
+                    String key = xmlElement.getKey();
+                    if (key == null) {
+                        continue;
+                    }
+                    Map<String, XmlElement> byKey = mFirstByTypeAndKey.get(childType);
+                    if (byKey == null) {
+                        byKey = Maps.newHashMap();
+                        mFirstByTypeAndKey.put(childType, byKey);
+                    }
+                    if (!byKey.containsKey(key)) {
+                        byKey.put(key, xmlElement);
+                    }
+                }
+            }
+            if (keyValue == null) {
+                return mFirstByType.get(type);
+            }
+            Map<String, XmlElement> byKey = mFirstByTypeAndKey.get(type);
+            return byKey != null ? byKey.get(keyValue) : null;
+        }
+
+        @NonNull
+        List<XmlElement> getCurrentNodesByType(@NonNull ManifestModel.NodeTypes type) {
+            initCurrentNodes();
+            return mCurrentByType.get(type);
+        }
+
+        @NonNull
+        List<XmlElement> getCurrentNodesById(@NonNull NodeKey id) {
+            initCurrentNodes();
+            return mCurrentById.get(id);
+        }
+
+        void addCurrentNode(@NonNull Element element) {
+            if (mCurrentByType != null) {
+                addCurrentNode(new XmlElement(element, mDocument));
+            }
+        }
+
+        private void initCurrentNodes() {
+            if (mCurrentByType == null) {
+                mCurrentByType = ArrayListMultimap.create();
+                mCurrentById = ArrayListMultimap.create();
+                for (XmlElement xmlElement : initMergeableChildren()) {
+                    addCurrentNode(xmlElement);
+                }
+            }
+        }
+
+        private void addCurrentNode(@NonNull XmlElement xmlElement) {
+            mCurrentByType.put(xmlElement.getType(), xmlElement);
+            mCurrentById.put(xmlElement.getId(), xmlElement);
+        }
+    }
+
     /**
      * Returns all leading comments in the source xml before the node to be adopted.
      * @param nodeToBeAdopted node that will be added as a child to this node.
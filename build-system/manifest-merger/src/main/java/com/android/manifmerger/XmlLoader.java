@@ -59,14 +59,36 @@ public final class XmlLoader {
         InputStream inputStream = new BufferedInputStream(new FileInputStream(xmlFile));
 
         Document domDocument = PositionXmlParser.parse(inputStream);
-        return domDocument != null ? new XmlDocument(
-                new SourceFile(xmlFile, displayName),
+        return domDocument != null
+                ? load(selectors,
+                        systemPropertyResolver,
+                        new SourceFile(xmlFile, displayName),
+                        domDocument,
+                        type,
+                        mainManifestPackageName)
+                : null;
+    }
+
+    /**
+     * Creates a {@link com.android.manifmerger.XmlDocument} from an already parsed xml document.
+     * @param sourceFile the source location to use for logging and record collection.
+     * @param domDocument the parsed xml, as returned by {@link PositionXmlParser}.
+     * @return the initialized {@link com.android.manifmerger.XmlDocument}
+     */
+    public static XmlDocument load(
+            KeyResolver<String> selectors,
+            KeyBasedValueResolver<SystemProperty> systemPropertyResolver,
+            SourceFile sourceFile,
+            Document domDocument,
+            XmlDocument.Type type,
+            Optional<String> mainManifestPackageName) {
+        return new XmlDocument(
+                sourceFile,
                 selectors,
                 systemPropertyResolver,
                 domDocument.getDocumentElement(),
                 type,
-                mainManifestPackageName)
-                : null;
+                mainManifestPackageName);
     }
 
 
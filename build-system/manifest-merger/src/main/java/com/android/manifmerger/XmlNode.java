@@ -140,6 +140,10 @@ public abstract class XmlNode {
         return new NamespaceAwareName(namespaceUri, prefix, localName);
     }
 
+    static NodeName fromName(String name) {
+        return new Name(name);
+    }
+
     /**
      * Returns the position of this attribute in the original xml file. This may return an invalid
      * location as this xml fragment does not exist in any xml file but is the temporary result
@@ -250,6 +254,16 @@ public abstract class XmlNode {
         public String getLocalName() {
             return mLocalName;
         }
+
+        @NonNull
+        String getNamespaceURI() {
+            return mNamespaceURI;
+        }
+
+        @NonNull
+        String getPrefix() {
+            return mPrefix;
+        }
     }
 
     /**
@@ -490,6 +490,270 @@ public class ManifestMerger2SmallTest extends TestCase {
                         .item(0).getAttributes().getNamedItem("package").getNodeValue());
     }
 
+    public void testLibraryManifestReuse()
+            throws ManifestMerger2.MergeFailureException, IOException {
+        String xml = ""
+                + "<manifest\n"
+                + "    xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+                + "    package=\"com.example.app\">\n"
+                + "    <application android:label=\"@string/app_name\"/>\n"
+                + "</manifest>";
+        String firstLibrary = ""
+                + "<manifest\n"
+                + "    xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+                + "    package=\"com.example.lib1\">\n"
+                + "    <application>\n"
+                + "        <activity android:name=\".ActivityOne\"\n"
+                + "            android:label=\"${labelName}\"/>\n"
+                + "    </application>\n"
+                + "</manifest>";
+        String secondLibrary = ""
+                + "<manifest\n"
+                + "    xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+                + "    package=\"com.example.lib2\">\n"
+                + "    <application>\n"
+                + "        <activity android:name=\".ActivityTwo\"/>\n"
+                + "    </application>\n"
+                + "</manifest>";
+
+        LibraryManifestCache.clear();
+        MockLog mockLog = new MockLog();
+        File inputFile = inputAsFile("testLibraryManifestReuse", xml);
+        File firstLibraryFile = inputAsFile("testLibraryManifestReuse1", firstLibrary);
+        File secondLibraryFile = inputAsFile("testLibraryManifestReuse2", secondLibrary);
+        try {
+            // the second merge uses the cached library documents, and must not be affected
+            // by the merging done by the first one.
+            String[] mergedDocuments = new String[2];
+            String[] actions = new String[2];
+            for (int i = 0; i < 2; i++) {
+                MergingReport mergingReport = ManifestMerger2
+                        .newMerger(inputFile, mockLog, ManifestMerger2.MergeType.APPLICATION)
+                        .addLibraryManifests(firstLibraryFile, secondLibraryFile)
+                        .setPlaceHolderValues(ImmutableMap.of("labelName", "firstLabel"))
+                        .merge();
+                assertTrue(mergingReport.getResult().isSuccess());
+                mergedDocuments[i] = mergingReport.getMergedDocument().get().prettyPrint();
+                actions[i] = mergingReport.getActions().persist();
+            }
+            assertTrue(mergedDocuments[0].contains("firstLabel"));
+            assertTrue(mergedDocuments[0].contains("com.example.lib2.ActivityTwo"));
+            assertEquals(mergedDocuments[0], mergedDocuments[1]);
+            // the recorded actions refer to the library documents positions.
+            assertEquals(actions[0], actions[1]);
+
+            // different placeholder values are substituted again.
+            MergingReport mergingReport = ManifestMerger2
+                    .newMerger(inputFile, mockLog, ManifestMerger2.MergeType.APPLICATION)
+                    .addLibraryManifests(firstLibraryFile, secondLibraryFile)
+                    .setPlaceHolderValues(ImmutableMap.of("labelName", "secondLabel"))
+                    .merge();
+            assertTrue(mergingReport.getResult().isSuccess());
+            String mergedDocument = mergingReport.getMergedDocument().get().prettyPrint();
+            assertTrue(mergedDocument.contains("secondLabel"));
+            assertFalse(mergedDocument.contains("firstLabel"));
+        } finally {
+            LibraryManifestCache.clear();
+            assertTrue(inputFile.delete());
+            assertTrue(firstLibraryFile.delete());
+            assertTrue(secondLibraryFile.delete());
+        }
+    }
+
+    public void testManyLibraries()
+            throws ManifestMerger2.MergeFailureException, IOException {
+        String xml = ""
+                + "<manifest\n"
+                + "    xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+                + "    package=\"com.example.app\">\n"
+                + "    <uses-permission android:name=\"permission0\"/>\n"
+                + "    <application android:label=\"@string/app_name\">\n"
+                + "        <activity android:name=\"com.example.lib7.Activity7\"\n"
+                + "            android:exported=\"true\"/>\n"
+                + "    </application>\n"
+                + "</manifest>";
+
+        // 50 libraries declaring 100 components each, and overlapping permissions.
+        MockLog mockLog = new MockLog();
+        File inputFile = inputAsFile("testManyLibraries", xml);
+        File[] libraryFiles = new File[50];
+        try {
+            for (int i = 0; i < libraryFiles.length; i++) {
+                StringBuilder library = new StringBuilder();
+                library.append("<manifest\n"
+                        + "    xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+                        + "    package=\"com.example.lib").append(i).append("\">\n");
+                for (int j = 0; j < 10; j++) {
+                    library.append("    <uses-permission android:name=\"permission")
+                            .append((i + j) % 20).append("\"/>\n");
+                }
+                library.append("    <application>\n");
+                for (int j = 0; j < 100; j++) {
+                    library.append("        <activity android:name=\".Activity")
+                            .append(j).append("\"/>\n");
+                }
+                library.append("    </application>\n</manifest>");
+                libraryFiles[i] = inputAsFile("testManyLibraries" + i, library.toString());
+            }
+
+            MergingReport mergingReport = ManifestMerger2
+                    .newMerger(inputFile, mockLog, ManifestMerger2.MergeType.APPLICATION)
+                    .addLibraryManifests(libraryFiles)
+                    .merge();
+            assertTrue(mergingReport.getResult().isSuccess());
+            XmlDocument xmlDocument = mergingReport.getMergedDocument().get();
+            assertEquals(20, xmlDocument.getXml().getElementsByTagName("uses-permission")
+                    .getLength());
+            assertEquals(5000, xmlDocument.getXml().getElementsByTagName("activity")
+                    .getLength());
+            Optional<XmlElement> activity = xmlDocument.getRootNode()
+                    .getNodeByTypeAndKey(ManifestModel.NodeTypes.APPLICATION, null).get()
+                    .getNodeByTypeAndKey(ManifestModel.NodeTypes.ACTIVITY,
+                            "com.example.lib7.Activity7");
+            assertTrue(activity.isPresent());
+            assertEquals("true", activity.get().getXml().getAttribute("android:exported"));
+        } finally {
+            assertTrue(inputFile.delete());
+            for (File libraryFile : libraryFiles) {
+                if (libraryFile != null) {
+                    assertTrue(libraryFile.delete());
+                }
+            }
+        }
+    }
+
+    public void testMergeBlameLog()
+            throws ManifestMerger2.MergeFailureException, IOException {
+        String xml = ""
+                + "<manifest\n"
+                + "    xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+                + "    xmlns:tools=\"http://schemas.android.com/tools\"\n"
+                + "    package=\"com.example.app\">\n"
+                + "    <application android:label=\"@string/app_name\"\n"
+                + "        tools:replace=\"label\">\n"
+                + "        <activity android:name=\".ActivityOne\"/>\n"
+                + "    </application>\n"
+                + "</manifest>";
+        String library = ""
+                + "<manifest\n"
+                + "    xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+                + "    package=\"com.example.lib\">\n"
+                + "    <uses-permission android:name=\"permissionOne\"/>\n"
+                + "    <application android:label=\"@string/lib_name\">\n"
+                + "        <activity android:name=\"com.example.app.ActivityOne\"\n"
+                + "            android:exported=\"true\"/>\n"
+                + "    </application>\n"
+                + "</manifest>";
+
+        MockLog mockLog = new MockLog();
+        File inputFile = inputAsFile("testMergeBlameLog", xml);
+        File libraryFile = inputAsFile("testMergeBlameLog1", library);
+        File blameLogFile = File.createTempFile("testMergeBlameLog", ".bin");
+        try {
+            MergingReport inMemory = ManifestMerger2
+                    .newMerger(inputFile, mockLog, ManifestMerger2.MergeType.APPLICATION)
+                    .addLibraryManifest(libraryFile)
+                    .merge();
+            assertTrue(inMemory.getResult().isSuccess());
+
+            MergingReport streamed = ManifestMerger2
+                    .newMerger(inputFile, mockLog, ManifestMerger2.MergeType.APPLICATION)
+                    .addLibraryManifest(libraryFile)
+                    .setMergeBlameLogFile(blameLogFile)
+                    .merge();
+            assertTrue(streamed.getResult().isSuccess());
+            assertEquals(inMemory.getMergedDocument().get().prettyPrint(),
+                    streamed.getMergedDocument().get().prettyPrint());
+
+            // the actions read back from the log are the ones recorded in memory.
+            String actions = inMemory.getActions().persist();
+            assertEquals(actions, streamed.getActions().persist());
+            assertEquals(actions, ActionsLog.read(blameLogFile).persist());
+        } finally {
+            assertTrue(inputFile.delete());
+            assertTrue(libraryFile.delete());
+            assertTrue(blameLogFile.delete());
+        }
+    }
+
+    public void testMergeBlameLogValidation()
+            throws ManifestMerger2.MergeFailureException, IOException {
+        // the activity removal and the label replacement have nothing to apply to: the merging
+        // tool looks up the recorded actions to report them, from its index when they are logged.
+        String xml = ""
+                + "<manifest\n"
+                + "    xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+                + "    xmlns:tools=\"http://schemas.android.com/tools\"\n"
+                + "    package=\"com.example.app\">\n"
+                + "    <application android:label=\"@string/app_name\"\n"
+                + "        tools:replace=\"label\">\n"
+                + "        <activity android:name=\".ActivityOne\"/>\n"
+                + "        <activity android:name=\".ActivityTwo\" tools:node=\"remove\"/>\n"
+                + "    </application>\n"
+                + "</manifest>";
+        String library = ""
+                + "<manifest\n"
+                + "    xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+                + "    package=\"com.example.lib\">\n"
+                + "    <application>\n"
+                + "        <activity android:name=\"com.example.app.ActivityOne\"\n"
+                + "            android:exported=\"true\"/>\n"
+                + "    </application>\n"
+                + "</manifest>";
+        MergingReport mergingReport = assertSameResultWhenLogged(
+                "testMergeBlameLogValidation", xml, library);
+        assertEquals(MergingReport.Result.WARNING, mergingReport.getResult());
+        assertStringPresenceInLogRecords(mergingReport, "to replace other declarations");
+        assertStringPresenceInLogRecords(mergingReport, "to remove other declarations");
+
+        // conflicting values are reported with the location the value was first added from.
+        xml = ""
+                + "<manifest\n"
+                + "    xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+                + "    package=\"com.example.app\">\n"
+                + "    <application>\n"
+                + "        <activity android:name=\".ActivityOne\"\n"
+                + "            android:exported=\"false\"/>\n"
+                + "    </application>\n"
+                + "</manifest>";
+        mergingReport = assertSameResultWhenLogged(
+                "testMergeBlameLogConflict", xml, library);
+        assertEquals(MergingReport.Result.ERROR, mergingReport.getResult());
+        assertStringPresenceInLogRecords(mergingReport,
+                "value=(false) from testMergeBlameLogConflict");
+    }
+
+    /**
+     * Merges a library manifest into a manifest with and without a blame log, checks the
+     * results are the same and returns the one of the logged merge.
+     */
+    private static MergingReport assertSameResultWhenLogged(String testName, String xml,
+            String library) throws ManifestMerger2.MergeFailureException, IOException {
+        MockLog mockLog = new MockLog();
+        File inputFile = inputAsFile(testName, xml);
+        File libraryFile = inputAsFile(testName + "1", library);
+        File blameLogFile = File.createTempFile(testName, ".bin");
+        try {
+            MergingReport inMemory = ManifestMerger2
+                    .newMerger(inputFile, mockLog, ManifestMerger2.MergeType.APPLICATION)
+                    .addLibraryManifest(libraryFile)
+                    .merge();
+            MergingReport streamed = ManifestMerger2
+                    .newMerger(inputFile, mockLog, ManifestMerger2.MergeType.APPLICATION)
+                    .addLibraryManifest(libraryFile)
+                    .setMergeBlameLogFile(blameLogFile)
+                    .merge();
+            assertEquals(inMemory.getResult(), streamed.getResult());
+            assertEquals(inMemory.getLoggingRecords().toString(),
+                    streamed.getLoggingRecords().toString());
+            return streamed;
+        } finally {
+            assertTrue(inputFile.delete());
+            assertTrue(libraryFile.delete());
+            assertTrue(blameLogFile.delete());
+        }
+    }
+
     /**
      * Utility method to save a {@link String} XML into a file.
      */
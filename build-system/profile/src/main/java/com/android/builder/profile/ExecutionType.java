@@ -106,7 +106,9 @@ public enum ExecutionType {
     TASK_SPLIT_ZIP_ALIGN(3020),
     TASK_ZIP_ALIGN(3021),
     TASK_COPY(3022),
-    TASK_LINT(3023);
+    TASK_LINT(3023),
+    TASK_PRE_DEX_LIBRARY(3024),
+    TASK_RENDER_VECTOR_DRAWABLE(3025);
 
     int getId() {
         return id;
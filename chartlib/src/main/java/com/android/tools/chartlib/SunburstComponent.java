@@ -16,6 +16,8 @@
 package com.android.tools.chartlib;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
 
 import java.awt.Color;
 import java.awt.Dimension;
@@ -28,6 +30,7 @@ import java.awt.geom.Arc2D;
 import java.awt.geom.Path2D;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -39,6 +42,12 @@ import javax.swing.tree.TreeNode;
  * Component which renders a
  * <a href="https://en.wikipedia.org/wiki/Pie_chart#Ring_chart_.2F_Sunburst_chart_.2F_Multilevel_pie_chart">
  * sunburst chart</a> that can be unrolled by setting its angle.
+ * <p>
+ * The layout is updated incrementally: the tree is compared with the slices on each frame, but
+ * only the slices whose nodes changed or whose animations are not over are updated, and only the
+ * subtrees holding them are visited for the selection and zoom. The shape of each slice is kept
+ * between frames until the slice or the geometry of the chart changes, and consecutive slices too
+ * thin to be seen are drawn together as a single "other" slice.
  */
 public final class SunburstComponent extends AnimatedComponent {
 
@@ -68,6 +77,21 @@ public final class SunburstComponent extends AnimatedComponent {
             new Color(0xbdbdbd),
     };
 
+    /**
+     * The color of the slices grouping the slices too thin to be seen.
+     */
+    private static final Color OTHER_COLOR = Color.RED;
+
+    /**
+     * The length in pixels under which slices are grouped into "other" slices.
+     */
+    private static final float MIN_SLICE_LENGTH = 1.0f;
+
+    /**
+     * The distance under which an animated value is considered to have reached its target.
+     */
+    private static final float SETTLE_EPSILON = 0.0001f;
+
     private ValuedTreeNode mData;
 
     private Slice mSlice;
@@ -121,6 +145,34 @@ public final class SunburstComponent extends AnimatedComponent {
 
     private Map<Color, Path2D.Float> mPaths;
 
+    /**
+     * Whether mPaths still hold the shapes of all the slices.
+     */
+    private boolean mPathsValid;
+
+    /**
+     * The number of slices updated in the last update, the others having been skipped.
+     */
+    private int mUpdatedSlices;
+
+    /**
+     * The values that the shapes of all the slices depend on, and a version incremented whenever
+     * they change.
+     */
+    private float[] mGeometry;
+
+    private int mGeometryVersion;
+
+    private Slice mLastSelection;
+
+    private Slice mLastZoom;
+
+    private int mLastZoomLevel;
+
+    private int mDrawnSlices;
+
+    private int mOtherSlices;
+
     public SunburstComponent(@NonNull ValuedTreeNode data) {
         super(30);
         mData = data;
@@ -160,8 +212,13 @@ public final class SunburstComponent extends AnimatedComponent {
         g.setColor(getBackground());
         g.fillRect(0, 0, dim.width, dim.height);
 
-        mPaths.clear();
-        drawSlice(g, mSlice, 0.0f, 0.0f, 1.0f);
+        if (!mPathsValid) {
+            mPaths.clear();
+            mDrawnSlices = 0;
+            mOtherSlices = 0;
+            drawSlice(mSlice, 0.0f, 0.0f, 1.0f);
+            mPathsValid = true;
+        }
         for (Map.Entry<Color, Path2D.Float> entry : mPaths.entrySet()) {
             g.setColor(entry.getKey());
             g.fill(entry.getValue());
@@ -170,12 +227,17 @@ public final class SunburstComponent extends AnimatedComponent {
 
     @Override
     protected void updateData() {
+        updateData(getMousePosition());
+    }
 
+    @VisibleForTesting
+    void updateData(@Nullable Point mouse) {
         Dimension dim = getSize();
         mX = dim.width * 0.5f;
         mY = dim.height * 0.5f;
 
         updateArea();
+        mUpdatedSlices = 0;
         updateStructure(mSlice, mData, false);
 
         mCurrentAngle = Math.abs(mCurrentAngle - mAngle) < 0.1f ? mAngle
@@ -186,7 +248,7 @@ public final class SunburstComponent extends AnimatedComponent {
             float factor = mCurrentAngle / 360.0f;
             float depth = full * factor + none * (1 - factor);
             mFixed = lerp(mFixed, (float) ((mMaxSide - 20) / Math.PI), 0.999f);
-            float width = depth / getMaxDepth(mSlice);
+            float width = depth / mSlice.maxDepth;
             mSliceWidth = lerp(mSliceWidth, width, 0.999f);
         }
 
@@ -200,12 +262,54 @@ public final class SunburstComponent extends AnimatedComponent {
         mCenterX = mX + (mDelta + mMaxDepth * (360.0f - mCurrentAngle) / 360.0f) * mDirection.x;
         mCenterY = mY + (mDelta + mMaxDepth * (360.0f - mCurrentAngle) / 360.0f) * mDirection.y;
 
-        updateSelection();
-        updateSlice(mSlice, 0, myZoom == null);
+        updateSelection(mouse);
+        boolean zoomChanged = myZoom != mLastZoom || myZoomLevel != mLastZoomLevel;
+        mLastZoom = myZoom;
+        mLastZoomLevel = myZoomLevel;
+        if (mySelection != mLastSelection) {
+            unsettle(mLastSelection);
+            unsettle(mySelection);
+            mLastSelection = mySelection;
+        }
+        updateSlice(mSlice, 0, myZoom == null, zoomChanged);
+
+        float[] geometry = {mX, mY, mCurrentAngle, mStart, mFixed, mDelta, mGap, mSliceWidth,
+                mSeparator, mMaxDepth, mCenterX, mCenterY};
+        boolean geometryChanged = !Arrays.equals(geometry, mGeometry);
+        if (geometryChanged) {
+            mGeometry = geometry;
+            mGeometryVersion++;
+        }
+        mPathsValid &= mUpdatedSlices == 0 && !geometryChanged;
     }
 
-    private void updateSelection() {
-        Point mouse = getMousePosition();
+    /**
+     * Approaches the target value like {@link #lerp}, but reaches it once close enough, so that
+     * the animations end and the slices can be skipped until they change again.
+     */
+    private float approach(float from, float to, float fraction) {
+        float value = lerp(from, to, fraction);
+        return Math.abs(value - to) < SETTLE_EPSILON ? to : value;
+    }
+
+    /**
+     * Marks the slice and its ancestors as needing their selection and zoom to be updated.
+     */
+    private static void unsettle(Slice slice) {
+        for (; slice != null; slice = slice.parent) {
+            slice.zoomSettled = false;
+        }
+    }
+
+    private static void unsettleAll(Slice slice) {
+        slice.settled = false;
+        slice.zoomSettled = false;
+        for (Slice child : slice.getChildren()) {
+            unsettleAll(child);
+        }
+    }
+
+    private void updateSelection(@Nullable Point mouse) {
         if (!myLockSelection) {
             boolean selection = false;
             if (mouse != null) {
@@ -255,20 +359,37 @@ public final class SunburstComponent extends AnimatedComponent {
         myZoomLevel = -1;
     }
 
-    private boolean updateSlice(Slice slice, int level, boolean zoom) {
+    /**
+     * Animates the selection and zoom of the slice and its descendants.
+     *
+     * @param force whether to update the slices even if they settled, when the zoom changed.
+     */
+    private boolean updateSlice(Slice slice, int level, boolean zoom, boolean force) {
+        if (!force && slice.zoomSettled && slice.zoomIn == zoom) {
+            return slice.zoomOut;
+        }
+        slice.zoomIn = zoom;
+        mUpdatedSlices++;
         zoom = zoom || slice == myZoom;
         boolean children = false;
+        boolean settled = true;
         for (int i = 0; i < slice.getChildrenCount(); i++) {
             Slice child = slice.getChild(i);
-            children = updateSlice(child, level + 1, zoom) || children;
+            children = updateSlice(child, level + 1, zoom, force) || children;
+            settled &= child.zoomSettled;
         }
         zoom = zoom || children;
 
-        slice.selected = lerp(slice.selected, slice == mySelection ? 1.0f : 0.0f, 0.99f);
-        slice.visible = lerp(slice.visible, zoom ? 1.0f : 0.0f, 0.99f);
-        slice.zoom = lerp(slice.zoom,
-                level < myZoomLevel ? (level == myZoomLevel - 1) ? 0.5f : 0.0f : 1.0f, 0.99f);
+        float selected = slice == mySelection ? 1.0f : 0.0f;
+        float visible = zoom ? 1.0f : 0.0f;
+        float zoomed = level < myZoomLevel ? (level == myZoomLevel - 1) ? 0.5f : 0.0f : 1.0f;
+        slice.selected = approach(slice.selected, selected, 0.99f);
+        slice.visible = approach(slice.visible, visible, 0.99f);
+        slice.zoom = approach(slice.zoom, zoomed, 0.99f);
 
+        slice.zoomSettled = settled && slice.selected == selected && slice.visible == visible
+                && slice.zoom == zoomed;
+        slice.zoomOut = zoom;
         return zoom;
     }
 
@@ -313,6 +434,9 @@ public final class SunburstComponent extends AnimatedComponent {
     protected void debugDraw(Graphics2D g2d) {
         addDebugInfo("Total slices: %d", mData.getCount());
         addDebugInfo("Paths %d", mPaths.size());
+        addDebugInfo("Updated slices: %d", mUpdatedSlices);
+        addDebugInfo("Drawn slices: %d", mDrawnSlices);
+        addDebugInfo("Other slices: %d", mOtherSlices);
         g2d.setColor(Color.GREEN);
         drawArrow(g2d, mX, mY, mDirection.x, mDirection.y, mMaxDepth, Color.MAGENTA);
         drawArrow(g2d, mX, mY, mDirection.y, -mDirection.x, mMaxSide, Color.MAGENTA);
@@ -368,23 +492,36 @@ public final class SunburstComponent extends AnimatedComponent {
         return (ValuedTreeNode) child;
     }
 
-    private float getMaxDepth(Slice slice) {
-        float depth = 0.0f;
-        for (Slice child : slice.getChildren()) {
-            depth = Math.max(depth, getMaxDepth(child));
-        }
-        return depth + slice.depth;
-    }
-
+    /**
+     * Animates the slice and its descendants towards the values of the node and its descendants,
+     * adding and removing slices as nodes are. The slices whose nodes did not change and whose
+     * animations are over are left as they are, but their children are still compared with the
+     * children of their nodes: a value can move between descendants, or a child be replaced,
+     * without changing the values of the node itself.
+     */
     private boolean updateStructure(Slice slice, ValuedTreeNode node, boolean hasSiblings) {
+        float depth;
+        float value;
+        boolean unchanged = false;
         if (node == null) {
-            slice.depth = lerp(slice.depth, hasSiblings ? slice.depth : 0.0f, 0.99f);
-            slice.value = lerp(slice.value, hasSiblings ? 0.0f : slice.value, 0.99f);
+            depth = hasSiblings ? slice.depth : 0.0f;
+            value = hasSiblings ? 0.0f : slice.value;
         } else {
-            slice.depth = lerp(slice.depth, node.getParent() == null ? 0.0f : 1.0f, 0.99f);
-            slice.value = lerp(slice.value, getFraction(node), 0.99f);
+            depth = node.getParent() == null ? 0.0f : 1.0f;
+            value = getFraction(node);
+            unchanged = slice.settled && slice.node == node && slice.value == value
+                    && slice.nodeValue == node.getValue() && slice.nodeCount == node.getCount()
+                    && slice.nodeChildren == node.getChildCount();
+        }
+        if (!unchanged) {
+            slice.depth = approach(slice.depth, depth, 0.99f);
+            slice.value = approach(slice.value, value, 0.99f);
+            slice.node = node;
+            slice.zoomSettled = false;
+            mUpdatedSlices++;
         }
-        slice.node = node;
+        int updated = mUpdatedSlices;
+        boolean settled = node != null && slice.depth == depth && slice.value == value;
 
         int last = -1;
         int slices = slice.getChildrenCount();
@@ -395,24 +532,45 @@ public final class SunburstComponent extends AnimatedComponent {
             if (updateStructure(childSlice, childNode, nodes > 0)) {
                 last = i;
             }
+            settled &= childSlice.settled;
         }
-        // Test neighbours with the same color:
-        int c = slices > 0 ? slice.getChild(0).color
-                : ((slice.color + (int) (Math.random() * COLORS.length - 1) + 1) % COLORS.length);
-        for (int i = slices; i < nodes; i++) {
-            ValuedTreeNode childNode = getChildAt(node, i);
-            Slice childSlice = new Slice(slices > 0 ? 0.0f : getFraction(childNode));
-            childSlice.color = c;
-            childSlice.depth = slices > 0 ? 1.0f : 0.0f;
-            slice.addChild(childSlice);
-            if (updateStructure(childSlice, childNode, nodes > 0)) {
-                last = i;
+        if (slices < nodes) {
+            // Test neighbours with the same color:
+            int c = slices > 0 ? slice.getChild(0).color
+                    : ((slice.color + (int) (Math.random() * COLORS.length - 1) + 1)
+                            % COLORS.length);
+            for (int i = slices; i < nodes; i++) {
+                ValuedTreeNode childNode = getChildAt(node, i);
+                Slice childSlice = new Slice(slices > 0 ? 0.0f : getFraction(childNode));
+                childSlice.color = c;
+                childSlice.depth = slices > 0 ? 1.0f : 0.0f;
+                slice.addChild(childSlice);
+                if (updateStructure(childSlice, childNode, nodes > 0)) {
+                    last = i;
+                }
+                settled &= childSlice.settled;
             }
         }
 
         if (last + 1 < slice.getChildrenCount()) {
             slice.clearSublist(last + 1, slice.getChildrenCount());
         }
+        if (mUpdatedSlices != updated) {
+            // The selection and zoom of the updated descendants are animated from here.
+            slice.zoomSettled = false;
+        }
+
+        float maxDepth = 0.0f;
+        for (Slice child : slice.getChildren()) {
+            maxDepth = Math.max(maxDepth, child.maxDepth);
+        }
+        slice.maxDepth = maxDepth + slice.depth;
+        slice.settled = settled && slice.getChildrenCount() == nodes;
+        if (node != null) {
+            slice.nodeValue = node.getValue();
+            slice.nodeCount = node.getCount();
+            slice.nodeChildren = nodes;
+        }
 
         return node != null || (slice.depth > 0.00001f && slice.value > 0.00001f) || last >= 0;
     }
@@ -426,77 +584,23 @@ public final class SunburstComponent extends AnimatedComponent {
         return path;
     }
 
-    private void drawSlice(Graphics2D g, Slice slice, float depth, float from, float to) {
+    private void drawSlice(Slice slice, float depth, float from, float to) {
         if (slice.getDepth() > 0.0f) { // Optimization for zero width slices
-            Color c = COLORS[slice.color];
-            float s = slice.selected;
-            Color b = HIGHLIGHTS[slice.color];
-            c = new Color((int) (b.getRed() * s + c.getRed() * (1 - s)),
-                    (int) (b.getGreen() * s + c.getGreen() * (1 - s)),
-                    (int) (b.getBlue() * s + c.getBlue() * (1 - s)));
-            Path2D.Float path = getPath(c);
-            if (mCurrentAngle == 0) {
-                float length = (float) (Math.PI * 2.0f * mFixed);
-                float delta = mGap + depth * mSliceWidth - mMaxDepth + mSeparator * 0.5f
-                        + slice.getBorder() * mSliceWidth;
-                float up = length * (0.5f - from) - mSeparator * 0.5f;
-                float down = length * (0.5f - to) + mSeparator * 0.5f;
-                float size = mSliceWidth * slice.getDepth() - mSeparator
-                        - slice.getBorder() * mSliceWidth * 2.0f;
-
-                float deltaX = mDirection.x * delta;
-                float deltaY = mDirection.y * delta;
-                float upX = mDirection.y * up;
-                float upY = -mDirection.x * up;
-                float downX = mDirection.y * down;
-                float downY = -mDirection.x * down;
-                float sizeX = mDirection.x * size;
-                float sizeY = mDirection.y * size;
-
-                if (up > down) {
-                    path.moveTo(mX - deltaX + upX, mY - deltaY + upY);
-                    path.lineTo(mX - deltaX + upX - sizeX, mY - deltaY + upY - sizeY);
-                    path.lineTo(mX - deltaX + downX - sizeX, mY - deltaY + downY - sizeY);
-                    path.lineTo(mX - deltaX + downX, mY - deltaY + downY);
-                    path.closePath();
-                }
-            } else {
-                float angle = (360.0f - mCurrentAngle) * 0.5f + mCurrentAngle * from + mStart;
-                float arc = mCurrentAngle * (to - from);
-
-                float radius = mSliceWidth * depth + mGap + mDelta;
-
-                float outerLen = (radius + mSliceWidth * slice.getDepth()) * (float) Math.toRadians(
-                        arc);
-                if (outerLen < 1) {
-                    path = getPath(Color.RED);
-                }
-                float outerRadius = radius + mSliceWidth * slice.getDepth() - mSeparator * 0.5f
-                        - slice.getBorder() * mSliceWidth;
-                float innerRadius = radius + mSeparator * 0.5f + slice.getBorder() * mSliceWidth;
-                float outerAngle = (float) Math.toDegrees(Math.asin(mSeparator / outerRadius));
-                if (outerAngle < arc && outerRadius > innerRadius) {
-                    Arc2D.Float outer = new Arc2D.Float();
-                    outer.setArcByCenter(mCenterX, mCenterY, outerRadius,
-                            angle + outerAngle * 0.5f, arc - outerAngle, Arc2D.OPEN);
-                    path.append(outer, false);
-
-                    float innerAngle = (float) Math.toDegrees(Math.asin(mSeparator / innerRadius));
-                    if (innerAngle < arc) {
-                        Arc2D.Float inner = new Arc2D.Float();
-                        inner.setArcByCenter(mCenterX, mCenterY, innerRadius,
-                                angle + innerAngle * 0.5f + arc - innerAngle, -(arc - innerAngle),
-                                Arc2D.OPEN);
-                        path.append(inner, true);
-                    } else {
-                        float r = (float) (mSeparator * 0.5f / Math
-                                .sin(Math.toRadians(arc * 0.5f)));
-                        float dx = (float) (Math.cos(Math.toRadians(angle + arc * 0.5f)) * r);
-                        float dy = (float) (Math.sin(Math.toRadians(angle + arc * 0.5f)) * r);
-                        path.lineTo(mCenterX + dx, mCenterY - dy);
-                    }
-                    path.lineTo(outer.getStartPoint().getX(), outer.getStartPoint().getY());
-                }
+            if (slice.shapeVersion != mGeometryVersion || slice.shapeDepth != depth
+                    || slice.shapeFrom != from || slice.shapeTo != to
+                    || slice.shapeSliceDepth != slice.getDepth()
+                    || slice.shapeBorder != slice.getBorder()) {
+                slice.shape = createShape(depth, from, to, slice.getDepth(), slice.getBorder());
+                slice.shapeVersion = mGeometryVersion;
+                slice.shapeDepth = depth;
+                slice.shapeFrom = from;
+                slice.shapeTo = to;
+                slice.shapeSliceDepth = slice.getDepth();
+                slice.shapeBorder = slice.getBorder();
+            }
+            if (slice.shape != null) {
+                getPath(slice.getColor()).append(slice.shape, false);
+                mDrawnSlices++;
             }
         }
 
@@ -504,15 +608,125 @@ public final class SunburstComponent extends AnimatedComponent {
         for (Slice child : slice.getChildren()) {
             total += child.getValue();
         }
+        float childDepth = depth + slice.getDepth();
         float value = 0.0f;
+        // The range and depth of the consecutive children too thin to be seen.
+        float otherFrom = 0.0f;
+        float otherTo = 0.0f;
+        float otherDepth = 0.0f;
         for (Slice child : slice.getChildren()) {
             float childFrom = from + (value / total) * (to - from);
             float childTo = from + ((value + child.getValue()) / total) * (to - from);
 
-            drawSlice(g, child, depth + slice.getDepth(), childFrom, childTo);
+            if (child.getDepth() > 0.0f
+                    && getLength(childDepth, childFrom, childTo, child.getDepth())
+                    < MIN_SLICE_LENGTH) {
+                if (otherDepth == 0.0f) {
+                    otherFrom = childFrom;
+                }
+                otherTo = childTo;
+                otherDepth = Math.max(otherDepth, child.getDepth());
+            } else {
+                if (otherDepth > 0.0f) {
+                    drawOtherSlice(childDepth, otherFrom, otherTo, otherDepth);
+                    otherDepth = 0.0f;
+                }
+                drawSlice(child, childDepth, childFrom, childTo);
+            }
 
             value += child.getValue();
         }
+        if (otherDepth > 0.0f) {
+            drawOtherSlice(childDepth, otherFrom, otherTo, otherDepth);
+        }
+    }
+
+    private void drawOtherSlice(float depth, float from, float to, float sliceDepth) {
+        Path2D.Float shape = createShape(depth, from, to, sliceDepth, 0.0f);
+        if (shape != null) {
+            getPath(OTHER_COLOR).append(shape, false);
+            mOtherSlices++;
+        }
+    }
+
+    /**
+     * Returns the length in pixels of the outer side of a slice.
+     */
+    private float getLength(float depth, float from, float to, float sliceDepth) {
+        if (mCurrentAngle == 0) {
+            return (float) (Math.PI * 2.0f * mFixed) * (to - from);
+        } else {
+            float radius = mSliceWidth * depth + mGap + mDelta;
+            return (radius + mSliceWidth * sliceDepth)
+                    * (float) Math.toRadians(mCurrentAngle * (to - from));
+        }
+    }
+
+    /**
+     * Creates the shape of a slice, or returns null if it is too small to have one.
+     */
+    private Path2D.Float createShape(float depth, float from, float to, float sliceDepth,
+            float border) {
+        Path2D.Float path = new Path2D.Float();
+        if (mCurrentAngle == 0) {
+            float length = (float) (Math.PI * 2.0f * mFixed);
+            float delta = mGap + depth * mSliceWidth - mMaxDepth + mSeparator * 0.5f
+                    + border * mSliceWidth;
+            float up = length * (0.5f - from) - mSeparator * 0.5f;
+            float down = length * (0.5f - to) + mSeparator * 0.5f;
+            float size = mSliceWidth * sliceDepth - mSeparator - border * mSliceWidth * 2.0f;
+
+            float deltaX = mDirection.x * delta;
+            float deltaY = mDirection.y * delta;
+            float upX = mDirection.y * up;
+            float upY = -mDirection.x * up;
+            float downX = mDirection.y * down;
+            float downY = -mDirection.x * down;
+            float sizeX = mDirection.x * size;
+            float sizeY = mDirection.y * size;
+
+            if (up <= down) {
+                return null;
+            }
+            path.moveTo(mX - deltaX + upX, mY - deltaY + upY);
+            path.lineTo(mX - deltaX + upX - sizeX, mY - deltaY + upY - sizeY);
+            path.lineTo(mX - deltaX + downX - sizeX, mY - deltaY + downY - sizeY);
+            path.lineTo(mX - deltaX + downX, mY - deltaY + downY);
+            path.closePath();
+        } else {
+            float angle = (360.0f - mCurrentAngle) * 0.5f + mCurrentAngle * from + mStart;
+            float arc = mCurrentAngle * (to - from);
+
+            float radius = mSliceWidth * depth + mGap + mDelta;
+
+            float outerRadius = radius + mSliceWidth * sliceDepth - mSeparator * 0.5f
+                    - border * mSliceWidth;
+            float innerRadius = radius + mSeparator * 0.5f + border * mSliceWidth;
+            float outerAngle = (float) Math.toDegrees(Math.asin(mSeparator / outerRadius));
+            if (outerAngle >= arc || outerRadius <= innerRadius) {
+                return null;
+            }
+            Arc2D.Float outer = new Arc2D.Float();
+            outer.setArcByCenter(mCenterX, mCenterY, outerRadius,
+                    angle + outerAngle * 0.5f, arc - outerAngle, Arc2D.OPEN);
+            path.append(outer, false);
+
+            float innerAngle = (float) Math.toDegrees(Math.asin(mSeparator / innerRadius));
+            if (innerAngle < arc) {
+                Arc2D.Float inner = new Arc2D.Float();
+                inner.setArcByCenter(mCenterX, mCenterY, innerRadius,
+                        angle + innerAngle * 0.5f + arc - innerAngle, -(arc - innerAngle),
+                        Arc2D.OPEN);
+                path.append(inner, true);
+            } else {
+                float r = (float) (mSeparator * 0.5f / Math.sin(Math.toRadians(arc * 0.5f)));
+                float dx = (float) (Math.cos(Math.toRadians(angle + arc * 0.5f)) * r);
+                float dy = (float) (Math.sin(Math.toRadians(angle + arc * 0.5f)) * r);
+                path.lineTo(mCenterX + dx, mCenterY - dy);
+            }
+            path.lineTo(outer.getStartPoint().getX(), outer.getStartPoint().getY());
+        }
+        return path;
     }
 
     public void setGap(float gap) {
@@ -577,7 +791,31 @@ public final class SunburstComponent extends AnimatedComponent {
     }
 
     public void setUseCount(boolean useCount) {
-        myUseCount = useCount;
+        if (myUseCount != useCount) {
+            myUseCount = useCount;
+            // The fractions of all the nodes change.
+            unsettleAll(mSlice);
+        }
+    }
+
+    @VisibleForTesting
+    Slice getSlice() {
+        return mSlice;
+    }
+
+    @VisibleForTesting
+    int getUpdatedSlices() {
+        return mUpdatedSlices;
+    }
+
+    @VisibleForTesting
+    int getDrawnSlices() {
+        return mDrawnSlices;
+    }
+
+    @VisibleForTesting
+    int getOtherSlices() {
+        return mOtherSlices;
     }
 
     public void addSelectionListener(SliceSelectionListener listener) {
@@ -610,6 +848,56 @@ public final class SunburstComponent extends AnimatedComponent {
 
         ValuedTreeNode node;
 
+        /**
+         * The values of the node when the slice was last updated, to detect changes.
+         */
+        int nodeValue;
+
+        int nodeCount;
+
+        int nodeChildren;
+
+        /**
+         * Whether the slice and its descendants reached the values of their nodes.
+         */
+        boolean settled;
+
+        /**
+         * Whether the slice and its descendants reached their selection and zoom, for the zoom
+         * flag they were last updated with and the flag they returned.
+         */
+        boolean zoomSettled;
+
+        boolean zoomIn;
+
+        boolean zoomOut;
+
+        /**
+         * The depth of the slice plus the largest depth of its children.
+         */
+        float maxDepth;
+
+        /**
+         * The shape of the slice, and what it was created from.
+         */
+        Path2D.Float shape;
+
+        int shapeVersion = -1;
+
+        float shapeDepth;
+
+        float shapeFrom;
+
+        float shapeTo;
+
+        float shapeSliceDepth;
+
+        float shapeBorder;
+
+        private Color mixedColor;
+
+        private float mixedSelected;
+
         public float getValue() {
             return value * visible;
         }
@@ -622,6 +910,22 @@ public final class SunburstComponent extends AnimatedComponent {
             return zoom * depth + getBorder() * 2.0f;
         }
 
+        /**
+         * Returns the color of the slice, between its color and its highlight as it is selected.
+         */
+        public Color getColor() {
+            if (mixedColor == null || mixedSelected != selected) {
+                Color c = COLORS[color];
+                Color b = HIGHLIGHTS[color];
+                float s = selected;
+                mixedColor = new Color((int) (b.getRed() * s + c.getRed() * (1 - s)),
+                        (int) (b.getGreen() * s + c.getGreen() * (1 - s)),
+                        (int) (b.getBlue() * s + c.getBlue() * (1 - s)));
+                mixedSelected = s;
+            }
+            return mixedColor;
+        }
+
         public Slice(float value) {
             this.value = value;
             this.depth = 1.0f;
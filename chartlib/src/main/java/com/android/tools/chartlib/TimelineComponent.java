@@ -39,9 +39,8 @@ import javax.swing.Icon;
 import gnu.trove.TIntObjectHashMap;
 
 /**
- * A component to display a TimelineData object. It locks the timeline object to prevent
- * modifications to it while it's begin rendered, but objects of this class should not be accessed
- * from different threads.
+ * A component to display a TimelineData object. It reads the timeline object without locking it,
+ * but objects of this class should not be accessed from different threads.
  */
 public final class TimelineComponent extends AnimatedComponent
         implements ActionListener, HierarchyListener {
@@ -68,6 +67,9 @@ public final class TimelineComponent extends AnimatedComponent
     @NonNull
     private final TimelineData mData;
 
+    @NonNull
+    private final TimelineData.View mView;
+
     @NonNull
     private final EventData mEvents;
 
@@ -216,6 +218,7 @@ public final class TimelineComponent extends AnimatedComponent
             float initialMarkerSeparation) {
         super(FPS);
         mData = data;
+        mView = new TimelineData.View(data.getStreamCount());
         mEvents = events;
         mBufferTime = bufferTime;
         mInitialMax = initialMax;
@@ -388,7 +391,7 @@ public final class TimelineComponent extends AnimatedComponent
             }
             addDebugInfo("Drawn segments: %d", drawnSegments);
         }
-        addDebugInfo("Total samples: %d", mSize);
+        addDebugInfo("Total samples: %d", mView.getTotalSize());
     }
 
     private float interpolate(int stream, int sample, float time) {
@@ -578,62 +581,64 @@ public final class TimelineComponent extends AnimatedComponent
 
     @Override
     protected void updateData() {
-        long start;
-        synchronized (mData) {
-            start = mData.getStartTime();
-            mSize = mData.size();
-            assert mData.getStreamCount() == mValues.length;
-            if (mTimes == null || mTimes.length < mSize) {
-                int alloc = Math.max(mSize, mTimes == null ? 64 : mTimes.length * 2);
-                mTimes = new float[alloc];
-                mTypes = new int[alloc];
-                for (int j = 0; j < mData.getStreamCount(); ++j) {
-                    mValues[j] = new float[alloc];
-                }
-            }
-            for (int i = 0; i < mSize; ++i) {
-                TimelineData.Sample sample = mData.get(i);
-                mTimes[i] = sample.time;
-                mTypes[i] = sample.type;
-                float value = 0.0f;
-                for (int j = 0; j < mData.getStreamCount(); ++j) {
-                    value += sample.values[j];
-                    mValues[j][i] = value;
-                }
+        long start = mData.getStartTime();
+
+        // Calculate begin and end times in seconds.
+        mEndTime = mData.getEndTime() - mBufferTime;
+        mBeginTime = mEndTime - (mRight - LEFT_MARGIN) / X_SCALE;
+
+        // Copy the visible samples without locking the data, keeping at most two samples
+        // per pixel column.
+        mData.read(mView, mBeginTime, mEndTime, Math.max(6, 2 * (mRight - LEFT_MARGIN)));
+        mSize = mView.size();
+        assert mData.getStreamCount() == mValues.length;
+        if (mTimes == null || mTimes.length < mSize) {
+            int alloc = Math.max(mSize, mTimes == null ? 64 : mTimes.length * 2);
+            mTimes = new float[alloc];
+            mTypes = new int[alloc];
+            for (int j = 0; j < mData.getStreamCount(); ++j) {
+                mValues[j] = new float[alloc];
             }
+        }
+        for (int i = 0; i < mSize; ++i) {
+            mTimes[i] = mView.getTime(i);
+            mTypes[i] = mView.getType(i);
+            float value = 0.0f;
             for (int j = 0; j < mData.getStreamCount(); ++j) {
-                mCurrent[j] = mSize > 0 ? mData.get(mSize - 1).values[j] : 0.0f;
+                value += mView.getValue(j, i);
+                mValues[j][i] = value;
             }
+        }
+        for (int j = 0; j < mData.getStreamCount(); ++j) {
+            mCurrent[j] = mView.getLastValue(j);
+        }
 
-            // Calculate begin and end times in seconds.
-            mEndTime = mData.getEndTime() - mBufferTime;
-            mBeginTime = mEndTime - (mRight - LEFT_MARGIN) / X_SCALE;
-            // Animate the current maximum towards the real one.
-            float cappedMax = Math.min(mData.getMaxTotal(), mAbsoluteMax);
-            if (cappedMax > mCurrentMax) {
-                mCurrentMax = lerp(mCurrentMax, cappedMax, mFirstFrame ? 1.f : .95f);
-            }
+        // Animate the current maximum towards the real one.
+        float cappedMax = Math.min(mData.getMaxTotal(), mAbsoluteMax);
+        if (cappedMax > mCurrentMax) {
+            mCurrentMax = lerp(mCurrentMax, cappedMax, mFirstFrame ? 1.f : .95f);
+        }
 
-            // Animate the fade in/out of markers.
-            FontMetrics metrics = getFontMetrics(DEFAULT_FONT);
-            int ascent = metrics.getAscent();
-            float distance = mMarkerSeparation * mYScale;
-            float evenMarkersTarget = 1.0f;
-            if (distance < ascent * 2) { // Too many markers
-                if (mEvenMarkersAlpha < 0.1f) {
-                    mMarkerSeparation *= 2;
-                    mEvenMarkersAlpha = 1.0f;
-                } else {
-                    evenMarkersTarget = 0.0f;
-                }
-            } else if (distance > ascent * 5) { // Not enough
-                if (mEvenMarkersAlpha > 0.9f) {
-                    mMarkerSeparation /= 2;
-                    mEvenMarkersAlpha = 0.0f;
-                }
+        // Animate the fade in/out of markers.
+        FontMetrics metrics = getFontMetrics(DEFAULT_FONT);
+        int ascent = metrics.getAscent();
+        float distance = mMarkerSeparation * mYScale;
+        float evenMarkersTarget = 1.0f;
+        if (distance < ascent * 2) { // Too many markers
+            if (mEvenMarkersAlpha < 0.1f) {
+                mMarkerSeparation *= 2;
+                mEvenMarkersAlpha = 1.0f;
+            } else {
+                evenMarkersTarget = 0.0f;
+            }
+        } else if (distance > ascent * 5) { // Not enough
+            if (mEvenMarkersAlpha > 0.9f) {
+                mMarkerSeparation /= 2;
+                mEvenMarkersAlpha = 0.0f;
             }
-            mEvenMarkersAlpha = lerp(mEvenMarkersAlpha, evenMarkersTarget, 0.999f);
         }
+        mEvenMarkersAlpha = lerp(mEvenMarkersAlpha, evenMarkersTarget, 0.999f);
+
         synchronized (mEvents) {
             mEventsSize = mEvents.size();
             if (mEventStart == null || mEventStart.length < mEventsSize) {
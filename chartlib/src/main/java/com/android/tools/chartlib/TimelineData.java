@@ -15,37 +15,132 @@
  */
 package com.android.tools.chartlib;
 
+import com.android.annotations.NonNull;
 import com.android.annotations.VisibleForTesting;
-import com.android.annotations.concurrency.GuardedBy;
 
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A group of streams of data sampled over time. This object is thread safe as it can be
- * read/modified from any thread. It uses itself as the mutex object so it is possible to
- * synchronize on it if modifications from other threads want to be prevented.
+ * read/modified from any thread.
+ * <p>
+ * The samples are kept in a ring buffer of primitive arrays, one per stream. Writers synchronize
+ * on this object, so it is possible to synchronize on it if modifications from other threads want
+ * to be prevented. Readers do not lock: {@link #read(View)} copies the samples into a
+ * {@link View}, and retries if they were cleared while being copied.
+ * <p>
+ * The copy is checked with a read-modify-write of the reserved count rather than a volatile
+ * read, which the plain reads of the copy could be reordered after. Writers reserve a sample
+ * with a read-modify-write of the same count, so either the reader's check comes first and
+ * happens-before the writer overwrites any slot, or the check sees the reservation.
+ * <p>
+ * Along with the samples, a pyramid of summaries is maintained as samples are added: at each
+ * level, the samples are split into blocks twice as large as at the level below, and each block
+ * records which of its samples have the smallest and the largest total. Reading a long range down
+ * to a few samples picks them from the summaries instead of going through every sample.
  */
 public class TimelineData {
 
     private final int myStreams;
 
-    @GuardedBy("this")
-    private final List<Sample> mSamples;
+    private final int myCapacity;
 
-    @GuardedBy("this")
-    private long mStart;
+    /**
+     * The samples, by slot. The sample with index {@code i} since the last clear is in the slot
+     * {@code i % myCapacity}. Only written while holding the lock on this object.
+     */
+    private final long[] mTimes;
+
+    private final int[] mTypes;
+
+    /**
+     * The values of the samples, as in mValues[stream][slot].
+     */
+    private final float[][] mValues;
+
+    /**
+     * The sum of the values of the samples, by slot.
+     */
+    private final float[] mTotals;
+
+    /**
+     * The number of levels of summaries. The blocks of the level {@code l} have
+     * {@code 2 << l} samples, and the blocks of the last level have at least myCapacity samples.
+     */
+    private final int mLevels;
+
+    /**
+     * The number of blocks kept at each level. The block with index {@code b} is in the slot
+     * {@code b % mBlockCapacities[level]}, and is kept as long as any of its samples is.
+     */
+    private final int[] mBlockCapacities;
+
+    /**
+     * The offsets, within their blocks, of the samples with the smallest and the largest totals,
+     * as in mMinOffsets[level][slot], and these totals.
+     */
+    private final int[][] mMinOffsets;
+
+    private final int[][] mMaxOffsets;
+
+    private final float[][] mMinTotals;
+
+    private final float[][] mMaxTotals;
+
+    /**
+     * The number of samples added since the last clear. Written after the sample itself, so
+     * readers that read it see all the samples up to it.
+     */
+    private volatile long mCount;
+
+    /**
+     * The number of samples added or being added since the last clear. Updated before the
+     * sample, so readers know which slots may have been overwritten while they were reading.
+     * Only updated with read-modify-writes, see the class documentation.
+     */
+    private final AtomicLong mReserved = new AtomicLong();
+
+    /**
+     * Incremented before and after clearing, so it is odd while a clear is in progress.
+     */
+    private volatile int mGeneration;
+
+    private volatile long mStart;
 
-    @GuardedBy("this")
-    private float mMaxTotal;
+    private volatile float mMaxTotal;
 
     public TimelineData(int streams, int capacity) {
         myStreams = streams;
-        mSamples = new CircularArrayList<Sample>(capacity);
+        myCapacity = capacity;
+        mTimes = new long[capacity];
+        mTypes = new int[capacity];
+        mValues = new float[streams][capacity];
+        mTotals = new float[capacity];
+
+        int levels = 1;
+        while ((2L << (levels - 1)) < capacity) {
+            levels++;
+        }
+        mLevels = levels;
+        mBlockCapacities = new int[levels];
+        mMinOffsets = new int[levels][];
+        mMaxOffsets = new int[levels][];
+        mMinTotals = new float[levels][];
+        mMaxTotals = new float[levels][];
+        for (int level = 0; level < levels; level++) {
+            int blocks = (capacity >> (level + 1)) + 2;
+            mBlockCapacities[level] = blocks;
+            mMinOffsets[level] = new int[blocks];
+            mMaxOffsets[level] = new int[blocks];
+            mMinTotals[level] = new float[blocks];
+            mMaxTotals[level] = new float[blocks];
+        }
         clear();
     }
 
     @VisibleForTesting
-    public synchronized long getStartTime() {
+    public long getStartTime() {
         return mStart;
     }
 
@@ -53,40 +148,253 @@ public class TimelineData {
         return myStreams;
     }
 
-    public synchronized float getMaxTotal() {
+    /**
+     * Returns the maximum number of samples kept, after which the oldest ones are dropped.
+     */
+    public int getCapacity() {
+        return myCapacity;
+    }
+
+    public float getMaxTotal() {
         return mMaxTotal;
     }
 
     public synchronized void add(long time, int type, float... values) {
         assert values.length == myStreams;
+        long count = mCount;
+        mReserved.getAndSet(count + 1);
+        int slot = (int) (count % myCapacity);
         float total = 0.0f;
-        for (float value : values) {
-            total += value;
+        for (int i = 0; i < myStreams; i++) {
+            mValues[i][slot] = values[i];
+            total += values[i];
+        }
+        mTimes[slot] = time;
+        mTypes[slot] = type;
+        mTotals[slot] = total;
+
+        for (int level = 0; level < mLevels; level++) {
+            int shift = level + 1;
+            int offset = (int) (count & ((1L << shift) - 1));
+            int block = (int) ((count >> shift) % mBlockCapacities[level]);
+            if (offset == 0 || total < mMinTotals[level][block]) {
+                mMinTotals[level][block] = total;
+                mMinOffsets[level][block] = offset;
+            }
+            if (offset == 0 || total > mMaxTotals[level][block]) {
+                mMaxTotals[level][block] = total;
+                mMaxOffsets[level][block] = offset;
+            }
         }
         mMaxTotal = Math.max(mMaxTotal, total);
-        mSamples.add(new Sample((time - mStart) / 1000.0f, type, values));
+        mCount = count + 1;
     }
 
     public synchronized void clear() {
-        mSamples.clear();
+        mGeneration++;
+        mCount = 0;
+        mReserved.getAndSet(0);
         mMaxTotal = 0.0f;
         mStart = System.currentTimeMillis();
+        mGeneration++;
     }
 
     public int size() {
-        return mSamples.size();
+        return (int) Math.min(mCount, myCapacity);
     }
 
+    /**
+     * Returns a copy of the sample at the given index, the oldest sample being at index 0. Prefer
+     * {@link #read(View)}, which does not allocate.
+     */
     public Sample get(int index) {
-        return mSamples.get(index);
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException();
+        }
+        int slot = (int) ((mCount - size() + index) % myCapacity);
+        float[] values = new float[myStreams];
+        for (int i = 0; i < myStreams; i++) {
+            values[i] = mValues[i][slot];
+        }
+        return new Sample((mTimes[slot] - mStart) / 1000.0f, mTypes[slot], values);
     }
 
     public boolean isEmpty() {
         return size() == 0;
     }
 
-    public synchronized float getEndTime() {
-        return (mSamples.isEmpty() ? 0.0f : (System.currentTimeMillis() - mStart)) / 1000.f;
+    public float getEndTime() {
+        return (isEmpty() ? 0.0f : (System.currentTimeMillis() - mStart)) / 1000.f;
+    }
+
+    /**
+     * Copies all the samples into the view, without locking.
+     */
+    public void read(@NonNull View view) {
+        read(view, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Copies the samples between the given times into the view, without locking, along with the
+     * last sample before and the first sample after them, so that the data can be drawn up to the
+     * given times.
+     * <p>
+     * When there are more than {@code maxSamples} samples in the range, the first and last ones
+     * are kept and the others are split into blocks of consecutive samples, of which only the
+     * samples with the smallest and the largest total are kept. The blocks are the largest that
+     * keep the number of samples under {@code maxSamples}, so that rendering {@code maxSamples}
+     * twice the number of pixels the range spans keeps the peaks of the data, and reading takes
+     * time proportional to {@code maxSamples} rather than to the number of samples in the range.
+     *
+     * @param from       the start of the range, in seconds since the start time.
+     * @param to         the end of the range, in seconds since the start time.
+     * @param maxSamples the maximum number of samples to copy, at least 6.
+     */
+    public void read(@NonNull View view, float from, float to, int maxSamples) {
+        assert view.mStreams == myStreams;
+        assert maxSamples >= 6;
+        while (true) {
+            int generation = mGeneration;
+            if ((generation & 1) != 0) {
+                // A clear is in progress.
+                Thread.yield();
+                continue;
+            }
+            long start = mStart;
+            long count = mCount;
+            int size = (int) Math.min(count, myCapacity);
+            view.mSize = 0;
+            if (size > 0) {
+                long oldest = count - size;
+                // The samples in the range, plus one on each side.
+                long first = Math.max(oldest, countBefore(oldest, count, start, from, false) - 1);
+                long last = Math.max(first,
+                        Math.min(count - 1, countBefore(oldest, count, start, to, true)));
+                copy(view, start, first, last, maxSamples);
+                for (int i = 0; i < myStreams; i++) {
+                    view.mLastValues[i] = mValues[i][(int) ((count - 1) % myCapacity)];
+                }
+            }
+            // Not a plain get: the read-modify-write keeps the reads of the copy before it, and
+            // orders it with the ones of the writers.
+            long reserved = mReserved.getAndAdd(0);
+            if (generation != mGeneration) {
+                continue;
+            }
+
+            // The writer may have overwritten the oldest samples while they were being copied.
+            long overwrittenUpTo = reserved - myCapacity;
+            if (size > 0 && count - 1 < overwrittenUpTo) {
+                // All of them were.
+                continue;
+            }
+            view.removeBefore(overwrittenUpTo);
+            view.mTotalSize = (int) (count - Math.max(count - size, overwrittenUpTo));
+            if (size == 0) {
+                Arrays.fill(view.mLastValues, 0.0f);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Returns the index of the first sample after the given time, or {@code count} if there is
+     * none, searching the samples from {@code oldest} to {@code count}.
+     *
+     * @param inclusive whether the samples at the given time are before it.
+     */
+    private long countBefore(long oldest, long count, long start, float time, boolean inclusive) {
+        long low = oldest;
+        long high = count;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            float midTime = (mTimes[(int) (mid % myCapacity)] - start) / 1000.0f;
+            if (midTime < time || (inclusive && midTime == time)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Copies the samples from {@code first} to {@code last} into the view, downsampled to
+     * {@code maxSamples} samples.
+     */
+    private void copy(@NonNull View view, long start, long first, long last, int maxSamples) {
+        int count = (int) (last - first + 1);
+        view.ensureCapacity(Math.min(count, maxSamples));
+        if (count <= maxSamples) {
+            for (long i = first; i <= last; i++) {
+                add(view, start, i);
+            }
+            return;
+        }
+
+        add(view, start, first);
+        long low = first + 1;
+        long high = last - 1;
+        int level = 0;
+        while (level < mLevels - 1
+                && 2 * ((high >> (level + 1)) - (low >> (level + 1)) + 1) + 2 > maxSamples) {
+            level++;
+        }
+        int shift = level + 1;
+        for (long b = low >> shift; b <= high >> shift; b++) {
+            long blockFirst = b << shift;
+            long blockLast = blockFirst + (1L << shift) - 1;
+            if (blockFirst < low || blockLast > high) {
+                // Only part of the block is in the range.
+                addMinMax(view, start, Math.max(low, blockFirst), Math.min(high, blockLast));
+            } else {
+                int block = (int) (b % mBlockCapacities[level]);
+                long min = blockFirst + mMinOffsets[level][block];
+                long max = blockFirst + mMaxOffsets[level][block];
+                add(view, start, Math.min(min, max));
+                if (min != max) {
+                    add(view, start, Math.max(min, max));
+                }
+            }
+        }
+        add(view, start, last);
+    }
+
+    /**
+     * Adds to the view the samples with the smallest and the largest totals among the samples
+     * from {@code first} to {@code last}.
+     */
+    private void addMinMax(@NonNull View view, long start, long first, long last) {
+        long min = first;
+        long max = first;
+        float minTotal = Float.POSITIVE_INFINITY;
+        float maxTotal = Float.NEGATIVE_INFINITY;
+        for (long i = first; i <= last; i++) {
+            float total = mTotals[(int) (i % myCapacity)];
+            if (total < minTotal) {
+                minTotal = total;
+                min = i;
+            }
+            if (total > maxTotal) {
+                maxTotal = total;
+                max = i;
+            }
+        }
+        add(view, start, Math.min(min, max));
+        if (min != max) {
+            add(view, start, Math.max(min, max));
+        }
+    }
+
+    private void add(@NonNull View view, long start, long index) {
+        int slot = (int) (index % myCapacity);
+        int i = view.mSize++;
+        view.mIndices[i] = index;
+        view.mTimes[i] = (mTimes[slot] - start) / 1000.0f;
+        view.mTypes[i] = mTypes[slot];
+        for (int j = 0; j < myStreams; j++) {
+            view.mValues[j][i] = mValues[j][slot];
+        }
     }
 
     /**
@@ -109,4 +417,104 @@ public class TimelineData {
             this.type = type;
         }
     }
+
+    /**
+     * A copy of the samples of a {@link TimelineData}, filled by {@link TimelineData#read}. A view
+     * belongs to a single reader, and is meant to be reused across reads so that reading does not
+     * allocate once its arrays are large enough.
+     */
+    public static final class View {
+
+        private final int mStreams;
+
+        /**
+         * The indices of the samples since the last clear, to drop the ones overwritten while
+         * being read.
+         */
+        private long[] mIndices = new long[0];
+
+        private float[] mTimes = new float[0];
+
+        private int[] mTypes = new int[0];
+
+        private final float[][] mValues;
+
+        private int mSize;
+
+        private int mTotalSize;
+
+        private final float[] mLastValues;
+
+        public View(int streams) {
+            mStreams = streams;
+            mValues = new float[streams][0];
+            mLastValues = new float[streams];
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        /**
+         * Returns the time of the sample, in seconds since the start time.
+         */
+        public float getTime(int index) {
+            return mTimes[index];
+        }
+
+        public int getType(int index) {
+            return mTypes[index];
+        }
+
+        public float getValue(int stream, int index) {
+            return mValues[stream][index];
+        }
+
+        /**
+         * Returns the number of samples in the data when it was read, before any range or
+         * downsampling was applied.
+         */
+        public int getTotalSize() {
+            return mTotalSize;
+        }
+
+        /**
+         * Returns the value of the last sample in the data when it was read, which may be after
+         * the range of the view.
+         */
+        public float getLastValue(int stream) {
+            return mLastValues[stream];
+        }
+
+        /**
+         * Removes the samples with an index lower than the given one, which are the first ones.
+         */
+        private void removeBefore(long index) {
+            int removed = 0;
+            while (removed < mSize && mIndices[removed] < index) {
+                removed++;
+            }
+            if (removed == 0) {
+                return;
+            }
+            mSize -= removed;
+            System.arraycopy(mIndices, removed, mIndices, 0, mSize);
+            System.arraycopy(mTimes, removed, mTimes, 0, mSize);
+            System.arraycopy(mTypes, removed, mTypes, 0, mSize);
+            for (int i = 0; i < mStreams; i++) {
+                System.arraycopy(mValues[i], removed, mValues[i], 0, mSize);
+            }
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (mTimes.length < capacity) {
+                mIndices = new long[capacity];
+                mTimes = new float[capacity];
+                mTypes = new int[capacity];
+                for (int i = 0; i < mStreams; i++) {
+                    mValues[i] = new float[capacity];
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.chartlib;
+
+import junit.framework.TestCase;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import javax.swing.tree.DefaultMutableTreeNode;
+
+public class SunburstComponentTest extends TestCase {
+
+    private static final int SIZE = 400;
+
+    private Node mRoot;
+
+    private SunburstComponent mComponent;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRoot = new Node(0);
+        mComponent = new SunburstComponent(mRoot);
+        mComponent.setSize(SIZE, SIZE);
+        // Long enough for the animations to reach their targets in a frame
+        mComponent.mFrameLength = 100.0f;
+    }
+
+    public void testSettledFramesUpdateNothing() {
+        Node a = addChild(mRoot, 0);
+        addChild(a, 10);
+        addChild(a, 20);
+        addChild(mRoot, 30);
+        settle();
+
+        frame();
+        assertEquals(0, mComponent.getUpdatedSlices());
+        assertSlices(mComponent.getSlice(), mRoot);
+
+        // Only the changed node, its ancestors and the siblings whose fractions changed are
+        // updated, once for their values and once for their selection and zoom
+        ((Node) a.getChildAt(0)).add(10);
+        frame();
+        assertEquals(10, mComponent.getUpdatedSlices());
+        assertSlices(mComponent.getSlice(), mRoot);
+    }
+
+    public void testValueMovedBetweenDescendants() {
+        Node a = addChild(mRoot, 0);
+        Node b = addChild(a, 0);
+        Node c = addChild(b, 10);
+        Node d = addChild(b, 30);
+        addChild(mRoot, 40);
+        settle();
+
+        // The values of the root, a and b do not change
+        c.add(20);
+        d.add(-20);
+        frame();
+        assertSlices(mComponent.getSlice(), mRoot);
+        SunburstComponent.Slice slice = mComponent.getSlice().getChild(0).getChild(0);
+        assertEquals(0.75f, slice.getChild(0).value, 0.0f);
+        assertEquals(0.25f, slice.getChild(1).value, 0.0f);
+    }
+
+    public void testChildReplaced() {
+        Node a = addChild(mRoot, 0);
+        addChild(a, 10);
+        addChild(a, 10);
+        addChild(mRoot, 20);
+        settle();
+
+        // A different node with the same values
+        Node replacement = new Node(10);
+        a.remove(1);
+        a.insert(replacement, 1);
+        frame();
+        assertSame(replacement, mComponent.getSlice().getChild(0).getChild(1).node);
+        assertSlices(mComponent.getSlice(), mRoot);
+    }
+
+    public void testOtherSlices() {
+        // Runs of slices too thin to be seen, around two large ones
+        for (int i = 0; i < 200; i++) {
+            addChild(addChild(mRoot, 0), 1);
+        }
+        addChild(mRoot, 2000);
+        for (int i = 0; i < 200; i++) {
+            addChild(addChild(mRoot, 0), 1);
+        }
+        addChild(mRoot, 2000);
+        settle();
+
+        draw();
+        assertEquals(2, mComponent.getOtherSlices());
+        assertEquals(2, mComponent.getDrawnSlices());
+        // The thin slices and their descendants have no shape of their own
+        SunburstComponent.Slice thin = mComponent.getSlice().getChild(0);
+        assertNull(thin.shape);
+        assertNull(thin.getChild(0).shape);
+        assertNotNull(mComponent.getSlice().getChild(200).shape);
+
+        // Settled frames reuse the same paths
+        frame();
+        draw();
+        assertEquals(2, mComponent.getOtherSlices());
+        assertEquals(2, mComponent.getDrawnSlices());
+    }
+
+    private void frame() {
+        mComponent.updateData(null);
+    }
+
+    private void settle() {
+        for (int i = 0; i < 10; i++) {
+            frame();
+            if (mComponent.getUpdatedSlices() == 0) {
+                return;
+            }
+        }
+        fail("The animations did not end");
+    }
+
+    private void draw() {
+        BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            mComponent.draw(g);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    /**
+     * Checks that the slices match the nodes, as if they had been created from them.
+     */
+    private void assertSlices(SunburstComponent.Slice slice, ValuedTreeNode node) {
+        assertSame(node, slice.node);
+        assertEquals(mComponent.getFraction(node), slice.value, 0.0f);
+        assertEquals(node.getChildCount(), slice.getChildrenCount());
+        for (int i = 0; i < node.getChildCount(); i++) {
+            assertSlices(slice.getChild(i), SunburstComponent.getChildAt(node, i));
+        }
+    }
+
+    private static Node addChild(Node parent, int value) {
+        Node child = new Node(0);
+        parent.add(child);
+        child.add(value);
+        return child;
+    }
+
+    private static class Node extends DefaultMutableTreeNode implements ValuedTreeNode {
+
+        private int mValue;
+
+        Node(int value) {
+            mValue = value;
+        }
+
+        @Override
+        public int getCount() {
+            return mValue;
+        }
+
+        @Override
+        public int getValue() {
+            return mValue;
+        }
+
+        /**
+         * Adds to the value of the node and of its ancestors.
+         */
+        void add(int value) {
+            mValue += value;
+            if (parent instanceof Node) {
+                ((Node) parent).add(value);
+            }
+        }
+    }
+}
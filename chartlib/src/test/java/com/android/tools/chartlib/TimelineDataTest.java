@@ -17,6 +17,8 @@ package com.android.tools.chartlib;
 
 import junit.framework.TestCase;
 
+import java.util.Random;
+
 public class TimelineDataTest extends TestCase {
 
     private TimelineData mData;
@@ -80,4 +82,172 @@ public class TimelineDataTest extends TestCase {
         mData.clear();
         assertEquals(0, mData.size());
     }
-}
\ No newline at end of file
+
+    public void testReadWrapsAround() throws Exception {
+        TimelineData data = new TimelineData(2, 5);
+        long start = data.getStartTime();
+        for (int i = 0; i < 12; i++) {
+            data.add(start + i * 1000, i % 3, i, 10 * i);
+        }
+        assertEquals(5, data.size());
+        assertEquals(7.0f, data.get(0).time, 0.0001f);
+        assertEquals(11.0f, data.get(4).values[0]);
+
+        TimelineData.View view = new TimelineData.View(2);
+        data.read(view);
+        assertEquals(5, view.size());
+        assertEquals(5, view.getTotalSize());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(7.0f + i, view.getTime(i), 0.0001f);
+            assertEquals((7 + i) % 3, view.getType(i));
+            assertEquals(7.0f + i, view.getValue(0, i));
+            assertEquals(70.0f + 10 * i, view.getValue(1, i));
+        }
+        assertEquals(110.0f, view.getLastValue(1));
+
+        data.clear();
+        data.read(view);
+        assertEquals(0, view.size());
+        assertEquals(0.0f, view.getLastValue(0));
+    }
+
+    public void testReadRange() throws Exception {
+        TimelineData data = new TimelineData(1, 100);
+        long start = data.getStartTime();
+        for (int i = 0; i < 100; i++) {
+            data.add(start + i * 1000, 0, i);
+        }
+        TimelineData.View view = new TimelineData.View(1);
+        data.read(view, 10.5f, 20.0f, 100);
+        // the samples in the range, with one more on each side
+        assertEquals(12, view.size());
+        assertEquals(10.0f, view.getTime(0), 0.0001f);
+        assertEquals(21.0f, view.getTime(11), 0.0001f);
+        assertEquals(100, view.getTotalSize());
+        assertEquals(99.0f, view.getLastValue(0));
+    }
+
+    public void testReadDownsampled() throws Exception {
+        TimelineData data = new TimelineData(2, 1000);
+        long start = data.getStartTime();
+        for (int i = 0; i < 1000; i++) {
+            float value = i == 500 ? 100.0f : i == 700 ? -100.0f : i % 2;
+            data.add(start + i, 0, value, 0.0f);
+        }
+        TimelineData.View view = new TimelineData.View(2);
+        data.read(view, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, 50);
+        assertTrue(view.size() <= 50);
+        assertEquals(0.0f, view.getTime(0), 0.0001f);
+        assertEquals(0.999f, view.getTime(view.size() - 1), 0.0001f);
+        boolean peak = false;
+        boolean trough = false;
+        for (int i = 0; i < view.size(); i++) {
+            if (i > 0) {
+                assertTrue(view.getTime(i) > view.getTime(i - 1));
+            }
+            peak |= view.getValue(0, i) == 100.0f;
+            trough |= view.getValue(0, i) == -100.0f;
+        }
+        assertTrue(peak);
+        assertTrue(trough);
+    }
+
+    public void testReadDownsampledKeepsPeaks() throws Exception {
+        TimelineData data = new TimelineData(1, 5000);
+        long start = data.getStartTime();
+        Random random = new Random(1);
+        for (int i = 0; i < 12345; i++) {
+            data.add(start + i, 0, random.nextFloat());
+        }
+        TimelineData.View view = new TimelineData.View(1);
+        for (int maxSamples : new int[]{6, 7, 50, 333, 2000}) {
+            data.read(view, 8.0f, 11.5f, maxSamples);
+            assertTrue(view.size() <= maxSamples);
+            assertEquals(5000, view.getTotalSize());
+            assertEquals(7.999f, view.getTime(0), 0.0001f);
+            assertEquals(11.501f, view.getTime(view.size() - 1), 0.0001f);
+
+            // the smallest and largest values of the range are kept
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < data.size(); i++) {
+                TimelineData.Sample sample = data.get(i);
+                if (sample.time >= 8.0f && sample.time <= 11.5f) {
+                    min = Math.min(min, sample.values[0]);
+                    max = Math.max(max, sample.values[0]);
+                }
+            }
+            boolean foundMin = false;
+            boolean foundMax = false;
+            for (int i = 0; i < view.size(); i++) {
+                if (i > 0) {
+                    assertTrue(view.getTime(i) > view.getTime(i - 1));
+                }
+                foundMin |= view.getValue(0, i) == min;
+                foundMax |= view.getValue(0, i) == max;
+            }
+            assertTrue(foundMin);
+            assertTrue(foundMax);
+        }
+    }
+
+    public void testConcurrentRead() throws Exception {
+        final TimelineData data = new TimelineData(2, 64);
+        final long start = data.getStartTime();
+        final int samples = 200000;
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < samples; i++) {
+                    data.add(start + i, 0, i, -i);
+                }
+            }
+        };
+        writer.start();
+        TimelineData.View view = new TimelineData.View(2);
+        while (writer.isAlive()) {
+            data.read(view);
+            for (int i = 0; i < view.size(); i++) {
+                // every sample read is consistent and in order
+                assertEquals(view.getValue(0, i), -view.getValue(1, i));
+                assertEquals(view.getValue(0, i) / 1000.0f, view.getTime(i), 0.0001f);
+                if (i > 0) {
+                    assertEquals(view.getValue(0, i - 1) + 1, view.getValue(0, i));
+                }
+            }
+        }
+        writer.join();
+        data.read(view);
+        assertEquals(64, view.size());
+        assertEquals(samples - 1.0f, view.getLastValue(0));
+    }
+
+    public void testConcurrentReadAndClear() throws Exception {
+        final TimelineData data = new TimelineData(2, 64);
+        final int samples = 200000;
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < samples; i++) {
+                    if (i % 100 == 0) {
+                        data.clear();
+                    }
+                    // the samples since the last clear count up from 0
+                    data.add(data.getStartTime() + i % 100, 0, i % 100 + 1, -(i % 100 + 1));
+                }
+            }
+        };
+        writer.start();
+        TimelineData.View view = new TimelineData.View(2);
+        while (writer.isAlive()) {
+            data.read(view);
+            for (int i = 0; i < view.size(); i++) {
+                // never mixes samples from before and after a clear
+                assertEquals(view.getValue(0, i), -view.getValue(1, i));
+                assertEquals(view.getValue(0, view.size() - 1) - (view.size() - 1 - i),
+                        view.getValue(0, i));
+            }
+        }
+        writer.join();
+    }
+}
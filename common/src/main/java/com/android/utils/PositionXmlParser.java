@@ -331,6 +331,37 @@ public class PositionXmlParser {
         return xml;
     }
 
+    /**
+     * Returns a deep copy of a document created by one of the parse methods. The copy
+     * carries the same position information as the original document, such that it can
+     * be modified without having to parse the XML content again.
+     *
+     * @param document the document to copy
+     * @return the copied document
+     */
+    @NonNull
+    public static Document copy(@NonNull Document document) {
+        Document copy = (Document) document.cloneNode(true);
+        copy.setUserData(CONTENT_KEY, document.getUserData(CONTENT_KEY), null);
+        copyPositions(document, copy);
+        return copy;
+    }
+
+    private static void copyPositions(@NonNull Node from, @NonNull Node to) {
+        Object position = from.getUserData(POS_KEY);
+        if (position != null) {
+            // Positions are not modified once the document has been parsed
+            to.setUserData(POS_KEY, position, null);
+        }
+        Node fromChild = from.getFirstChild();
+        Node toChild = to.getFirstChild();
+        while (fromChild != null && toChild != null) {
+            copyPositions(fromChild, toChild);
+            fromChild = fromChild.getNextSibling();
+            toChild = toChild.getNextSibling();
+        }
+    }
+
     /**
      * Returns the position for the given node. This is the start position. The
      * end position can be obtained via {@link Position#getEnd()}.
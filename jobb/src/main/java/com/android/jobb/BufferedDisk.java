@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.jobb;
+
+import de.waldheinz.fs.BlockDevice;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A writable {@link BlockDevice} backed by a file, that combines consecutive writes into large
+ * ones. The FAT file system writes file data one cluster at a time, which for an image built
+ * sequentially means many small writes to consecutive offsets; these are buffered and written
+ * (and, for an {@link EncryptedBlockFile}, encrypted) a buffer at a time.
+ */
+public class BufferedDisk implements BlockDevice {
+
+    public final static int BYTES_PER_SECTOR = 512;
+
+    public final static int DEFAULT_BUFFER_SIZE = 8 * 1024 * 1024;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mSize;
+    private final ByteBuffer mBuffer;
+    /** The device offset of the first buffered byte */
+    private long mBufferOffset;
+    private boolean mClosed;
+
+    /**
+     * @param file the file backing the device, closed when the device is closed
+     * @param channel the channel to read and write, either the channel of the file or the
+     *        channel of an {@link EncryptedBlockFile}
+     */
+    public BufferedDisk(RandomAccessFile file, FileChannel channel) throws IOException {
+        this(file, channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    public BufferedDisk(RandomAccessFile file, FileChannel channel, int bufferSize)
+            throws IOException {
+        if (bufferSize < BYTES_PER_SECTOR) {
+            throw new IllegalArgumentException("buffer size too small: " + bufferSize);
+        }
+        mFile = file;
+        mChannel = channel;
+        mSize = file.length();
+        mBuffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    @Override
+    public long getSize() throws IOException {
+        checkClosed();
+        return mSize;
+    }
+
+    @Override
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        checkClosed();
+        checkRange(devOffset, dest.remaining());
+        // the buffered data may overlap the read
+        flushBuffer();
+        long offset = devOffset;
+        while (dest.hasRemaining()) {
+            int read = mChannel.read(dest, offset);
+            if (read < 0)
+                throw new IOException("reading past end of device");
+            offset += read;
+        }
+    }
+
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        checkClosed();
+        int toWrite = src.remaining();
+        checkRange(devOffset, toWrite);
+        if (mBuffer.position() > 0 && (devOffset != mBufferOffset + mBuffer.position()
+                || toWrite > mBuffer.remaining())) {
+            flushBuffer();
+        }
+        if (toWrite >= mBuffer.capacity()) {
+            writeFully(src, devOffset);
+            return;
+        }
+        if (mBuffer.position() == 0) {
+            mBufferOffset = devOffset;
+        }
+        mBuffer.put(src);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        checkClosed();
+        flushBuffer();
+    }
+
+    @Override
+    public int getSectorSize() throws IOException {
+        checkClosed();
+        return BYTES_PER_SECTOR;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed)
+            return;
+        try {
+            flushBuffer();
+        } finally {
+            mClosed = true;
+            mFile.close();
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mBuffer.position() == 0)
+            return;
+        mBuffer.flip();
+        try {
+            writeFully(mBuffer, mBufferOffset);
+        } finally {
+            mBuffer.clear();
+        }
+    }
+
+    private void writeFully(ByteBuffer src, long devOffset) throws IOException {
+        long offset = devOffset;
+        while (src.hasRemaining()) {
+            offset += mChannel.write(src, offset);
+        }
+    }
+
+    private void checkRange(long devOffset, int length) {
+        if (devOffset < 0 || devOffset + length > mSize) {
+            throw new IllegalArgumentException("access beyond end of device: " + devOffset
+                    + " + " + length);
+        }
+    }
+
+    private void checkClosed() {
+        if (mClosed)
+            throw new IllegalStateException("device already closed");
+    }
+}
@@ -21,6 +21,7 @@ import Twofish.Twofish_Algorithm;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
@@ -29,13 +30,40 @@ import java.nio.channels.FileLock;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.security.InvalidKeyException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class EncryptedBlockFile extends RandomAccessFile {
 
     private final class EncryptedBlockFileChannel extends FileChannel {
         final FileChannel mFC;
-        
+
+        /**
+         * The decrypted contents of recently read sectors, by sector number.
+         */
+        private final Map<Integer, byte[]> mSectorCache =
+                new LinkedHashMap<Integer, byte[]>(SECTOR_CACHE_SIZE, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                        return size() > SECTOR_CACHE_SIZE;
+                    }
+                };
+
+        /**
+         * The plain and encrypted contents of the sectors being read or written, reused across
+         * reads and writes.
+         */
+        private byte[] mPlain;
+        private byte[] mCipher;
+
         protected EncryptedBlockFileChannel(FileChannel wrappedFC) {
             super();
             mFC = wrappedFC;
@@ -80,74 +108,52 @@ public class EncryptedBlockFile extends RandomAccessFile {
 
         @Override
         public int read(ByteBuffer dest, long position) throws IOException {
-            boolean isMisaligned;
-            boolean isPartial;
-            boolean doubleBuffer;
-
-            int toRead = dest.remaining();
-            int targetRead = toRead;
-            int numSectors = toRead / BYTES_PER_SECTOR;
-            if ((position + toRead) > length())
+            return (int)read(new ByteBuffer[] { dest }, 0, 1, position);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            long position = position();
+            long read = read(dsts, offset, length, position);
+            position(position + read);
+            return read;
+        }
+
+        /**
+         * Reads into the buffers from position, decrypting up to {@link #MAX_BATCH_SECTORS}
+         * sectors at a time.
+         */
+        private synchronized long read(ByteBuffer[] dsts, int offset, int length, long position)
+                throws IOException {
+            long total = remaining(dsts, offset, length);
+            long end = position + total;
+            if (end > length())
                 throw new IOException(
                         "reading past end of device");
 
-            int alignmentOff;
-            int firstSector = (int) position / BYTES_PER_SECTOR;
-            if ( 0 != (alignmentOff = (int)(position % BYTES_PER_SECTOR ))) {
-                toRead += alignmentOff;
-                numSectors = toRead/BYTES_PER_SECTOR;
-                isMisaligned = true;
-                doubleBuffer = true;
-                System.out.println("Alignment off reading from sector: " + firstSector);
-            } else {
-                isMisaligned = false;
-                doubleBuffer = false;
-                alignmentOff = 0;
-            }
-            
-            int partialReadSize;
-            if ( 0 != (partialReadSize = (int)(toRead % BYTES_PER_SECTOR ))) {
-                isPartial = true;
-                doubleBuffer = true;
-                numSectors = toRead/BYTES_PER_SECTOR + 1;
-                System.out.println("Partial read from sector: " + firstSector);
-            } else {
-                isPartial = false;
-            }
-
-            ByteBuffer tempDest;
-            if ( doubleBuffer ) {
-                tempDest = ByteBuffer.allocate(BYTES_PER_SECTOR);
-            } else {
-                tempDest = null;
-            }
-            int lastSector = firstSector + numSectors;
-            if ( isMisaligned ) {
-                // first sector is misaligned. Read and decrypt into temp dest
-                readDecryptedSector(firstSector++, tempDest);
-                tempDest.position(alignmentOff);
-                // special case -- small sector;
-                if ( firstSector == lastSector && isPartial ) {
-                    tempDest.limit(partialReadSize);
-                }
-                dest.put(tempDest);
-            }
-            for ( int i = firstSector; i < lastSector; i++ ) {
-                if ( firstSector+1 == lastSector && isPartial ) {
-                    readDecryptedSector(i, tempDest);
-                    tempDest.rewind();
-                    tempDest.limit(partialReadSize);
-                    dest.put(tempDest);
-                } else {
-                    readDecryptedSector(i, dest);
+            int index = offset;
+            while (position < end) {
+                int alignmentOff = (int)(position % BYTES_PER_SECTOR);
+                int toRead = (int)Math.min(end - position, MAX_BATCH_BYTES - alignmentOff);
+                int numSectors = (alignmentOff + toRead + BYTES_PER_SECTOR - 1) / BYTES_PER_SECTOR;
+                ensureBuffers(numSectors);
+                readDecryptedSectors((int)(position / BYTES_PER_SECTOR), numSectors, mPlain, 0);
+                // scatter the decrypted data into the buffers
+                int plainOff = alignmentOff;
+                int plainEnd = alignmentOff + toRead;
+                while (plainOff < plainEnd) {
+                    ByteBuffer dest = dsts[index];
+                    if (!dest.hasRemaining()) {
+                        index++;
+                        continue;
+                    }
+                    int count = Math.min(dest.remaining(), plainEnd - plainOff);
+                    dest.put(mPlain, plainOff, count);
+                    plainOff += count;
                 }
+                position += toRead;
             }
-            return targetRead;
-        }
-
-        @Override
-        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
-            throw new RuntimeException("Scattering Channel Read not implemented");
+            return total;
         }
 
         @Override
@@ -191,58 +197,62 @@ public class EncryptedBlockFile extends RandomAccessFile {
 
         @Override
         public int write(ByteBuffer src, long position) throws IOException {
-            int toWrite = src.remaining();
-            int targetWrite = toWrite;
-            int firstSector = (int) position / BYTES_PER_SECTOR;
-            int numSectors = toWrite / BYTES_PER_SECTOR;
-
-            boolean fixAccess = false;
-            long readOffset;
-            if ( 0 != position % BYTES_PER_SECTOR ) {
-                long alignmentOff = (position % BYTES_PER_SECTOR);
-                readOffset = position - alignmentOff;            
-                toWrite += alignmentOff;
-                numSectors = toWrite/BYTES_PER_SECTOR;
-                fixAccess = true;
-                System.out.println("Alignment off writing to sector: " + firstSector);
-            } else {
-                readOffset = position;
-            }
-            
-            if ( 0 != toWrite % BYTES_PER_SECTOR ) {
-                numSectors = toWrite/BYTES_PER_SECTOR + 1;
-                fixAccess = true;
-                System.out.println("Partial Sector [" + toWrite % BYTES_PER_SECTOR + "] writing to sector: " + firstSector);
-            }
-
-            if ( fixAccess ) {
-                ByteBuffer dest = ByteBuffer.allocate(numSectors * BYTES_PER_SECTOR);
-                read(dest, readOffset);
-                int bufOffset = (int)(position - readOffset);
-                dest.position(bufOffset);
-                dest.put(src);
-                
-                src = dest;
-                src.rewind();
-            }
-                    
-            int lastSector = firstSector + numSectors;
-            
-            for ( int i = firstSector; i < lastSector; i++ ) {
-                writeEncryptedSector(i, src);
-            }
-            return targetWrite;
+            return (int)write(new ByteBuffer[] { src }, 0, 1, position);
         }
 
         @Override
         public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
-            throw new RuntimeException("Scattering Channel Write not implemented");
+            long position = position();
+            long written = write(srcs, offset, length, position);
+            position(position + written);
+            return written;
+        }
+
+        /**
+         * Writes the buffers at position, encrypting up to {@link #MAX_BATCH_SECTORS} sectors at
+         * a time. Partially written sectors are read and decrypted first.
+         */
+        private synchronized long write(ByteBuffer[] srcs, int offset, int length, long position)
+                throws IOException {
+            long total = remaining(srcs, offset, length);
+            long end = position + total;
+
+            int index = offset;
+            while (position < end) {
+                int alignmentOff = (int)(position % BYTES_PER_SECTOR);
+                int toWrite = (int)Math.min(end - position, MAX_BATCH_BYTES - alignmentOff);
+                int firstSector = (int)(position / BYTES_PER_SECTOR);
+                int numSectors = (alignmentOff + toWrite + BYTES_PER_SECTOR - 1) / BYTES_PER_SECTOR;
+                ensureBuffers(numSectors);
+                if (0 != alignmentOff) {
+                    readSectorForUpdate(firstSector, 0);
+                }
+                if (0 != (alignmentOff + toWrite) % BYTES_PER_SECTOR
+                        && (numSectors > 1 || 0 == alignmentOff)) {
+                    readSectorForUpdate(firstSector + numSectors - 1, numSectors - 1);
+                }
+                // gather the data from the buffers
+                int plainOff = alignmentOff;
+                int plainEnd = alignmentOff + toWrite;
+                while (plainOff < plainEnd) {
+                    ByteBuffer src = srcs[index];
+                    if (!src.hasRemaining()) {
+                        index++;
+                        continue;
+                    }
+                    int count = Math.min(src.remaining(), plainEnd - plainOff);
+                    src.get(mPlain, plainOff, count);
+                    plainOff += count;
+                }
+                writeEncryptedSectors(firstSector, numSectors);
+                position += toWrite;
+            }
+            return total;
         }
 
         @Override
         protected void implCloseChannel() throws IOException {
-            // TODO Auto-generated method stub
-            
+            mFC.close();
         }
 
         /**
@@ -257,84 +267,206 @@ public class EncryptedBlockFile extends RandomAccessFile {
           out[3] = (byte)(sector >>> 24);
         }
         
-        private void readDecryptedSector(int sector, ByteBuffer dest) throws IOException {
-            ByteBuffer temp = ByteBuffer.allocate(BYTES_PER_SECTOR);
-            int toRead = BYTES_PER_SECTOR;
-            int devOffset = BYTES_PER_SECTOR*sector;
-            
-            // number of chained twofish blocks
-            int blockSize = Twofish_Algorithm.blockSize();
-            byte[] bufLast = new byte[blockSize];
-            int numBlocks = toRead / blockSize;
-            
-            // read unencrypted sector
-            while (toRead > 0) {
-                final int read = mFC.read(temp, devOffset);
+        private long remaining(ByteBuffer[] buffers, int offset, int length) {
+            long remaining = 0;
+            for (int i = offset; i < offset + length; i++) {
+                remaining += buffers[i].remaining();
+            }
+            return remaining;
+        }
+
+        private void ensureBuffers(int numSectors) {
+            int size = numSectors * BYTES_PER_SECTOR;
+            if (null == mPlain || mPlain.length < size) {
+                mPlain = new byte[size];
+                mCipher = new byte[size];
+            }
+        }
+
+        /**
+         * Reads the sector into mPlain at the given sector index, before it is partially written.
+         * Sectors past the end of the file read as zeros.
+         */
+        private void readSectorForUpdate(int sector, int index) throws IOException {
+            if ((long)(sector + 1) * BYTES_PER_SECTOR <= mFC.size()) {
+                readDecryptedSectors(sector, 1, mPlain, index * BYTES_PER_SECTOR);
+            } else {
+                Arrays.fill(mPlain, index * BYTES_PER_SECTOR, (index + 1) * BYTES_PER_SECTOR,
+                        (byte)0);
+            }
+        }
+
+        /**
+         * Reads and decrypts numSectors sectors into plain at plainOffset. Small reads, which are
+         * mostly of FAT and directory sectors read over and over, go through the sector cache.
+         */
+        private void readDecryptedSectors(int firstSector, int numSectors, byte[] plain,
+                int plainOffset) throws IOException {
+            boolean cacheable = numSectors <= CACHED_READ_SECTORS;
+            if (cacheable) {
+                int sector = 0;
+                for (; sector < numSectors; sector++) {
+                    byte[] cached = mSectorCache.get(firstSector + sector);
+                    if (null == cached)
+                        break;
+                    System.arraycopy(cached, 0, plain, plainOffset + sector * BYTES_PER_SECTOR,
+                            BYTES_PER_SECTOR);
+                }
+                if (sector == numSectors)
+                    return;
+            }
+
+            // read encrypted sectors
+            ByteBuffer cipherBuffer = ByteBuffer.wrap(mCipher, 0, numSectors * BYTES_PER_SECTOR);
+            long devOffset = (long)BYTES_PER_SECTOR*firstSector;
+            while (cipherBuffer.hasRemaining()) {
+                final int read = mFC.read(cipherBuffer, devOffset);
                 if (read < 0)
                     throw new IOException();
-                toRead -= read;
                 devOffset += read;
             }
-            temp.rewind();
-
-            // set initialization vector
-            cryptIVPlainGen(sector, bufLast);
-            
-            byte[] buf = new byte[blockSize];
-            for (int i = 0; i < numBlocks; i++) {
-                temp.get(buf);
-                // decrypt with chained blocks --- xor with the previous encrypted block
-                byte[] decryptBuf = Twofish_Algorithm.blockDecrypt(buf, 0, mKey);
-                for (int j = 0; j < blockSize; j++) {
-                    decryptBuf[j] ^= bufLast[j];
+            cryptSectors(false, firstSector, numSectors, mCipher, plain, plainOffset);
+
+            if (cacheable) {
+                for (int sector = 0; sector < numSectors; sector++) {
+                    int start = plainOffset + sector * BYTES_PER_SECTOR;
+                    mSectorCache.put(firstSector + sector,
+                            Arrays.copyOfRange(plain, start, start + BYTES_PER_SECTOR));
                 }
-                System.arraycopy(buf, 0, bufLast, 0, blockSize);
-                dest.put(decryptBuf);
             }
         }
-        
-        private void writeEncryptedSector(int sector, ByteBuffer src) throws IOException {
-            byte[] sectorBuf = new byte[BYTES_PER_SECTOR];
-            int toRead = BYTES_PER_SECTOR;
-            int devOffset = BYTES_PER_SECTOR*sector;
-            
+
+        /**
+         * Encrypts numSectors sectors from mPlain and writes them with a single write.
+         */
+        private void writeEncryptedSectors(int firstSector, int numSectors) throws IOException {
+            cryptSectors(true, firstSector, numSectors, mPlain, mCipher, 0);
+            updateSectorCache(firstSector, numSectors);
+
+            ByteBuffer cipherBuffer = ByteBuffer.wrap(mCipher, 0, numSectors * BYTES_PER_SECTOR);
+            long devOffset = (long)BYTES_PER_SECTOR*firstSector;
+            while (cipherBuffer.hasRemaining()) {
+                final int written = mFC.write(cipherBuffer, devOffset);
+                if (written < 0)
+                    throw new IOException();
+                devOffset += written;
+            }
+        }
+
+        /**
+         * Copies the sectors about to be written from mPlain into the cached sectors they replace.
+         */
+        private void updateSectorCache(int firstSector, int numSectors) {
+            if (mSectorCache.isEmpty())
+                return;
+            if (numSectors <= mSectorCache.size()) {
+                for (int sector = 0; sector < numSectors; sector++) {
+                    byte[] cached = mSectorCache.get(firstSector + sector);
+                    if (null != cached) {
+                        System.arraycopy(mPlain, sector * BYTES_PER_SECTOR, cached, 0,
+                                BYTES_PER_SECTOR);
+                    }
+                }
+            } else {
+                for (Map.Entry<Integer, byte[]> entry : mSectorCache.entrySet()) {
+                    int sector = entry.getKey() - firstSector;
+                    if (sector >= 0 && sector < numSectors) {
+                        System.arraycopy(mPlain, sector * BYTES_PER_SECTOR, entry.getValue(), 0,
+                                BYTES_PER_SECTOR);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Encrypts or decrypts numSectors sectors starting at firstSector from in, at offset 0,
+         * to out, at outOffset. Large batches are processed in parallel, as each sector is
+         * encrypted independently.
+         */
+        private void cryptSectors(final boolean encrypt, final int firstSector, int numSectors,
+                final byte[] in, final byte[] out, final int outOffset) throws IOException {
+            if (numSectors < PARALLEL_SECTORS) {
+                cryptSectors(encrypt, firstSector, 0, numSectors, in, out, outOffset);
+                return;
+            }
+            List<Future<?>> tasks = new ArrayList<Future<?>>();
+            for (int start = 0; start < numSectors; start += SECTORS_PER_TASK) {
+                final int taskStart = start;
+                final int taskSectors = Math.min(SECTORS_PER_TASK, numSectors - start);
+                tasks.add(getCryptoExecutor().submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        cryptSectors(encrypt, firstSector, taskStart, taskSectors, in, out,
+                                outOffset);
+                    }
+                }));
+            }
+            try {
+                for (Future<?> task : tasks) {
+                    task.get();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while encrypting sectors");
+            } catch (ExecutionException e) {
+                throw new IOException("Error encrypting sectors", e.getCause());
+            }
+        }
+
+        /**
+         * Encrypts or decrypts count sectors starting at sector index of the batch.
+         */
+        private void cryptSectors(boolean encrypt, int firstSector, int index, int count,
+                byte[] in, byte[] out, int outOffset) {
             // number of chained twofish blocks
             int blockSize = Twofish_Algorithm.blockSize();
             byte[] bufLast = new byte[blockSize];
-            int numBlocks = toRead / blockSize;
-
-            // fetch unencrypted sector
-            src.get(sectorBuf);
-            
-            // set initialization vector
-            cryptIVPlainGen(sector, bufLast);
-            
-            int pos = 0;
-            byte[] buf = new byte[blockSize];
-            for (int i = 0; i < numBlocks; i++) {
-                System.arraycopy(sectorBuf, pos, buf, 0, blockSize);
-                // encrypt with chained blocks --- xor with the previous encrypted block
-                for (int j = 0; j < blockSize; j++) {
-                    buf[j] ^= bufLast[j];
-                }
-                byte[] encryptBuf = Twofish_Algorithm.blockEncrypt(buf, 0, mKey);
-                bufLast = encryptBuf;
-                int toWrite = blockSize;
-                ByteBuffer encryptBuffer = ByteBuffer.wrap(encryptBuf);
-                while (toWrite > 0) {
-                    final int written = mFC.write(encryptBuffer, devOffset);
-                    if (written < 0)
-                        throw new IOException();
-                    toWrite -= written;
-                    devOffset += written;
+            for (int sector = index; sector < index + count; sector++) {
+                // set initialization vector
+                cryptIVPlainGen(firstSector + sector, bufLast);
+
+                int inPos = sector * BYTES_PER_SECTOR;
+                int outPos = outOffset + inPos;
+                int end = inPos + BYTES_PER_SECTOR;
+                for (; inPos < end; inPos += blockSize, outPos += blockSize) {
+                    if (encrypt) {
+                        // encrypt with chained blocks --- xor with the previous encrypted block
+                        for (int j = 0; j < blockSize; j++) {
+                            bufLast[j] ^= in[inPos + j];
+                        }
+                        bufLast = Twofish_Algorithm.blockEncrypt(bufLast, 0, mKey);
+                        System.arraycopy(bufLast, 0, out, outPos, blockSize);
+                    } else {
+                        // decrypt with chained blocks --- xor with the previous encrypted block
+                        byte[] decryptBuf = Twofish_Algorithm.blockDecrypt(in, inPos, mKey);
+                        for (int j = 0; j < blockSize; j++) {
+                            out[outPos + j] = (byte)(decryptBuf[j] ^ bufLast[j]);
+                        }
+                        System.arraycopy(in, inPos, bufLast, 0, blockSize);
+                    }
                 }
-                pos += blockSize;
             }
         }
-                
-        
     }
-    
+
+    /**
+     * Returns the executor encrypting the sectors of large reads and writes, shared by all the
+     * files.
+     */
+    private static synchronized ExecutorService getCryptoExecutor() {
+        if (sCryptoExecutor == null) {
+            sCryptoExecutor = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "EncryptedBlockFile crypto");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return sCryptoExecutor;
+    }
+
     public EncryptedBlockFileChannel getEncryptedFileChannel() {
         return mEBFC;
     }
@@ -345,18 +477,19 @@ public class EncryptedBlockFile extends RandomAccessFile {
      */
     @Override
     public void setLength(long newLength) throws IOException {
-        int numsectors = (int)newLength/BYTES_PER_SECTOR;
+        long numsectors = newLength/BYTES_PER_SECTOR;
         if ( newLength % BYTES_PER_SECTOR != 0 ) {
             throw new IOException("Invalid file size!");
         }
         super.setLength(newLength);
-        // write encrypted empty sectors into the block storage
-        byte[] byteBuf = new byte[BYTES_PER_SECTOR];
-        ByteBuffer buf = ByteBuffer.wrap(byteBuf);
-        for ( int i = 0; i < numsectors; i++ ) {
-            buf.rewind();
-            mEBFC.write(buf);
-        }        
+        // write encrypted empty sectors into the block storage, many at a time
+        ByteBuffer buf = ByteBuffer.allocate(CLEAR_SECTORS * BYTES_PER_SECTOR);
+        for ( long i = 0; i < numsectors; i += CLEAR_SECTORS ) {
+            int count = (int)Math.min(CLEAR_SECTORS, numsectors - i);
+            buf.clear();
+            buf.limit(count * BYTES_PER_SECTOR);
+            mEBFC.write(buf, i * BYTES_PER_SECTOR);
+        }
     }
 
     /**
@@ -364,6 +497,40 @@ public class EncryptedBlockFile extends RandomAccessFile {
      */
     public final static int BYTES_PER_SECTOR = 512;
 
+    /**
+     * Reads and writes of at least this many sectors are encrypted in parallel.
+     */
+    private final static int PARALLEL_SECTORS = 256;
+
+    /**
+     * The number of sectors encrypted by each parallel task.
+     */
+    private final static int SECTORS_PER_TASK = 128;
+
+    /**
+     * The number of sectors cleared at a time by {@link #setLength}.
+     */
+    private final static int CLEAR_SECTORS = 8192;
+
+    /**
+     * The maximum number of sectors read or written at a time.
+     */
+    private final static int MAX_BATCH_SECTORS = 2048;
+
+    private final static int MAX_BATCH_BYTES = MAX_BATCH_SECTORS * BYTES_PER_SECTOR;
+
+    /**
+     * Reads of at most this many sectors go through the sector cache.
+     */
+    private final static int CACHED_READ_SECTORS = 8;
+
+    /**
+     * The number of decrypted sectors kept in the sector cache.
+     */
+    private final static int SECTOR_CACHE_SIZE = 256;
+
+    private static ExecutorService sCryptoExecutor;
+
     private final Object mKey;
     private final EncryptedBlockFileChannel mEBFC;
 
@@ -35,11 +35,11 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Iterator;
@@ -49,6 +49,8 @@ public class Main {
 
     private static final int BLOCK_SIZE = 512; // MUST BE 512
 
+    private static final int COPY_BUFFER_SIZE = 4 * 1024 * 1024;
+
     public static void printArgs() {
         System.out.println("Jobb -- Create OBB files for use on Android");
         System.out.println();
@@ -85,14 +87,78 @@ public class Main {
     static byte[] sFishKey;
 
     private interface FileProcessor {
-        void processFile(File f);
+        void processFile(ScannedFile f);
 
-        void processDirectory(File f);
+        void processDirectory(ScannedFile f);
 
 		/**
 		 * @param dir
 		 */
-		void endDirectory(File dir);
+		void endDirectory(ScannedFile dir);
+    }
+
+    /**
+     * A file or directory of the input, scanned once so that the size of the filesystem and its
+     * contents are computed from the same listing.
+     */
+    static class ScannedFile {
+        final File mFile;
+        final long mLength;
+        /** The contents of a directory, in listing order; null for a file */
+        final ScannedFile[] mChildren;
+
+        ScannedFile(File file) {
+            mFile = file;
+            if (file.isDirectory()) {
+                String[] children = file.list();
+                if (null == children) {
+                    // unreadable, or an I/O error; don't silently leave it out of the image
+                    throw new RuntimeException("Unable to list directory: " + file);
+                }
+                mChildren = new ScannedFile[children.length];
+                for (int i = 0; i < children.length; i++) {
+                    mChildren[i] = new ScannedFile(new File(file, children[i]));
+                }
+                mLength = 0;
+            } else {
+                mChildren = null;
+                mLength = file.length();
+            }
+        }
+
+        boolean isDirectory() {
+            return null != mChildren;
+        }
+    }
+
+    /**
+     * Prints the progress of writing the files, at most once a second, and the total throughput.
+     */
+    static class Progress {
+        private final long mTotal;
+        private final long mStartTime = System.currentTimeMillis();
+        private long mLastReport = mStartTime;
+        private long mWritten;
+
+        Progress(long total) {
+            mTotal = total;
+        }
+
+        void add(long written) {
+            mWritten += written;
+            long now = System.currentTimeMillis();
+            if (now - mLastReport >= 1000) {
+                mLastReport = now;
+                System.out.println("Written " + (mWritten >> 20) + " of " + (mTotal >> 20)
+                        + " MB (" + (mTotal > 0 ? mWritten * 100 / mTotal : 100) + "%)");
+            }
+        }
+
+        void done() {
+            long elapsed = Math.max(1, System.currentTimeMillis() - mStartTime);
+            System.out.println(String.format("Wrote %d bytes in %.1f s (%.1f MB/s)", mWritten,
+                    elapsed / 1000.0, mWritten / 1048576.0 * 1000 / elapsed));
+        }
     }
 
     static ByteBuffer sTempBuf = ByteBuffer.allocate(1024*1024);
@@ -374,9 +440,14 @@ public class Main {
                 System.out.println("Scanning directory: " + sDirectory);
             }
             final File f = new File(sDirectory);
-            
-            long fileSize = getTotalFileSize(f, 0);
-            fileSize = getTotalFileSize(f, BLOCK_SIZE*SuperFloppyFormatter.clusterSizeFromSize(fileSize, BLOCK_SIZE));
+            if (!f.isDirectory()) {
+                System.out.println("Not a directory: " + sDirectory);
+                return;
+            }
+            final ScannedFile scan = new ScannedFile(f);
+
+            final long dataSize = getTotalFileSize(scan, 0);
+            long fileSize = getTotalFileSize(scan, BLOCK_SIZE*SuperFloppyFormatter.clusterSizeFromSize(dataSize, BLOCK_SIZE));
             if (sVerboseMode) {
                 System.out.println("Total Files: " + fileSize);
             }
@@ -397,28 +468,33 @@ public class Main {
             if (fsFile.exists())
                 fsFile.delete();
             try {
-                BlockDevice fd;
+                BufferedDisk fd;
                 if ( isEncrypted ) {
                     try {
                         EncryptedBlockFile ebf = new EncryptedBlockFile(sFishKey, fsFile, "rw");
                         ebf.setLength(filesystemSize);
-                        fd = new FileDisk(ebf, ebf.getEncryptedFileChannel(), false);
+                        fd = new BufferedDisk(ebf, ebf.getEncryptedFileChannel());
                     } catch (InvalidKeyException e) {
                         e.printStackTrace();
                         return;
                     }
                 } else {
-                    fd = FileDisk.create(fsFile, filesystemSize);
+                    RandomAccessFile raf = new RandomAccessFile(fsFile, "rw");
+                    raf.setLength(filesystemSize);
+                    fd = new BufferedDisk(raf, raf.getChannel());
                 }
                 // fat type set based on device size by SuperFloppyFormatter
                 final FatFileSystem fs = SuperFloppyFormatter.get(fd).format();
                 final String rootPath = f.getAbsolutePath();
+                final Progress progress = new Progress(dataSize);
+                final ByteBuffer copyBuffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
                 // add the files into the filesystem
-                processAllFiles(f, new FileProcessor() {
+                processAllFiles(scan, new FileProcessor() {
                     Stack<FatLfnDirectory> mCurDir = new Stack<FatLfnDirectory>();
 
                     @Override
-                    public void processDirectory(File curFile) {
+                    public void processDirectory(ScannedFile scannedFile) {
+                        File curFile = scannedFile.mFile;
                         String directory = curFile.getAbsolutePath().substring(rootPath.length());
                         if (sVerboseMode) {
                             System.out.println("Processing Directory: " + directory + " at cluster " + fs.getFat().getLastFreeCluster());
@@ -463,14 +539,15 @@ public class Main {
                     }
 
                     @Override
-                    public void processFile(File curFile) {
+                    public void processFile(ScannedFile scannedFile) {
+                        File curFile = scannedFile.mFile;
                         FatLfnDirectoryEntry entry;
                         FatLfnDirectory curDir = mCurDir.peek();
                         try {
                             if (sVerboseMode) {
                                 System.out.println("Adding file: "
                                         + curFile.getAbsolutePath().substring(rootPath.length())
-                                        + " with length " + curFile.length() + " at cluster " + fs.getFat().getLastFreeCluster());
+                                        + " with length " + scannedFile.mLength + " at cluster " + fs.getFat().getLastFreeCluster());
                             }
                             entry = curDir.addFile(curFile.getName());
                         } catch (IOException e) {
@@ -478,11 +555,14 @@ public class Main {
                             throw new RuntimeException("Error adding file with name: "
                                     + curFile.getName());
                         }
-                        ReadableByteChannel channel = null;
+                        FileChannel channel = null;
                         try {
                             FatFile f = entry.getFile();
+                            // allocate the whole cluster chain up front, so that the data is
+                            // written to consecutive clusters in large blocks
+                            f.setLength(scannedFile.mLength);
                             channel = new FileInputStream(curFile).getChannel();
-                            ByteBuffer buf = ByteBuffer.allocateDirect(1024 * 512);
+                            ByteBuffer buf = copyBuffer;
                             int numRead = 0;
                             long offset = 0;
                             while (true) {
@@ -490,10 +570,14 @@ public class Main {
                                 numRead = channel.read(buf);
                                 if (numRead < 0)
                                     break;
-                                buf.rewind();
-                                buf.limit(numRead);
+                                buf.flip();
                                 f.write(offset, buf);
                                 offset += numRead;
+                                progress.add(numRead);
+                            }
+                            if (offset != scannedFile.mLength) {
+                                // the file changed since the directory was scanned
+                                f.setLength(offset);
                             }
                             f.flush();
                         } catch (IOException e) {
@@ -511,13 +595,15 @@ public class Main {
                     }
 
 					@Override
-					public void endDirectory(File dir) {
+					public void endDirectory(ScannedFile dir) {
 						mCurDir.pop();
 					}
 					
                 });
                 fs.flush();
                 fs.close();
+                fd.close();
+                progress.done();
                 Fat fat = fs.getFat();
                 ObbFile ob = new ObbFile();
                 ob.setPackageName(sPackageName);
@@ -539,17 +625,21 @@ public class Main {
     }
 
     public static long getTotalFileSize(File dir, final int clusterSize) {
+        return getTotalFileSize(new ScannedFile(dir), clusterSize);
+    }
+
+    static long getTotalFileSize(ScannedFile dir, final int clusterSize) {
         final long[] mSize = new long[3];
         final boolean calculateSlop = clusterSize > 0;
         processAllFiles(dir, new FileProcessor() {
             Stack<int[]> mDirLen = new Stack<int[]>();
             
             @Override
-            public void processFile(File f) {
+            public void processFile(ScannedFile f) {
                 if (sVerboseMode) {
-                    System.out.println("Adding size for file: " + f.getAbsolutePath());
+                    System.out.println("Adding size for file: " + f.mFile.getAbsolutePath());
                 }
-                long length = f.length();
+                long length = f.mLength;
                 if ( calculateSlop && length > 0 ) {
                     int[] dirLen = mDirLen.peek();
                 	long realLength = ((clusterSize-1)+length) / clusterSize*clusterSize;
@@ -557,23 +647,23 @@ public class Main {
                     length += slop;
                 	mSize[0] += length;
                     mSize[1] += slop;
-                    dirLen[0] += f.getName().length()/13+3;
+                    dirLen[0] += f.mFile.getName().length()/13+3;
                 } else {
                 	mSize[0] += length;
                 }
             }
 
             @Override
-            public void processDirectory(File f) {
+            public void processDirectory(ScannedFile f) {
             	if ( calculateSlop ) {
             		int[] dirLen = new int[1];
-                    dirLen[0] += f.getName().length()/13+4;
+                    dirLen[0] += f.mFile.getName().length()/13+4;
             		mDirLen.push(dirLen);
             	}
             }
 
 			@Override
-			public void endDirectory(File dir) {
+			public void endDirectory(ScannedFile dir) {
             	if ( calculateSlop ) {
             		int[] dirLen = mDirLen.pop();
             		long lastDirLen = dirLen[0] * 32;
@@ -592,12 +682,11 @@ public class Main {
     }
 
     // Process all files and directories under dir
-    public static void processAllFiles(File dir, FileProcessor fp) {
+    static void processAllFiles(ScannedFile dir, FileProcessor fp) {
         if (dir.isDirectory()) {
             fp.processDirectory(dir);
-            String[] children = dir.list();
-            for (int i = 0; i < children.length; i++) {
-                processAllFiles(new File(dir, children[i]), fp);
+            for (ScannedFile child : dir.mChildren) {
+                processAllFiles(child, fp);
             }
             fp.endDirectory(dir);
         } else {
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.jobb;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+public class BufferedDiskTest extends TestCase {
+
+    private static final int SECTOR = BufferedDisk.BYTES_PER_SECTOR;
+
+    private static final int SECTORS = 64;
+
+    private static final int BUFFER_SECTORS = 4;
+
+    private File mFile;
+    private BufferedDisk mDisk;
+    /** The expected contents of the device */
+    private byte[] mExpected;
+    private final Random mRandom = new Random(42);
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("BufferedDiskTest", ".img");
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.setLength(SECTORS * SECTOR);
+        mDisk = new BufferedDisk(raf, raf.getChannel(), BUFFER_SECTORS * SECTOR);
+        mExpected = new byte[SECTORS * SECTOR];
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDisk.close();
+        assertTrue(mFile.delete());
+        super.tearDown();
+    }
+
+    public void testConsecutiveWritesAreCombined() throws Exception {
+        write(0, SECTOR);
+        write(SECTOR, 100);
+        write(SECTOR + 100, SECTOR - 100);
+        // nothing written to the file yet
+        assertTrue(Arrays.equals(new byte[SECTORS * SECTOR], readFile()));
+
+        mDisk.flush();
+        assertTrue(Arrays.equals(mExpected, readFile()));
+    }
+
+    public void testReadSeesBufferedWrites() throws Exception {
+        write(3 * SECTOR, 2 * SECTOR);
+        ByteBuffer read = ByteBuffer.allocate(4 * SECTOR);
+        mDisk.read(2 * SECTOR, read);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(mExpected, 2 * SECTOR, 6 * SECTOR),
+                read.array()));
+        assertTrue(Arrays.equals(mExpected, readFile()));
+    }
+
+    public void testNonConsecutiveWriteFlushes() throws Exception {
+        write(0, SECTOR);
+        write(10 * SECTOR, SECTOR);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(mExpected, 0, SECTOR),
+                Arrays.copyOfRange(readFile(), 0, SECTOR)));
+        assertTrue(Arrays.equals(new byte[SECTOR],
+                Arrays.copyOfRange(readFile(), 10 * SECTOR, 11 * SECTOR)));
+
+        mDisk.flush();
+        assertTrue(Arrays.equals(mExpected, readFile()));
+    }
+
+    public void testFullBufferFlushes() throws Exception {
+        write(0, 3 * SECTOR);
+        // doesn't fit in the rest of the buffer: the buffered sectors are written first
+        write(3 * SECTOR, 2 * SECTOR);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(mExpected, 0, 3 * SECTOR),
+                Arrays.copyOfRange(readFile(), 0, 3 * SECTOR)));
+
+        mDisk.flush();
+        assertTrue(Arrays.equals(mExpected, readFile()));
+    }
+
+    public void testLargeWriteIsNotBuffered() throws Exception {
+        write(SECTOR, BUFFER_SECTORS * SECTOR + 1);
+        assertTrue(Arrays.equals(mExpected, readFile()));
+    }
+
+    public void testCloseFlushes() throws Exception {
+        write(5 * SECTOR, 10);
+        mDisk.close();
+        assertTrue(mDisk.isClosed());
+        assertTrue(Arrays.equals(mExpected, readFile()));
+        try {
+            mDisk.write(0, ByteBuffer.allocate(SECTOR));
+            fail("writing to a closed device");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testWritePastEnd() throws Exception {
+        assertEquals(SECTORS * SECTOR, mDisk.getSize());
+        try {
+            mDisk.write((SECTORS - 1) * SECTOR + 1, ByteBuffer.allocate(SECTOR));
+            fail("writing past the end of the device");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testEncryptedRoundTrip() throws Exception {
+        byte[] key = new byte[16];
+        mRandom.nextBytes(key);
+        File file = File.createTempFile("BufferedDiskTest", ".obb");
+        try {
+            EncryptedBlockFile ebf = new EncryptedBlockFile(key, file, "rw");
+            ebf.setLength(SECTORS * SECTOR);
+            BufferedDisk disk = new BufferedDisk(ebf, ebf.getEncryptedFileChannel(),
+                    BUFFER_SECTORS * SECTOR);
+            byte[] expected = new byte[SECTORS * SECTOR];
+            mRandom.nextBytes(expected);
+            // cluster sized writes, as written by the file system, and a few misaligned ones
+            for (int offset = 0; offset < expected.length; offset += SECTOR) {
+                disk.write(offset, ByteBuffer.wrap(expected, offset, SECTOR));
+            }
+            disk.write(7, ByteBuffer.wrap(expected, 7, 1000));
+            disk.write(3 * SECTOR - 5, ByteBuffer.wrap(expected, 3 * SECTOR - 5, 10));
+            disk.close();
+
+            ebf = new EncryptedBlockFile(key, file, "r");
+            try {
+                FileChannel channel = ebf.getEncryptedFileChannel();
+                ByteBuffer read = ByteBuffer.allocate(expected.length);
+                channel.read(read, 0);
+                assertTrue(Arrays.equals(expected, read.array()));
+            } finally {
+                ebf.close();
+            }
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    private void write(int offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        mRandom.nextBytes(data);
+        System.arraycopy(data, 0, mExpected, offset, length);
+        mDisk.write(offset, ByteBuffer.wrap(data));
+    }
+
+    private byte[] readFile() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            byte[] contents = new byte[(int) raf.length()];
+            raf.readFully(contents);
+            return contents;
+        } finally {
+            raf.close();
+        }
+    }
+}
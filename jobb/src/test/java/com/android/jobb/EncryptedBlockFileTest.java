@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.jobb;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class EncryptedBlockFileTest extends TestCase {
+
+    private static final int SECTOR = EncryptedBlockFile.BYTES_PER_SECTOR;
+
+    private final Random mRandom = new Random(1);
+    private final List<File> mFiles = new ArrayList<File>();
+    private byte[] mKey;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mKey = new byte[16];
+        mRandom.nextBytes(mKey);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : mFiles) {
+            assertTrue(file.delete());
+        }
+        super.tearDown();
+    }
+
+    public void testSetLengthClears() throws Exception {
+        File file = createFile(16);
+        assertTrue(Arrays.equals(new byte[16 * SECTOR], read(file, 0, 16 * SECTOR)));
+        // the zeros are encrypted, each sector differently
+        byte[] raw = readRaw(file);
+        assertFalse(Arrays.equals(new byte[16 * SECTOR], raw));
+        assertFalse(Arrays.equals(Arrays.copyOfRange(raw, 0, SECTOR),
+                Arrays.copyOfRange(raw, SECTOR, 2 * SECTOR)));
+    }
+
+    public void testMisalignedRoundTrip() throws Exception {
+        File file = createFile(16);
+        byte[] expected = new byte[16 * SECTOR];
+        EncryptedBlockFile ebf = new EncryptedBlockFile(mKey, file, "rw");
+        try {
+            FileChannel channel = ebf.getEncryptedFileChannel();
+            // within a sector, across a sector boundary, and across several sectors
+            write(channel, expected, 3, 10);
+            write(channel, expected, SECTOR - 20, 40);
+            write(channel, expected, 3 * SECTOR + 1, 5 * SECTOR - 2);
+            // ends on a sector boundary, starts on one
+            write(channel, expected, 9 * SECTOR + 100, SECTOR - 100);
+            write(channel, expected, 11 * SECTOR, 100);
+        } finally {
+            ebf.close();
+        }
+
+        for (int[] range : new int[][] {
+                { 0, 16 * SECTOR }, { 5, 3 }, { SECTOR - 1, 2 }, { 2 * SECTOR + 7, 4 * SECTOR },
+                { 11 * SECTOR, SECTOR }, { 15 * SECTOR + 511, 1 } }) {
+            assertTrue(Arrays.equals(Arrays.copyOfRange(expected, range[0], range[0] + range[1]),
+                    read(file, range[0], range[1])));
+        }
+    }
+
+    public void testMultiSectorSpans() throws Exception {
+        // more sectors than are read or written at a time
+        int sectors = 5000;
+        File file = createFile(sectors);
+        byte[] expected = new byte[sectors * SECTOR];
+        EncryptedBlockFile ebf = new EncryptedBlockFile(mKey, file, "rw");
+        try {
+            FileChannel channel = ebf.getEncryptedFileChannel();
+            write(channel, expected, 100, 4200 * SECTOR + 33);
+
+            // gathering write, from buffers that don't end on sector boundaries
+            byte[] data = new byte[600 * SECTOR];
+            mRandom.nextBytes(data);
+            ByteBuffer[] buffers = {
+                    ByteBuffer.wrap(data, 0, 1000),
+                    ByteBuffer.wrap(data, 1000, 0),
+                    ByteBuffer.wrap(data, 1000, data.length - 1000) };
+            channel.position(4300 * SECTOR + 1);
+            assertEquals(data.length, channel.write(buffers));
+            assertEquals(4300 * SECTOR + 1 + data.length, channel.position());
+            System.arraycopy(data, 0, expected, 4300 * SECTOR + 1, data.length);
+        } finally {
+            ebf.close();
+        }
+
+        assertTrue(Arrays.equals(expected, read(file, 0, expected.length)));
+
+        // scattering read
+        ebf = new EncryptedBlockFile(mKey, file, "r");
+        try {
+            FileChannel channel = ebf.getEncryptedFileChannel();
+            ByteBuffer first = ByteBuffer.allocate(3 * SECTOR + 5);
+            ByteBuffer second = ByteBuffer.allocate(3000 * SECTOR);
+            channel.position(SECTOR - 3);
+            assertEquals(first.capacity() + second.capacity(),
+                    channel.read(new ByteBuffer[] { first, second }));
+            int offset = SECTOR - 3;
+            assertTrue(Arrays.equals(
+                    Arrays.copyOfRange(expected, offset, offset + first.capacity()),
+                    first.array()));
+            offset += first.capacity();
+            assertTrue(Arrays.equals(
+                    Arrays.copyOfRange(expected, offset, offset + second.capacity()),
+                    second.array()));
+        } finally {
+            ebf.close();
+        }
+    }
+
+    public void testWriteThenReadThroughCache() throws Exception {
+        File file = createFile(1024);
+        byte[] expected = new byte[1024 * SECTOR];
+        EncryptedBlockFile ebf = new EncryptedBlockFile(mKey, file, "rw");
+        try {
+            FileChannel channel = ebf.getEncryptedFileChannel();
+            // small reads, which keep the decrypted sectors
+            for (int sector = 0; sector < 16; sector++) {
+                assertTrue(Arrays.equals(new byte[SECTOR], read(channel, sector * SECTOR,
+                        SECTOR)));
+            }
+
+            // small writes over cached sectors
+            write(channel, expected, 2 * SECTOR + 10, 20);
+            write(channel, expected, 4 * SECTOR, 2 * SECTOR);
+            assertTrue(Arrays.equals(Arrays.copyOfRange(expected, 0, 16 * SECTOR),
+                    read(channel, 0, 16 * SECTOR)));
+            for (int sector = 0; sector < 16; sector++) {
+                assertTrue(Arrays.equals(
+                        Arrays.copyOfRange(expected, sector * SECTOR, (sector + 1) * SECTOR),
+                        read(channel, sector * SECTOR, SECTOR)));
+            }
+
+            // a write of more sectors than are cached
+            write(channel, expected, 5, 600 * SECTOR);
+            for (int sector = 0; sector < 16; sector++) {
+                assertTrue(Arrays.equals(
+                        Arrays.copyOfRange(expected, sector * SECTOR, (sector + 1) * SECTOR),
+                        read(channel, sector * SECTOR, SECTOR)));
+            }
+        } finally {
+            ebf.close();
+        }
+
+        assertTrue(Arrays.equals(expected, read(file, 0, expected.length)));
+    }
+
+    public void testParallelMatchesSerial() throws Exception {
+        int sectors = 1536;
+        byte[] data = new byte[sectors * SECTOR];
+        mRandom.nextBytes(data);
+
+        // a single write, encrypted in parallel
+        File parallel = createFile(sectors);
+        EncryptedBlockFile ebf = new EncryptedBlockFile(mKey, parallel, "rw");
+        try {
+            FileChannel channel = ebf.getEncryptedFileChannel();
+            channel.write(ByteBuffer.wrap(data), 0);
+        } finally {
+            ebf.close();
+        }
+
+        // writes of a few sectors at a time, encrypted serially
+        File serial = createFile(sectors);
+        ebf = new EncryptedBlockFile(mKey, serial, "rw");
+        try {
+            FileChannel channel = ebf.getEncryptedFileChannel();
+            for (int offset = 0; offset < data.length; offset += 3 * SECTOR) {
+                channel.write(ByteBuffer.wrap(data, offset, 3 * SECTOR), offset);
+            }
+        } finally {
+            ebf.close();
+        }
+
+        byte[] raw = readRaw(parallel);
+        assertTrue(Arrays.equals(readRaw(serial), raw));
+        assertFalse(Arrays.equals(data, raw));
+
+        // decrypted in parallel, and serially
+        assertTrue(Arrays.equals(data, read(parallel, 0, data.length)));
+        ebf = new EncryptedBlockFile(mKey, parallel, "r");
+        try {
+            FileChannel channel = ebf.getEncryptedFileChannel();
+            for (int offset = 0; offset < data.length; offset += 2 * SECTOR) {
+                assertTrue(Arrays.equals(Arrays.copyOfRange(data, offset, offset + 2 * SECTOR),
+                        read(channel, offset, 2 * SECTOR)));
+            }
+        } finally {
+            ebf.close();
+        }
+    }
+
+    public void testReadPastEnd() throws Exception {
+        File file = createFile(4);
+        EncryptedBlockFile ebf = new EncryptedBlockFile(mKey, file, "r");
+        try {
+            read(ebf.getEncryptedFileChannel(), 3 * SECTOR + 1, SECTOR);
+            fail("read past the end of the file");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            ebf.close();
+        }
+    }
+
+    /** Creates a file of cleared sectors */
+    private File createFile(int sectors) throws Exception {
+        File file = File.createTempFile("EncryptedBlockFileTest", ".img");
+        mFiles.add(file);
+        EncryptedBlockFile ebf = new EncryptedBlockFile(mKey, file, "rw");
+        try {
+            ebf.setLength(sectors * SECTOR);
+        } finally {
+            ebf.close();
+        }
+        return file;
+    }
+
+    private void write(FileChannel channel, byte[] expected, int offset, int length)
+            throws IOException {
+        byte[] data = new byte[length];
+        mRandom.nextBytes(data);
+        System.arraycopy(data, 0, expected, offset, length);
+        assertEquals(length, channel.write(ByteBuffer.wrap(data), offset));
+    }
+
+    private static byte[] read(FileChannel channel, long offset, int length)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        assertEquals(length, channel.read(buffer, offset));
+        return buffer.array();
+    }
+
+    private byte[] read(File file, long offset, int length) throws Exception {
+        EncryptedBlockFile ebf = new EncryptedBlockFile(mKey, file, "r");
+        try {
+            return read(ebf.getEncryptedFileChannel(), offset, length);
+        } finally {
+            ebf.close();
+        }
+    }
+
+    private static byte[] readRaw(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] contents = new byte[(int) raf.length()];
+            raf.readFully(contents);
+            return contents;
+        } finally {
+            raf.close();
+        }
+    }
+}
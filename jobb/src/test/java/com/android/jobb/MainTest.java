@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.jobb;
+
+import de.waldheinz.fs.BlockDevice;
+import de.waldheinz.fs.FsDirectory;
+import de.waldheinz.fs.FsDirectoryEntry;
+import de.waldheinz.fs.FsFile;
+import de.waldheinz.fs.fat.FatFileSystem;
+import de.waldheinz.fs.util.FileDisk;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+
+public class MainTest extends TestCase {
+
+    private static final String PACKAGE_NAME = "com.example.obb";
+
+    private static final String SALT = "0123456789abcdef";
+
+    private File mInput;
+    private File mOutput;
+    private long mInputSize;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mInput = File.createTempFile("MainTest", "");
+        assertTrue(mInput.delete());
+        assertTrue(mInput.mkdir());
+        mOutput = File.createTempFile("MainTest", ".obb");
+
+        Random random = new Random(7);
+        writeFile(new File(mInput, "a.txt"), random, 10);
+        writeFile(new File(mInput, "empty.txt"), random, 0);
+        File sub = new File(mInput, "sub");
+        assertTrue(sub.mkdir());
+        // larger than the copy and disk buffers, so written and encrypted in several batches
+        writeFile(new File(sub, "large.bin"), random, 9 * 1024 * 1024 + 123);
+        File deeper = new File(sub, "a rather long directory name");
+        assertTrue(deeper.mkdir());
+        writeFile(new File(deeper, "cluster.bin"), random, 4096 + 1);
+        assertTrue(new File(mInput, "empty").mkdir());
+
+        resetOptions();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        resetOptions();
+        deleteRecursively(mInput);
+        assertTrue(mOutput.delete());
+        super.tearDown();
+    }
+
+    public void testScannedFile() throws Exception {
+        Main.ScannedFile scan = new Main.ScannedFile(mInput);
+        assertTrue(scan.isDirectory());
+        assertEquals(4, scan.mChildren.length);
+        checkScan(scan);
+    }
+
+    public void testScannedFileUnreadableDirectory() throws Exception {
+        File locked = new File(mInput, "locked");
+        assertTrue(locked.mkdir());
+        assertTrue(locked.setReadable(false));
+        try {
+            if (null != locked.list()) {
+                // running as a user who can list any directory
+                return;
+            }
+            try {
+                new Main.ScannedFile(mInput);
+                fail("scanned an unreadable directory");
+            } catch (RuntimeException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(locked.getPath()));
+            }
+        } finally {
+            assertTrue(locked.setReadable(true));
+        }
+    }
+
+    public void testGetTotalFileSize() throws Exception {
+        assertEquals(mInputSize, Main.getTotalFileSize(mInput, 0));
+        // each file is rounded up to whole clusters, and directories take space too
+        long size = Main.getTotalFileSize(mInput, 4096);
+        assertTrue(size > mInputSize);
+        assertEquals(0, size % 4096);
+    }
+
+    public void testCreateObb() throws Exception {
+        Main.main(new String[] {
+                "-d", mInput.getPath(), "-o", mOutput.getPath(),
+                "-pn", PACKAGE_NAME, "-pv", "3" });
+
+        ObbFile obbFile = new ObbFile();
+        assertTrue(obbFile.readFrom(mOutput));
+        assertEquals(PACKAGE_NAME, obbFile.mPackageName);
+        assertEquals(3, obbFile.mPackageVersion);
+        assertEquals(0, obbFile.mFlags & ObbFile.OBB_SALTED);
+
+        checkContents(new FileDisk(mOutput, true));
+    }
+
+    public void testCreateEncryptedObb() throws Exception {
+        Main.main(new String[] {
+                "-d", mInput.getPath(), "-o", mOutput.getPath(),
+                "-pn", PACKAGE_NAME, "-pv", "4", "-k", "password", "-salt", SALT });
+
+        ObbFile obbFile = new ObbFile();
+        assertTrue(obbFile.readFrom(mOutput));
+        assertEquals(4, obbFile.mPackageVersion);
+        assertTrue(0 != (obbFile.mFlags & ObbFile.OBB_SALTED));
+        byte[] salt = new BigInteger(SALT, 16).toByteArray();
+        assertTrue(Arrays.equals(salt, obbFile.mSalt));
+
+        EncryptedBlockFile ebf = new EncryptedBlockFile(PBKDF.getKey("password", salt),
+                mOutput, "r");
+        checkContents(new FileDisk(ebf, ebf.getEncryptedFileChannel(), true));
+    }
+
+    private void checkContents(BlockDevice device) throws IOException {
+        try {
+            FatFileSystem fs = FatFileSystem.read(device, true);
+            checkDirectory(fs.getRoot(), mInput);
+        } finally {
+            device.close();
+        }
+    }
+
+    /** Checks the directory of the image has the same contents as the input directory */
+    private static void checkDirectory(FsDirectory directory, File expected) throws IOException {
+        Set<String> names = new HashSet<String>();
+        Iterator<FsDirectoryEntry> entries = directory.iterator();
+        while (entries.hasNext()) {
+            FsDirectoryEntry entry = entries.next();
+            if (entry.getName().equals(".") || entry.getName().equals("..")) {
+                continue;
+            }
+            names.add(entry.getName());
+            File file = new File(expected, entry.getName());
+            if (entry.isDirectory()) {
+                assertTrue(file.isDirectory());
+                checkDirectory(entry.getDirectory(), file);
+            } else {
+                FsFile fsFile = entry.getFile();
+                assertEquals(file.length(), fsFile.getLength());
+                ByteBuffer contents = ByteBuffer.allocate((int) fsFile.getLength());
+                fsFile.read(0, contents);
+                assertTrue(file.getPath(), Arrays.equals(readFile(file), contents.array()));
+            }
+        }
+        assertEquals(new HashSet<String>(Arrays.asList(expected.list())), names);
+    }
+
+    private static void checkScan(Main.ScannedFile scan) {
+        File file = scan.mFile;
+        if (file.isDirectory()) {
+            assertTrue(scan.isDirectory());
+            Set<String> names = new HashSet<String>();
+            for (Main.ScannedFile child : scan.mChildren) {
+                assertEquals(file, child.mFile.getParentFile());
+                names.add(child.mFile.getName());
+                checkScan(child);
+            }
+            assertEquals(new HashSet<String>(Arrays.asList(file.list())), names);
+        } else {
+            assertFalse(scan.isDirectory());
+            assertEquals(file.length(), scan.mLength);
+        }
+    }
+
+    private void writeFile(File file, Random random, int length) throws IOException {
+        byte[] contents = new byte[length];
+        random.nextBytes(contents);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+        mInputSize += length;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] contents = new byte[(int) raf.length()];
+            raf.readFully(contents);
+            return contents;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (null != children) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        assertTrue(file.delete());
+    }
+
+    /** Main keeps its options in static fields */
+    private static void resetOptions() {
+        Main.sDirectory = null;
+        Main.sDirectoryFile = null;
+        Main.sHasOutputDirectory = false;
+        Main.sKey = null;
+        Main.sOutputFile = null;
+        Main.sVerboseMode = false;
+        Main.sPackageName = null;
+        Main.sPackageVersion = -1;
+        Main.sSalt = null;
+        Main.sOverlay = false;
+        Main.sFlags = 0;
+        Main.sInputFile = null;
+        Main.sFishKey = null;
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import static com.android.SdkConstants.DOT_CLASS;
+import static com.android.SdkConstants.DOT_JAR;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+import org.eclipse.jdt.core.compiler.CharOperation;
+import org.eclipse.jdt.internal.compiler.batch.FileSystem;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFileReader;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFormatException;
+import org.eclipse.jdt.internal.compiler.env.IBinaryType;
+import org.eclipse.jdt.internal.compiler.env.INameEnvironment;
+import org.eclipse.jdt.internal.compiler.env.NameEnvironmentAnswer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Name environment used by ECJ to look up the types of the class path.
+ * <p>
+ * ECJ's own {@link FileSystem} reads and decodes the class files of the jar files every
+ * time a compiler asks for them, which means that the android.jar and library classes
+ * referenced by a project are decoded again for every lint run (and for every project of
+ * a multi-project run). This environment instead shares the decoded types of each jar
+ * file between all the environments of the process, such that unchanged libraries don't
+ * have to be read again. The types are fully initialized when decoded, so they are not
+ * modified afterwards and can be shared between compilers running in parallel. They are
+ * kept in memory as long as there is enough of it.
+ * <p>
+ * Class folders and source folders change much more often and are looked up through
+ * a {@link FileSystem}, as before.
+ */
+class EcjNameEnvironment implements INameEnvironment {
+    private static final String DOT_ZIP = ".zip"; //$NON-NLS-1$
+
+    /** The types of the jar files read so far, by jar file */
+    private static final Map<File, SoftReference<JarTypes>> sCache = Maps.newHashMap();
+
+    /** The class path entries, in class path order */
+    @NonNull private final List<Object> mEntries;
+    /** The jar files opened by this environment, closed on {@link #cleanup()} */
+    @NonNull private final Map<JarTypes, ZipFile> mZipFiles = Maps.newHashMap();
+    private int mHitCount;
+    private int mMissCount;
+
+    EcjNameEnvironment(@NonNull List<String> classPath, @Nullable String encoding) {
+        mEntries = Lists.newArrayListWithCapacity(classPath.size());
+        for (String path : classPath) {
+            File file = new File(path);
+            if (isJar(file)) {
+                JarTypes types = getJarTypes(file);
+                if (types != null) {
+                    mEntries.add(types);
+                }
+            } else if (file.exists()) {
+                mEntries.add(new FileSystem(new String[] { path }, new String[0], encoding));
+            }
+        }
+    }
+
+    private static boolean isJar(@NonNull File file) {
+        String name = file.getName().toLowerCase(Locale.US);
+        return (name.endsWith(DOT_JAR) || name.endsWith(DOT_ZIP)) && file.isFile();
+    }
+
+    @Nullable
+    private static JarTypes getJarTypes(@NonNull File jar) {
+        synchronized (sCache) {
+            SoftReference<JarTypes> reference = sCache.get(jar);
+            if (reference != null) {
+                JarTypes types = reference.get();
+                if (types != null && types.isUpToDate()) {
+                    return types;
+                }
+            }
+
+            JarTypes types = JarTypes.create(jar);
+            if (types != null) {
+                sCache.put(jar, new SoftReference<JarTypes>(types));
+            } else {
+                sCache.remove(jar);
+            }
+            return types;
+        }
+    }
+
+    /** Drops the types shared between the environments */
+    @VisibleForTesting
+    static void clearCache() {
+        synchronized (sCache) {
+            sCache.clear();
+        }
+    }
+
+    /** Returns the number of jar types which had already been decoded */
+    int getHitCount() {
+        return mHitCount;
+    }
+
+    /** Returns the number of jar types which had to be decoded */
+    int getMissCount() {
+        return mMissCount;
+    }
+
+    @Override
+    public NameEnvironmentAnswer findType(char[][] compoundTypeName) {
+        if (compoundTypeName == null) {
+            return null;
+        }
+        String name = new String(CharOperation.concatWith(compoundTypeName, '/'));
+        for (Object entry : mEntries) {
+            NameEnvironmentAnswer answer;
+            if (entry instanceof JarTypes) {
+                answer = findType((JarTypes) entry, name);
+            } else {
+                answer = ((FileSystem) entry).findType(compoundTypeName);
+            }
+            if (answer != null) {
+                return answer;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public NameEnvironmentAnswer findType(char[] typeName, char[][] packageName) {
+        if (typeName == null) {
+            return null;
+        }
+        return findType(CharOperation.arrayConcat(packageName, typeName));
+    }
+
+    @Override
+    public boolean isPackage(char[][] parentPackageName, char[] packageName) {
+        String name = new String(CharOperation.concatWith(parentPackageName, packageName, '/'));
+        for (Object entry : mEntries) {
+            if (entry instanceof JarTypes) {
+                if (((JarTypes) entry).isPackage(name)) {
+                    return true;
+                }
+            } else if (((FileSystem) entry).isPackage(parentPackageName, packageName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void cleanup() {
+        for (ZipFile zipFile : mZipFiles.values()) {
+            try {
+                zipFile.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        mZipFiles.clear();
+        for (Object entry : mEntries) {
+            if (entry instanceof FileSystem) {
+                ((FileSystem) entry).cleanup();
+            }
+        }
+    }
+
+    @Nullable
+    private NameEnvironmentAnswer findType(@NonNull JarTypes types, @NonNull String name) {
+        if (!types.contains(name)) {
+            return null;
+        }
+
+        IBinaryType type = types.get(name);
+        if (type != null) {
+            mHitCount++;
+        } else {
+            type = types.read(getZipFile(types), name);
+            if (type == null) {
+                return null;
+            }
+            mMissCount++;
+        }
+
+        return new NameEnvironmentAnswer(type, null);
+    }
+
+    @Nullable
+    private ZipFile getZipFile(@NonNull JarTypes types) {
+        ZipFile zipFile = mZipFiles.get(types);
+        if (zipFile == null) {
+            try {
+                zipFile = new ZipFile(types.mJar);
+            } catch (IOException e) {
+                return null;
+            }
+            mZipFiles.put(types, zipFile);
+        }
+        return zipFile;
+    }
+
+    /** The classes and packages of a jar file, along with the classes decoded so far */
+    private static final class JarTypes {
+        @NonNull private final File mJar;
+        private final long mLength;
+        private final long mLastModified;
+        /** The names of the classes of the jar file, in VM format (e.g. java/lang/Integer) */
+        @NonNull private final Set<String> mClasses;
+        @NonNull private final Set<String> mPackages;
+        @NonNull private final ConcurrentMap<String, IBinaryType> mTypes =
+                Maps.newConcurrentMap();
+
+        private JarTypes(@NonNull File jar, @NonNull Set<String> classes,
+                @NonNull Set<String> packages) {
+            mJar = jar;
+            mLength = jar.length();
+            mLastModified = jar.lastModified();
+            mClasses = classes;
+            mPackages = packages;
+        }
+
+        @Nullable
+        static JarTypes create(@NonNull File jar) {
+            ZipFile zipFile = null;
+            try {
+                zipFile = new ZipFile(jar);
+                Set<String> classes = Sets.newHashSetWithExpectedSize(zipFile.size());
+                Set<String> packages = Sets.newHashSet();
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    String name = entries.nextElement().getName();
+                    if (name.endsWith(DOT_CLASS)) {
+                        classes.add(name.substring(0, name.length() - DOT_CLASS.length()));
+                    }
+                    int index = name.lastIndexOf('/');
+                    while (index > 0) {
+                        name = name.substring(0, index);
+                        if (!packages.add(name)) {
+                            break;
+                        }
+                        index = name.lastIndexOf('/');
+                    }
+                }
+                return new JarTypes(jar, classes, packages);
+            } catch (IOException e) {
+                return null;
+            } finally {
+                if (zipFile != null) {
+                    try {
+                        zipFile.close();
+                    } catch (IOException e) {
+                        // Ignore
+                    }
+                }
+            }
+        }
+
+        /** Returns true if the jar file has not changed since it was read */
+        boolean isUpToDate() {
+            return mJar.length() == mLength && mJar.lastModified() == mLastModified;
+        }
+
+        boolean contains(@NonNull String name) {
+            return mClasses.contains(name);
+        }
+
+        boolean isPackage(@NonNull String name) {
+            return mPackages.contains(name);
+        }
+
+        @Nullable
+        IBinaryType get(@NonNull String name) {
+            return mTypes.get(name);
+        }
+
+        @Nullable
+        IBinaryType read(@Nullable ZipFile zipFile, @NonNull String name) {
+            if (zipFile == null) {
+                return null;
+            }
+            String entryName = name + DOT_CLASS;
+            ZipEntry entry = zipFile.getEntry(entryName);
+            if (entry == null) {
+                return null;
+            }
+            InputStream stream = null;
+            try {
+                stream = zipFile.getInputStream(entry);
+                byte[] bytes = ByteStreams.toByteArray(stream);
+                // Fully initialized: not modified when used by the compilers
+                IBinaryType type = new ClassFileReader(bytes, entryName.toCharArray(), true);
+                IBinaryType previous = mTypes.putIfAbsent(name, type);
+                return previous != null ? previous : type;
+            } catch (IOException e) {
+                return null;
+            } catch (ClassFormatException e) {
+                return null;
+            } finally {
+                Closeables.closeQuietly(stream);
+            }
+        }
+    }
+}
@@ -31,6 +31,7 @@ import com.android.tools.lint.detector.api.JavaContext;
 import com.android.tools.lint.detector.api.Location;
 import com.android.tools.lint.detector.api.Project;
 import com.android.tools.lint.detector.api.Scope;
+import com.android.tools.lint.detector.api.Severity;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -72,7 +73,6 @@ import org.eclipse.jdt.internal.compiler.ast.TrueLiteral;
 import org.eclipse.jdt.internal.compiler.ast.TypeDeclaration;
 import org.eclipse.jdt.internal.compiler.ast.TypeReference;
 import org.eclipse.jdt.internal.compiler.batch.CompilationUnit;
-import org.eclipse.jdt.internal.compiler.batch.FileSystem;
 import org.eclipse.jdt.internal.compiler.classfmt.ClassFileConstants;
 import org.eclipse.jdt.internal.compiler.env.ICompilationUnit;
 import org.eclipse.jdt.internal.compiler.env.INameEnvironment;
@@ -131,6 +131,7 @@ public class EcjParser extends JavaParser {
 
     private final LintClient mClient;
     private final Project mProject;
+    private final boolean mVerbose;
     private Map<File, ICompilationUnit> mSourceUnits;
     private Map<ICompilationUnit, CompilationUnitDeclaration> mCompiled;
     private Map<String, TypeDeclaration> mTypeUnits;
@@ -140,6 +141,7 @@ public class EcjParser extends JavaParser {
     public EcjParser(@NonNull LintCliClient client, @Nullable Project project) {
         mClient = client;
         mProject = project;
+        mVerbose = client.getFlags().isVerbose();
         mParser = getParser();
     }
 
@@ -233,6 +235,14 @@ public class EcjParser extends JavaParser {
             mClient.log(t, "ECJ compiler crashed");
         }
 
+        if (mVerbose && mEnvironment instanceof EcjNameEnvironment) {
+            EcjNameEnvironment environment = (EcjNameEnvironment) mEnvironment;
+            mClient.log(Severity.INFORMATIONAL, null,
+                    "%1$s: %2$d library types reused, %3$d decoded",
+                    mProject.getName(), environment.getHitCount(),
+                    environment.getMissCount());
+        }
+
         if (DEBUG_DUMP_PARSE_ERRORS) {
             for (CompilationUnitDeclaration unit : mCompiled.values()) {
                 // so maybe I don't need my map!!
@@ -260,8 +270,7 @@ public class EcjParser extends JavaParser {
             @NonNull List<String> classPath,
             @NonNull Map<ICompilationUnit, CompilationUnitDeclaration> outputMap,
             @Nullable LintClient client) {
-        INameEnvironment environment = new FileSystem(
-                classPath.toArray(new String[classPath.size()]), new String[0],
+        INameEnvironment environment = new EcjNameEnvironment(classPath,
                 options.defaultEncoding);
         IErrorHandlingPolicy policy = DefaultErrorHandlingPolicies.proceedWithAllProblems();
         IProblemFactory problemFactory = new DefaultProblemFactory(Locale.getDefault());
@@ -112,6 +112,8 @@ public class LintCliClient extends LintClient {
         mDriver = new LintDriver(registry, this);
 
         mDriver.setAbbreviating(!mFlags.isShowEverything());
+        mDriver.setParallel(mFlags.isParallel());
+        mDriver.setIncremental(mFlags.isIncremental());
         addProgressPrinter();
         mDriver.addLintListener(new LintListener() {
             @Override
@@ -192,7 +194,7 @@ public class LintCliClient extends LintClient {
     private final Map<File, String> mFileContents = new HashMap<File, String>(100);
 
     /** Read the contents of the given file, possibly cached */
-    private String getContents(File file) {
+    private synchronized String getContents(File file) {
         String s = mFileContents.get(file);
         if (s == null) {
             s = readFile(file);
@@ -355,7 +357,7 @@ public class LintCliClient extends LintClient {
 
     @Override
     @NonNull
-    protected ClassPathInfo getClassPath(@NonNull Project project) {
+    protected synchronized ClassPathInfo getClassPath(@NonNull Project project) {
         ClassPathInfo classPath = super.getClassPath(project);
 
         List<File> sources = mFlags.getSourcesOverride();
@@ -585,6 +587,9 @@ public class LintCliClient extends LintClient {
                 case SCANNING_FILE:
                     System.out.print('.');
                     break;
+                case SCANNED_PROJECT:
+                    // Ignored for now: projects may be checked in parallel
+                    break;
                 case NEW_PHASE:
                     // Ignored for now: printing status as part of next project's status
                     break;
@@ -691,7 +696,7 @@ public class LintCliClient extends LintClient {
     private static Set<File> sAlreadyWarned;
 
     /** Returns the configuration used by this client */
-    Configuration getConfiguration() {
+    synchronized Configuration getConfiguration() {
         if (mConfiguration == null) {
             File configFile = mFlags.getDefaultConfiguration();
             if (configFile != null) {
@@ -721,6 +726,12 @@ public class LintCliClient extends LintClient {
         return new CliConfiguration(file, mFlags.isFatalOnly());
     }
 
+    @Nullable
+    @Override
+    public String getClientRevision() {
+        return getRevision();
+    }
+
     @Nullable
     String getRevision() {
         File file = findResource("tools" + File.separator +     //$NON-NLS-1$
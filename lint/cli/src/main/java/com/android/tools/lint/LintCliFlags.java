@@ -48,6 +48,7 @@ public class LintCliFlags {
     private boolean mShowLines = true;
     private final List<Reporter> mReporters = Lists.newArrayList();
     private boolean mQuiet;
+    private boolean mVerbose;
     private boolean mWarnAll;
     private boolean mNoWarnings;
     private boolean mAllErrors;
@@ -60,6 +61,8 @@ public class LintCliFlags {
 
     private File mDefaultConfiguration;
     private boolean mShowAll;
+    private boolean mParallel;
+    private boolean mIncremental;
 
     public static final int ERRNO_SUCCESS = 0;
     public static final int ERRNO_ERRORS = 1;
@@ -180,6 +183,22 @@ public class LintCliFlags {
         mQuiet = quiet;
     }
 
+    /**
+     * Returns whether lint should log extra information about the analysis, such as how
+     * many library types were reused from the previous projects or runs
+     */
+    public boolean isVerbose() {
+        return mVerbose;
+    }
+
+    /**
+     * Sets whether lint should log extra information about the analysis, such as how
+     * many library types were reused from the previous projects or runs
+     */
+    public void setVerbose(boolean verbose) {
+        mVerbose = verbose;
+    }
+
     /** Returns whether lint should check all warnings, including those off by default */
     public boolean isCheckAllWarnings() {
         return mWarnAll;
@@ -226,6 +245,26 @@ public class LintCliFlags {
         mShowAll = showAll;
     }
 
+    /** Returns whether lint should check several files at the same time */
+    public boolean isParallel() {
+        return mParallel;
+    }
+
+    /** Sets whether lint should check several files at the same time */
+    public void setParallel(boolean parallel) {
+        mParallel = parallel;
+    }
+
+    /** Returns whether lint should reuse the results of the previous run for unchanged files */
+    public boolean isIncremental() {
+        return mIncremental;
+    }
+
+    /** Sets whether lint should reuse the results of the previous run for unchanged files */
+    public void setIncremental(boolean incremental) {
+        mIncremental = incremental;
+    }
+
     /**
      * Returns the default configuration file to use as a fallback
      */
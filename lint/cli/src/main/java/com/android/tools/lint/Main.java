@@ -76,6 +76,7 @@ public class Main {
     private static final String ARG_LIST_IDS   = "--list";         //$NON-NLS-1$
     private static final String ARG_SHOW       = "--show";         //$NON-NLS-1$
     private static final String ARG_QUIET      = "--quiet";        //$NON-NLS-1$
+    private static final String ARG_VERBOSE    = "--verbose";      //$NON-NLS-1$
     private static final String ARG_FULL_PATH  = "--fullpath";     //$NON-NLS-1$
     private static final String ARG_SHOW_ALL   = "--showall";      //$NON-NLS-1$
     private static final String ARG_HELP       = "--help";         //$NON-NLS-1$
@@ -88,6 +89,8 @@ public class Main {
     private static final String ARG_URL        = "--url";          //$NON-NLS-1$
     private static final String ARG_VERSION    = "--version";      //$NON-NLS-1$
     private static final String ARG_EXIT_CODE  = "--exitcode";     //$NON-NLS-1$
+    private static final String ARG_PARALLEL   = "--parallel";     //$NON-NLS-1$
+    private static final String ARG_INCREMENTAL = "--incremental"; //$NON-NLS-1$
     private static final String ARG_CLASSES    = "--classpath";    //$NON-NLS-1$
     private static final String ARG_SOURCES    = "--sources";      //$NON-NLS-1$
     private static final String ARG_RESOURCES  = "--resources";    //$NON-NLS-1$
@@ -278,10 +281,16 @@ public class Main {
                 mFlags.setShowEverything(true);
             } else if (arg.equals(ARG_QUIET) || arg.equals("-q")) {
                 mFlags.setQuiet(true);
+            } else if (arg.equals(ARG_VERBOSE)) {
+                mFlags.setVerbose(true);
             } else if (arg.equals(ARG_NO_LINES)) {
                 mFlags.setShowSourceLines(false);
             } else if (arg.equals(ARG_EXIT_CODE)) {
                 mFlags.setSetExitCode(true);
+            } else if (arg.equals(ARG_PARALLEL)) {
+                mFlags.setParallel(true);
+            } else if (arg.equals(ARG_INCREMENTAL)) {
+                mFlags.setIncremental(true);
             } else if (arg.equals(ARG_VERSION)) {
                 printVersion(client);
                 System.exit(ERRNO_SUCCESS);
@@ -962,6 +971,10 @@ public class Main {
             ARG_LIST_IDS, "List the available issue id's and exit.",
             ARG_VERSION, "Output version information and exit.",
             ARG_EXIT_CODE, "Set the exit code to " + ERRNO_ERRORS + " if errors are found.",
+            ARG_PARALLEL, "Check several files at the same time with the checks that " +
+                "support it.",
+            ARG_INCREMENTAL, "Reuse the results of the previous run for the files which " +
+                "have not changed, with the checks that support it.",
             ARG_SHOW, "List available issues along with full explanations.",
             ARG_SHOW + " <ids>", "Show full explanations for the given list of issue id's.",
 
@@ -985,6 +998,8 @@ public class Main {
 
             "", "\nOutput Options:",
             ARG_QUIET, "Don't show progress.",
+            ARG_VERBOSE, "Show extra information about the analysis, such as how many " +
+                "library classes were reused from previous projects.",
             ARG_FULL_PATH, "Use full paths in the error output.",
             ARG_SHOW_ALL, "Do not truncate long messages, lists of alternate locations, etc.",
             ARG_NO_LINES, "Do not include the source file lines with errors " +
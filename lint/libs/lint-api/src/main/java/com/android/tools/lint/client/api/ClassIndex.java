@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api;
+
+import static com.android.SdkConstants.DOT_CLASS;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.annotations.concurrency.GuardedBy;
+import com.google.common.annotations.Beta;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import org.objectweb.asm.ClassReader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * An index of the classes of a library jar file, recording the super class of each class.
+ * <p>
+ * This is used to look up the class hierarchy of the libraries of a project without
+ * reading and inflating all their classes. The indexes are shared by all the projects
+ * depending on the same jar file, and are kept in memory as long as there is enough of it.
+ * They are also stored in the lint cache directory, keyed by the hash of the jar file, so
+ * that a library is only read once until it changes.
+ * <p>
+ * Each project looks up the indexes of its jar files once, see
+ * {@link com.android.tools.lint.detector.api.Project#getClassIndexes()}.
+ * <p>
+ * <b>NOTE: This is not a public or final API; if you rely on this be prepared
+ * to adjust your code for the next tools release.</b>
+ */
+@Beta
+public final class ClassIndex {
+    /** Version of the file format, to be bumped when changing it */
+    private static final int VERSION = 1;
+
+    /** Name of the folder of the cache directory storing the indexes */
+    private static final String CACHE_FOLDER = "lint-classes"; //$NON-NLS-1$
+
+    private static final String JAVA_LANG_OBJECT = "java/lang/Object"; //$NON-NLS-1$
+
+    @GuardedBy("sCache")
+    private static final Map<File, SoftReference<ClassIndex>> sCache =
+            new HashMap<File, SoftReference<ClassIndex>>();
+
+    /** The jar files being indexed, such that each jar file is only indexed once */
+    @GuardedBy("sCache")
+    private static final Map<File, FutureTask<ClassIndex>> sPending =
+            new HashMap<File, FutureTask<ClassIndex>>();
+
+    @NonNull private final File mJar;
+    private final long mLength;
+    private final long mLastModified;
+    /** The super class of each class in the jar, or null for java/lang/Object */
+    @NonNull private final Map<String, String> mSuperClasses;
+
+    private ClassIndex(@NonNull File jar, @NonNull Map<String, String> superClasses) {
+        mJar = jar;
+        mLength = jar.length();
+        mLastModified = jar.lastModified();
+        mSuperClasses = superClasses;
+    }
+
+    /**
+     * Returns the index of the given jar file, creating it if necessary.
+     *
+     * @param client the client used to look up the cache directory and to log errors
+     * @param jar the jar file
+     * @return the index, or null if the jar file could not be read
+     */
+    @Nullable
+    static ClassIndex get(@NonNull final LintClient client, @NonNull final File jar) {
+        FutureTask<ClassIndex> task;
+        boolean create = false;
+        synchronized (sCache) {
+            SoftReference<ClassIndex> reference = sCache.get(jar);
+            if (reference != null) {
+                ClassIndex index = reference.get();
+                if (index != null && index.isUpToDate()) {
+                    return index;
+                }
+                sCache.remove(jar);
+            }
+
+            task = sPending.get(jar);
+            if (task == null) {
+                task = new FutureTask<ClassIndex>(new Callable<ClassIndex>() {
+                    @Override
+                    public ClassIndex call() throws Exception {
+                        return create(client, jar);
+                    }
+                });
+                sPending.put(jar, task);
+                create = true;
+            }
+        }
+
+        if (!create) {
+            // Another thread is indexing the same jar file
+            return getIndex(task);
+        }
+
+        // Index the jar file without holding the lock, such that the indexes of the other
+        // jar files can be looked up (and created) meanwhile
+        task.run();
+        synchronized (sCache) {
+            sPending.remove(jar);
+            ClassIndex index = getIndex(task);
+            if (index != null) {
+                sCache.put(jar, new SoftReference<ClassIndex>(index));
+            }
+            return index;
+        }
+    }
+
+    @Nullable
+    private static ClassIndex getIndex(@NonNull FutureTask<ClassIndex> task) {
+        try {
+            return Uninterruptibles.getUninterruptibly(task);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /** Drops the indexes kept in memory */
+    @VisibleForTesting
+    static void clearCache() {
+        synchronized (sCache) {
+            sCache.clear();
+        }
+    }
+
+    @Nullable
+    private static ClassIndex create(@NonNull LintClient client, @NonNull File jar) {
+        if (!jar.isFile()) {
+            return null;
+        }
+
+        File cacheFile = null;
+        try {
+            File cacheDir = client.getCacheDir(true);
+            if (cacheDir != null) {
+                String hash = Files.hash(jar, Hashing.sha1()).toString();
+                cacheFile = new File(cacheDir, CACHE_FOLDER + File.separator + hash);
+                Map<String, String> superClasses = read(cacheFile);
+                if (superClasses != null) {
+                    return new ClassIndex(jar, superClasses);
+                }
+            }
+
+            Map<String, String> superClasses = index(client, jar);
+            if (cacheFile != null) {
+                try {
+                    write(cacheFile, superClasses);
+                } catch (IOException e) {
+                    client.log(e, "Could not write class index %1$s", cacheFile);
+                }
+            }
+            return new ClassIndex(jar, superClasses);
+        } catch (IOException e) {
+            client.log(e, "Could not read jar file contents from %1$s", jar);
+            return null;
+        }
+    }
+
+    /** Returns true if the jar file has not changed since it was indexed */
+    private boolean isUpToDate() {
+        return mJar.length() == mLength && mJar.lastModified() == mLastModified;
+    }
+
+    /**
+     * Returns true if the given class is in the jar file.
+     *
+     * @param name the class name, in VM format (e.g. java/lang/Integer)
+     * @return true if the jar file contains the class
+     */
+    boolean contains(@NonNull String name) {
+        return mSuperClasses.containsKey(name);
+    }
+
+    /**
+     * Returns the super class of the given class of the jar file.
+     *
+     * @param name the class name, in VM format (e.g. java/lang/Integer)
+     * @return the super class name, or null if the class is not in the jar file or
+     *         directly extends java/lang/Object
+     */
+    @Nullable
+    String getSuperClass(@NonNull String name) {
+        return mSuperClasses.get(name);
+    }
+
+    /** Returns the number of classes in the jar file */
+    int getClassCount() {
+        return mSuperClasses.size();
+    }
+
+    /**
+     * Reads the bytecode of the given class from the jar file.
+     *
+     * @param name the class name, in VM format (e.g. java/lang/Integer)
+     * @return the class file contents, or null if the class is not in the jar file
+     * @throws IOException if the jar file can't be read
+     */
+    @Nullable
+    byte[] readClass(@NonNull String name) throws IOException {
+        if (!contains(name)) {
+            return null;
+        }
+
+        ZipFile zipFile = new ZipFile(mJar);
+        try {
+            ZipEntry entry = zipFile.getEntry(name + DOT_CLASS);
+            if (entry == null) {
+                return null;
+            }
+            InputStream stream = zipFile.getInputStream(entry);
+            try {
+                return ByteStreams.toByteArray(stream);
+            } finally {
+                Closeables.closeQuietly(stream);
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    /** Reads the class headers of all the classes of the given jar file */
+    @NonNull
+    private static Map<String, String> index(@NonNull LintClient client, @NonNull File jar)
+            throws IOException {
+        ZipFile zipFile = new ZipFile(jar);
+        try {
+            Map<String, String> superClasses = Maps.newHashMapWithExpectedSize(zipFile.size());
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.getName().endsWith(DOT_CLASS)) {
+                    continue;
+                }
+                InputStream stream = zipFile.getInputStream(entry);
+                try {
+                    // Only the class header is needed: no need to visit the class
+                    ClassReader reader = new ClassReader(stream);
+                    String superName = reader.getSuperName();
+                    if (JAVA_LANG_OBJECT.equals(superName)) {
+                        superName = null;
+                    }
+                    superClasses.put(reader.getClassName(), superName);
+                } catch (RuntimeException e) {
+                    client.log(null, "Error processing %1$s:%2$s: broken class file?",
+                            jar.getPath(), entry.getName());
+                } finally {
+                    Closeables.closeQuietly(stream);
+                }
+            }
+            return superClasses;
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    @Nullable
+    private static Map<String, String> read(@NonNull File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            int count = in.readInt();
+            Map<String, String> superClasses = Maps.newHashMapWithExpectedSize(count);
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                String superName = in.readBoolean() ? in.readUTF() : null;
+                superClasses.put(name, superName);
+            }
+            return superClasses;
+        } catch (IOException e) {
+            // Corrupt or truncated index: index the jar again
+            return null;
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    private static void write(@NonNull File file, @NonNull Map<String, String> superClasses)
+            throws IOException {
+        Files.createParentDirs(file);
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(superClasses.size());
+            for (Map.Entry<String, String> entry : superClasses.entrySet()) {
+                out.writeUTF(entry.getKey());
+                String superName = entry.getValue();
+                out.writeBoolean(superName != null);
+                if (superName != null) {
+                    out.writeUTF(superName);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -35,6 +35,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import lombok.ast.AlternateConstructorInvocation;
 import lombok.ast.Annotation;
@@ -156,7 +157,7 @@ public class JavaVisitor {
      * encountered; we don't log each and every one to avoid massive log spam
      * in code which triggers this condition
      */
-    private static int sExceptionCount;
+    private static final AtomicInteger sExceptionCount = new AtomicInteger();
     /** Max number of logs to include */
     private static final int MAX_REPORTED_CRASHES = 20;
 
@@ -279,7 +280,7 @@ public class JavaVisitor {
                 v.getDetector().afterCheckFile(context);
             }
         } catch (RuntimeException e) {
-            if (sExceptionCount++ > MAX_REPORTED_CRASHES) {
+            if (sExceptionCount.getAndIncrement() > MAX_REPORTED_CRASHES) {
                 // No need to keep spamming the user that a lot of the files
                 // are tripping up ECJ, they get the picture.
                 return;
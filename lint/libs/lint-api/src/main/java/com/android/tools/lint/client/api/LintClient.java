@@ -306,6 +306,17 @@ public abstract class LintClient {
         return dir;
     }
 
+    /**
+     * Returns the revision of this client, such as the version of the tools it is part
+     * of, if known. Results cached by lint are discarded when the revision changes.
+     *
+     * @return the revision of the client, or null if not known
+     */
+    @Nullable
+    public String getClientRevision() {
+        return null;
+    }
+
     /**
      * Returns the File corresponding to the system property or the environment variable
      * for {@link #PROP_BIN_DIR}.
@@ -463,7 +474,7 @@ public abstract class LintClient {
      * @return a class path info object, never null
      */
     @NonNull
-    protected ClassPathInfo getClassPath(@NonNull Project project) {
+    protected synchronized ClassPathInfo getClassPath(@NonNull Project project) {
         ClassPathInfo info;
         if (mProjectInfo == null) {
             mProjectInfo = Maps.newHashMap();
@@ -599,7 +610,7 @@ public abstract class LintClient {
      * @return a project, never null
      */
     @NonNull
-    public Project getProject(@NonNull File dir, @NonNull File referenceDir) {
+    public synchronized Project getProject(@NonNull File dir, @NonNull File referenceDir) {
         if (mDirToProject == null) {
             mDirToProject = new HashMap<File, Project>();
         }
@@ -643,7 +654,7 @@ public abstract class LintClient {
      * @param dir the directory of the project, which must be unique
      * @param project the project
      */
-    public void registerProject(@NonNull File dir, @NonNull Project project) {
+    public synchronized void registerProject(@NonNull File dir, @NonNull Project project) {
         File canonicalDir = dir;
         try {
             // Attempt to use the canonical handle for the file, in case there
@@ -703,7 +714,7 @@ public abstract class LintClient {
      * @return all the installed targets
      */
     @NonNull
-    public IAndroidTarget[] getTargets() {
+    public synchronized IAndroidTarget[] getTargets() {
         if (mTargets == null) {
             LocalSdk localSdk = getSdk();
             if (localSdk != null) {
@@ -724,7 +735,7 @@ public abstract class LintClient {
      * @return the SDK if known
      */
     @Nullable
-    public LocalSdk getSdk() {
+    public synchronized LocalSdk getSdk() {
          if (mSdk == null) {
              File sdkHome = getSdkHome();
              if (sdkHome != null) {
@@ -804,30 +815,83 @@ public abstract class LintClient {
         if (superClass != null) {
             return superClass;
         }
+        ClassIndex index = findClassIndex(project, name);
+        if (index != null) {
+            return index.getSuperClass(name);
+        }
 
         for (Project library : project.getAllLibraries()) {
             superClass = library.getSuperClassMap().get(name);
             if (superClass != null) {
                 return superClass;
             }
+            index = findClassIndex(library, name);
+            if (index != null) {
+                return index.getSuperClass(name);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the index of the library jar file of the given project (not including
+     * its library projects) which contains the given class, if any
+     */
+    @Nullable
+    ClassIndex findClassIndex(@NonNull Project project, @NonNull String name) {
+        for (ClassIndex index : project.getClassIndexes()) {
+            if (index.contains(name)) {
+                return index;
+            }
         }
 
         return null;
     }
 
+    /**
+     * Creates the class indexes of the library jar files of the given project (not
+     * including its library projects). The indexes are shared with the other projects
+     * depending on the same jar files.
+     *
+     * @param project the project to look up the class indexes for
+     * @return the indexes of the jar files which could be read; never null
+     */
+    @NonNull
+    public List<ClassIndex> createClassIndexes(@NonNull Project project) {
+        List<ClassIndex> indexes = Lists.newArrayList();
+        for (File library : project.getJavaLibraries()) {
+            if (endsWith(library.getName(), DOT_JAR)) {
+                ClassIndex index = ClassIndex.get(this, library);
+                if (index != null) {
+                    indexes.add(index);
+                }
+            }
+        }
+
+        return indexes;
+    }
+
     /**
      * Creates a super class map for the given project. The map maps from
      * internal class name (e.g. java/lang/Integer, not java.lang.Integer) to its
      * corresponding super class name. The root class, java/lang/Object, is not in the map.
      *
      * @param project the project to initialize the super class with; this will include
-     *                local classes as well as any local .jar libraries; not transitive
-     *                dependencies
+     *                local classes as well as any local library class folders; not
+     *                transitive dependencies. The classes of .jar libraries are looked
+     *                up in an index shared by all the projects instead, see
+     *                {@link #getSuperClass(Project, String)}
      * @return a map from class to its corresponding super class; never null
      */
     @NonNull
     public Map<String, String> createSuperClassMap(@NonNull Project project) {
-        List<File> libraries = project.getJavaLibraries();
+        List<File> libraries = Lists.newArrayList();
+        for (File library : project.getJavaLibraries()) {
+            if (!endsWith(library.getName(), DOT_JAR)) {
+                libraries.add(library);
+            }
+        }
         List<File> classFolders = project.getJavaClassFolders();
         List<ClassEntry> classEntries = ClassEntry.fromClassPath(this, classFolders, true);
         if (libraries.isEmpty()) {
@@ -1079,7 +1143,7 @@ public abstract class LintClient {
      * @return a shared provider for looking up resource visibility
      */
     @NonNull
-    public ResourceVisibilityLookup.Provider getResourceVisibilityProvider() {
+    public synchronized ResourceVisibilityLookup.Provider getResourceVisibilityProvider() {
         if (mResourceVisibility == null) {
             mResourceVisibility = new ResourceVisibilityLookup.Provider();
         }
@@ -20,7 +20,6 @@ import static com.android.SdkConstants.ATTR_IGNORE;
 import static com.android.SdkConstants.CLASS_CONSTRUCTOR;
 import static com.android.SdkConstants.CONSTRUCTOR_NAME;
 import static com.android.SdkConstants.DOT_CLASS;
-import static com.android.SdkConstants.DOT_JAR;
 import static com.android.SdkConstants.DOT_JAVA;
 import static com.android.SdkConstants.FD_GRADLE_WRAPPER;
 import static com.android.SdkConstants.FN_GRADLE_WRAPPER_PROPERTIES;
@@ -55,13 +54,19 @@ import com.android.tools.lint.detector.api.Scope;
 import com.android.tools.lint.detector.api.Severity;
 import com.android.tools.lint.detector.api.TextFormat;
 import com.android.tools.lint.detector.api.XmlContext;
+import com.android.utils.SdkUtils;
 import com.google.common.annotations.Beta;
+import com.google.common.base.Charsets;
 import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.Opcodes;
@@ -78,6 +83,7 @@ import org.w3c.dom.Element;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayDeque;
@@ -96,6 +102,11 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -130,8 +141,17 @@ public class LintDriver {
     private static final String SUPPRESS_LINT_VMSIG = '/' + SUPPRESS_LINT + ';';
     /** Prefix used by the comment suppress mechanism in Studio/IntelliJ */
     private static final String STUDIO_ID_PREFIX = "AndroidLint";
+    /** Number of worker threads used in parallel mode */
+    private static final int WORKER_COUNT = Runtime.getRuntime().availableProcessors();
+    /**
+     * Max number of files checked ahead by the worker threads in parallel mode, while
+     * the lint thread is still waiting for an earlier file
+     */
+    private static final int MAX_PENDING_FILES = WORKER_COUNT * 4;
+    /** Name of the folder of the cache directory storing the results of incremental mode */
+    private static final String RESULT_CACHE_FOLDER = "lint-results"; //$NON-NLS-1$
 
-    private final LintClient mClient;
+    private final LintClientWrapper mClient;
     private LintRequest mRequest;
     private IssueRegistry mRegistry;
     private volatile boolean mCanceled;
@@ -147,6 +167,21 @@ public class LintDriver {
     private boolean mAbbreviating = true;
     private boolean mParserErrors;
     private Map<Object,Object> mProperties;
+    private boolean mParallel;
+    private boolean mIncremental;
+    /** The worker threads in parallel mode, only set while analyzing */
+    private ExecutorService mExecutor;
+    /** The driver which created this project driver, or null for the driver of a request */
+    private final LintDriver mParent;
+    /** The drivers checking groups of independent projects, while they are running */
+    private volatile List<LintDriver> mProjectDrivers;
+    /**
+     * The issues found by a project driver, which are reported to the embedding client
+     * by its parent driver once all its projects have been checked
+     */
+    private List<BufferedReport> mDeferredReports;
+    /** The time spent checking each project, in milliseconds */
+    private Map<Project, Long> mProjectTimes;
 
     /**
      * Creates a new {@link LintDriver}
@@ -157,11 +192,39 @@ public class LintDriver {
     public LintDriver(@NonNull IssueRegistry registry, @NonNull LintClient client) {
         mRegistry = registry;
         mClient = new LintClientWrapper(client);
+        mParent = null;
+    }
+
+    /**
+     * Creates a driver checking some of the projects of the given driver on a worker
+     * thread, in parallel mode
+     *
+     * @param parent the driver analyzing the request
+     */
+    private LintDriver(@NonNull LintDriver parent) {
+        mParent = parent;
+        mClient = new LintClientWrapper(parent.mClient.mDelegate);
+        mRegistry = parent.mRegistry;
+        mRequest = parent.mRequest;
+        mScope = parent.mScope;
+        mAbbreviating = parent.mAbbreviating;
+        mIncremental = parent.mIncremental;
+        mProperties = parent.mProperties;
+        myCustomIssues = parent.myCustomIssues;
+        mProjectTimes = parent.mProjectTimes;
+        mDeferredReports = Lists.newArrayList();
     }
 
     /** Cancels the current lint run as soon as possible */
     public void cancel() {
         mCanceled = true;
+
+        List<LintDriver> projectDrivers = mProjectDrivers;
+        if (projectDrivers != null) {
+            for (LintDriver driver : projectDrivers) {
+                driver.cancel();
+            }
+        }
     }
 
     /**
@@ -306,6 +369,87 @@ public class LintDriver {
         return mAbbreviating;
     }
 
+    /**
+     * Sets whether lint should check several files at the same time. In parallel mode,
+     * the detectors which are thread safe (see {@link Detector#isThreadSafe()}) check
+     * the resource, binary and class files of a project on a pool of worker threads,
+     * while the other detectors still check one file at a time, in the usual order.
+     * <p>
+     * Projects which don't share any library project are also checked at the same time,
+     * each one on a worker thread. The {@link LintClient} and the {@link LintListener}s
+     * may therefore be called from several threads, although never concurrently for
+     * listeners.
+     * <p>
+     * The issues are reported to the {@link LintClient} on the thread calling
+     * {@link #analyze(LintRequest)}, in the same order as when the files are checked
+     * sequentially.
+     *
+     * @param parallel true to check files in parallel
+     */
+    public void setParallel(boolean parallel) {
+        mParallel = parallel;
+    }
+
+    /**
+     * Returns whether lint checks several files at the same time.
+     *
+     * @return true if files are checked in parallel
+     * @see #setParallel(boolean)
+     */
+    public boolean isParallel() {
+        return mParallel;
+    }
+
+    /**
+     * Sets whether lint should reuse the results of the previous lint run for the files
+     * which have not changed since. In incremental mode, the issues found by the file
+     * local detectors (see {@link Detector#isFileLocal()}) in the resource files of a
+     * project are stored in the {@link LintClient#getCacheDir(boolean) cache directory},
+     * and are reported again without running these detectors when the contents of a file,
+     * the configuration of the issues and the SDK versions of the project are the same as
+     * in the previous run.
+     * <p>
+     * The other detectors, including all the detectors which look at the project as a
+     * whole, still check all the files.
+     *
+     * @param incremental true to reuse the results of unchanged files
+     */
+    public void setIncremental(boolean incremental) {
+        mIncremental = incremental;
+    }
+
+    /**
+     * Returns whether lint reuses the results of the previous run for unchanged files.
+     *
+     * @return true if lint runs in incremental mode
+     * @see #setIncremental(boolean)
+     */
+    public boolean isIncremental() {
+        return mIncremental;
+    }
+
+    /**
+     * Returns the time spent checking the given project during the current or last
+     * analysis, including its library projects and any extra phases. This is available
+     * once the {@link EventType#SCANNED_PROJECT} event has been fired for the project.
+     *
+     * @param project the project to look up
+     * @return the time in milliseconds, or -1 if the project has not been checked
+     */
+    public long getProjectCheckTime(@NonNull Project project) {
+        Map<Project, Long> projectTimes = mProjectTimes;
+        if (projectTimes != null) {
+            synchronized (projectTimes) {
+                Long time = projectTimes.get(project);
+                if (time != null) {
+                    return time;
+                }
+            }
+        }
+
+        return -1;
+    }
+
     /**
      * Returns whether lint has encountered any files with fatal parser errors
      * (e.g. broken source code, or even broken parsers)
@@ -371,9 +515,20 @@ public class LintDriver {
     public void analyze(@NonNull LintRequest request) {
         try {
             mRequest = request;
+            if (mParallel) {
+                mExecutor = Executors.newFixedThreadPool(WORKER_COUNT,
+                        new ThreadFactoryBuilder()
+                                .setNameFormat("lint-worker-%d")
+                                .setDaemon(true)
+                                .build());
+            }
             analyze();
         } finally {
             mRequest = null;
+            if (mExecutor != null) {
+                mExecutor.shutdownNow();
+                mExecutor = null;
+            }
         }
     }
 
@@ -415,9 +570,30 @@ public class LintDriver {
             mScope = Scope.infer(projects);
         }
 
+        mProjectTimes = Maps.newHashMap();
         fireEvent(EventType.STARTING, null);
 
+        List<List<Project>> groups = null;
+        if (mExecutor != null && projects.size() > 1) {
+            groups = computeIndependentProjects(projects);
+        }
+        if (groups != null && groups.size() > 1) {
+            checkProjectsInParallel(groups);
+        } else {
+            checkProjects(projects);
+        }
+
+        fireEvent(mCanceled ? EventType.CANCELED : EventType.COMPLETED, null);
+    }
+
+    /** Checks the given projects one after the other */
+    private void checkProjects(@NonNull Collection<Project> projects) {
         for (Project project : projects) {
+            if (mCanceled) {
+                break;
+            }
+
+            long start = System.currentTimeMillis();
             mPhase = 1;
 
             Project main = mRequest.getMainProject(project);
@@ -436,9 +612,115 @@ public class LintDriver {
             }
 
             runExtraPhases(project, main);
+
+            synchronized (mProjectTimes) {
+                mProjectTimes.put(project, System.currentTimeMillis() - start);
+            }
+            fireEvent(EventType.SCANNED_PROJECT, new Context(this, project, null,
+                    project.getDir()));
         }
+    }
 
-        fireEvent(mCanceled ? EventType.CANCELED : EventType.COMPLETED, null);
+    /**
+     * Splits the given projects into groups of projects which share library projects
+     * (or main projects), such that the projects of different groups can be checked at
+     * the same time. Both the groups and the projects within a group are kept in the
+     * order of the given projects.
+     */
+    @NonNull
+    private List<List<Project>> computeIndependentProjects(
+            @NonNull Collection<Project> projects) {
+        List<Project> list = new ArrayList<Project>(projects);
+        int[] groups = new int[list.size()];
+        Map<Project, Integer> owners = Maps.newHashMap();
+        for (int i = 0; i < list.size(); i++) {
+            groups[i] = i;
+            Project project = list.get(i);
+            List<Project> related = new ArrayList<Project>(project.getAllLibraries());
+            related.add(project);
+            related.add(mRequest.getMainProject(project));
+            for (Project other : related) {
+                Integer owner = owners.get(other);
+                if (owner == null) {
+                    owners.put(other, i);
+                } else {
+                    // Merge the two groups, keeping the lowest index as the group id
+                    int a = findGroup(groups, owner);
+                    int b = findGroup(groups, i);
+                    groups[Math.max(a, b)] = Math.min(a, b);
+                }
+            }
+        }
+
+        Map<Integer, List<Project>> result = Maps.newLinkedHashMap();
+        for (int i = 0; i < list.size(); i++) {
+            int group = findGroup(groups, i);
+            List<Project> members = result.get(group);
+            if (members == null) {
+                members = Lists.newArrayList();
+                result.put(group, members);
+            }
+            members.add(list.get(i));
+        }
+
+        return new ArrayList<List<Project>>(result.values());
+    }
+
+    private static int findGroup(@NonNull int[] groups, int index) {
+        while (groups[index] != index) {
+            index = groups[index];
+        }
+        return index;
+    }
+
+    /**
+     * Checks groups of independent projects at the same time, each group with a separate
+     * project driver running on a worker thread. The issues found in each group are then
+     * reported in the order of the groups.
+     */
+    private void checkProjectsInParallel(@NonNull List<List<Project>> groups) {
+        List<LintDriver> drivers = Lists.newArrayListWithCapacity(groups.size());
+        for (int i = 0; i < groups.size(); i++) {
+            drivers.add(new LintDriver(this));
+        }
+        mProjectDrivers = drivers;
+
+        try {
+            List<Future<?>> futures = Lists.newArrayListWithCapacity(groups.size());
+            for (int i = 0; i < groups.size(); i++) {
+                final LintDriver driver = drivers.get(i);
+                final List<Project> group = groups.get(i);
+                futures.add(mExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        driver.checkProjects(group);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < groups.size(); i++) {
+                try {
+                    Uninterruptibles.getUninterruptibly(futures.get(i));
+                } catch (ExecutionException e) {
+                    throw Throwables.propagate(e.getCause());
+                }
+
+                LintDriver driver = drivers.get(i);
+                for (BufferedReport report : driver.mDeferredReports) {
+                    mClient.mDelegate.report(report.mContext, report.mIssue,
+                            report.mSeverity, report.mLocation, report.mMessage,
+                            report.mFormat);
+                }
+                if (driver.mParserErrors) {
+                    mParserErrors = true;
+                }
+                if (driver.mCanceled) {
+                    mCanceled = true;
+                }
+            }
+        } finally {
+            mProjectDrivers = null;
+        }
     }
 
     @Nullable
@@ -1015,6 +1297,27 @@ public class LintDriver {
                 if (haveXmlChecks
                         || dirChecks != null && !dirChecks.isEmpty()
                         || binaryChecks != null && !binaryChecks.isEmpty()) {
+                    if (mIncremental) {
+                        List<ResourceXmlDetector> fileLocal =
+                                filterFileLocalDetectors(xmlDetectors, true);
+                        if (!fileLocal.isEmpty()) {
+                            mCachedResources = createCachedResourceChecker(project, fileLocal);
+                            if (mCachedResources != null) {
+                                xmlDetectors = filterFileLocalDetectors(xmlDetectors, false);
+                            }
+                        }
+                    }
+                    if (mExecutor != null && (hasThreadSafeDetectors(xmlDetectors)
+                            || hasThreadSafeDetectors(binaryChecks))) {
+                        mParallelResources = new ParallelResourceChecker(
+                                filterThreadSafeDetectors(xmlDetectors, true),
+                                filterThreadSafeDetectors(binaryChecks, true));
+                        xmlDetectors = filterThreadSafeDetectors(xmlDetectors, false);
+                        binaryChecks = filterThreadSafeDetectors(binaryChecks, false);
+                        // Ensure that the current visitor is recomputed for the other detectors
+                        mCurrentFolderType = null;
+                    }
+
                     List<File> files = project.getSubset();
                     if (files != null) {
                         checkIndividualResources(project, main, xmlDetectors, dirChecks,
@@ -1028,6 +1331,16 @@ public class LintDriver {
                             }
                         }
                     }
+
+                    if (mParallelResources != null) {
+                        mParallelResources.finish();
+                        mParallelResources = null;
+                        mCurrentFolderType = null;
+                    }
+                    if (mCachedResources != null) {
+                        mCachedResources.finish();
+                        mCachedResources = null;
+                    }
                 }
             }
 
@@ -1242,6 +1555,61 @@ public class LintDriver {
         }
     }
 
+    /** Returns true if any of the given detectors is thread safe */
+    private static boolean hasThreadSafeDetectors(@Nullable List<? extends Detector> detectors) {
+        if (detectors != null) {
+            for (Detector detector : detectors) {
+                if (detector.isThreadSafe()) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /** Returns the detectors of the given list which are (or are not) thread safe */
+    @Nullable
+    private static <T extends Detector> List<T> filterThreadSafeDetectors(
+            @Nullable List<T> detectors, boolean threadSafe) {
+        if (detectors == null) {
+            return null;
+        }
+        List<T> result = new ArrayList<T>(detectors.size());
+        for (T detector : detectors) {
+            if (detector.isThreadSafe() == threadSafe) {
+                result.add(detector);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the resource detectors of the given list which are (or are not) file local,
+     * and only look at individual resource files
+     */
+    @NonNull
+    private List<ResourceXmlDetector> filterFileLocalDetectors(
+            @NonNull List<ResourceXmlDetector> detectors, boolean fileLocal) {
+        List<ResourceXmlDetector> result = new ArrayList<ResourceXmlDetector>(detectors.size());
+        for (ResourceXmlDetector detector : detectors) {
+            boolean cacheable = detector.isFileLocal();
+            if (cacheable) {
+                for (Map.Entry<Scope, List<Detector>> entry : mScopeDetectors.entrySet()) {
+                    if (entry.getKey() != Scope.RESOURCE_FILE
+                            && entry.getValue().contains(detector)) {
+                        cacheable = false;
+                        break;
+                    }
+                }
+            }
+            if (cacheable == fileLocal) {
+                result.add(detector);
+            }
+        }
+        return result;
+    }
+
     /** Check the classes in this project (and if applicable, in any library projects */
     private void checkClasses(Project project, Project main) {
         List<File> files = project.getSubset();
@@ -1254,8 +1622,17 @@ public class LintDriver {
         // the parent chains (such that for example for a virtual dispatch, we can
         // also check the super classes).
 
-        List<File> libraries = project.getJavaLibraries();
-        List<ClassEntry> libraryEntries = ClassEntry.fromClassPath(mClient, libraries, true);
+        // The library classes are only read when there are detectors looking at them;
+        // the class hierarchy of library jars is otherwise available from ClassIndex
+        List<ClassEntry> libraryEntries;
+        List<Detector> libraryDetectors = mScopeDetectors.get(Scope.JAVA_LIBRARIES);
+        if (mScope.contains(Scope.JAVA_LIBRARIES) && libraryDetectors != null
+                && !libraryDetectors.isEmpty()) {
+            List<File> libraries = project.getJavaLibraries();
+            libraryEntries = ClassEntry.fromClassPath(mClient, libraries, true);
+        } else {
+            libraryEntries = Collections.emptyList();
+        }
 
         List<File> classFolders = project.getJavaClassFolders();
         List<ClassEntry> classEntries;
@@ -1312,20 +1689,37 @@ public class LintDriver {
      * Stack of {@link ClassNode} nodes for outer classes of the currently
      * processed class, including that class itself. Populated by
      * {@link #runClassDetectors(Scope, List, Project, Project)} and used by
-     * {@link #getOuterClassNode(ClassNode)}
+     * {@link #getOuterClassNode(ClassNode)}. In parallel mode, each class checked
+     * by a worker thread has its own copy of the stack.
      */
-    private Deque<ClassNode> mOuterClasses;
+    private final ThreadLocal<Deque<ClassNode>> mOuterClasses = new ThreadLocal<Deque<ClassNode>>();
 
     private void runClassDetectors(Scope scope, List<ClassEntry> entries,
             Project project, Project main) {
         if (mScope.contains(scope)) {
             List<Detector> classDetectors = mScopeDetectors.get(scope);
             if (classDetectors != null && !classDetectors.isEmpty() && !entries.isEmpty()) {
-                AsmVisitor visitor = new AsmVisitor(mClient, classDetectors);
+                FileScheduler scheduler = null;
+                ThreadLocal<AsmVisitor> threadSafeVisitors = null;
+                if (mExecutor != null && hasThreadSafeDetectors(classDetectors)) {
+                    scheduler = new FileScheduler();
+                    final List<Detector> threadSafeDetectors =
+                            filterThreadSafeDetectors(classDetectors, true);
+                    threadSafeVisitors = new ThreadLocal<AsmVisitor>() {
+                        @Override
+                        protected AsmVisitor initialValue() {
+                            return new AsmVisitor(mClient, threadSafeDetectors);
+                        }
+                    };
+                    classDetectors = filterThreadSafeDetectors(classDetectors, false);
+                }
+                AsmVisitor visitor = !classDetectors.isEmpty()
+                        ? new AsmVisitor(mClient, classDetectors) : null;
 
                 String sourceContents = null;
                 String sourceName = "";
-                mOuterClasses = new ArrayDeque<ClassNode>();
+                Deque<ClassNode> outerClasses = new ArrayDeque<ClassNode>();
+                mOuterClasses.set(outerClasses);
                 ClassEntry prev = null;
                 for (ClassEntry entry : entries) {
                     if (prev != null && prev.compareTo(entry) == 0) {
@@ -1347,14 +1741,14 @@ public class LintDriver {
                     }
 
                     ClassNode peek;
-                    while ((peek = mOuterClasses.peek()) != null) {
+                    while ((peek = outerClasses.peek()) != null) {
                         if (classNode.name.startsWith(peek.name)) {
                             break;
                         } else {
-                            mOuterClasses.pop();
+                            outerClasses.pop();
                         }
                     }
-                    mOuterClasses.push(classNode);
+                    outerClasses.push(classNode);
 
                     if (isSuppressed(null, classNode)) {
                         // Class was annotated with suppress all -- no need to look any further
@@ -1386,6 +1780,17 @@ public class LintDriver {
                             classNode, scope == Scope.JAVA_LIBRARIES /*fromLibrary*/,
                             sourceContents);
 
+                    if (scheduler != null) {
+                        // The source contents are not shared between classes checked
+                        // on different threads, so sourceContents stays null
+                        submitClass(scheduler, context, new ArrayDeque<ClassNode>(outerClasses),
+                                threadSafeVisitors, visitor);
+                        if (mCanceled) {
+                            break;
+                        }
+                        continue;
+                    }
+
                     try {
                         visitor.runClassDetectors(context);
                     } catch (Exception e) {
@@ -1393,25 +1798,74 @@ public class LintDriver {
                     }
 
                     if (mCanceled) {
-                        return;
+                        break;
                     }
 
                     sourceContents = context.getSourceContents(false/*read*/);
                     sourceName = classNode.name;
                 }
 
-                mOuterClasses = null;
+                if (scheduler != null) {
+                    scheduler.finish();
+                }
+                mOuterClasses.remove();
             }
         }
     }
 
+    private void submitClass(
+            @NonNull FileScheduler scheduler,
+            @NonNull final ClassContext context,
+            @NonNull final Deque<ClassNode> outerClasses,
+            @NonNull final ThreadLocal<AsmVisitor> threadSafeVisitors,
+            @Nullable final AsmVisitor serialVisitor) {
+        scheduler.submit(new FileTask() {
+            @Nullable
+            @Override
+            Context getContext() {
+                return context;
+            }
+
+            @Override
+            void runThreadSafe() {
+                runClassDetectors(threadSafeVisitors.get(), context, outerClasses);
+            }
+
+            @Override
+            void runSerial() {
+                if (serialVisitor != null) {
+                    runClassDetectors(serialVisitor, context, outerClasses);
+                }
+            }
+        });
+    }
+
+    private void runClassDetectors(
+            @NonNull AsmVisitor visitor,
+            @NonNull ClassContext context,
+            @NonNull Deque<ClassNode> outerClasses) {
+        Deque<ClassNode> previous = mOuterClasses.get();
+        mOuterClasses.set(outerClasses);
+        try {
+            visitor.runClassDetectors(context);
+        } catch (Exception e) {
+            mClient.log(e, null);
+        } finally {
+            mOuterClasses.set(previous);
+        }
+    }
+
     /** Returns the outer class node of the given class node
      * @param classNode the inner class node
      * @return the outer class node */
     public ClassNode getOuterClassNode(@NonNull ClassNode classNode) {
         String outerName = classNode.outerClass;
 
-        Iterator<ClassNode> iterator = mOuterClasses.iterator();
+        Deque<ClassNode> outerClasses = mOuterClasses.get();
+        if (outerClasses == null) {
+            return null;
+        }
+        Iterator<ClassNode> iterator = outerClasses.iterator();
         while (iterator.hasNext()) {
             ClassNode node = iterator.next();
             if (outerName != null) {
@@ -1440,22 +1894,51 @@ public class LintDriver {
     public ClassNode findClass(@NonNull ClassContext context, @NonNull String type, int flags) {
         String relative = type.replace('/', File.separatorChar) + DOT_CLASS;
         File classFile = findClassFile(context.getProject(), relative);
-        if (classFile != null) {
-            if (classFile.getPath().endsWith(DOT_JAR)) {
-                // TODO: Handle .jar files
-                return null;
+        if (classFile == null) {
+            // Not in a class folder: look in the library jar files
+            return findLibraryClass(context.getProject(), type, flags);
+        }
+
+        try {
+            byte[] bytes = mClient.readBytes(classFile);
+            ClassReader reader = new ClassReader(bytes);
+            ClassNode classNode = new ClassNode();
+            reader.accept(classNode, flags);
+
+            return classNode;
+        } catch (Throwable t) {
+            mClient.log(null, "Error processing %1$s: broken class file?",
+                    classFile.getPath());
+        }
+
+        return null;
+    }
+
+    /** Looks up the given class in the library jar files of the given project */
+    @Nullable
+    private ClassNode findLibraryClass(@NonNull Project project, @NonNull String type,
+            int flags) {
+        ClassIndex index = mClient.findClassIndex(project, type);
+        if (index == null) {
+            for (Project library : project.getAllLibraries()) {
+                index = mClient.findClassIndex(library, type);
+                if (index != null) {
+                    break;
+                }
             }
+        }
 
+        if (index != null) {
             try {
-                byte[] bytes = mClient.readBytes(classFile);
-                ClassReader reader = new ClassReader(bytes);
-                ClassNode classNode = new ClassNode();
-                reader.accept(classNode, flags);
-
-                return classNode;
+                byte[] bytes = index.readClass(type);
+                if (bytes != null) {
+                    ClassReader reader = new ClassReader(bytes);
+                    ClassNode classNode = new ClassNode();
+                    reader.accept(classNode, flags);
+                    return classNode;
+                }
             } catch (Throwable t) {
-                mClient.log(null, "Error processing %1$s: broken class file?",
-                        classFile.getPath());
+                mClient.log(null, "Error processing %1$s: broken class file?", type);
             }
         }
 
@@ -1470,12 +1953,8 @@ public class LintDriver {
                 return path;
             }
         }
-        // Search in the libraries
+        // Search in the library class folders (jar files are handled by findLibraryClass)
         for (File root : mClient.getJavaLibraries(project)) {
-            // TODO: Handle .jar files!
-            //if (root.getPath().endsWith(DOT_JAR)) {
-            //}
-
             File path = new File(root, relativePath);
             if (path.exists()) {
                 return path;
@@ -1512,22 +1991,13 @@ public class LintDriver {
             gatherJavaFiles(folder, sources);
         }
         if (!sources.isEmpty()) {
-            JavaVisitor visitor = new JavaVisitor(javaParser, checks);
             List<JavaContext> contexts = Lists.newArrayListWithExpectedSize(sources.size());
             for (File file : sources) {
                 JavaContext context = new JavaContext(this, project, main, file, javaParser);
                 contexts.add(context);
             }
 
-            visitor.prepare(contexts);
-            for (JavaContext context : contexts) {
-                fireEvent(EventType.SCANNING_FILE, context);
-                visitor.visitFile(context);
-                if (mCanceled) {
-                    return;
-                }
-            }
-            visitor.dispose();
+            visitJavaFiles(javaParser, checks, contexts);
         }
     }
 
@@ -1543,8 +2013,6 @@ public class LintDriver {
             return;
         }
 
-        JavaVisitor visitor = new JavaVisitor(javaParser, checks);
-
         List<JavaContext> contexts = Lists.newArrayListWithExpectedSize(files.size());
         for (File file : files) {
             if (file.isFile() && file.getPath().endsWith(DOT_JAVA)) {
@@ -1556,6 +2024,17 @@ public class LintDriver {
             return;
         }
 
+        visitJavaFiles(javaParser, checks, contexts);
+    }
+
+    private void visitJavaFiles(
+            @NonNull JavaParser javaParser,
+            @NonNull List<Detector> checks,
+            @NonNull List<JavaContext> contexts) {
+        // Java files are always checked on the lint thread, even by thread safe detectors:
+        // the compilation units resolve lazily against the lookup environment of the parser,
+        // which cannot be used from several threads.
+        JavaVisitor visitor = new JavaVisitor(javaParser, checks);
         visitor.prepare(contexts);
 
         if (mCanceled) {
@@ -1590,6 +2069,24 @@ public class LintDriver {
     private List<ResourceXmlDetector> mCurrentXmlDetectors;
     private List<Detector> mCurrentBinaryDetectors;
     private ResourceVisitor mCurrentVisitor;
+    /** Checker of the thread safe resource detectors, only set in parallel mode */
+    private ParallelResourceChecker mParallelResources;
+
+    /** Checks the resource files with the file local detectors in incremental mode */
+    private CachedResourceChecker mCachedResources;
+
+    /**
+     * Checks the given resource file with the file local detectors in incremental mode,
+     * or reports the issues they found in the previous run if the file has not changed.
+     *
+     * @return false if the file can't be checked by the other detectors because it
+     *         could not be parsed (the error has then already been reported)
+     */
+    private boolean checkCachedResources(@NonNull Project project, @Nullable Project main,
+            @NonNull File file, @NonNull ResourceFolderType type) {
+        return mCachedResources == null || !LintUtils.isXmlFile(file)
+                || mCachedResources.check(project, main, file, type);
+    }
 
     @Nullable
     private ResourceVisitor getVisitor(
@@ -1686,6 +2183,10 @@ public class LintDriver {
         // Process the resource folder
 
         if (dirChecks != null && !dirChecks.isEmpty()) {
+            if (mParallelResources != null) {
+                // Report the issues in the files of the previous folders first
+                mParallelResources.finish();
+            }
             ResourceContext context = new ResourceContext(this, project, main, dir, type);
             String folderName = dir.getName();
             fireEvent(EventType.SCANNING_FILE, context);
@@ -1696,7 +2197,8 @@ public class LintDriver {
                     check.afterCheckFile(context);
                 }
             }
-            if (binaryChecks == null && xmlChecks.isEmpty()) {
+            if (mParallelResources == null && mCachedResources == null && binaryChecks == null
+                    && xmlChecks.isEmpty()) {
                 return;
             }
         }
@@ -1707,12 +2209,25 @@ public class LintDriver {
         }
 
         ResourceVisitor visitor = getVisitor(type, xmlChecks, binaryChecks);
-        if (visitor != null) { // if not, there are no applicable rules in this folder
+        if (mParallelResources != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (checkCachedResources(project, main, file, type)) {
+                    mParallelResources.submit(project, main, file, type, visitor);
+                }
+                if (mCanceled) {
+                    return;
+                }
+            }
+        } else if (visitor != null || mCachedResources != null) {
+            // (if not, there are no applicable rules in this folder)
             // Process files in alphabetical order, to ensure stable output
             // (for example for the duplicate resource detector)
             Arrays.sort(files);
             for (File file : files) {
-                if (LintUtils.isXmlFile(file)) {
+                if (!checkCachedResources(project, main, file, type) || visitor == null) {
+                    // Nothing else to check in this file
+                } else if (LintUtils.isXmlFile(file)) {
                     XmlContext context = new XmlContext(this, project, main, file, type,
                             visitor.getParser());
                     fireEvent(EventType.SCANNING_FILE, context);
@@ -1756,9 +2271,11 @@ public class LintDriver {
                 // Yes, find out its resource type
                 String folderName = file.getParentFile().getName();
                 ResourceFolderType type = ResourceFolderType.getFolderType(folderName);
-                if (type != null) {
+                if (type != null && checkCachedResources(project, main, file, type)) {
                     ResourceVisitor visitor = getVisitor(type, xmlDetectors, binaryChecks);
-                    if (visitor != null) {
+                    if (mParallelResources != null) {
+                        mParallelResources.submit(project, main, file, type, visitor);
+                    } else if (visitor != null) {
                         XmlContext context = new XmlContext(this, project, main, file, type,
                                 visitor.getParser());
                         fireEvent(EventType.SCANNING_FILE, context);
@@ -1771,7 +2288,9 @@ public class LintDriver {
                 ResourceFolderType type = ResourceFolderType.getFolderType(folderName);
                 if (type != null) {
                     ResourceVisitor visitor = getVisitor(type, xmlDetectors, binaryChecks);
-                    if (visitor != null) {
+                    if (mParallelResources != null) {
+                        mParallelResources.submit(project, main, file, type, visitor);
+                    } else if (visitor != null) {
                         ResourceContext context = new ResourceContext(this, project, main, file,
                                 type);
                         fireEvent(EventType.SCANNING_FILE, context);
@@ -1811,9 +2330,26 @@ public class LintDriver {
 
     /** Notifies listeners, if any, that the given event has occurred */
     private void fireEvent(@NonNull LintListener.EventType type, @Nullable Context context) {
-        if (mListeners != null) {
-            for (LintListener listener : mListeners) {
-                listener.update(this, type, context);
+        if (mParent != null) {
+            mParent.fireEvent(this, type, context);
+        } else {
+            fireEvent(this, type, context);
+        }
+    }
+
+    /**
+     * Notifies the listeners of this driver that the given event has occurred in the
+     * given driver, which is either this driver or one of its project drivers
+     */
+    private void fireEvent(@NonNull LintDriver driver, @NonNull LintListener.EventType type,
+            @Nullable Context context) {
+        List<LintListener> listeners = mListeners;
+        if (listeners != null) {
+            // Project drivers fire their events from worker threads
+            synchronized (listeners) {
+                for (LintListener listener : listeners) {
+                    listener.update(driver, type, context);
+                }
             }
         }
     }
@@ -1829,10 +2365,24 @@ public class LintDriver {
         @NonNull
         private final LintClient mDelegate;
 
+        /** The issues reported so far on the current worker thread, in parallel mode */
+        private final ThreadLocal<List<BufferedReport>> mBufferedReports =
+                new ThreadLocal<List<BufferedReport>>();
+
         public LintClientWrapper(@NonNull LintClient delegate) {
             mDelegate = delegate;
         }
 
+        /** Records the issues reported on the calling thread in the given list */
+        void startBuffering(@NonNull List<BufferedReport> reports) {
+            mBufferedReports.set(reports);
+        }
+
+        /** Stops recording the issues reported on the calling thread */
+        void stopBuffering() {
+            mBufferedReports.remove();
+        }
+
         @Override
         public void report(
                 @NonNull Context context,
@@ -1841,6 +2391,15 @@ public class LintDriver {
                 @Nullable Location location,
                 @NonNull String message,
                 @NonNull TextFormat format) {
+            List<BufferedReport> bufferedReports = mBufferedReports.get();
+            if (bufferedReports != null) {
+                // Reported by a thread safe detector on a worker thread: the issue is
+                // filtered and reported to the embedding client later, on the lint thread
+                bufferedReports.add(new BufferedReport(context, issue, severity, location,
+                        message, format));
+                return;
+            }
+
             assert mCurrentProject != null;
             if (!mCurrentProject.getReportIssues()) {
                 return;
@@ -1863,6 +2422,13 @@ public class LintDriver {
                 return;
             }
 
+            if (mDeferredReports != null) {
+                // Found by a project driver: reported later, in the order of the projects
+                mDeferredReports.add(new BufferedReport(context, issue, severity, location,
+                        message, format));
+                return;
+            }
+
             mDelegate.report(context, issue, severity, location, message, format);
         }
 
@@ -1959,6 +2525,12 @@ public class LintDriver {
             return mDelegate.getCacheDir(create);
         }
 
+        @Override
+        @Nullable
+        public String getClientRevision() {
+            return mDelegate.getClientRevision();
+        }
+
         @Override
         @NonNull
         protected ClassPathInfo getClassPath(@NonNull Project project) {
@@ -2093,6 +2665,478 @@ public class LintDriver {
         }
     }
 
+    /** An issue reported by a detector on a worker thread, in parallel mode */
+    private static class BufferedReport {
+        @NonNull private final Context mContext;
+        @NonNull private final Issue mIssue;
+        @NonNull private final Severity mSeverity;
+        @Nullable private final Location mLocation;
+        @NonNull private final String mMessage;
+        @NonNull private final TextFormat mFormat;
+
+        BufferedReport(
+                @NonNull Context context,
+                @NonNull Issue issue,
+                @NonNull Severity severity,
+                @Nullable Location location,
+                @NonNull String message,
+                @NonNull TextFormat format) {
+            mContext = context;
+            mIssue = issue;
+            mSeverity = severity;
+            mLocation = location;
+            mMessage = message;
+            mFormat = format;
+        }
+    }
+
+    /**
+     * The work to check a single file in parallel mode: the thread safe detectors are
+     * run on a worker thread, then the other detectors are run on the lint thread.
+     */
+    private abstract static class FileTask {
+        /** The issues reported by the thread safe detectors */
+        private List<BufferedReport> mReports;
+
+        /**
+         * Returns the context of the file, or null if there was nothing to check in the
+         * file. Called on the lint thread, after {@link #runThreadSafe()}.
+         */
+        @Nullable
+        abstract Context getContext();
+
+        /** Runs the thread safe detectors on the file. Called on a worker thread. */
+        abstract void runThreadSafe();
+
+        /**
+         * Runs the other detectors on the file, and disposes any data structures held
+         * for the file. Called on the lint thread, in the order the files were submitted.
+         */
+        abstract void runSerial();
+    }
+
+    /**
+     * Checks a sequence of files in parallel mode. The thread safe detectors of a file
+     * run on a worker thread as soon as the file is submitted; then, in the order the
+     * files were submitted, the issues they reported are passed to the lint client and
+     * the other detectors run on the lint thread. The lint client therefore gets the
+     * same issues, in the same order, as when the files are checked sequentially.
+     */
+    private class FileScheduler {
+        private final Deque<Future<FileTask>> mPending = new ArrayDeque<Future<FileTask>>();
+
+        void submit(@NonNull final FileTask task) {
+            while (mPending.size() >= MAX_PENDING_FILES) {
+                runNext();
+            }
+            mPending.add(mExecutor.submit(new Callable<FileTask>() {
+                @Override
+                public FileTask call() throws Exception {
+                    List<BufferedReport> reports = new ArrayList<BufferedReport>();
+                    mClient.startBuffering(reports);
+                    try {
+                        if (!mCanceled) {
+                            task.runThreadSafe();
+                        }
+                    } finally {
+                        mClient.stopBuffering();
+                    }
+                    task.mReports = reports;
+                    return task;
+                }
+            }));
+        }
+
+        /** Waits for all the submitted files to be checked */
+        void finish() {
+            while (!mPending.isEmpty()) {
+                runNext();
+            }
+        }
+
+        private void runNext() {
+            FileTask task;
+            try {
+                task = Uninterruptibles.getUninterruptibly(mPending.remove());
+            } catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+
+            Context context = task.getContext();
+            if (context == null) {
+                return;
+            }
+            fireEvent(EventType.SCANNING_FILE, context);
+            for (BufferedReport report : task.mReports) {
+                mClient.report(report.mContext, report.mIssue, report.mSeverity,
+                        report.mLocation, report.mMessage, report.mFormat);
+            }
+            task.runSerial();
+        }
+    }
+
+    /**
+     * Runs the thread safe resource detectors in parallel mode. The resource files are
+     * parsed on the worker threads, which each have their own {@link XmlParser} and
+     * {@link ResourceVisitor} instances; the visitor of the lint thread for the other
+     * detectors is then run on the same documents.
+     */
+    private class ParallelResourceChecker {
+        @NonNull
+        private final List<ResourceXmlDetector> mXmlDetectors;
+        @Nullable
+        private final List<Detector> mBinaryDetectors;
+        private final FileScheduler mScheduler = new FileScheduler();
+        private final ThreadLocal<XmlParser> mParsers = new ThreadLocal<XmlParser>() {
+            @Override
+            protected XmlParser initialValue() {
+                return mClient.getXmlParser();
+            }
+        };
+        private final ThreadLocal<Map<ResourceFolderType, ResourceVisitor>> mVisitors =
+                new ThreadLocal<Map<ResourceFolderType, ResourceVisitor>>() {
+                    @Override
+                    protected Map<ResourceFolderType, ResourceVisitor> initialValue() {
+                        return new EnumMap<ResourceFolderType, ResourceVisitor>(
+                                ResourceFolderType.class);
+                    }
+                };
+
+        ParallelResourceChecker(
+                @NonNull List<ResourceXmlDetector> xmlDetectors,
+                @Nullable List<Detector> binaryDetectors) {
+            mXmlDetectors = xmlDetectors;
+            mBinaryDetectors = binaryDetectors;
+        }
+
+        /**
+         * Submits a resource file to be checked.
+         *
+         * @param serialVisitor the visitor for the detectors which are not thread safe,
+         *            or null if none of them apply to the folder type
+         */
+        void submit(
+                @NonNull final Project project,
+                @Nullable final Project main,
+                @NonNull final File file,
+                @NonNull final ResourceFolderType type,
+                @Nullable final ResourceVisitor serialVisitor) {
+            if (LintUtils.isXmlFile(file)) {
+                mScheduler.submit(new FileTask() {
+                    private XmlParser mParser;
+                    private XmlContext mContext;
+
+                    @Nullable
+                    @Override
+                    Context getContext() {
+                        return mContext;
+                    }
+
+                    @Override
+                    void runThreadSafe() {
+                        XmlParser parser = mParsers.get();
+                        ResourceVisitor visitor = getVisitor(type);
+                        if (parser == null || visitor == null && serialVisitor == null) {
+                            return;
+                        }
+                        mParser = parser;
+                        mContext = new XmlContext(LintDriver.this, project, main, file, type,
+                                parser);
+                        mContext.document = parser.parseXml(mContext);
+                        if (mContext.document != null && visitor != null) {
+                            visitor.visitDocument(mContext);
+                        }
+                    }
+
+                    @Override
+                    void runSerial() {
+                        if (mContext == null || mContext.document == null) {
+                            return;
+                        }
+                        try {
+                            if (serialVisitor != null) {
+                                serialVisitor.visitDocument(mContext);
+                            }
+                        } finally {
+                            mParser.dispose(mContext, mContext.document);
+                            mContext.document = null;
+                        }
+                    }
+                });
+            } else if (mBinaryDetectors != null && LintUtils.isBitmapFile(file)) {
+                mScheduler.submit(new FileTask() {
+                    private ResourceContext mContext;
+
+                    @Nullable
+                    @Override
+                    Context getContext() {
+                        return mContext;
+                    }
+
+                    @Override
+                    void runThreadSafe() {
+                        ResourceVisitor visitor = getVisitor(type);
+                        if (visitor == null && serialVisitor == null) {
+                            return;
+                        }
+                        mContext = new ResourceContext(LintDriver.this, project, main, file,
+                                type);
+                        if (visitor != null) {
+                            visitor.visitBinaryResource(mContext);
+                        }
+                    }
+
+                    @Override
+                    void runSerial() {
+                        if (mContext != null && serialVisitor != null) {
+                            serialVisitor.visitBinaryResource(mContext);
+                        }
+                    }
+                });
+            }
+        }
+
+        /** Waits for all the submitted files to be checked */
+        void finish() {
+            mScheduler.finish();
+        }
+
+        /** Returns the visitor of the calling worker thread for the given folder type */
+        @Nullable
+        private ResourceVisitor getVisitor(@NonNull ResourceFolderType type) {
+            Map<ResourceFolderType, ResourceVisitor> visitors = mVisitors.get();
+            if (visitors.containsKey(type)) {
+                return visitors.get(type);
+            }
+
+            List<ResourceXmlDetector> xmlChecks =
+                    new ArrayList<ResourceXmlDetector>(mXmlDetectors.size());
+            for (ResourceXmlDetector check : mXmlDetectors) {
+                if (check.appliesTo(type)) {
+                    xmlChecks.add(check);
+                }
+            }
+            List<Detector> binaryChecks = null;
+            if (mBinaryDetectors != null) {
+                binaryChecks = new ArrayList<Detector>(mBinaryDetectors.size());
+                for (Detector check : mBinaryDetectors) {
+                    if (check.appliesTo(type)) {
+                        binaryChecks.add(check);
+                    }
+                }
+            }
+
+            ResourceVisitor visitor = null;
+            XmlParser parser = mParsers.get();
+            if (parser != null && (!xmlChecks.isEmpty()
+                    || binaryChecks != null && !binaryChecks.isEmpty())) {
+                visitor = new ResourceVisitor(parser, xmlChecks, binaryChecks);
+            }
+            visitors.put(type, visitor);
+            return visitor;
+        }
+    }
+
+    /**
+     * Creates a checker for the file local resource detectors of the given project, or
+     * returns null if the results can't be cached
+     */
+    @Nullable
+    private CachedResourceChecker createCachedResourceChecker(@NonNull Project project,
+            @NonNull List<ResourceXmlDetector> detectors) {
+        File cacheDir = mClient.getCacheDir(true);
+        XmlParser parser = mClient.getXmlParser();
+        if (cacheDir == null || parser == null) {
+            return null;
+        }
+
+        // The results are only valid for the same detectors, with the same configuration
+        Set<String> detectorNames = Sets.newTreeSet();
+        for (Detector detector : detectors) {
+            detectorNames.add(detector.getClass().getName());
+        }
+        // ...and the same versions of lint and of the detector classes
+        StringBuilder key = new StringBuilder();
+        key.append(mClient.getClientRevision()).append(';');
+        key.append(getClassStamp(LintDriver.class)).append(';');
+        for (Detector detector : detectors) {
+            key.append(getClassStamp(detector.getClass())).append(';');
+        }
+        for (String name : detectorNames) {
+            key.append(name).append(';');
+        }
+        Configuration configuration = project.getConfiguration(this);
+        for (Issue issue : mRegistry.getIssues()) {
+            if (detectorNames.contains(issue.getImplementation().getDetectorClass().getName())) {
+                key.append(issue.getId()).append('=');
+                key.append(configuration.getSeverity(issue)).append(';');
+            }
+        }
+        key.append(project.getMinSdk()).append(';');
+        key.append(project.getTargetSdk()).append(';');
+        key.append(project.getBuildSdk());
+
+        String projectId = Hashing.sha1().hashString(project.getDir().getAbsolutePath(),
+                Charsets.UTF_8).toString();
+        File file = new File(cacheDir, RESULT_CACHE_FOLDER + File.separator + projectId);
+        LintResultCache cache = LintResultCache.load(file,
+                Hashing.sha1().hashString(key, Charsets.UTF_8).toString(), mRegistry);
+        return new CachedResourceChecker(detectors, cache, parser);
+    }
+
+    /**
+     * Returns a string which changes whenever the given class is updated: the path, size
+     * and modification time of the class file or jar file the class was loaded from, or
+     * just the class name if the class was not loaded from a file
+     */
+    @NonNull
+    private static String getClassStamp(@NonNull Class<?> cls) {
+        String name = cls.getName();
+        URL url = cls.getResource(name.substring(name.lastIndexOf('.') + 1) + DOT_CLASS);
+        if (url != null) {
+            try {
+                File file = null;
+                if ("jar".equals(url.getProtocol())) {                  //$NON-NLS-1$
+                    // jar:file:/path/lint-checks.jar!/com/android/...
+                    String path = url.getPath();
+                    int index = path.indexOf("!/");                      //$NON-NLS-1$
+                    file = SdkUtils.urlToFile(index != -1 ? path.substring(0, index) : path);
+                } else if ("file".equals(url.getProtocol())) {          //$NON-NLS-1$
+                    file = SdkUtils.urlToFile(url);
+                }
+                if (file != null) {
+                    return file.getPath() + ':' + file.length() + ':' + file.lastModified();
+                }
+            } catch (MalformedURLException e) {
+                // Fall back to the class name
+            }
+        }
+
+        return name;
+    }
+
+    /**
+     * Checks the resource files with the file local detectors in incremental mode, and
+     * records the issues they find, such that they are reported again instead of checking
+     * the same files in the next run, as long as they have not changed.
+     */
+    private class CachedResourceChecker {
+        @NonNull
+        private final List<ResourceXmlDetector> mDetectors;
+        @NonNull
+        private final LintResultCache mCache;
+        @NonNull
+        private final XmlParser mParser;
+        private final Map<ResourceFolderType, ResourceVisitor> mVisitors =
+                new EnumMap<ResourceFolderType, ResourceVisitor>(ResourceFolderType.class);
+
+        CachedResourceChecker(
+                @NonNull List<ResourceXmlDetector> detectors,
+                @NonNull LintResultCache cache,
+                @NonNull XmlParser parser) {
+            mDetectors = detectors;
+            mCache = cache;
+            mParser = parser;
+        }
+
+        /**
+         * Checks the given resource file, or reports the issues found in the previous
+         * run if it has not changed since.
+         *
+         * @return false if the file could not be parsed
+         */
+        boolean check(@NonNull Project project, @Nullable Project main, @NonNull File file,
+                @NonNull ResourceFolderType type) {
+            ResourceVisitor visitor = getVisitor(type);
+            if (visitor == null) {
+                return true;
+            }
+
+            String hash;
+            try {
+                hash = LintResultCache.hash(file);
+            } catch (IOException e) {
+                // Let the detectors report the problem
+                hash = null;
+            }
+
+            if (hash != null) {
+                List<LintResultCache.Result> results = mCache.get(file, hash);
+                if (results != null) {
+                    Context context = new Context(LintDriver.this, project, main, file);
+                    for (LintResultCache.Result result : results) {
+                        mClient.report(context, result.issue, result.severity,
+                                result.location, result.message, result.format);
+                    }
+                    return true;
+                }
+            }
+
+            XmlContext context = new XmlContext(LintDriver.this, project, main, file, type,
+                    mParser);
+            List<BufferedReport> reports = Lists.newArrayList();
+            boolean parsed;
+            mClient.startBuffering(reports);
+            try {
+                context.document = mParser.parseXml(context);
+                parsed = context.document != null;
+                if (parsed) {
+                    visitor.visitDocument(context);
+                }
+            } finally {
+                mClient.stopBuffering();
+                if (context.document != null) {
+                    mParser.dispose(context, context.document);
+                    context.document = null;
+                }
+            }
+
+            List<LintResultCache.Result> results =
+                    Lists.newArrayListWithCapacity(reports.size());
+            for (BufferedReport report : reports) {
+                results.add(new LintResultCache.Result(report.mIssue, report.mSeverity,
+                        report.mLocation, report.mMessage, report.mFormat));
+                mClient.report(report.mContext, report.mIssue, report.mSeverity,
+                        report.mLocation, report.mMessage, report.mFormat);
+            }
+            if (parsed && hash != null) {
+                mCache.put(file, hash, results);
+            }
+
+            return parsed;
+        }
+
+        /** Saves the results of the files checked so far */
+        void finish() {
+            try {
+                mCache.save();
+            } catch (IOException e) {
+                mClient.log(e, "Could not save the lint results of unchanged files");
+            }
+        }
+
+        @Nullable
+        private ResourceVisitor getVisitor(@NonNull ResourceFolderType type) {
+            if (mVisitors.containsKey(type)) {
+                return mVisitors.get(type);
+            }
+
+            List<ResourceXmlDetector> checks =
+                    new ArrayList<ResourceXmlDetector>(mDetectors.size());
+            for (ResourceXmlDetector check : mDetectors) {
+                if (check.appliesTo(type)) {
+                    checks.add(check);
+                }
+            }
+            ResourceVisitor visitor = null;
+            if (!checks.isEmpty()) {
+                visitor = new ResourceVisitor(mParser, checks, null);
+            }
+            mVisitors.put(type, visitor);
+            return visitor;
+        }
+    }
+
     /**
      * Requests another pass through the data for the given detector. This is
      * typically done when a detector needs to do more expensive computation,
@@ -2108,7 +3152,8 @@ public class LintDriver {
      *       scopes as well (since they may have been requested by other detectors).
      *       You can pall null to indicate "all".
      */
-    public void requestRepeat(@NonNull Detector detector, @Nullable EnumSet<Scope> scope) {
+    public synchronized void requestRepeat(@NonNull Detector detector,
+            @Nullable EnumSet<Scope> scope) {
         if (mRepeatingDetectors == null) {
             mRepeatingDetectors = new ArrayList<Detector>();
         }
@@ -2529,7 +3574,7 @@ public class LintDriver {
      * @param resourceFile the file to be checked
      * @return the folder version, or -1 if no specific version was specified
      */
-    public int getResourceFolderVersion(@NonNull File resourceFile) {
+    public synchronized int getResourceFolderVersion(@NonNull File resourceFile) {
         File parent = resourceFile.getParentFile();
         if (parent == null) {
             return -1;
@@ -43,6 +43,12 @@ public interface LintListener {
         /** Lint is about to check the given file, see {@link Context#file} */
         SCANNING_FILE,
 
+        /**
+         * Lint is done checking the given project, including its library projects, see
+         * {@link Context#getProject()} and {@link LintDriver#getProjectCheckTime}
+         */
+        SCANNED_PROJECT,
+
         /** A new pass was initiated */
         NEW_PHASE,
 
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.lint.detector.api.DefaultPosition;
+import com.android.tools.lint.detector.api.Issue;
+import com.android.tools.lint.detector.api.Location;
+import com.android.tools.lint.detector.api.Position;
+import com.android.tools.lint.detector.api.Severity;
+import com.android.tools.lint.detector.api.TextFormat;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The issues found in each file by the file local detectors of a project (see
+ * {@link com.android.tools.lint.detector.api.Detector#isFileLocal()}), stored between lint
+ * runs such that the files which haven't changed don't need to be checked again.
+ * <p>
+ * The issues of a file are looked up by a hash of its contents. The cache as a whole is
+ * only valid for a given key, which identifies the detectors, their configuration and the
+ * project settings they depend on; a cache stored with another key is ignored.
+ */
+final class LintResultCache {
+    /** Version of the file format, to be bumped when changing it */
+    private static final int VERSION = 1;
+
+    /** An issue found in a file */
+    static final class Result {
+        @NonNull final Issue issue;
+        @NonNull final Severity severity;
+        @Nullable final Location location;
+        @NonNull final String message;
+        @NonNull final TextFormat format;
+
+        Result(@NonNull Issue issue, @NonNull Severity severity, @Nullable Location location,
+                @NonNull String message, @NonNull TextFormat format) {
+            this.issue = issue;
+            this.severity = severity;
+            this.location = location;
+            this.message = message;
+            this.format = format;
+        }
+    }
+
+    /** The issues found in a file, along with the hash of the contents checked */
+    private static final class Entry {
+        @NonNull final String hash;
+        @NonNull final List<Result> results;
+
+        Entry(@NonNull String hash, @NonNull List<Result> results) {
+            this.hash = hash;
+            this.results = results;
+        }
+    }
+
+    @NonNull private final File mFile;
+    @NonNull private final String mKey;
+    /** The entries of the previous run, by file path */
+    @NonNull private final Map<String, Entry> mPrevious;
+    /** The entries of the files checked in this run, which are the ones saved */
+    @NonNull private final Map<String, Entry> mCurrent = Maps.newLinkedHashMap();
+    private int mHitCount;
+    private int mMissCount;
+
+    private LintResultCache(@NonNull File file, @NonNull String key,
+            @NonNull Map<String, Entry> previous) {
+        mFile = file;
+        mKey = key;
+        mPrevious = previous;
+    }
+
+    /**
+     * Loads the cache stored in the given file, or returns an empty cache if the file
+     * doesn't exist, can't be read or was stored with a different key.
+     *
+     * @param file the file storing the cache
+     * @param key the key identifying the current detectors and settings
+     * @param registry the registry used to look up the issues by id
+     * @return the cache, never null
+     */
+    @NonNull
+    static LintResultCache load(@NonNull File file, @NonNull String key,
+            @NonNull IssueRegistry registry) {
+        Map<String, Entry> entries = Collections.emptyMap();
+        if (file.isFile()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                if (in.readInt() == VERSION && key.equals(in.readUTF())) {
+                    entries = readEntries(in, registry);
+                }
+            } catch (IOException e) {
+                // Corrupt or truncated cache: start over
+                entries = Collections.emptyMap();
+            } catch (IllegalArgumentException e) {
+                // Unknown enum constant
+                entries = Collections.emptyMap();
+            } finally {
+                Closeables.closeQuietly(in);
+            }
+        }
+
+        return new LintResultCache(file, key, entries);
+    }
+
+    /**
+     * Returns the issues found in the given file by the previous run, if its contents
+     * haven't changed since.
+     *
+     * @param file the file to look up
+     * @param hash the hash of the current contents of the file, see {@link #hash(File)}
+     * @return the issues found in the file, or null if the file has to be checked
+     */
+    @Nullable
+    List<Result> get(@NonNull File file, @NonNull String hash) {
+        String path = file.getPath();
+        Entry entry = mPrevious.get(path);
+        if (entry == null || !entry.hash.equals(hash)) {
+            mMissCount++;
+            return null;
+        }
+
+        mHitCount++;
+        mCurrent.put(path, entry);
+        return entry.results;
+    }
+
+    /**
+     * Records the issues found in the given file.
+     *
+     * @param file the file which was checked
+     * @param hash the hash of the contents of the file which were checked
+     * @param results the issues found in the file
+     */
+    void put(@NonNull File file, @NonNull String hash, @NonNull List<Result> results) {
+        mCurrent.put(file.getPath(), new Entry(hash, results));
+    }
+
+    /** Returns the number of files whose issues were found in the cache */
+    int getHitCount() {
+        return mHitCount;
+    }
+
+    /** Returns the number of files which had to be checked */
+    int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Saves the entries of the files checked in this run. The entries of the files
+     * which were not checked, such as deleted files, are dropped.
+     *
+     * @throws IOException if the cache file can't be written
+     */
+    void save() throws IOException {
+        Files.createParentDirs(mFile);
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(mFile)));
+        try {
+            out.writeInt(VERSION);
+            out.writeUTF(mKey);
+            out.writeInt(mCurrent.size());
+            for (Map.Entry<String, Entry> entry : mCurrent.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue().hash);
+                List<Result> results = entry.getValue().results;
+                out.writeInt(results.size());
+                for (Result result : results) {
+                    out.writeUTF(result.issue.getId());
+                    out.writeUTF(result.severity.name());
+                    out.writeUTF(result.message);
+                    out.writeUTF(result.format.name());
+                    writeLocation(out, result.location);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Computes the hash of the contents of a file, used to find out whether the file has
+     * changed since it was checked.
+     */
+    @NonNull
+    static String hash(@NonNull File file) throws IOException {
+        return Files.hash(file, Hashing.sha1()).toString();
+    }
+
+    @NonNull
+    private static Map<String, Entry> readEntries(@NonNull DataInputStream in,
+            @NonNull IssueRegistry registry) throws IOException {
+        int count = in.readInt();
+        Map<String, Entry> entries = Maps.newHashMapWithExpectedSize(count);
+        for (int i = 0; i < count; i++) {
+            String path = in.readUTF();
+            String hash = in.readUTF();
+            int resultCount = in.readInt();
+            List<Result> results = Lists.newArrayListWithCapacity(resultCount);
+            boolean valid = true;
+            for (int j = 0; j < resultCount; j++) {
+                Issue issue = registry.getIssue(in.readUTF());
+                Severity severity = Severity.valueOf(in.readUTF());
+                String message = in.readUTF();
+                TextFormat format = TextFormat.valueOf(in.readUTF());
+                Location location = readLocation(in);
+                if (issue == null) {
+                    // The issue no longer exists: check the file again
+                    valid = false;
+                } else {
+                    results.add(new Result(issue, severity, location, message, format));
+                }
+            }
+            if (valid) {
+                entries.put(path, new Entry(hash, results));
+            }
+        }
+
+        return entries;
+    }
+
+    private static void writeLocation(@NonNull DataOutputStream out,
+            @Nullable Location location) throws IOException {
+        if (location == null) {
+            out.writeBoolean(false);
+            return;
+        }
+        out.writeBoolean(true);
+        out.writeUTF(location.getFile().getPath());
+        writePosition(out, location.getStart());
+        writePosition(out, location.getEnd());
+        String message = location.getMessage();
+        out.writeBoolean(message != null);
+        if (message != null) {
+            out.writeUTF(message);
+        }
+        writeLocation(out, location.getSecondary());
+    }
+
+    @Nullable
+    private static Location readLocation(@NonNull DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        File file = new File(in.readUTF());
+        Position start = readPosition(in);
+        Position end = readPosition(in);
+        Location location = start != null
+                ? Location.create(file, start, end) : Location.create(file);
+        if (in.readBoolean()) {
+            location.setMessage(in.readUTF());
+        }
+        location.setSecondary(readLocation(in));
+        return location;
+    }
+
+    private static void writePosition(@NonNull DataOutputStream out,
+            @Nullable Position position) throws IOException {
+        out.writeBoolean(position != null);
+        if (position != null) {
+            out.writeInt(position.getLine());
+            out.writeInt(position.getColumn());
+            out.writeInt(position.getOffset());
+        }
+    }
+
+    @Nullable
+    private static Position readPosition(@NonNull DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        int line = in.readInt();
+        int column = in.readInt();
+        int offset = in.readInt();
+        return new DefaultPosition(line, column, offset);
+    }
+}
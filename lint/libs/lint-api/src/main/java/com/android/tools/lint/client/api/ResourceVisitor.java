@@ -139,28 +139,9 @@ class ResourceVisitor {
                     // with details, location, etc.
                     return;
                 }
-                if (context.document.getDocumentElement() == null) {
-                    // Ignore empty documents
-                    return;
-                }
-            }
-
-            for (Detector check : mAllDetectors) {
-                check.beforeCheckFile(context);
-            }
-
-            for (Detector.XmlScanner check : mDocumentDetectors) {
-                check.visitDocument(context, context.document);
             }
 
-            if (!mElementToCheck.isEmpty() || !mAttributeToCheck.isEmpty()
-                    || !mAllAttributeDetectors.isEmpty() || !mAllElementDetectors.isEmpty()) {
-                visitElement(context, context.document.getDocumentElement());
-            }
-
-            for (Detector check : mAllDetectors) {
-                check.afterCheckFile(context);
-            }
+            visitDocument(context);
         } finally {
             if (context.document != null) {
                 mParser.dispose(context, context.document);
@@ -169,6 +150,36 @@ class ResourceVisitor {
         }
     }
 
+    /**
+     * Runs the detectors on the already parsed document of the given context. Unlike
+     * {@link #visitFile(XmlContext, File)}, the document is not disposed afterwards, such
+     * that another visitor can be run on the same document.
+     */
+    void visitDocument(@NonNull XmlContext context) {
+        assert context.document != null;
+        if (context.document.getDocumentElement() == null) {
+            // Ignore empty documents
+            return;
+        }
+
+        for (Detector check : mAllDetectors) {
+            check.beforeCheckFile(context);
+        }
+
+        for (Detector.XmlScanner check : mDocumentDetectors) {
+            check.visitDocument(context, context.document);
+        }
+
+        if (!mElementToCheck.isEmpty() || !mAttributeToCheck.isEmpty()
+                || !mAllAttributeDetectors.isEmpty() || !mAllElementDetectors.isEmpty()) {
+            visitElement(context, context.document.getDocumentElement());
+        }
+
+        for (Detector check : mAllDetectors) {
+            check.afterCheckFile(context);
+        }
+    }
+
     private void visitElement(@NonNull XmlContext context, @NonNull Element element) {
         List<Detector.XmlScanner> elementChecks = mElementToCheck.get(element.getTagName());
         if (elementChecks != null) {
@@ -617,6 +617,44 @@ public abstract class Detector {
         return getSpeed();
     }
 
+    /**
+     * Returns whether this detector can check several files at the same time, from
+     * different threads, when lint runs in parallel mode (see
+     * {@link LintDriver#setParallel(boolean)}).
+     * <p>
+     * A thread safe detector must not keep any per-file state in its fields: it is
+     * still notified by {@link #beforeCheckFile(Context)} and
+     * {@link #afterCheckFile(Context)}, but the calls for different files can be
+     * interleaved. The project callbacks, such as {@link #afterCheckProject(Context)},
+     * are always made on the thread running lint, after all the files have been checked.
+     * <p>
+     * Detectors which are not thread safe check one file at a time, in the order
+     * described above. Java source files are always checked one at a time, as the
+     * Java parser cannot be shared between threads.
+     *
+     * @return true if this detector can check files concurrently
+     */
+    public boolean isThreadSafe() {
+        return false;
+    }
+
+    /**
+     * Returns whether the issues reported by this detector for a file only depend on the
+     * contents of that file, along with the configuration of the issues and the SDK
+     * versions of the project. A file local detector must report all its issues while
+     * the file is being checked, not from the project callbacks such as
+     * {@link #afterCheckProject(Context)}.
+     * <p>
+     * When lint runs in incremental mode (see {@link LintDriver#setIncremental(boolean)}),
+     * the issues found by file local detectors are cached, and are reported again without
+     * running the detectors for the files which have not changed since.
+     *
+     * @return true if the results of this detector for a file can be cached
+     */
+    public boolean isFileLocal() {
+        return false;
+    }
+
     // ---- Dummy implementations to make implementing XmlScanner easier: ----
 
     @SuppressWarnings("javadoc")
@@ -53,6 +53,7 @@ import com.android.sdklib.AndroidVersion;
 import com.android.sdklib.IAndroidTarget;
 import com.android.sdklib.SdkVersionInfo;
 import com.android.tools.lint.client.api.CircularDependencyException;
+import com.android.tools.lint.client.api.ClassIndex;
 import com.android.tools.lint.client.api.Configuration;
 import com.android.tools.lint.client.api.LintClient;
 import com.android.tools.lint.client.api.LintDriver;
@@ -61,6 +62,7 @@ import com.google.common.annotations.Beta;
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Charsets;
 import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.io.Closeables;
@@ -132,6 +134,7 @@ public class Project {
     protected Boolean mSupportLib;
     protected Boolean mAppCompat;
     private Map<String, String> mSuperClassMap;
+    private List<ClassIndex> mClassIndexes;
     private ResourceVisibilityLookup mResourceVisibility;
 
     /**
@@ -1302,6 +1305,25 @@ public class Project {
         return mSuperClassMap;
     }
 
+    /**
+     * Returns the class indexes of the library jar files of this project (not including
+     * its library projects), used to look up the library classes without reading the
+     * jar files.
+     *
+     * @return a list of indexes, possibly empty but never null
+     */
+    @NonNull
+    public List<ClassIndex> getClassIndexes() {
+        List<ClassIndex> indexes = mClassIndexes;
+        if (indexes == null) {
+            // Immutable, such that the list can be safely shared with other threads
+            indexes = ImmutableList.copyOf(mClient.createClassIndexes(this));
+            mClassIndexes = indexes;
+        }
+
+        return indexes;
+    }
+
     /**
      * Adds in the resConfig values specified by the given flavor container, assuming
      * it's in one of the relevant variantFlavors, into the given set
@@ -76,6 +76,10 @@ import java.util.Set;
  *      classes, methods and fields that have an API level *higher* than 1. This drops
  *      the memory use down from 4.0M to 1.7M.
  * </ul>
+ * The binary cache is memory mapped, and the lookups are performed directly against the
+ * mapped file (outside of the Java heap, and shared with the OS file cache) rather than
+ * against a copy of it. The lookups do not allocate, and since they only use absolute
+ * reads of the buffer, the database can be queried by multiple threads at the same time.
  */
 public class ApiLookup {
     /** Relative path to the api-versions.xml database file within the Lint installation */
@@ -89,9 +93,12 @@ public class ApiLookup {
     private static final int BYTES_PER_ENTRY = 36;
 
     private final Api mInfo;
-    private byte[] mData;
-    private int[] mIndices;
+    /** The memory mapped database. Only read with absolute reads, never with relative ones */
+    private ByteBuffer mData;
+    /** Offset in {@link #mData} of the class and member offset tables */
+    private int mIndexOffset;
     private int mClassCount;
+    private int mMemberCount;
     private String[] mJavaPackages;
 
     private static WeakReference<ApiLookup> sInstance =
@@ -284,10 +291,8 @@ public class ApiLookup {
      *      followed by the JVM method/field signature, encoded as UTF-8, followed by a 0 byte
      *      signature terminator, followed by the API level as a byte.
      * <p>
-     * TODO: Pack the offsets: They increase by a small amount for each entry, so no need
-     * to spend 4 bytes on each. These will need to be processed when read back in anyway,
-     * so consider storing the offset -deltas- as single bytes and adding them up cumulatively
-     * in readData().
+     * Note that the offset tables are binary searched directly in the mapped file, so
+     * the offsets have to be stored with a fixed size (rather than for example as deltas).
      * </pre>
      */
     private void readData(@NonNull LintClient client, @NonNull File xmlFile,
@@ -323,7 +328,7 @@ public class ApiLookup {
             }
 
             mClassCount = buffer.getInt();
-            int methodCount = buffer.getInt();
+            mMemberCount = buffer.getInt();
 
             int javaPackageCount = buffer.getInt();
             // Read in the Java packages
@@ -335,30 +340,14 @@ public class ApiLookup {
                 mJavaPackages[i] = new String(bytes, Charsets.UTF_8);
             }
 
-            // Read in the class table indices;
-            int count = mClassCount + methodCount;
-            int[] offsets = new int[count];
+            // The class and member offset tables are looked up directly in the buffer;
+            // just make sure they are there
+            mIndexOffset = buffer.position();
+            buffer.position(mIndexOffset + 4 * (mClassCount + mMemberCount));
 
-            // Another idea: I can just store the DELTAS in the file (and add them up
-            // when reading back in) such that it takes just ONE byte instead of four!
-
-            for (int i = 0; i < count; i++) {
-                offsets[i] = buffer.getInt();
-            }
-
-            // No need to read in the rest -- we'll just keep the whole byte array in memory
-            // TODO: Make this code smarter/more efficient.
-            int size = buffer.limit();
-            byte[] b = new byte[size];
-            buffer.rewind();
-            buffer.get(b);
-            mData = b;
-            mIndices = offsets;
-
-            // TODO: We only need to keep the data portion here since we've initialized
-            // the offset array separately.
-            // TODO: Investigate (profile) accessing the byte buffer directly instead of
-            // accessing a byte array.
+            // No need to read in the rest either: the lookups are made against the mapped
+            // file itself, so the data doesn't take up any heap space
+            mData = buffer;
         } catch (Throwable e) {
             client.log(null, "Failure reading binary cache file %1$s", binaryFile.getPath());
             client.log(null, "Please delete the file and restart the IDE/lint: %1$s",
@@ -369,8 +358,8 @@ public class ApiLookup {
             long end = System.currentTimeMillis();
             System.out.println("\nRead API database in " + (end - start)
                     + " milliseconds.");
-            System.out.println("Size of data table: " + mData.length + " bytes ("
-                    + Integer.toString(mData.length / 1024) + "k)\n");
+            System.out.println("Size of data table: " + mData.limit() + " bytes ("
+                    + Integer.toString(mData.limit() / 1024) + "k)\n");
         }
     }
 
@@ -617,11 +606,11 @@ public class ApiLookup {
     private String dumpEntry(int offset) {
         if (DEBUG_SEARCH) {
             StringBuilder sb = new StringBuilder(200);
-            for (int i = offset; i < mData.length; i++) {
-                if (mData[i] == 0) {
+            for (int i = offset; i < mData.limit(); i++) {
+                if (mData.get(i) == 0) {
                     break;
                 }
-                char c = (char) UnsignedBytes.toInt(mData[i]);
+                char c = (char) UnsignedBytes.toInt(mData.get(i));
                 sb.append(c);
             }
 
@@ -631,11 +620,16 @@ public class ApiLookup {
         }
     }
 
-    private static int compare(byte[] data, int offset, byte terminator, String s, int max) {
+    /** Returns the offset in the data of the given class or member entry */
+    private int getEntryOffset(int index) {
+        return mData.getInt(mIndexOffset + 4 * index);
+    }
+
+    private static int compare(ByteBuffer data, int offset, byte terminator, String s, int max) {
         int i = offset;
         int j = 0;
         for (; j < max; i++, j++) {
-            byte b = data[i];
+            byte b = data.get(i);
             char c = s.charAt(j);
             // TODO: Check somewhere that the strings are purely in the ASCII range; if not
             // they're not a match in the database
@@ -646,7 +640,7 @@ public class ApiLookup {
             }
         }
 
-        return data[i] - terminator;
+        return data.get(i) - terminator;
     }
 
     /**
@@ -685,12 +679,12 @@ public class ApiLookup {
         if (mData != null) {
             int classNumber = findClass(className);
             if (classNumber != -1) {
-                int offset = mIndices[classNumber];
-                while (mData[offset] != 0) {
+                int offset = getEntryOffset(classNumber);
+                while (mData.get(offset) != 0) {
                     offset++;
                 }
                 offset++;
-                return UnsignedBytes.toInt(mData[offset]);
+                return UnsignedBytes.toInt(mData.get(offset));
             }
         }  else {
            ApiClass clz = mInfo.getClass(className);
@@ -837,7 +831,7 @@ public class ApiLookup {
         }
 
         // The index array contains class indexes from 0 to classCount and
-        //   member indices from classCount to mIndices.length.
+        //   member indices from classCount to classCount + memberCount.
         int low = 0;
         int high = mJavaPackages.length - 1;
         while (low <= high) {
@@ -891,15 +885,15 @@ public class ApiLookup {
     private int findClass(@NonNull String owner) {
         assert owner.indexOf('.') == -1 : "Should use / instead of . in owner: " + owner;
 
-        // The index array contains class indexes from 0 to classCount and
-        //   member indices from classCount to mIndices.length.
+        // The index table contains class indexes from 0 to classCount and
+        //   member indices from classCount to classCount + memberCount.
         int low = 0;
         int high = mClassCount - 1;
         // Compare the api info at the given index.
         int classNameLength = owner.length();
         while (low <= high) {
             int middle = (low + high) >>> 1;
-            int offset = mIndices[middle];
+            int offset = getEntryOffset(middle);
 
             if (DEBUG_SEARCH) {
                 System.out.println("Comparing string " + owner + " with entry at " + offset
@@ -925,13 +919,13 @@ public class ApiLookup {
     }
 
     private int findMember(int classNumber, @NonNull String name, @Nullable String desc) {
-        // The index array contains class indexes from 0 to classCount and
-        // member indices from classCount to mIndices.length.
+        // The index table contains class indexes from 0 to classCount and
+        // member indices from classCount to classCount + memberCount.
         int low = mClassCount;
-        int high = mIndices.length - 1;
+        int high = mClassCount + mMemberCount - 1;
         while (low <= high) {
             int middle = (low + high) >>> 1;
-            int offset = mIndices[middle];
+            int offset = getEntryOffset(middle);
 
             if (DEBUG_SEARCH) {
                 System.out.println("Comparing string " + (name + ';' + desc) +
@@ -939,7 +933,8 @@ public class ApiLookup {
             }
 
             // Check class number: read short. The byte data is always big endian.
-            int entryClass = (mData[offset++] & 0xFF) << 8 | (mData[offset++] & 0xFF);
+            int entryClass = mData.getShort(offset) & 0xFFFF;
+            offset += 2;
             int compare = entryClass - classNumber;
             if (compare == 0) {
                 if (desc != null) {
@@ -955,9 +950,9 @@ public class ApiLookup {
                         if (compare == 0) {
                             offset += argsEnd + 1;
 
-                            if (mData[offset++] == 0) {
+                            if (mData.get(offset++) == 0) {
                                 // Yes, terminated argument list: get the API level
-                                return UnsignedBytes.toInt(mData[offset]);
+                                return UnsignedBytes.toInt(mData.get(offset));
                             }
                         }
                     }
@@ -967,9 +962,9 @@ public class ApiLookup {
                     compare = compare(mData, offset, (byte) 0, name, nameLength);
                     if (compare == 0) {
                         offset += nameLength;
-                        if (mData[offset++] == 0) {
+                        if (mData.get(offset++) == 0) {
                             // Yes, terminated argument list: get the API level
-                            return UnsignedBytes.toInt(mData[offset]);
+                            return UnsignedBytes.toInt(mData.get(offset));
                         }
                     }
                 }
@@ -68,6 +68,16 @@ public class ByteOrderMarkDetector extends ResourceXmlDetector {
         return Speed.NORMAL;
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isFileLocal() {
+        return true;
+    }
+
     @Nullable
     @Override
     public Collection<String> getApplicableAttributes() {
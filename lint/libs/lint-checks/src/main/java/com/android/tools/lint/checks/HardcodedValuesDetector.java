@@ -80,6 +80,16 @@ public class HardcodedValuesDetector extends LayoutDetector {
         return Speed.FAST;
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isFileLocal() {
+        return true;
+    }
+
     @Override
     public Collection<String> getApplicableAttributes() {
         return Arrays.asList(
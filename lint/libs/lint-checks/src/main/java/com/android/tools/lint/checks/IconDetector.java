@@ -65,11 +65,13 @@ import com.android.tools.lint.detector.api.Scope;
 import com.android.tools.lint.detector.api.Severity;
 import com.android.tools.lint.detector.api.Speed;
 import com.android.tools.lint.detector.api.XmlContext;
+import com.google.common.base.Charsets;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
 
 import org.w3c.dom.Element;
 
@@ -77,6 +79,7 @@ import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -86,6 +89,7 @@ import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Locale;
@@ -411,6 +415,7 @@ public class IconDetector extends ResourceXmlDetector implements Detector.JavaSc
     }
 
     private void checkResourceFolder(Context context, @NonNull Project project) {
+        mImageIndex = ImageIndex.load(getImageIndexFile(context, project));
         List<File> resourceFolders = project.getResourceFolders();
         for (File res : resourceFolders) {
             File[] folders = res.listFiles();
@@ -467,7 +472,7 @@ public class IconDetector extends ResourceXmlDetector implements Detector.JavaSc
                 }
 
                 if (checkDuplicates) {
-                    checkDuplicates(context, pixelSizes, fileSizes);
+                    checkDuplicates(context, mImageIndex, pixelSizes, fileSizes);
                 }
 
                 if (checkFolders && !folderToNames.isEmpty()) {
@@ -475,6 +480,28 @@ public class IconDetector extends ResourceXmlDetector implements Detector.JavaSc
                 }
             }
         }
+
+        try {
+            mImageIndex.save();
+        } catch (IOException e) {
+            context.log(e, "Could not write image index");
+        }
+        mImageIndex = null;
+    }
+
+    /**
+     * Returns the file storing the {@link ImageIndex} of the given project, or null if
+     * there is no cache directory
+     */
+    @Nullable
+    private static File getImageIndexFile(@NonNull Context context, @NonNull Project project) {
+        File cacheDir = context.getClient().getCacheDir(true);
+        if (cacheDir == null) {
+            return null;
+        }
+        String key = Hashing.sha1().hashString(project.getDir().getPath(), Charsets.UTF_8)
+                .toString();
+        return new File(cacheDir, "lint-images" + File.separator + key); //$NON-NLS-1$
     }
 
     /** Like {@link LintUtils#isBitmapFile(File)} but (a) operates on Strings instead
@@ -488,8 +515,10 @@ public class IconDetector extends ResourceXmlDetector implements Detector.JavaSc
     // This method looks for duplicates in the assets. This uses two pieces of information
     // (file sizes and image dimensions) to quickly reject candidates, such that it only
     // needs to check actual file contents on a small subset of the available files.
-    private static void checkDuplicates(Context context, Map<File, Dimension> pixelSizes,
-            Map<File, Long> fileSizes) {
+    // The contents are compared by hash, and the hashes of unchanged files are looked
+    // up in the image index rather than read again.
+    private static void checkDuplicates(Context context, ImageIndex index,
+            Map<File, Dimension> pixelSizes, Map<File, Long> fileSizes) {
         Map<Long, Set<File>> sameSizes = new HashMap<Long, Set<File>>();
         Map<Long, File> seenSizes = new HashMap<Long, File>(fileSizes.size());
         for (Map.Entry<File, Long> entry : fileSizes.entrySet()) {
@@ -550,10 +579,10 @@ public class IconDetector extends ResourceXmlDetector implements Detector.JavaSc
                 }
             }
 
-            // Map from file to actual byte contents of the file.
+            // Map from file to the hash of the contents of the file.
             // We store this in a map such that for repeated files, such as noSize files
-            // which can appear in multiple buckets, we only need to read them once
-            Map<File, byte[]> fileContents = new HashMap<File, byte[]>();
+            // which can appear in multiple buckets, we only need to look them up once
+            Map<File, String> fileContents = new HashMap<File, String>();
 
             // Now we're ready for the final check where we actually check the
             // bits. We have to partition the files into buckets of files that
@@ -563,15 +592,12 @@ public class IconDetector extends ResourceXmlDetector implements Detector.JavaSc
                     continue;
                 }
 
-                // Read all files in this set and store in map
+                // Hash all files in this set and store in map
                 for (File file : set) {
-                    byte[] bits = fileContents.get(file);
-                    if (bits == null) {
-                        try {
-                            bits = context.getClient().readBytes(file);
-                            fileContents.put(file, bits);
-                        } catch (IOException e) {
-                            context.log(e, null);
+                    if (!fileContents.containsKey(file)) {
+                        String hash = index.getHash(file);
+                        if (hash != null) {
+                            fileContents.put(file, hash);
                         }
                     }
                 }
@@ -590,28 +616,13 @@ public class IconDetector extends ResourceXmlDetector implements Detector.JavaSc
                     for (int j = i + 1; j < files.size(); j++) {
                         File file1 = files.get(i);
                         File file2 = files.get(j);
-                        byte[] contents1 = fileContents.get(file1);
-                        byte[] contents2 = fileContents.get(file2);
+                        String contents1 = fileContents.get(file1);
+                        String contents2 = fileContents.get(file2);
                         if (contents1 == null || contents2 == null) {
                             // File couldn't be read: ignore
                             continue;
                         }
-                        if (contents1.length != contents2.length) {
-                            // Sizes differ: not identical.
-                            // This shouldn't happen since we've already partitioned based
-                            // on File.length(), but just make sure here since the file
-                            // system could have lied, or cached a value that has changed
-                            // if the file was just overwritten
-                            continue;
-                        }
-                        boolean same = true;
-                        for (int k = 0; k < contents1.length; k++) {
-                            if (contents1[k] != contents2[k]) {
-                                same = false;
-                                break;
-                            }
-                        }
-                        if (same) {
+                        if (contents1.equals(contents2)) {
                             equal.put(file1, file2);
                         }
                     }
@@ -1250,7 +1261,18 @@ public class IconDetector extends ResourceXmlDetector implements Detector.JavaSc
         return file.getName().contains("-nodpi");
     }
 
-    private Map<File, BufferedImage> mImageCache;
+    /** Maximum number of decoded images kept in {@link #mImageCache} */
+    private static final int MAX_CACHED_IMAGES = 16;
+
+    /**
+     * The most recently decoded images, such that the checks which look at the pixels
+     * of an image don't have to decode it again. The images are only softly referenced
+     * since large images can take up a lot of memory.
+     */
+    private Map<File, SoftReference<BufferedImage>> mImageCache;
+
+    /** The sizes and content hashes of the images of the project being checked */
+    private ImageIndex mImageIndex;
 
     @Nullable
     private BufferedImage getImage(@Nullable File file) throws IOException {
@@ -1258,16 +1280,28 @@ public class IconDetector extends ResourceXmlDetector implements Detector.JavaSc
             return null;
         }
         if (mImageCache == null) {
-            mImageCache = Maps.newHashMap();
+            mImageCache = new LinkedHashMap<File, SoftReference<BufferedImage>>(
+                    MAX_CACHED_IMAGES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Entry<File, SoftReference<BufferedImage>> eldest) {
+                    return size() > MAX_CACHED_IMAGES;
+                }
+            };
         } else {
-            BufferedImage image = mImageCache.get(file);
-            if (image != null) {
-                return image;
+            SoftReference<BufferedImage> reference = mImageCache.get(file);
+            if (reference != null) {
+                BufferedImage image = reference.get();
+                if (image != null) {
+                    return image;
+                }
             }
         }
 
         BufferedImage image = ImageIO.read(file);
-        mImageCache.put(file, image);
+        if (image != null) {
+            mImageCache.put(file, new SoftReference<BufferedImage>(image));
+        }
 
         return image;
     }
@@ -1766,7 +1800,7 @@ public class IconDetector extends ResourceXmlDetector implements Detector.JavaSc
         }
     }
 
-    private static void checkSize(Context context, String folderName, File file,
+    private void checkSize(Context context, String folderName, File file,
             int mdpiWidth, int mdpiHeight, boolean exactMatch) {
         String fileName = file.getName();
         // Only scan .png files (except 9-patch png's) and jpg files
@@ -1823,37 +1857,12 @@ public class IconDetector extends ResourceXmlDetector implements Detector.JavaSc
         }
     }
 
-    private static Dimension getSize(File file) {
-        try {
-            ImageInputStream input = ImageIO.createImageInputStream(file);
-            if (input != null) {
-                try {
-                    Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
-                    if (readers.hasNext()) {
-                        ImageReader reader = readers.next();
-                        try {
-                            reader.setInput(input);
-                            return new Dimension(reader.getWidth(0), reader.getHeight(0));
-                        } finally {
-                            reader.dispose();
-                        }
-                    }
-                } finally {
-                    input.close();
-                }
-            }
-
-            // Fallback: read the image using the normal means
-            BufferedImage image = ImageIO.read(file);
-            if (image != null) {
-                return new Dimension(image.getWidth(), image.getHeight());
-            } else {
-                return null;
-            }
-        } catch (IOException e) {
-            // Pass -- we can't handle all image types, warn about those we can
-            return null;
+    @Nullable
+    private Dimension getSize(File file) {
+        if (mImageIndex != null) {
+            return mImageIndex.getSize(file);
         }
+        return ImageIndex.readSize(file);
     }
 
 
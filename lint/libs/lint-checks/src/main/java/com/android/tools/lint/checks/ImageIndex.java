@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.checks;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Metadata of the images of a project: their pixel sizes and a hash of their contents,
+ * stored between lint runs such that the size and duplicate checks of the
+ * {@link IconDetector} don't need to read the images which haven't changed.
+ * <p>
+ * The metadata of an image is looked up by path, and is only used if the length and
+ * the modification time of the image have not changed. The sizes are read from the
+ * image headers where possible, without decoding the images.
+ */
+final class ImageIndex {
+    /** Version of the file format, to be bumped when changing it */
+    private static final int VERSION = 1;
+
+    /** Width stored for images whose size has not been read yet */
+    private static final int SIZE_UNKNOWN = -1;
+    /** Width stored for images whose size could not be read */
+    private static final int SIZE_UNREADABLE = -2;
+
+    /** The metadata of an image */
+    private static final class Entry {
+        final long length;
+        final long lastModified;
+        int width = SIZE_UNKNOWN;
+        int height = SIZE_UNKNOWN;
+        @Nullable String hash;
+
+        Entry(long length, long lastModified) {
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+
+    @Nullable private final File mFile;
+    /** The entries of the previous run, by image path */
+    @NonNull private final Map<String, Entry> mPrevious;
+    /** The entries of the images looked up in this run, which are the ones saved */
+    @NonNull private final Map<String, Entry> mCurrent = Maps.newHashMap();
+    private boolean mModified;
+
+    private ImageIndex(@Nullable File file, @NonNull Map<String, Entry> previous) {
+        mFile = file;
+        mPrevious = previous;
+    }
+
+    /**
+     * Loads the index stored in the given file, or returns an empty index if the file
+     * doesn't exist or can't be read.
+     *
+     * @param file the file storing the index, or null to not store the index at all
+     * @return the index, never null
+     */
+    @NonNull
+    static ImageIndex load(@Nullable File file) {
+        Map<String, Entry> entries = Collections.emptyMap();
+        if (file != null && file.isFile()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                if (in.readInt() == VERSION) {
+                    int count = in.readInt();
+                    entries = Maps.newHashMapWithExpectedSize(count);
+                    for (int i = 0; i < count; i++) {
+                        String path = in.readUTF();
+                        Entry entry = new Entry(in.readLong(), in.readLong());
+                        entry.width = in.readInt();
+                        entry.height = in.readInt();
+                        entry.hash = in.readBoolean() ? in.readUTF() : null;
+                        entries.put(path, entry);
+                    }
+                }
+            } catch (IOException e) {
+                // Corrupt or truncated index: start over
+                entries = Collections.emptyMap();
+            } finally {
+                Closeables.closeQuietly(in);
+            }
+        }
+
+        return new ImageIndex(file, entries);
+    }
+
+    /**
+     * Returns the pixel size of the given image.
+     *
+     * @param image the image file
+     * @return the size, or null if the image can't be read
+     */
+    @Nullable
+    Dimension getSize(@NonNull File image) {
+        Entry entry = getEntry(image);
+        if (entry.width == SIZE_UNKNOWN) {
+            Dimension size = readSize(image);
+            if (size != null) {
+                entry.width = size.width;
+                entry.height = size.height;
+            } else {
+                entry.width = SIZE_UNREADABLE;
+                entry.height = SIZE_UNREADABLE;
+            }
+            mModified = true;
+        }
+
+        if (entry.width == SIZE_UNREADABLE) {
+            return null;
+        }
+        return new Dimension(entry.width, entry.height);
+    }
+
+    /**
+     * Returns a hash of the contents of the given image, such that two images with
+     * the same hash have the same contents.
+     *
+     * @param image the image file
+     * @return the hash, or null if the image can't be read
+     */
+    @Nullable
+    String getHash(@NonNull File image) {
+        Entry entry = getEntry(image);
+        if (entry.hash == null) {
+            try {
+                entry.hash = Files.hash(image, Hashing.sha1()).toString();
+                mModified = true;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return entry.hash;
+    }
+
+    @NonNull
+    private Entry getEntry(@NonNull File image) {
+        String path = image.getPath();
+        Entry entry = mCurrent.get(path);
+        if (entry != null) {
+            return entry;
+        }
+
+        long length = image.length();
+        long lastModified = image.lastModified();
+        entry = mPrevious.get(path);
+        if (entry == null || entry.length != length || entry.lastModified != lastModified) {
+            entry = new Entry(length, lastModified);
+            mModified = true;
+        }
+        mCurrent.put(path, entry);
+        return entry;
+    }
+
+    /**
+     * Saves the entries of the images looked up in this run, if anything has changed.
+     *
+     * @throws IOException if the index file can't be written
+     */
+    void save() throws IOException {
+        if (mFile == null || !mModified && mCurrent.size() == mPrevious.size()) {
+            return;
+        }
+
+        Files.createParentDirs(mFile);
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(mFile)));
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(mCurrent.size());
+            for (Map.Entry<String, Entry> entry : mCurrent.entrySet()) {
+                Entry value = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(value.length);
+                out.writeLong(value.lastModified);
+                out.writeInt(value.width);
+                out.writeInt(value.height);
+                out.writeBoolean(value.hash != null);
+                if (value.hash != null) {
+                    out.writeUTF(value.hash);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the pixel size of the given image. The size of PNG, JPEG, GIF and WebP
+     * images is read from their headers; other images are handed to ImageIO.
+     *
+     * @param file the image file
+     * @return the size, or null if the image can't be read
+     */
+    @Nullable
+    static Dimension readSize(@NonNull File file) {
+        try {
+            Dimension size = readHeaderSize(file);
+            if (size != null) {
+                return size;
+            }
+
+            ImageInputStream input = ImageIO.createImageInputStream(file);
+            if (input != null) {
+                try {
+                    Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+                    if (readers.hasNext()) {
+                        ImageReader reader = readers.next();
+                        try {
+                            reader.setInput(input);
+                            return new Dimension(reader.getWidth(0), reader.getHeight(0));
+                        } finally {
+                            reader.dispose();
+                        }
+                    }
+                } finally {
+                    input.close();
+                }
+            }
+
+            // Fallback: read the image using the normal means
+            BufferedImage image = ImageIO.read(file);
+            if (image != null) {
+                return new Dimension(image.getWidth(), image.getHeight());
+            } else {
+                return null;
+            }
+        } catch (IOException e) {
+            // Pass -- we can't handle all image types, warn about those we can
+            return null;
+        }
+    }
+
+    /** Reads the pixel size from the image header, or returns null if not recognized */
+    @VisibleForTesting
+    @Nullable
+    static Dimension readHeaderSize(@NonNull File file) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] header = new byte[30];
+            int count = 0;
+            while (count < header.length) {
+                int read = in.read(header, count, header.length - count);
+                if (read == -1) {
+                    break;
+                }
+                count += read;
+            }
+
+            if (count >= 24 && (header[0] & 0xFF) == 0x89 && header[1] == 'P'
+                    && header[2] == 'N' && header[3] == 'G' && header[12] == 'I'
+                    && header[13] == 'H' && header[14] == 'D' && header[15] == 'R') {
+                return new Dimension(getInt(header, 16), getInt(header, 20));
+            } else if (count >= 10 && header[0] == 'G' && header[1] == 'I'
+                    && header[2] == 'F' && header[3] == '8') {
+                return new Dimension(getShortLE(header, 6), getShortLE(header, 8));
+            } else if (count >= 30 && header[0] == 'R' && header[1] == 'I'
+                    && header[2] == 'F' && header[3] == 'F' && header[8] == 'W'
+                    && header[9] == 'E' && header[10] == 'B' && header[11] == 'P') {
+                return readWebpSize(header);
+            } else if (count >= 4 && (header[0] & 0xFF) == 0xFF
+                    && (header[1] & 0xFF) == 0xD8) {
+                return readJpegSize(in, header, count);
+            }
+
+            return null;
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    @Nullable
+    private static Dimension readWebpSize(@NonNull byte[] header) {
+        if (header[12] != 'V' || header[13] != 'P' || header[14] != '8') {
+            return null;
+        }
+        switch (header[15]) {
+            case ' ':
+                // Lossy: frame tag, start code and 14 bit dimensions
+                if ((header[23] & 0xFF) != 0x9D || (header[24] & 0xFF) != 0x01
+                        || (header[25] & 0xFF) != 0x2A) {
+                    return null;
+                }
+                return new Dimension(getShortLE(header, 26) & 0x3FFF,
+                        getShortLE(header, 28) & 0x3FFF);
+            case 'L': {
+                // Lossless: signature and 14 bit dimensions minus one
+                if ((header[20] & 0xFF) != 0x2F) {
+                    return null;
+                }
+                int bits = (header[21] & 0xFF) | (header[22] & 0xFF) << 8
+                        | (header[23] & 0xFF) << 16 | (header[24] & 0xFF) << 24;
+                return new Dimension((bits & 0x3FFF) + 1, ((bits >> 14) & 0x3FFF) + 1);
+            }
+            case 'X':
+                // Extended: 24 bit canvas dimensions minus one
+                return new Dimension(getInt24LE(header, 24) + 1, getInt24LE(header, 27) + 1);
+            default:
+                return null;
+        }
+    }
+
+    @Nullable
+    private static Dimension readJpegSize(@NonNull DataInputStream in, @NonNull byte[] header,
+            int count) throws IOException {
+        // Walk the segments (starting with the ones already read into the header) until
+        // the start of frame segment, which holds the size
+        InputStream remaining = new SequenceInputStream(
+                new ByteArrayInputStream(header, 2, count - 2), in);
+        DataInputStream data = new DataInputStream(remaining);
+        try {
+            while (true) {
+                int marker = data.readUnsignedByte();
+                if (marker != 0xFF) {
+                    return null;
+                }
+                while (marker == 0xFF) {
+                    marker = data.readUnsignedByte();
+                }
+                if (marker == 0x01 || marker >= 0xD0 && marker <= 0xD7) {
+                    // Standalone markers
+                    continue;
+                }
+                if (marker == 0xD9 || marker == 0xDA) {
+                    // End of image or start of scan before any frame
+                    return null;
+                }
+                int length = data.readUnsignedShort();
+                if (marker >= 0xC0 && marker <= 0xCF
+                        && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                    data.readUnsignedByte(); // precision
+                    int height = data.readUnsignedShort();
+                    int width = data.readUnsignedShort();
+                    return new Dimension(width, height);
+                }
+                int skip = length - 2;
+                while (skip > 0) {
+                    int skipped = data.skipBytes(skip);
+                    if (skipped <= 0) {
+                        return null;
+                    }
+                    skip -= skipped;
+                }
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static int getInt(@NonNull byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8 | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static int getShortLE(@NonNull byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int getInt24LE(@NonNull byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8
+                | (bytes[offset + 2] & 0xFF) << 16;
+    }
+}
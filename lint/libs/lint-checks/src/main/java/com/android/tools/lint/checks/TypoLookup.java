@@ -43,6 +43,9 @@ import java.util.WeakHashMap;
 
 /**
  * Database of common typos / misspellings.
+ * <p>
+ * Like the {@link ApiLookup}, the database is a binary cache which is memory mapped, and
+ * the words are looked up directly in the mapped file rather than in a copy of it.
  */
 public class TypoLookup {
     private static final TypoLookup NONE = new TypoLookup();
@@ -60,8 +63,10 @@ public class TypoLookup {
     /** Default size to reserve for each API entry when creating byte buffer to build up data */
     private static final int BYTES_PER_ENTRY = 28;
 
-    private byte[] mData;
-    private int[] mIndices;
+    /** The memory mapped database. Only read with absolute reads, never with relative ones */
+    private ByteBuffer mData;
+    /** Offset in {@link #mData} of the word offset table */
+    private int mIndexOffset;
     private int mWordCount;
 
     private static final WeakHashMap<String, TypoLookup> sInstanceMap =
@@ -263,30 +268,10 @@ public class TypoLookup {
 
             mWordCount = buffer.getInt();
 
-            // Read in the word table indices;
-            int count = mWordCount;
-            int[] offsets = new int[count];
-
-            // Another idea: I can just store the DELTAS in the file (and add them up
-            // when reading back in) such that it takes just ONE byte instead of four!
-
-            for (int i = 0; i < count; i++) {
-                offsets[i] = buffer.getInt();
-            }
-
-            // No need to read in the rest -- we'll just keep the whole byte array in memory
-            // TODO: Make this code smarter/more efficient.
-            int size = buffer.limit();
-            byte[] b = new byte[size];
-            buffer.rewind();
-            buffer.get(b);
-            mData = b;
-            mIndices = offsets;
-
-            // TODO: We only need to keep the data portion here since we've initialized
-            // the offset array separately.
-            // TODO: Investigate (profile) accessing the byte buffer directly instead of
-            // accessing a byte array.
+            // The word offset table is looked up directly in the buffer, as are the words
+            mIndexOffset = buffer.position();
+            buffer.position(mIndexOffset + 4 * mWordCount);
+            mData = buffer;
         } catch (IOException e) {
             client.log(e, null);
         }
@@ -294,8 +279,8 @@ public class TypoLookup {
             long end = System.currentTimeMillis();
             System.out.println("\nRead typo database in " + (end - start)
                     + " milliseconds.");
-            System.out.println("Size of data table: " + mData.length + " bytes ("
-                    + Integer.toString(mData.length/1024) + "k)\n");
+            System.out.println("Size of data table: " + mData.limit() + " bytes ("
+                    + Integer.toString(mData.limit()/1024) + "k)\n");
         }
     }
 
@@ -418,23 +403,43 @@ public class TypoLookup {
     private String dumpEntry(int offset) {
         if (DEBUG_SEARCH) {
             int end = offset;
-            while (mData[end] != 0) {
+            while (mData.get(end) != 0) {
                 end++;
             }
-            return new String(mData, offset, end - offset, Charsets.UTF_8);
+            return getString(offset, end);
         } else {
             return "<disabled>"; //$NON-NLS-1$
         }
     }
 
+    /** Returns the offset in the data of the given word entry */
+    private int getEntryOffset(int index) {
+        return mData.getInt(mIndexOffset + 4 * index);
+    }
+
+    /** Decodes the UTF-8 string stored in the data between the given offsets */
+    @NonNull
+    private String getString(int begin, int end) {
+        byte[] bytes = new byte[end - begin];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = mData.get(begin + i);
+        }
+        return new String(bytes, Charsets.UTF_8);
+    }
+
     /** Comparison function: *only* used for ASCII strings */
     @VisibleForTesting
     static int compare(byte[] data, int offset, byte terminator, CharSequence s,
             int begin, int end) {
+        return compare(ByteBuffer.wrap(data), offset, terminator, s, begin, end);
+    }
+
+    private static int compare(ByteBuffer data, int offset, byte terminator, CharSequence s,
+            int begin, int end) {
         int i = offset;
         int j = begin;
         for (; ; i++, j++) {
-            byte b = data[i];
+            byte b = data.get(i);
             if (b == ' ') {
                 // We've matched up to the space in a split-word typo, such as
                 // in German all zu=>allzu; here we've matched just past "all".
@@ -480,17 +485,22 @@ public class TypoLookup {
             }
         }
 
-        return data[i] - terminator;
+        return data.get(i) - terminator;
     }
 
     /** Comparison function used for general UTF-8 encoded strings */
     @VisibleForTesting
     static int compare(byte[] data, int offset, byte terminator, byte[] s,
             int begin, int end) {
+        return compare(ByteBuffer.wrap(data), offset, terminator, s, begin, end);
+    }
+
+    private static int compare(ByteBuffer data, int offset, byte terminator, byte[] s,
+            int begin, int end) {
         int i = offset;
         int j = begin;
         for (; ; i++, j++) {
-            byte b = data[i];
+            byte b = data.get(i);
             if (b == ' ') {
                 // We've matched up to the space in a split-word typo, such as
                 // in German all zu=>allzu; here we've matched just past "all".
@@ -538,7 +548,7 @@ public class TypoLookup {
             }
         }
 
-        return data[i] - terminator;
+        return data.get(i) - terminator;
     }
 
     /**
@@ -571,7 +581,7 @@ public class TypoLookup {
         int high = mWordCount - 1;
         while (low <= high) {
             int middle = (low + high) >>> 1;
-            int offset = mIndices[middle];
+            int offset = getEntryOffset(middle);
 
             if (DEBUG_SEARCH) {
                 System.out.println("Comparing string " + text +" with entry at " + offset
@@ -582,11 +592,11 @@ public class TypoLookup {
             int compare = compare(mData, offset, (byte) 0, text, begin, end);
 
             if (compare == 0) {
-                offset = mIndices[middle];
+                offset = getEntryOffset(middle);
 
                 // Don't allow matching uncapitalized words, such as "enlish", when
                 // the dictionary word is capitalized, "Enlish".
-                if (mData[offset] != text.charAt(begin)
+                if (mData.get(offset) != text.charAt(begin)
                         && Character.isLowerCase(text.charAt(begin))) {
                     return null;
                 }
@@ -597,7 +607,7 @@ public class TypoLookup {
                 // typos (e.g. "enlish" to "Enlish").
                 String glob = null;
                 for (int i = begin; ; i++) {
-                    byte b = mData[offset++];
+                    byte b = mData.get(offset++);
                     if (b == 0) {
                         offset--;
                         break;
@@ -617,7 +627,7 @@ public class TypoLookup {
                     }
                 }
 
-                return computeSuggestions(mIndices[middle], offset, glob);
+                return computeSuggestions(getEntryOffset(middle), offset, glob);
             }
 
             if (compare < 0) {
@@ -653,7 +663,7 @@ public class TypoLookup {
         int high = mWordCount - 1;
         while (low <= high) {
             int middle = (low + high) >>> 1;
-            int offset = mIndices[middle];
+            int offset = getEntryOffset(middle);
 
             if (DEBUG_SEARCH) {
                 String s = new String(Arrays.copyOfRange(utf8Text, begin, end), Charsets.UTF_8);
@@ -670,11 +680,12 @@ public class TypoLookup {
             }
 
             if (compare == 0) {
-                offset = mIndices[middle];
+                offset = getEntryOffset(middle);
 
                 // Don't allow matching uncapitalized words, such as "enlish", when
                 // the dictionary word is capitalized, "Enlish".
-                if (mData[offset] != utf8Text[begin] && isUpperCase(mData[offset])) {
+                byte first = mData.get(offset);
+                if (first != utf8Text[begin] && isUpperCase(first)) {
                     return null;
                 }
 
@@ -684,7 +695,7 @@ public class TypoLookup {
                 // typos (e.g. "enlish" to "Enlish").
                 String glob = null;
                 for (int i = begin; ; i++) {
-                    byte b = mData[offset++];
+                    byte b = mData.get(offset++);
                     if (b == 0) {
                         offset--;
                         break;
@@ -702,7 +713,7 @@ public class TypoLookup {
                     }
                 }
 
-                return computeSuggestions(mIndices[middle], offset, glob);
+                return computeSuggestions(getEntryOffset(middle), offset, glob);
             }
 
             if (compare < 0) {
@@ -719,19 +730,19 @@ public class TypoLookup {
     }
 
     private List<String> computeSuggestions(int begin, int offset, String glob) {
-        String typo = new String(mData, begin, offset - begin, Charsets.UTF_8);
+        String typo = getString(begin, offset);
 
         if (glob != null) {
             typo = typo.replaceAll("\\*", glob); //$NON-NLS-1$
         }
 
-        assert mData[offset] == 0;
+        assert mData.get(offset) == 0;
         offset++;
         int replacementEnd = offset;
-        while (mData[replacementEnd] != 0) {
+        while (mData.get(replacementEnd) != 0) {
             replacementEnd++;
         }
-        String replacements = new String(mData, offset, replacementEnd - offset, Charsets.UTF_8);
+        String replacements = getString(offset, replacementEnd);
         List<String> words = new ArrayList<String>();
         words.add(typo);
 
@@ -102,6 +102,16 @@ public class UselessViewDetector extends LayoutDetector {
         return Speed.FAST;
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isFileLocal() {
+        return true;
+    }
+
     private static final List<String> CONTAINERS = new ArrayList<String>(18);
     static {
         CONTAINERS.add(ABSOLUTE_LAYOUT);
@@ -72,6 +72,16 @@ public class Utf8Detector extends ResourceXmlDetector {
         return Speed.NORMAL;
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isFileLocal() {
+        return true;
+    }
+
     @Override
     public void visitDocument(@NonNull XmlContext context, @NonNull Document document) {
         String xml = context.getContents();
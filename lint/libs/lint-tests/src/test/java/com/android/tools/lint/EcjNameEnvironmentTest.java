@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import static com.android.SdkConstants.UTF_8;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.V1_6;
+
+import com.android.testutils.TestUtils;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jdt.core.compiler.CharOperation;
+import org.eclipse.jdt.internal.compiler.env.NameEnvironmentAnswer;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+@SuppressWarnings("javadoc")
+public class EcjNameEnvironmentTest extends TestCase {
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = TestUtils.createTempDirDeletedOnExit();
+        EcjNameEnvironment.clearCache();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        EcjNameEnvironment.clearCache();
+        TestUtils.deleteFile(mDir);
+        super.tearDown();
+    }
+
+    public void testFindType() throws Exception {
+        File jar = new File(mDir, "lib.jar");
+        writeJar(jar, "test/pkg/Base", "java/lang/Object", "test/pkg/Child", "test/pkg/Base");
+        List<String> classPath = Collections.singletonList(jar.getPath());
+
+        EcjNameEnvironment environment = new EcjNameEnvironment(classPath, UTF_8);
+        NameEnvironmentAnswer answer = environment.findType(
+                CharOperation.splitOn('.', "test.pkg.Child".toCharArray()));
+        assertNotNull(answer);
+        assertTrue(answer.isBinaryType());
+        assertEquals("test/pkg/Child", new String(answer.getBinaryType().getName()));
+        assertEquals("test/pkg/Base", new String(answer.getBinaryType().getSuperclassName()));
+        assertNull(environment.findType("Other".toCharArray(),
+                CharOperation.splitOn('.', "test.pkg".toCharArray())));
+        assertTrue(environment.isPackage(null, "test".toCharArray()));
+        assertTrue(environment.isPackage(new char[][] { "test".toCharArray() },
+                "pkg".toCharArray()));
+        assertFalse(environment.isPackage(null, "pkg".toCharArray()));
+        assertEquals(0, environment.getHitCount());
+        assertEquals(1, environment.getMissCount());
+        environment.cleanup();
+
+        // The decoded types are shared with the next environment
+        environment = new EcjNameEnvironment(classPath, UTF_8);
+        NameEnvironmentAnswer second = environment.findType("Child".toCharArray(),
+                CharOperation.splitOn('.', "test.pkg".toCharArray()));
+        assertNotNull(second);
+        assertSame(answer.getBinaryType(), second.getBinaryType());
+        assertEquals(1, environment.getHitCount());
+        assertEquals(0, environment.getMissCount());
+        environment.cleanup();
+    }
+
+    public void testClassPathOrder() throws Exception {
+        File first = new File(mDir, "first.jar");
+        writeJar(first, "test/pkg/Child", "test/pkg/First");
+        File second = new File(mDir, "second.jar");
+        writeJar(second, "test/pkg/Child", "test/pkg/Second", "test/pkg/Other",
+                "java/lang/Object");
+
+        EcjNameEnvironment environment = new EcjNameEnvironment(
+                Arrays.asList(first.getPath(), second.getPath()), UTF_8);
+        NameEnvironmentAnswer answer = environment.findType(
+                CharOperation.splitOn('.', "test.pkg.Child".toCharArray()));
+        assertNotNull(answer);
+        assertEquals("test/pkg/First", new String(answer.getBinaryType().getSuperclassName()));
+        assertNotNull(environment.findType(
+                CharOperation.splitOn('.', "test.pkg.Other".toCharArray())));
+        environment.cleanup();
+    }
+
+    public void testChangedJar() throws Exception {
+        File jar = new File(mDir, "lib.jar");
+        writeJar(jar, "test/pkg/Child", "java/lang/Object");
+        List<String> classPath = Collections.singletonList(jar.getPath());
+        EcjNameEnvironment environment = new EcjNameEnvironment(classPath, UTF_8);
+        assertNotNull(environment.findType(
+                CharOperation.splitOn('.', "test.pkg.Child".toCharArray())));
+        environment.cleanup();
+
+        writeJar(jar, "test/pkg/Other", "java/lang/Object");
+        //noinspection ResultOfMethodCallIgnored
+        jar.setLastModified(jar.lastModified() + 10000);
+        environment = new EcjNameEnvironment(classPath, UTF_8);
+        assertNull(environment.findType(
+                CharOperation.splitOn('.', "test.pkg.Child".toCharArray())));
+        assertNotNull(environment.findType(
+                CharOperation.splitOn('.', "test.pkg.Other".toCharArray())));
+        assertEquals(1, environment.getMissCount());
+        environment.cleanup();
+    }
+
+    /** Writes a jar containing empty classes, given as pairs of class and super class */
+    private static void writeJar(File jar, String... classes) throws IOException {
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            for (int i = 0; i < classes.length; i += 2) {
+                ClassWriter writer = new ClassWriter(0);
+                writer.visit(V1_6, ACC_PUBLIC, classes[i], null, classes[i + 1], null);
+                writer.visitEnd();
+                zos.putNextEntry(new ZipEntry(classes[i] + ".class"));
+                zos.write(writer.toByteArray());
+                zos.closeEntry();
+            }
+        } finally {
+            zos.close();
+        }
+    }
+}
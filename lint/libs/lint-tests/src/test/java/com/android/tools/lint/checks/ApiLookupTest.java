@@ -25,6 +25,9 @@ import java.io.File;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 @SuppressWarnings("javadoc")
 public class ApiLookupTest extends AbstractCheckTest {
@@ -99,6 +102,40 @@ public class ApiLookupTest extends AbstractCheckTest {
         assertFalse(mDb.isValidJavaPackage("java/lang/instrument/Instrumentation"));
     }
 
+    public void testConcurrentLookups() throws Exception {
+        // The lookups are made directly against the shared mapped database: make sure
+        // they can be made from several threads at the same time
+        final List<Throwable> failures = Collections.synchronizedList(
+                new ArrayList<Throwable>());
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 10000; j++) {
+                            assertEquals(11, mDb.getFieldVersion("android/R$attr",
+                                    "actionMenuTextAppearance"));
+                            assertEquals(4, mDb.getCallVersion(
+                                    "android/graphics/drawable/BitmapDrawable",
+                                    "setTargetDensity", "(Landroid/util/DisplayMetrics;)V"));
+                            assertEquals(11, mDb.getClassVersion("android/widget/StackView"));
+                            assertEquals(-1, mDb.getFieldVersion("foo/Bar", "FOOBAR"));
+                        }
+                    } catch (Throwable t) {
+                        // Failed assertions and exceptions are otherwise lost with the thread
+                        failures.add(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.<Throwable>emptyList(), failures);
+    }
+
     @Override
     protected Detector getDetector() {
         fail("This is not used in the ApiDatabase test");
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.checks;
+
+import com.android.testutils.TestUtils;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+import javax.imageio.ImageIO;
+
+@SuppressWarnings("javadoc")
+public class ImageIndexTest extends TestCase {
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = TestUtils.createTempDirDeletedOnExit();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtils.deleteFile(mDir);
+        super.tearDown();
+    }
+
+    public void testHeaderSizes() throws Exception {
+        assertEquals(new Dimension(37, 21), ImageIndex.readHeaderSize(writeImage("png", 37, 21)));
+        assertEquals(new Dimension(37, 21), ImageIndex.readHeaderSize(writeImage("gif", 37, 21)));
+        assertEquals(new Dimension(37, 21), ImageIndex.readHeaderSize(writeImage("jpg", 37, 21)));
+
+        // Lossless WebP: 14 bit width - 1 and height - 1
+        File webp = new File(mDir, "lossless.webp");
+        int bits = 36 | 20 << 14;
+        Files.write(new byte[] {
+                'R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'E', 'B', 'P',
+                'V', 'P', '8', 'L', 0, 0, 0, 0, 0x2F,
+                (byte) bits, (byte) (bits >> 8), (byte) (bits >> 16), (byte) (bits >> 24),
+                0, 0, 0, 0, 0
+        }, webp);
+        assertEquals(new Dimension(37, 21), ImageIndex.readHeaderSize(webp));
+
+        // Extended WebP: 24 bit canvas width - 1 and height - 1
+        webp = new File(mDir, "extended.webp");
+        Files.write(new byte[] {
+                'R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'E', 'B', 'P',
+                'V', 'P', '8', 'X', 10, 0, 0, 0, 0, 0, 0, 0,
+                (byte) 0xFF, 0x01, 0, 20, 0, 0
+        }, webp);
+        assertEquals(new Dimension(512, 21), ImageIndex.readHeaderSize(webp));
+
+        File text = new File(mDir, "text.png");
+        Files.write("Not an image", text, Charsets.UTF_8);
+        assertNull(ImageIndex.readHeaderSize(text));
+        assertNull(ImageIndex.readSize(text));
+    }
+
+    public void testStoredIndex() throws Exception {
+        File indexFile = new File(mDir, "cache" + File.separator + "index");
+        File first = writeImage("png", 10, 20);
+        File second = new File(mDir, "copy.png");
+        Files.copy(first, second);
+
+        ImageIndex index = ImageIndex.load(indexFile);
+        assertEquals(new Dimension(10, 20), index.getSize(first));
+        String hash = index.getHash(first);
+        assertNotNull(hash);
+        assertEquals(hash, index.getHash(second));
+        index.save();
+        assertTrue(indexFile.isFile());
+
+        // Stored values are used as long as the file doesn't change: replace the image
+        // file contents while keeping the same length and timestamp
+        long lastModified = first.lastModified();
+        byte[] contents = Files.toByteArray(first);
+        contents[contents.length - 1]++;
+        Files.write(contents, first);
+        //noinspection ResultOfMethodCallIgnored
+        first.setLastModified(lastModified);
+        index = ImageIndex.load(indexFile);
+        assertEquals(hash, index.getHash(first));
+        assertEquals(new Dimension(10, 20), index.getSize(first));
+
+        // Changed timestamp: computed again
+        //noinspection ResultOfMethodCallIgnored
+        first.setLastModified(lastModified + 10000);
+        index = ImageIndex.load(indexFile);
+        assertFalse(hash.equals(index.getHash(first)));
+        assertEquals(hash, index.getHash(second));
+    }
+
+    public void testCorruptIndex() throws Exception {
+        File indexFile = new File(mDir, "index");
+        Files.write("garbage", indexFile, Charsets.UTF_8);
+        File image = writeImage("png", 10, 20);
+        assertEquals(new Dimension(10, 20), ImageIndex.load(indexFile).getSize(image));
+        assertEquals(new Dimension(10, 20), ImageIndex.load(null).getSize(image));
+    }
+
+    private File writeImage(String format, int width, int height) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(1, 1, 0xFF0000);
+        File file = new File(mDir, "image-" + width + "x" + height + "." + format);
+        assertTrue(ImageIO.write(image, format, file));
+        return file;
+    }
+}
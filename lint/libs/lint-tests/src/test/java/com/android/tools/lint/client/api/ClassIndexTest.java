@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api;
+
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.V1_6;
+
+import com.android.testutils.TestUtils;
+import com.android.tools.lint.LintCliClient;
+
+import junit.framework.TestCase;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+@SuppressWarnings("javadoc")
+public class ClassIndexTest extends TestCase {
+    private File mDir;
+    private File mCacheDir;
+    private LintClient mClient;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = TestUtils.createTempDirDeletedOnExit();
+        mCacheDir = new File(mDir, "cache");
+        mClient = new LintCliClient() {
+            @Override
+            public File getCacheDir(boolean create) {
+                if (create) {
+                    //noinspection ResultOfMethodCallIgnored
+                    mCacheDir.mkdirs();
+                }
+                return mCacheDir;
+            }
+        };
+        ClassIndex.clearCache();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ClassIndex.clearCache();
+        TestUtils.deleteFile(mDir);
+        super.tearDown();
+    }
+
+    public void testIndex() throws Exception {
+        File jar = new File(mDir, "lib.jar");
+        writeJar(jar, "test/pkg/Base", "java/lang/Object", "test/pkg/Child", "test/pkg/Base");
+
+        ClassIndex index = ClassIndex.get(mClient, jar);
+        assertNotNull(index);
+        assertEquals(2, index.getClassCount());
+        assertTrue(index.contains("test/pkg/Base"));
+        assertTrue(index.contains("test/pkg/Child"));
+        assertFalse(index.contains("test/pkg/Other"));
+        assertNull(index.getSuperClass("test/pkg/Base"));
+        assertEquals("test/pkg/Base", index.getSuperClass("test/pkg/Child"));
+        assertSame(index, ClassIndex.get(mClient, jar));
+
+        byte[] bytes = index.readClass("test/pkg/Child");
+        assertNotNull(bytes);
+        assertEquals("test/pkg/Child", new ClassReader(bytes).getClassName());
+        assertNull(index.readClass("test/pkg/Other"));
+    }
+
+    public void testStoredIndex() throws Exception {
+        File jar = new File(mDir, "lib.jar");
+        writeJar(jar, "test/pkg/Base", "java/lang/Object", "test/pkg/Child", "test/pkg/Base");
+        assertNotNull(ClassIndex.get(mClient, jar));
+        File[] indexes = new File(mCacheDir, "lint-classes").listFiles();
+        assertNotNull(indexes);
+        assertEquals(1, indexes.length);
+
+        // Not kept in memory: read from the cache directory
+        ClassIndex.clearCache();
+        ClassIndex index = ClassIndex.get(mClient, jar);
+        assertNotNull(index);
+        assertEquals("test/pkg/Base", index.getSuperClass("test/pkg/Child"));
+        assertTrue(index.contains("test/pkg/Base"));
+    }
+
+    public void testChangedJar() throws Exception {
+        File jar = new File(mDir, "lib.jar");
+        writeJar(jar, "test/pkg/Base", "java/lang/Object", "test/pkg/Child", "test/pkg/Base");
+        assertTrue(ClassIndex.get(mClient, jar).contains("test/pkg/Child"));
+
+        writeJar(jar, "test/pkg/Base", "java/lang/Object", "test/pkg/Other", "test/pkg/Base");
+        //noinspection ResultOfMethodCallIgnored
+        jar.setLastModified(jar.lastModified() + 10000);
+        ClassIndex index = ClassIndex.get(mClient, jar);
+        assertNotNull(index);
+        assertFalse(index.contains("test/pkg/Child"));
+        assertTrue(index.contains("test/pkg/Other"));
+    }
+
+    public void testMissingJar() throws Exception {
+        assertNull(ClassIndex.get(mClient, new File(mDir, "missing.jar")));
+    }
+
+    public void testConcurrentLookups() throws Exception {
+        final File[] jars = new File[4];
+        for (int i = 0; i < jars.length; i++) {
+            jars[i] = new File(mDir, "lib" + i + ".jar");
+            writeJar(jars[i], "test/pkg/Base" + i, "java/lang/Object");
+        }
+
+        // Each jar is indexed once, while the other jars are looked up
+        final int threadCount = 8;
+        final ClassIndex[][] found = new ClassIndex[threadCount][jars.length];
+        final List<Throwable> failures = Collections.synchronizedList(
+                new ArrayList<Throwable>());
+        final CyclicBarrier barrier = new CyclicBarrier(threadCount);
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int thread = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        barrier.await();
+                        for (int j = 0; j < jars.length; j++) {
+                            int jar = (thread + j) % jars.length;
+                            found[thread][jar] = ClassIndex.get(mClient, jars[jar]);
+                        }
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(Collections.<Throwable>emptyList(), failures);
+        for (int jar = 0; jar < jars.length; jar++) {
+            ClassIndex index = found[0][jar];
+            assertNotNull(index);
+            assertTrue(index.contains("test/pkg/Base" + jar));
+            for (int thread = 1; thread < threadCount; thread++) {
+                assertSame(index, found[thread][jar]);
+            }
+        }
+        File[] indexes = new File(mCacheDir, "lint-classes").listFiles();
+        assertNotNull(indexes);
+        assertEquals(jars.length, indexes.length);
+    }
+
+    /** Writes a jar containing empty classes, given as pairs of class and super class */
+    private static void writeJar(File jar, String... classes) throws IOException {
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            for (int i = 0; i < classes.length; i += 2) {
+                ClassWriter writer = new ClassWriter(0);
+                writer.visit(V1_6, ACC_PUBLIC, classes[i], null, classes[i + 1], null);
+                writer.visitEnd();
+                zos.putNextEntry(new ZipEntry(classes[i] + ".class"));
+                zos.write(writer.toByteArray());
+                zos.closeEntry();
+            }
+        } finally {
+            zos.close();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api;
+
+import com.android.annotations.NonNull;
+import com.android.tools.lint.checks.AbstractCheckTest;
+import com.android.tools.lint.checks.TextFieldDetector;
+import com.android.tools.lint.detector.api.Category;
+import com.android.tools.lint.detector.api.Detector;
+import com.android.tools.lint.detector.api.Implementation;
+import com.android.tools.lint.detector.api.Issue;
+import com.android.tools.lint.detector.api.LayoutDetector;
+import com.android.tools.lint.detector.api.Scope;
+import com.android.tools.lint.detector.api.Severity;
+import com.android.tools.lint.detector.api.XmlContext;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import org.w3c.dom.Document;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for reusing the results of unchanged resource files, see
+ * {@link LintDriver#setIncremental(boolean)}
+ */
+@SuppressWarnings("javadoc")
+public class IncrementalLintTest extends AbstractCheckTest {
+    private File mCacheDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCacheDir = Files.createTempDir();
+        FileLocalDetector.sVisited.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteFile(mCacheDir);
+        super.tearDown();
+    }
+
+    public void testUnchangedFilesAreReplayed() throws Exception {
+        String first = checkLint(Collections.singletonList(getProjectDir("IncrementalProject",
+                "res/layout/accessibility.xml=>res/layout/a.xml",
+                "res/layout/note_edit.xml=>res/layout/b.xml")));
+        assertEquals(Arrays.asList("a.xml", "b.xml"), sortedVisits());
+        assertTrue(first, first.contains("res/layout/a.xml:2: Warning: Layout root [FileLocal]"));
+        assertTrue(first, first.contains("res/layout/b.xml:2: Warning: Layout root [FileLocal]"));
+        assertTrue(first, first.contains("[TextFields]"));
+
+        // Nothing changed: the file local detector doesn't look at any file, but its
+        // issues are reported again, along with the issues of the other detector
+        FileLocalDetector.sVisited.clear();
+        String second = checkLint(Collections.singletonList(getProjectDir("IncrementalProject",
+                "res/layout/accessibility.xml=>res/layout/a.xml",
+                "res/layout/note_edit.xml=>res/layout/b.xml")));
+        assertEquals(Collections.<String>emptyList(), sortedVisits());
+        assertEquals(first, second);
+
+        // Only the edited file is checked again
+        FileLocalDetector.sVisited.clear();
+        String third = checkLint(Collections.singletonList(getProjectDir("IncrementalProject",
+                "res/layout/accessibility.xml=>res/layout/a.xml",
+                "res/layout/accessibility2.xml=>res/layout/b.xml")));
+        assertEquals(Collections.singletonList("b.xml"), sortedVisits());
+        assertTrue(third, third.contains("res/layout/a.xml:2: Warning: Layout root [FileLocal]"));
+        assertTrue(third, third.contains("res/layout/b.xml:2: Warning: Layout root [FileLocal]"));
+        assertFalse(third, third.equals(first));
+    }
+
+    public void testNotIncremental() throws Exception {
+        checkLint(Collections.singletonList(getProjectDir("IncrementalProject",
+                "res/layout/accessibility.xml=>res/layout/a.xml")));
+        checkLint(Collections.singletonList(getProjectDir("IncrementalProject",
+                "res/layout/accessibility.xml=>res/layout/a.xml")));
+        assertEquals(Arrays.asList("a.xml", "a.xml"), sortedVisits());
+    }
+
+    private static List<String> sortedVisits() {
+        List<String> visited = Lists.newArrayList(FileLocalDetector.sVisited);
+        Collections.sort(visited);
+        return visited;
+    }
+
+    @Override
+    protected void configureDriver(LintDriver driver) {
+        driver.setIncremental(!getName().equals("testNotIncremental"));
+    }
+
+    @Override
+    protected TestLintClient createClient() {
+        return new TestLintClient() {
+            @Override
+            public File getCacheDir(boolean create) {
+                return mCacheDir;
+            }
+        };
+    }
+
+    @Override
+    protected Detector getDetector() {
+        return new FileLocalDetector();
+    }
+
+    @Override
+    protected List<Issue> getIssues() {
+        // One file local detector, whose results are cached, and one which isn't
+        return Arrays.asList(FileLocalDetector.ISSUE, TextFieldDetector.ISSUE);
+    }
+
+    @Override
+    protected boolean isEnabled(Issue issue) {
+        return getIssues().contains(issue) || super.isEnabled(issue);
+    }
+
+    /** Reports the root element of each layout, and records the files it looks at */
+    public static class FileLocalDetector extends LayoutDetector {
+        static final List<String> sVisited =
+                Collections.synchronizedList(Lists.<String>newArrayList());
+
+        static final Issue ISSUE = Issue.create(
+                "FileLocal", //$NON-NLS-1$
+                "Layout root",
+                "Reports the root element of each layout.",
+                Category.CORRECTNESS,
+                5,
+                Severity.WARNING,
+                new Implementation(FileLocalDetector.class, Scope.RESOURCE_FILE_SCOPE));
+
+        public FileLocalDetector() {
+        }
+
+        @Override
+        public boolean isFileLocal() {
+            return true;
+        }
+
+        @Override
+        public void visitDocument(@NonNull XmlContext context, @NonNull Document document) {
+            sVisited.add(context.file.getName());
+            context.report(ISSUE, document.getDocumentElement(),
+                    context.getLocation(document.getDocumentElement()), "Layout root");
+        }
+    }
+}
@@ -17,20 +17,27 @@
 package com.android.tools.lint.client.api;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.tools.lint.checks.AbstractCheckTest;
 import com.android.tools.lint.checks.AccessibilityDetector;
+import com.android.tools.lint.detector.api.Context;
 import com.android.tools.lint.detector.api.Detector;
 import com.android.tools.lint.detector.api.Project;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 @SuppressWarnings("javadoc")
 public class LintDriverTest extends AbstractCheckTest {
+    private LintListener mListener;
+    private boolean mParallel;
+
     @SuppressWarnings({"ResultOfMethodCallIgnored", "ConstantConditions"})
     public void testClassEntryCompare() throws Exception {
         ClassEntry c0 = new ClassEntry(new File("/a1/Foo.class"), null, null, null);
@@ -66,19 +73,103 @@ public class LintDriverTest extends AbstractCheckTest {
         assertEquals("No warnings.", lintProject("res/layout/layout1.xml"));
     }
 
+    public void testProjectCheckTime() throws Exception {
+        final List<Project> scanned = Lists.newArrayList();
+        mListener = new LintListener() {
+            @Override
+            public void update(@NonNull LintDriver driver, @NonNull EventType type,
+                    @Nullable Context context) {
+                if (type == EventType.SCANNED_PROJECT) {
+                    assertNotNull(context);
+                    assertTrue(driver.getProjectCheckTime(context.getProject()) >= 0);
+                    scanned.add(context.getProject());
+                } else if (type == EventType.SCANNING_PROJECT) {
+                    assertNotNull(context);
+                    assertEquals(-1, driver.getProjectCheckTime(context.getProject()));
+                }
+            }
+        };
+        assertEquals("No warnings.", lintProject("res/layout/layout1.xml"));
+        assertEquals(1, scanned.size());
+    }
+
+    public void testParallelProjects() throws Exception {
+        // The two main projects share a library project, so they must be checked by
+        // the same project driver; the unrelated project is checked by another one
+        final Map<String, LintDriver> scannedBy = Maps.newHashMap();
+        mListener = new LintListener() {
+            @Override
+            public void update(@NonNull LintDriver driver, @NonNull EventType type,
+                    @Nullable Context context) {
+                if (type == EventType.SCANNED_PROJECT) {
+                    assertNotNull(context);
+                    scannedBy.put(context.getProject().getName(), driver);
+                }
+            }
+        };
+
+        String expected = checkLint(createParallelProjects());
+        assertTrue(expected, expected.contains("MasterProject/res/layout/main.xml"));
+        assertTrue(expected, expected.contains("LibraryProject/res/layout/accessibility.xml"));
+        assertTrue(expected, expected.contains("OtherProject/res/layout/accessibility2.xml"));
+        assertEquals(3, scannedBy.size());
+        assertSame(scannedBy.get("MasterProject"), scannedBy.get("MasterProject2"));
+        assertSame(scannedBy.get("MasterProject"), scannedBy.get("OtherProject"));
+
+        // Same warnings when the independent projects are checked at the same time
+
+        scannedBy.clear();
+        mParallel = true;
+        assertEquals(expected, checkLint(createParallelProjects()));
+        assertEquals(3, scannedBy.size());
+        assertSame(scannedBy.get("MasterProject"), scannedBy.get("MasterProject2"));
+        assertNotSame(scannedBy.get("MasterProject"), scannedBy.get("OtherProject"));
+    }
+
+    private List<File> createParallelProjects() throws Exception {
+        File master = getProjectDir("MasterProject",
+                "multiproject/main-manifest.xml=>AndroidManifest.xml",
+                "multiproject/main.properties=>project.properties",
+                "res/layout/accessibility.xml=>res/layout/main.xml"
+        );
+        File master2 = getProjectDir("MasterProject2",
+                "multiproject/main-manifest.xml=>AndroidManifest.xml",
+                "multiproject/main.properties=>project.properties"
+        );
+        File library = getProjectDir("LibraryProject",
+                "multiproject/library-manifest.xml=>AndroidManifest.xml",
+                "multiproject/library.properties=>project.properties",
+                "res/layout/accessibility.xml=>res/layout/accessibility.xml"
+        );
+        File other = getProjectDir("OtherProject",
+                "res/layout/accessibility2.xml=>res/layout/accessibility2.xml"
+        );
+        return Arrays.asList(master, master2, library, other);
+    }
+
+    @Override
+    protected void configureDriver(LintDriver driver) {
+        driver.setParallel(mParallel);
+        if (mListener != null) {
+            driver.addLintListener(mListener);
+        }
+    }
+
     @Override
     protected TestLintClient createClient() {
         return new TestLintClient() {
-            private List<File> mResources;
+            private final Map<Project, List<File>> mResources = Maps.newHashMap();
 
             @NonNull
             @Override
-            public List<File> getResourceFolders(@NonNull Project project) {
-                if (mResources == null) {
-                    mResources = Lists.newArrayList(super.getResourceFolders(project));
-                    mResources.add(new File("bogus"));
+            public synchronized List<File> getResourceFolders(@NonNull Project project) {
+                List<File> resources = mResources.get(project);
+                if (resources == null) {
+                    resources = Lists.newArrayList(super.getResourceFolders(project));
+                    resources.add(new File("bogus"));
+                    mResources.put(project, resources);
                 }
-                return mResources;
+                return resources;
             }
         };
     }
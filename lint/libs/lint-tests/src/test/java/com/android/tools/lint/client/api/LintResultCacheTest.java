@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api;
+
+import com.android.testutils.TestUtils;
+import com.android.tools.lint.checks.AccessibilityDetector;
+import com.android.tools.lint.checks.BuiltinIssueRegistry;
+import com.android.tools.lint.checks.HardcodedValuesDetector;
+import com.android.tools.lint.detector.api.DefaultPosition;
+import com.android.tools.lint.detector.api.Location;
+import com.android.tools.lint.detector.api.Severity;
+import com.android.tools.lint.detector.api.TextFormat;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+@SuppressWarnings("javadoc")
+public class LintResultCacheTest extends TestCase {
+    private File mDir;
+    private IssueRegistry mRegistry;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = TestUtils.createTempDirDeletedOnExit();
+        mRegistry = new BuiltinIssueRegistry();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtils.deleteFile(mDir);
+        super.tearDown();
+    }
+
+    public void testSaveAndLoad() throws Exception {
+        File layout = new File(mDir, "layout.xml");
+        Files.write("<LinearLayout/>", layout, Charsets.UTF_8);
+        File strings = new File(mDir, "strings.xml");
+        Files.write("<resources/>", strings, Charsets.UTF_8);
+        File cacheFile = new File(mDir, "cache" + File.separator + "results");
+
+        LintResultCache cache = LintResultCache.load(cacheFile, "key", mRegistry);
+        String hash = LintResultCache.hash(layout);
+        assertNull(cache.get(layout, hash));
+
+        Location location = Location.create(layout, new DefaultPosition(1, 2, 3),
+                new DefaultPosition(1, 8, 9));
+        location.setMessage("Secondary");
+        location.setSecondary(Location.create(layout));
+        List<LintResultCache.Result> results = Lists.newArrayList(
+                new LintResultCache.Result(AccessibilityDetector.ISSUE, Severity.WARNING,
+                        location, "Missing contentDescription", TextFormat.RAW),
+                new LintResultCache.Result(HardcodedValuesDetector.ISSUE, Severity.ERROR,
+                        null, "Hardcoded string", TextFormat.TEXT));
+        cache.put(layout, hash, results);
+        cache.put(strings, LintResultCache.hash(strings),
+                Collections.<LintResultCache.Result>emptyList());
+        cache.save();
+
+        cache = LintResultCache.load(cacheFile, "key", mRegistry);
+        List<LintResultCache.Result> loaded = cache.get(layout, hash);
+        assertNotNull(loaded);
+        assertEquals(2, loaded.size());
+        LintResultCache.Result first = loaded.get(0);
+        assertSame(AccessibilityDetector.ISSUE, first.issue);
+        assertEquals(Severity.WARNING, first.severity);
+        assertEquals("Missing contentDescription", first.message);
+        assertEquals(TextFormat.RAW, first.format);
+        assertNotNull(first.location);
+        assertEquals(layout, first.location.getFile());
+        assertEquals(2, first.location.getStart().getColumn());
+        assertEquals(9, first.location.getEnd().getOffset());
+        assertEquals("Secondary", first.location.getMessage());
+        assertNotNull(first.location.getSecondary());
+        assertNull(first.location.getSecondary().getStart());
+        LintResultCache.Result second = loaded.get(1);
+        assertSame(HardcodedValuesDetector.ISSUE, second.issue);
+        assertNull(second.location);
+        assertEquals(1, cache.getHitCount());
+
+        // Changed file
+        Files.write("<resources></resources>", strings, Charsets.UTF_8);
+        assertNull(cache.get(strings, LintResultCache.hash(strings)));
+        assertEquals(1, cache.getMissCount());
+    }
+
+    public void testDifferentKey() throws Exception {
+        File layout = new File(mDir, "layout.xml");
+        Files.write("<LinearLayout/>", layout, Charsets.UTF_8);
+        File cacheFile = new File(mDir, "results");
+        String hash = LintResultCache.hash(layout);
+
+        LintResultCache cache = LintResultCache.load(cacheFile, "key", mRegistry);
+        cache.put(layout, hash, Collections.<LintResultCache.Result>emptyList());
+        cache.save();
+
+        assertNotNull(LintResultCache.load(cacheFile, "key", mRegistry).get(layout, hash));
+        assertNull(LintResultCache.load(cacheFile, "other", mRegistry).get(layout, hash));
+    }
+
+    public void testOnlyCheckedFilesAreSaved() throws Exception {
+        File layout = new File(mDir, "layout.xml");
+        Files.write("<LinearLayout/>", layout, Charsets.UTF_8);
+        File cacheFile = new File(mDir, "results");
+        String hash = LintResultCache.hash(layout);
+
+        LintResultCache cache = LintResultCache.load(cacheFile, "key", mRegistry);
+        cache.put(layout, hash, Collections.<LintResultCache.Result>emptyList());
+        cache.save();
+
+        // The file is not looked up in the second run, e.g. because it was deleted
+        LintResultCache.load(cacheFile, "key", mRegistry).save();
+        assertNull(LintResultCache.load(cacheFile, "key", mRegistry).get(layout, hash));
+    }
+
+    public void testCorruptCache() throws Exception {
+        File cacheFile = new File(mDir, "results");
+        Files.write("garbage", cacheFile, Charsets.UTF_8);
+        LintResultCache cache = LintResultCache.load(cacheFile, "key", mRegistry);
+        assertNull(cache.get(cacheFile, LintResultCache.hash(cacheFile)));
+    }
+}
@@ -75,6 +75,10 @@ public class GraphicsUtilities {
     }
 
     public static BufferedImage createTranslucentCompatibleImage(int width, int height) {
+        if (isHeadless()) {
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+
         return getGraphicsConfiguration().createCompatibleImage(width, height,
                 Transparency.TRANSLUCENT);
     }
@@ -119,7 +119,9 @@ public class NinePatch {
     public static NinePatch load(BufferedImage image, boolean is9Patch, boolean convert) {
         if (is9Patch == false) {
             if (convert) {
-                image = convertTo9Patch(image);
+                // a regular bitmap is stretched as a whole, there is no control line to scan
+                return new NinePatch(copyToTranslucent(image),
+                        NinePatchChunk.createForBitmap(image.getWidth(), image.getHeight()));
             } else {
                 return null;
             }
@@ -182,6 +184,11 @@ public class NinePatch {
         mImage = extractBitmapContent(image);
     }
 
+    private NinePatch(BufferedImage image, NinePatchChunk chunk) {
+        mChunk = chunk;
+        mImage = image;
+    }
+
     private static void ensure9Patch(BufferedImage image) {
         int width = image.getWidth();
         int height = image.getHeight();
@@ -207,12 +214,12 @@ public class NinePatch {
         }
     }
 
-    private static BufferedImage convertTo9Patch(BufferedImage image) {
+    private static BufferedImage copyToTranslucent(BufferedImage image) {
         BufferedImage buffer = GraphicsUtilities.createTranslucentCompatibleImage(
-                image.getWidth() + 2, image.getHeight() + 2);
+                image.getWidth(), image.getHeight());
 
         Graphics2D g2 = buffer.createGraphics();
-        g2.drawImage(image, 1, 1, null);
+        g2.drawImage(image, 0, 0, null);
         g2.dispose();
 
         return buffer;
@@ -22,7 +22,10 @@ import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * The chunk information for a nine patch.
@@ -54,6 +57,12 @@ public class NinePatchChunk implements Serializable {
     private Pair<Integer> mHorizontalPadding;
     private Pair<Integer> mVerticalPadding;
 
+    /** The number of recently drawn sizes whose layout is kept. */
+    private static final int MAX_LAYOUTS = 16;
+
+    /** The layouts of the recently drawn sizes, by width and height. */
+    private transient Map<Long, Layout> mLayouts;
+
 
     /**
      * Data computed during drawing.
@@ -65,6 +74,34 @@ public class NinePatchChunk implements Serializable {
         private float mVerticalPatchesSum;
     }
 
+    /**
+     * The patches drawn at a given size: for each patch, the destination x1, y1, x2, y2 followed
+     * by the source x1, y1, x2, y2 coordinates.
+     */
+    static final class Layout {
+        private int[] mCoordinates = new int[64];
+        private int mSize;
+
+        void add(int dx1, int dy1, int dx2, int dy2, Rectangle src) {
+            if (mSize + 8 > mCoordinates.length) {
+                mCoordinates = Arrays.copyOf(mCoordinates, mCoordinates.length * 2);
+            }
+            int[] c = mCoordinates;
+            c[mSize++] = dx1;
+            c[mSize++] = dy1;
+            c[mSize++] = dx2;
+            c[mSize++] = dy2;
+            c[mSize++] = src.x;
+            c[mSize++] = src.y;
+            c[mSize++] = src.x + src.width;
+            c[mSize++] = src.y + src.height;
+        }
+
+        void trim() {
+            mCoordinates = Arrays.copyOf(mCoordinates, mSize);
+        }
+    }
+
     /**
      * Computes and returns the 9-patch chunks.
      * @param image the image containing both the content and the control outer line.
@@ -76,6 +113,26 @@ public class NinePatchChunk implements Serializable {
         return chunk;
     }
 
+    /**
+     * Returns the chunk of a regular bitmap converted into a nine patch, which is stretched as a
+     * whole. This is the chunk {@link #create} finds in the bitmap surrounded by an empty control
+     * outer line, without drawing and scanning that image.
+     * @param width the width of the bitmap.
+     * @param height the height of the bitmap.
+     */
+    static NinePatchChunk createForBitmap(int width, int height) {
+        NinePatchChunk chunk = new NinePatchChunk();
+        chunk.mVerticalStartWithPatch = true;
+        chunk.mHorizontalStartWithPatch = true;
+        chunk.mFixed = new ArrayList<Rectangle>(0);
+        chunk.mPatches = new ArrayList<Rectangle>(1);
+        chunk.mPatches.add(new Rectangle(1, 1, width - 1, height - 1));
+        chunk.mHorizontalPatches = chunk.mVerticalPatches = new ArrayList<Rectangle>(0);
+        chunk.mHorizontalPadding = new Pair<Integer>(0, 0);
+        chunk.mVerticalPadding = new Pair<Integer>(0, 0);
+        return chunk;
+    }
+
     public void draw(BufferedImage image, Graphics2D graphics2D, int x, int y, int scaledWidth,
             int scaledHeight, int destDensity, int srcDensity) {
 
@@ -125,86 +182,135 @@ public class NinePatchChunk implements Serializable {
             }
 
             g.translate(x, y);
-            x = y = 0;
-
-            DrawingData data = computePatches(scaledWidth, scaledHeight);
-
-            int fixedIndex = 0;
-            int horizontalIndex = 0;
-            int verticalIndex = 0;
-            int patchIndex = 0;
-
-            boolean hStretch;
-            boolean vStretch;
-
-            float vWeightSum = 1.0f;
-            float vRemainder = data.mRemainderVertical;
-
-            vStretch = mVerticalStartWithPatch;
-            while (y < scaledHeight - 1) {
-                hStretch = mHorizontalStartWithPatch;
-
-                int height = 0;
-                float vExtra = 0.0f;
-
-                float hWeightSum = 1.0f;
-                float hRemainder = data.mRemainderHorizontal;
-
-                while (x < scaledWidth - 1) {
-                    Rectangle r;
-                    if (!vStretch) {
-                        if (hStretch) {
-                            r = mHorizontalPatches.get(horizontalIndex++);
-                            float extra = r.width / data.mHorizontalPatchesSum;
-                            int width = (int) (extra * hRemainder / hWeightSum);
-                            hWeightSum -= extra;
-                            hRemainder -= width;
-                            g.drawImage(image, x, y, x + width, y + r.height, r.x, r.y,
-                                    r.x + r.width, r.y + r.height, null);
-                            x += width;
-                        } else {
-                            r = mFixed.get(fixedIndex++);
-                            g.drawImage(image, x, y, x + r.width, y + r.height, r.x, r.y,
-                                    r.x + r.width, r.y + r.height, null);
-                            x += r.width;
-                        }
-                        height = r.height;
-                    } else {
-                        if (hStretch) {
-                            r = mPatches.get(patchIndex++);
-                            vExtra = r.height / data.mVerticalPatchesSum;
-                            height = (int) (vExtra * vRemainder / vWeightSum);
-                            float extra = r.width / data.mHorizontalPatchesSum;
-                            int width = (int) (extra * hRemainder / hWeightSum);
-                            hWeightSum -= extra;
-                            hRemainder -= width;
-                            g.drawImage(image, x, y, x + width, y + height, r.x, r.y,
-                                    r.x + r.width, r.y + r.height, null);
-                            x += width;
-                        } else {
-                            r = mVerticalPatches.get(verticalIndex++);
-                            vExtra = r.height / data.mVerticalPatchesSum;
-                            height = (int) (vExtra * vRemainder / vWeightSum);
-                            g.drawImage(image, x, y, x + r.width, y + height, r.x, r.y,
-                                    r.x + r.width, r.y + r.height, null);
-                            x += r.width;
-                        }
 
-                    }
-                    hStretch = !hStretch;
-                }
-                x = 0;
-                y += height;
-                if (vStretch) {
-                    vWeightSum -= vExtra;
-                    vRemainder -= height;
-                }
-                vStretch = !vStretch;
+            int[] c = getLayout(scaledWidth, scaledHeight).mCoordinates;
+            for (int i = 0; i < c.length; i += 8) {
+                g.drawImage(image, c[i], c[i + 1], c[i + 2], c[i + 3], c[i + 4], c[i + 5],
+                        c[i + 6], c[i + 7], null);
             }
+        } finally {
+            g.dispose();
+        }
+    }
 
+    /**
+     * Renders the nine patch at the given size into a new translucent image.
+     *
+     * @param image the content of the nine patch, without the control outer line.
+     */
+    public BufferedImage render(BufferedImage image, int width, int height) {
+        BufferedImage result = GraphicsUtilities.createTranslucentCompatibleImage(width, height);
+        Graphics2D g = result.createGraphics();
+        try {
+            draw(image, g, 0, 0, width, height);
         } finally {
             g.dispose();
         }
+        return result;
+    }
+
+    /**
+     * Returns the layout of the patches drawn at the given size, computing it if it was not among
+     * the recently used sizes.
+     */
+    private Layout getLayout(int scaledWidth, int scaledHeight) {
+        Long key = ((long) scaledWidth << 32) | (scaledHeight & 0xFFFFFFFFL);
+        synchronized (this) {
+            if (mLayouts == null) {
+                mLayouts = new LinkedHashMap<Long, Layout>(MAX_LAYOUTS, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<Long, Layout> eldest) {
+                        return size() > MAX_LAYOUTS;
+                    }
+                };
+            }
+            Layout layout = mLayouts.get(key);
+            if (layout == null) {
+                layout = computeLayout(scaledWidth, scaledHeight);
+                mLayouts.put(key, layout);
+            }
+            return layout;
+        }
+    }
+
+    private Layout computeLayout(int scaledWidth, int scaledHeight) {
+        DrawingData data = computePatches(scaledWidth, scaledHeight);
+        Layout layout = new Layout();
+
+        int x = 0;
+        int y = 0;
+
+        int fixedIndex = 0;
+        int horizontalIndex = 0;
+        int verticalIndex = 0;
+        int patchIndex = 0;
+
+        boolean hStretch;
+        boolean vStretch;
+
+        float vWeightSum = 1.0f;
+        float vRemainder = data.mRemainderVertical;
+
+        vStretch = mVerticalStartWithPatch;
+        while (y < scaledHeight - 1) {
+            hStretch = mHorizontalStartWithPatch;
+
+            int height = 0;
+            float vExtra = 0.0f;
+
+            float hWeightSum = 1.0f;
+            float hRemainder = data.mRemainderHorizontal;
+
+            while (x < scaledWidth - 1) {
+                Rectangle r;
+                if (!vStretch) {
+                    if (hStretch) {
+                        r = mHorizontalPatches.get(horizontalIndex++);
+                        float extra = r.width / data.mHorizontalPatchesSum;
+                        int width = (int) (extra * hRemainder / hWeightSum);
+                        hWeightSum -= extra;
+                        hRemainder -= width;
+                        layout.add(x, y, x + width, y + r.height, r);
+                        x += width;
+                    } else {
+                        r = mFixed.get(fixedIndex++);
+                        layout.add(x, y, x + r.width, y + r.height, r);
+                        x += r.width;
+                    }
+                    height = r.height;
+                } else {
+                    if (hStretch) {
+                        r = mPatches.get(patchIndex++);
+                        vExtra = r.height / data.mVerticalPatchesSum;
+                        height = (int) (vExtra * vRemainder / vWeightSum);
+                        float extra = r.width / data.mHorizontalPatchesSum;
+                        int width = (int) (extra * hRemainder / hWeightSum);
+                        hWeightSum -= extra;
+                        hRemainder -= width;
+                        layout.add(x, y, x + width, y + height, r);
+                        x += width;
+                    } else {
+                        r = mVerticalPatches.get(verticalIndex++);
+                        vExtra = r.height / data.mVerticalPatchesSum;
+                        height = (int) (vExtra * vRemainder / vWeightSum);
+                        layout.add(x, y, x + r.width, y + height, r);
+                        x += r.width;
+                    }
+
+                }
+                hStretch = !hStretch;
+            }
+            x = 0;
+            y += height;
+            if (vStretch) {
+                vWeightSum -= vExtra;
+                vRemainder -= height;
+            }
+            vStretch = !vStretch;
+        }
+
+        layout.trim();
+        return layout;
     }
 
     /**
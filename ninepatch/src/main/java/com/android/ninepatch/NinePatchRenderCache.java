@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ninepatch;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded cache of nine patches rendered at given sizes, for drawing the same nine patches at a
+ * handful of sizes over and over.
+ *
+ * The rendered images are kept by chunk, image and size, and the least recently used ones are
+ * evicted once their total number of pixels exceeds the limit of the cache. Drawing a cached nine
+ * patch is a single image copy instead of one scaled copy per patch.
+ *
+ * This class is thread-safe.
+ */
+public class NinePatchRenderCache {
+
+    /** The default limit of the cache, 16M pixels or 64MB of ARGB images. */
+    public static final long DEFAULT_MAX_PIXELS = 16 * 1024 * 1024;
+
+    private final long mMaxPixels;
+    private long mPixels;
+    private final LinkedHashMap<Key, BufferedImage> mImages =
+            new LinkedHashMap<Key, BufferedImage>(16, 0.75f, true);
+
+    public NinePatchRenderCache() {
+        this(DEFAULT_MAX_PIXELS);
+    }
+
+    /**
+     * @param maxPixels the maximum total number of pixels of the cached images.
+     */
+    public NinePatchRenderCache(long maxPixels) {
+        mMaxPixels = maxPixels;
+    }
+
+    /**
+     * Returns the nine patch rendered at the given size, rendering it if it is not cached.
+     * The returned image is shared and must not be modified.
+     *
+     * @param chunk the chunk of the nine patch.
+     * @param image the content of the nine patch, without the control outer line.
+     */
+    public BufferedImage render(NinePatchChunk chunk, BufferedImage image, int width,
+            int height) {
+        Key key = new Key(chunk, image, width, height);
+        BufferedImage rendered = get(key);
+        if (rendered == null) {
+            rendered = chunk.render(image, width, height);
+            put(key, rendered);
+        }
+        return rendered;
+    }
+
+    /**
+     * Renders the nine patch at all the given sizes in one pass: the sizes already cached are
+     * looked up together, and the others are rendered one after the other and cached together.
+     *
+     * @return the rendered images, in the order of the sizes.
+     */
+    public List<BufferedImage> render(NinePatchChunk chunk, BufferedImage image,
+            List<Dimension> sizes) {
+        List<Key> keys = new ArrayList<Key>(sizes.size());
+        List<BufferedImage> result = new ArrayList<BufferedImage>(sizes.size());
+        synchronized (this) {
+            for (Dimension size : sizes) {
+                Key key = new Key(chunk, image, size.width, size.height);
+                keys.add(key);
+                result.add(mImages.get(key));
+            }
+        }
+
+        Map<Key, BufferedImage> rendered = new LinkedHashMap<Key, BufferedImage>();
+        for (int i = 0; i < keys.size(); i++) {
+            if (result.get(i) == null) {
+                Key key = keys.get(i);
+                BufferedImage renderedImage = rendered.get(key);
+                if (renderedImage == null) {
+                    renderedImage = chunk.render(image, key.mWidth, key.mHeight);
+                    rendered.put(key, renderedImage);
+                }
+                result.set(i, renderedImage);
+            }
+        }
+
+        synchronized (this) {
+            for (Map.Entry<Key, BufferedImage> entry : rendered.entrySet()) {
+                putLocked(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Draws the nine patch like {@link NinePatchChunk#draw}, with its cached rendering at the given
+     * size.
+     *
+     * The cached renderings are only exact when they are copied pixel for pixel, so the nine patch
+     * is drawn without the cache when it is density scaled, or when the transform of the graphics
+     * is more than an integer translation.
+     */
+    public void draw(NinePatchChunk chunk, BufferedImage image, Graphics2D graphics2D, int x,
+            int y, int scaledWidth, int scaledHeight, int destDensity, int srcDensity) {
+        boolean scaling = destDensity != srcDensity && destDensity != 0 && srcDensity != 0;
+        if (scaling || !isIntegerTranslation(graphics2D.getTransform())) {
+            chunk.draw(image, graphics2D, x, y, scaledWidth, scaledHeight, destDensity,
+                    srcDensity);
+            return;
+        }
+
+        if (scaledWidth <= 1 || scaledHeight <= 1) {
+            return;
+        }
+        graphics2D.drawImage(render(chunk, image, scaledWidth, scaledHeight), x, y, null);
+    }
+
+    /**
+     * Removes all the cached images.
+     */
+    public synchronized void clear() {
+        mImages.clear();
+        mPixels = 0;
+    }
+
+    /**
+     * Returns the total number of pixels of the cached images.
+     */
+    public synchronized long getPixelCount() {
+        return mPixels;
+    }
+
+    private synchronized BufferedImage get(Key key) {
+        return mImages.get(key);
+    }
+
+    private synchronized void put(Key key, BufferedImage image) {
+        putLocked(key, image);
+    }
+
+    private void putLocked(Key key, BufferedImage image) {
+        long pixels = key.getPixelCount();
+        if (pixels > mMaxPixels) {
+            return;
+        }
+        BufferedImage previous = mImages.put(key, image);
+        if (previous == null) {
+            mPixels += pixels;
+        }
+        Iterator<Key> iterator = mImages.keySet().iterator();
+        while (mPixels > mMaxPixels && iterator.hasNext()) {
+            Key eldest = iterator.next();
+            iterator.remove();
+            mPixels -= eldest.getPixelCount();
+        }
+    }
+
+    private static boolean isIntegerTranslation(AffineTransform transform) {
+        int type = transform.getType();
+        if (type == AffineTransform.TYPE_IDENTITY) {
+            return true;
+        }
+        return type == AffineTransform.TYPE_TRANSLATION
+                && transform.getTranslateX() == Math.rint(transform.getTranslateX())
+                && transform.getTranslateY() == Math.rint(transform.getTranslateY());
+    }
+
+    /**
+     * The key of a rendered image: the identity of the chunk and image, and the size.
+     */
+    private static final class Key {
+        private final NinePatchChunk mChunk;
+        private final BufferedImage mImage;
+        private final int mWidth;
+        private final int mHeight;
+
+        Key(NinePatchChunk chunk, BufferedImage image, int width, int height) {
+            mChunk = chunk;
+            mImage = image;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        long getPixelCount() {
+            return (long) mWidth * mHeight;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return mChunk == key.mChunk && mImage == key.mImage && mWidth == key.mWidth
+                    && mHeight == key.mHeight;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = System.identityHashCode(mChunk);
+            result = 31 * result + System.identityHashCode(mImage);
+            result = 31 * result + mWidth;
+            result = 31 * result + mHeight;
+            return result;
+        }
+    }
+}
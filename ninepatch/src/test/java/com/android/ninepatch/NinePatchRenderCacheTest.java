@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ninepatch;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class NinePatchRenderCacheTest extends TestCase {
+
+    private NinePatch mPatch;
+
+    @Override
+    protected void setUp() throws Exception {
+        InputStream stream = this.getClass().getResourceAsStream("button.9.png");
+
+        mPatch = NinePatch.load(stream, true /* is9Patch*/, false /* convert */);
+    }
+
+    public void testRenderMatchesDraw() {
+        NinePatchRenderCache cache = new NinePatchRenderCache();
+        for (Dimension size : Arrays.asList(new Dimension(36, 25), new Dimension(200, 48),
+                new Dimension(37, 300))) {
+            BufferedImage expected = new BufferedImage(size.width + 10, size.height + 10,
+                    BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = expected.createGraphics();
+            mPatch.draw(g, 5, 5, size.width, size.height);
+            g.dispose();
+
+            BufferedImage actual = new BufferedImage(size.width + 10, size.height + 10,
+                    BufferedImage.TYPE_INT_ARGB);
+            g = actual.createGraphics();
+            cache.draw(mPatch.getChunk(), mPatch.getImage(), g, 5, 5, size.width, size.height,
+                    0, 0);
+            g.dispose();
+
+            assertSamePixels(expected, actual);
+        }
+    }
+
+    public void testTranslatedDrawIsCached() {
+        NinePatchRenderCache cache = new NinePatchRenderCache();
+        BufferedImage expected = new BufferedImage(80, 60, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = expected.createGraphics();
+        g.translate(3, 4);
+        mPatch.draw(g, 5, 5, 64, 32);
+        g.dispose();
+
+        BufferedImage actual = new BufferedImage(80, 60, BufferedImage.TYPE_INT_ARGB);
+        g = actual.createGraphics();
+        g.translate(3, 4);
+        cache.draw(mPatch.getChunk(), mPatch.getImage(), g, 5, 5, 64, 32, 0, 0);
+        g.dispose();
+
+        assertSamePixels(expected, actual);
+        assertEquals(64 * 32, cache.getPixelCount());
+    }
+
+    public void testScaledGraphicsMatchesDraw() {
+        NinePatchRenderCache cache = new NinePatchRenderCache();
+        BufferedImage expected = new BufferedImage(150, 90, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = expected.createGraphics();
+        g.scale(2, 2);
+        mPatch.draw(g, 5, 5, 64, 32);
+        g.dispose();
+
+        BufferedImage actual = new BufferedImage(150, 90, BufferedImage.TYPE_INT_ARGB);
+        g = actual.createGraphics();
+        g.scale(2, 2);
+        cache.draw(mPatch.getChunk(), mPatch.getImage(), g, 5, 5, 64, 32, 0, 0);
+        g.dispose();
+
+        assertSamePixels(expected, actual);
+        assertEquals(0, cache.getPixelCount());
+    }
+
+    public void testDensityScalingMatchesDraw() {
+        NinePatchRenderCache cache = new NinePatchRenderCache();
+        BufferedImage expected = new BufferedImage(150, 90, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = expected.createGraphics();
+        mPatch.getChunk().draw(mPatch.getImage(), g, 5, 5, 128, 64, 320, 160);
+        g.dispose();
+
+        BufferedImage actual = new BufferedImage(150, 90, BufferedImage.TYPE_INT_ARGB);
+        g = actual.createGraphics();
+        cache.draw(mPatch.getChunk(), mPatch.getImage(), g, 5, 5, 128, 64, 320, 160);
+        g.dispose();
+
+        assertSamePixels(expected, actual);
+        assertEquals(0, cache.getPixelCount());
+    }
+
+    public void testRenderIsCached() {
+        NinePatchRenderCache cache = new NinePatchRenderCache();
+        BufferedImage first = cache.render(mPatch.getChunk(), mPatch.getImage(), 100, 50);
+        assertEquals(100, first.getWidth());
+        assertEquals(50, first.getHeight());
+        assertSame(first, cache.render(mPatch.getChunk(), mPatch.getImage(), 100, 50));
+        assertNotSame(first, cache.render(mPatch.getChunk(), mPatch.getImage(), 50, 100));
+        assertEquals(10000, cache.getPixelCount());
+
+        cache.clear();
+        assertEquals(0, cache.getPixelCount());
+        assertNotSame(first, cache.render(mPatch.getChunk(), mPatch.getImage(), 100, 50));
+    }
+
+    public void testEviction() {
+        NinePatchRenderCache cache = new NinePatchRenderCache(21000);
+        BufferedImage first = cache.render(mPatch.getChunk(), mPatch.getImage(), 100, 100);
+        BufferedImage second = cache.render(mPatch.getChunk(), mPatch.getImage(), 100, 101);
+        assertEquals(20100, cache.getPixelCount());
+        // the first image is used more recently than the second one, which is evicted
+        assertSame(first, cache.render(mPatch.getChunk(), mPatch.getImage(), 100, 100));
+        cache.render(mPatch.getChunk(), mPatch.getImage(), 50, 50);
+        assertEquals(12500, cache.getPixelCount());
+        assertSame(first, cache.render(mPatch.getChunk(), mPatch.getImage(), 100, 100));
+        assertNotSame(second, cache.render(mPatch.getChunk(), mPatch.getImage(), 100, 101));
+
+        // images larger than the cache are rendered but not kept
+        BufferedImage large = cache.render(mPatch.getChunk(), mPatch.getImage(), 200, 200);
+        assertNotSame(large, cache.render(mPatch.getChunk(), mPatch.getImage(), 200, 200));
+        assertTrue(cache.getPixelCount() <= 21000);
+    }
+
+    public void testRenderSizes() {
+        NinePatchRenderCache cache = new NinePatchRenderCache();
+        BufferedImage cached = cache.render(mPatch.getChunk(), mPatch.getImage(), 64, 32);
+        List<BufferedImage> images = cache.render(mPatch.getChunk(), mPatch.getImage(),
+                Arrays.asList(new Dimension(120, 40), new Dimension(64, 32),
+                        new Dimension(120, 40), new Dimension(40, 120)));
+        assertEquals(4, images.size());
+        assertSame(cached, images.get(1));
+        assertSame(images.get(0), images.get(2));
+        assertEquals(40, images.get(3).getWidth());
+        assertEquals(120, images.get(3).getHeight());
+        assertSame(images.get(3), cache.render(mPatch.getChunk(), mPatch.getImage(), 40, 120));
+        assertSamePixels(mPatch.getChunk().render(mPatch.getImage(), 120, 40), images.get(0));
+    }
+
+    static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals("pixel at " + x + ", " + y, expected.getRGB(x, y),
+                        actual.getRGB(x, y));
+            }
+        }
+    }
+}
@@ -16,6 +16,9 @@
 
 package com.android.ninepatch;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
 import java.io.InputStream;
 
 import junit.framework.TestCase;
@@ -45,4 +48,31 @@ public class NinePatchTest extends TestCase {
         assertEquals(36, mPatch.getWidth());
         assertEquals(25, mPatch.getHeight());
     }
+
+    public void testConvertBitmap() {
+        BufferedImage bitmap = new BufferedImage(20, 10, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = bitmap.createGraphics();
+        g.setColor(Color.RED);
+        g.fillRect(0, 0, 10, 10);
+        g.setColor(Color.BLUE);
+        g.fillRect(10, 0, 10, 10);
+        g.dispose();
+
+        assertNull(NinePatch.load(bitmap, false /* is9Patch*/, false /* convert */));
+        NinePatch patch = NinePatch.load(bitmap, false /* is9Patch*/, true /* convert */);
+        assertEquals(20, patch.getWidth());
+        assertEquals(10, patch.getHeight());
+        int[] padding = new int[4];
+        patch.getPadding(padding);
+        assertEquals(0, padding[0] + padding[1] + padding[2] + padding[3]);
+
+        // the chunk is the one found in the bitmap surrounded by an empty control line
+        BufferedImage bordered = new BufferedImage(22, 12, BufferedImage.TYPE_INT_ARGB);
+        g = bordered.createGraphics();
+        g.drawImage(bitmap, 1, 1, null);
+        g.dispose();
+        NinePatchChunk chunk = NinePatchChunk.create(bordered);
+        NinePatchRenderCacheTest.assertSamePixels(chunk.render(bitmap, 45, 17),
+                patch.getChunk().render(patch.getImage(), 45, 17));
+    }
 }
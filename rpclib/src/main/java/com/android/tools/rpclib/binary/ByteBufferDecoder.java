@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.binary;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link Decoder} that reads the underlying stream into a {@link ByteBuffer}, as many bytes at a time as are
+ * available, and decodes from the buffer. It decodes the data encoded by an {@link Encoder}.
+ * <p/>
+ * The decoder may read ahead of the decoded values, the data after them should be read from {@link #stream()}.
+ */
+public class ByteBufferDecoder extends Decoder {
+  public static final int DEFAULT_BUFFER_SIZE = 8192;
+  @NotNull private final InputStream mInputStream;
+  @NotNull private final ByteBuffer mBuffer;
+  @NotNull private final InputStream mStream;
+  @Nullable private final StringCache mStrings;
+
+  public ByteBufferDecoder(@NotNull InputStream in) {
+    this(in, DEFAULT_BUFFER_SIZE, false);
+  }
+
+  /**
+   * @param in            the stream to read the encoded data from.
+   * @param bufferSize    the size of the buffer, at least 16 bytes.
+   * @param internStrings whether to return the same instance for recurring strings, for streams with many of them.
+   */
+  public ByteBufferDecoder(@NotNull InputStream in, int bufferSize, boolean internStrings) {
+    super(in);
+    mInputStream = in;
+    mBuffer = ByteBuffer.allocate(Math.max(bufferSize, 16));
+    mBuffer.flip();
+    mStream = new BufferStream();
+    mStrings = internStrings ? new StringCache() : null;
+  }
+
+  @Override
+  public void read(byte[] buf, int count) throws IOException {
+    int buffered = Math.min(count, mBuffer.remaining());
+    mBuffer.get(buf, 0, buffered);
+    if (buffered < count) {
+      if (count - buffered < mBuffer.capacity()) {
+        require(count - buffered);
+        mBuffer.get(buf, buffered, count - buffered);
+      }
+      else {
+        readFully(mInputStream, buf, buffered, count - buffered);
+      }
+    }
+  }
+
+  @Override
+  public boolean bool() throws IOException {
+    require(1);
+    return mBuffer.get() != 0;
+  }
+
+  @Override
+  public byte int8() throws IOException {
+    require(1);
+    return mBuffer.get();
+  }
+
+  @Override
+  public byte uint8() throws IOException {
+    return int8();
+  }
+
+  @Override
+  public short int16() throws IOException {
+    return (short)intv();
+  }
+
+  @Override
+  public short uint16() throws IOException {
+    return (short)uintv();
+  }
+
+  @Override
+  public int int32() throws IOException {
+    return (int)intv();
+  }
+
+  @Override
+  public int uint32() throws IOException {
+    return (int)uintv();
+  }
+
+  @Override
+  public long int64() throws IOException {
+    return intv();
+  }
+
+  @Override
+  public long uint64() throws IOException {
+    return uintv();
+  }
+
+  @Override
+  public float float32() throws IOException {
+    int bits = (int)uintv();
+    int shuffled = ((bits & 0x000000ff) <<  24) |
+                   ((bits & 0x0000ff00) <<   8) |
+                   ((bits & 0x00ff0000) >>   8) |
+                   ((bits & 0xff000000) >>> 24);
+    return Float.intBitsToFloat(shuffled);
+  }
+
+  @Override
+  public double float64() throws IOException {
+    long bits = uintv();
+    long shuffled = ((bits & 0x00000000000000ffL) <<  56) |
+                    ((bits & 0x000000000000ff00L) <<  40) |
+                    ((bits & 0x0000000000ff0000L) <<  24) |
+                    ((bits & 0x00000000ff000000L) <<   8) |
+                    ((bits & 0x000000ff00000000L) >>   8) |
+                    ((bits & 0x0000ff0000000000L) >>  24) |
+                    ((bits & 0x00ff000000000000L) >>  40) |
+                    ((bits & 0xff00000000000000L) >>> 56);
+    return Double.longBitsToDouble(shuffled);
+  }
+
+  @Override
+  public String string() throws IOException {
+    int size = (int)uintv();
+    if (size <= mBuffer.capacity()) {
+      // Decode the string straight from the buffer
+      require(size);
+      int position = mBuffer.position();
+      byte[] array = mBuffer.array();
+      int offset = mBuffer.arrayOffset() + position;
+      String string = mStrings != null
+                      ? mStrings.decode(array, offset, size)
+                      : new String(array, offset, size, StringCache.UTF8);
+      mBuffer.position(position + size);
+      return string;
+    }
+    byte[] bytes = new byte[size];
+    read(bytes, size);
+    return new String(bytes, StringCache.UTF8);
+  }
+
+  @Override
+  public void int8s(@NotNull byte[] v, int off, int len) throws IOException {
+    int buffered = Math.min(len, mBuffer.remaining());
+    mBuffer.get(v, off, buffered);
+    readFully(mInputStream, v, off + buffered, len - buffered);
+  }
+
+  @Override
+  public void int32s(@NotNull int[] v, int off, int len) throws IOException {
+    for (int i = off, end = off + len; i < end; i++) {
+      v[i] = (int)intv();
+    }
+  }
+
+  @Override
+  public void uint32s(@NotNull int[] v, int off, int len) throws IOException {
+    for (int i = off, end = off + len; i < end; i++) {
+      v[i] = (int)uintv();
+    }
+  }
+
+  @Override
+  public void int64s(@NotNull long[] v, int off, int len) throws IOException {
+    for (int i = off, end = off + len; i < end; i++) {
+      v[i] = intv();
+    }
+  }
+
+  @Override
+  public InputStream stream() {
+    return mStream;
+  }
+
+  private long intv() throws IOException {
+    long uv = uintv();
+    long v = uv >>> 1;
+    if ((uv & 1) != 0) {
+      v = ~v;
+    }
+    return v;
+  }
+
+  private long uintv() throws IOException {
+    require(1);
+    int b = mBuffer.get() & 0xff;
+    // The number of leading ones is the number of bytes following the first one
+    int count = Integer.numberOfLeadingZeros(~b & 0xff) - 24;
+    long v = b & (0xff >> count);
+    if (count == 0) {
+      return v;
+    }
+    require(count);
+    for (int i = 0; i < count; i++) {
+      v = (v << 8) | (mBuffer.get() & 0xffL);
+    }
+    return v;
+  }
+
+  /**
+   * Makes sure the buffer holds at least {@code count} bytes, which must not be more than its capacity.
+   */
+  private void require(int count) throws IOException {
+    if (mBuffer.remaining() >= count) {
+      return;
+    }
+    mBuffer.compact();
+    try {
+      byte[] array = mBuffer.array();
+      while (mBuffer.position() < count) {
+        int n = mInputStream.read(array, mBuffer.arrayOffset() + mBuffer.position(), mBuffer.remaining());
+        if (n < 0) {
+          throw new EOFException();
+        }
+        mBuffer.position(mBuffer.position() + n);
+      }
+    }
+    finally {
+      mBuffer.flip();
+    }
+  }
+
+  private static void readFully(@NotNull InputStream in, @NotNull byte[] buf, int off, int len) throws IOException {
+    while (len > 0) {
+      int n = in.read(buf, off, len);
+      if (n < 0) {
+        throw new EOFException();
+      }
+      off += n;
+      len -= n;
+    }
+  }
+
+  /** The stream returned by {@link #stream()}, reading the buffered data first */
+  private class BufferStream extends InputStream {
+    @Override
+    public int read() throws IOException {
+      if (!mBuffer.hasRemaining()) {
+        return mInputStream.read();
+      }
+      return mBuffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(@NotNull byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (mBuffer.hasRemaining()) {
+        int n = Math.min(len, mBuffer.remaining());
+        mBuffer.get(b, off, n);
+        return n;
+      }
+      return mInputStream.read(b, off, len);
+    }
+
+    @Override
+    public int available() throws IOException {
+      return mBuffer.remaining() + mInputStream.available();
+    }
+  }
+}
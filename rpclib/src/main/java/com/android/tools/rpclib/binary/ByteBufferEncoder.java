@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.binary;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link Encoder} that encodes into a {@link ByteBuffer}, and only writes to the underlying stream when the buffer
+ * is full or {@link #flush} is called. The encoded data is identical to the one of an {@link Encoder}.
+ * <p/>
+ * Data written to {@link #stream()} is buffered as well, in order with the encoded values.
+ */
+public class ByteBufferEncoder extends Encoder {
+  public static final int DEFAULT_BUFFER_SIZE = 8192;
+  @NotNull private final OutputStream mOutputStream;
+  @NotNull private final ByteBuffer mBuffer;
+  @NotNull private final OutputStream mStream;
+  @NotNull private final byte[] mVarint;
+  @Nullable private final StringCache mStrings;
+
+  public ByteBufferEncoder(@NotNull OutputStream out) {
+    this(out, DEFAULT_BUFFER_SIZE, false);
+  }
+
+  /**
+   * @param out           the stream to write the encoded data to.
+   * @param bufferSize    the size of the buffer, at least 16 bytes.
+   * @param internStrings whether to keep the encoding of recently encoded strings, for streams with many recurring
+   *                      strings.
+   */
+  public ByteBufferEncoder(@NotNull OutputStream out, int bufferSize, boolean internStrings) {
+    super(out);
+    mOutputStream = out;
+    mBuffer = ByteBuffer.allocate(Math.max(bufferSize, 16));
+    mStream = new BufferStream();
+    mVarint = new byte[9];
+    mStrings = internStrings ? new StringCache() : null;
+  }
+
+  /**
+   * Writes the buffered data to the underlying stream, and flushes it.
+   */
+  public void flush() throws IOException {
+    drain();
+    mOutputStream.flush();
+  }
+
+  @Override
+  public void bool(boolean v) throws IOException {
+    ensure(1);
+    mBuffer.put((byte)(v ? 1 : 0));
+  }
+
+  @Override
+  public void int8(byte v) throws IOException {
+    ensure(1);
+    mBuffer.put(v);
+  }
+
+  @Override
+  public void uint8(short v) throws IOException {
+    ensure(1);
+    mBuffer.put((byte)(v & 0xff));
+  }
+
+  @Override
+  public void int16(short v) throws IOException {
+    intv(v);
+  }
+
+  @Override
+  public void uint16(int v) throws IOException {
+    uintv(v);
+  }
+
+  @Override
+  public void int32(int v) throws IOException {
+    intv(v);
+  }
+
+  @Override
+  public void uint32(long v) throws IOException {
+    uintv(v);
+  }
+
+  @Override
+  public void int64(long v) throws IOException {
+    intv(v);
+  }
+
+  @Override
+  public void uint64(long v) throws IOException {
+    uintv(v);
+  }
+
+  @Override
+  public void float32(float v) throws IOException {
+    int bits = Float.floatToIntBits(v);
+    int shuffled = ((bits & 0x000000ff) <<  24) |
+                   ((bits & 0x0000ff00) <<   8) |
+                   ((bits & 0x00ff0000) >> 8) |
+                   ((bits & 0xff000000) >>> 24);
+    uintv(shuffled);
+  }
+
+  @Override
+  public void float64(double v) throws IOException {
+    long bits = Double.doubleToLongBits(v);
+    long shuffled = ((bits & 0x00000000000000ffL) <<  56) |
+                    ((bits & 0x000000000000ff00L) <<  40) |
+                    ((bits & 0x0000000000ff0000L) <<  24) |
+                    ((bits & 0x00000000ff000000L) <<   8) |
+                    ((bits & 0x000000ff00000000L) >>   8) |
+                    ((bits & 0x0000ff0000000000L) >>  24) |
+                    ((bits & 0x00ff000000000000L) >> 40) |
+                    ((bits & 0xff00000000000000L) >>> 56);
+    uintv(shuffled);
+  }
+
+  @Override
+  public void string(@Nullable String v) throws IOException {
+    if (v == null) {
+      uintv(0);
+      return;
+    }
+
+    byte[] bytes = mStrings != null ? mStrings.encode(v) : v.getBytes(StringCache.UTF8);
+    uintv(bytes.length);
+    write(bytes, 0, bytes.length);
+  }
+
+  @Override
+  public void int8s(@NotNull byte[] v, int off, int len) throws IOException {
+    write(v, off, len);
+  }
+
+  @Override
+  public void int32s(@NotNull int[] v, int off, int len) throws IOException {
+    for (int i = off, end = off + len; i < end; i++) {
+      intv(v[i]);
+    }
+  }
+
+  @Override
+  public void uint32s(@NotNull int[] v, int off, int len) throws IOException {
+    for (int i = off, end = off + len; i < end; i++) {
+      uintv(v[i] & 0xffffffffL);
+    }
+  }
+
+  @Override
+  public void int64s(@NotNull long[] v, int off, int len) throws IOException {
+    for (int i = off, end = off + len; i < end; i++) {
+      intv(v[i]);
+    }
+  }
+
+  @Override
+  public OutputStream stream() {
+    return mStream;
+  }
+
+  private void intv(long v) throws IOException {
+    long uv = v << 1;
+    if (v < 0) uv = ~uv;
+    uintv(uv);
+  }
+
+  private void uintv(long v) throws IOException {
+    ensure(9);
+    if ((v & ~0x7fL) == 0) {
+      // Most values fit in a single byte
+      mBuffer.put((byte)v);
+      return;
+    }
+    long space = ~0x7fL;
+    int tag = 0;
+    for (int o = 8; true; o--) {
+      if ((v & space) == 0) {
+        mVarint[o] = (byte)(v | tag);
+        mBuffer.put(mVarint, o, 9 - o);
+        return;
+      }
+      mVarint[o] = (byte)(v&0xff);
+      v >>>= 8;
+      space >>= 1;
+      tag =(tag >> 1) | 0x80;
+    }
+  }
+
+  private void ensure(int count) throws IOException {
+    if (mBuffer.remaining() < count) {
+      drain();
+    }
+  }
+
+  private void write(@NotNull byte[] b, int off, int len) throws IOException {
+    if (len <= mBuffer.remaining()) {
+      mBuffer.put(b, off, len);
+    }
+    else {
+      drain();
+      if (len < mBuffer.capacity()) {
+        mBuffer.put(b, off, len);
+      }
+      else {
+        mOutputStream.write(b, off, len);
+      }
+    }
+  }
+
+  private void drain() throws IOException {
+    if (mBuffer.position() > 0) {
+      mOutputStream.write(mBuffer.array(), mBuffer.arrayOffset(), mBuffer.position());
+      mBuffer.clear();
+    }
+  }
+
+  /** The stream returned by {@link #stream()}, writing to the buffer */
+  private class BufferStream extends OutputStream {
+    @Override
+    public void write(int b) throws IOException {
+      int8((byte)b);
+    }
+
+    @Override
+    public void write(@NotNull byte[] b, int off, int len) throws IOException {
+      ByteBufferEncoder.this.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      ByteBufferEncoder.this.flush();
+    }
+  }
+}
@@ -19,9 +19,9 @@ import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 
 /**
  * A decoder of various RPC primitive types.
@@ -42,7 +42,11 @@ public class Decoder {
   public void read(byte[] buf, int count) throws IOException {
     int off = 0;
     while (off < count) {
-      off += mInputStream.read(buf, off, count - off);
+      int n = mInputStream.read(buf, off, count - off);
+      if (n < 0) {
+        throw new EOFException();
+      }
+      off += n;
     }
   }
 
@@ -138,14 +142,66 @@ public class Decoder {
   public String string() throws IOException {
     int size = uint32();
     byte[] bytes = new byte[size];
-    for (int i = 0; i < size; i++) {
-      bytes[i] = int8();
+    read(bytes, size);
+    return new String(bytes, StringCache.UTF8);
+  }
+
+  /**
+   * Decodes {@code len} bytes into the array, in the same way as calling {@link #int8} for each of them.
+   */
+  public void int8s(@NotNull byte[] v, int off, int len) throws IOException {
+    while (len > 0) {
+      int n = stream().read(v, off, len);
+      if (n < 0) {
+        throw new EOFException();
+      }
+      off += n;
+      len -= n;
     }
-    try {
-      return new String(bytes, "UTF-8");
+  }
+
+  /**
+   * Decodes {@code len} values into the array, in the same way as calling {@link #int32} for each of them.
+   */
+  public void int32s(@NotNull int[] v, int off, int len) throws IOException {
+    for (int i = off, end = off + len; i < end; i++) {
+      v[i] = int32();
     }
-    catch (UnsupportedEncodingException e) {
-      throw new RuntimeException(e); // Should never happen
+  }
+
+  /**
+   * Decodes {@code len} values into the array, in the same way as calling {@link #uint32} for each of them.
+   */
+  public void uint32s(@NotNull int[] v, int off, int len) throws IOException {
+    for (int i = off, end = off + len; i < end; i++) {
+      v[i] = uint32();
+    }
+  }
+
+  /**
+   * Decodes {@code len} values into the array, in the same way as calling {@link #int64} for each of them.
+   */
+  public void int64s(@NotNull long[] v, int off, int len) throws IOException {
+    for (int i = off, end = off + len; i < end; i++) {
+      v[i] = int64();
+    }
+  }
+
+  /**
+   * Decodes {@code len} values into the array, in the same way as calling {@link #float32} for each of them.
+   */
+  public void float32s(@NotNull float[] v, int off, int len) throws IOException {
+    for (int i = off, end = off + len; i < end; i++) {
+      v[i] = float32();
+    }
+  }
+
+  /**
+   * Decodes {@code len} values into the array, in the same way as calling {@link #float64} for each of them.
+   */
+  public void float64s(@NotNull double[] v, int off, int len) throws IOException {
+    for (int i = off, end = off + len; i < end; i++) {
+      v[i] = float64();
     }
   }
 
@@ -21,7 +21,6 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
 
 /**
  * An encoder of various primitive types.
@@ -123,20 +122,65 @@ public class Encoder {
   }
 
   public void string(@Nullable String v) throws IOException {
-    try {
-      if (v == null) {
-        uint32(0);
-        return;
-      }
+    if (v == null) {
+      uint32(0);
+      return;
+    }
 
-      byte[] bytes = v.getBytes("UTF-8");
-      uint32(bytes.length);
-      for (byte b : bytes) {
-        int8(b);
-      }
+    byte[] bytes = v.getBytes(StringCache.UTF8);
+    uint32(bytes.length);
+    stream().write(bytes);
+  }
+
+  /**
+   * Encodes {@code len} bytes of the array, in the same way as calling {@link #int8} for each of them.
+   */
+  public void int8s(@NotNull byte[] v, int off, int len) throws IOException {
+    stream().write(v, off, len);
+  }
+
+  /**
+   * Encodes {@code len} values of the array, in the same way as calling {@link #int32} for each of them.
+   */
+  public void int32s(@NotNull int[] v, int off, int len) throws IOException {
+    for (int i = off, end = off + len; i < end; i++) {
+      int32(v[i]);
+    }
+  }
+
+  /**
+   * Encodes {@code len} values of the array, in the same way as calling {@link #uint32} for each of them.
+   */
+  public void uint32s(@NotNull int[] v, int off, int len) throws IOException {
+    for (int i = off, end = off + len; i < end; i++) {
+      uint32(v[i] & 0xffffffffL);
+    }
+  }
+
+  /**
+   * Encodes {@code len} values of the array, in the same way as calling {@link #int64} for each of them.
+   */
+  public void int64s(@NotNull long[] v, int off, int len) throws IOException {
+    for (int i = off, end = off + len; i < end; i++) {
+      int64(v[i]);
     }
-    catch (UnsupportedEncodingException e) {
-      throw new RuntimeException(e); // Should never happen
+  }
+
+  /**
+   * Encodes {@code len} values of the array, in the same way as calling {@link #float32} for each of them.
+   */
+  public void float32s(@NotNull float[] v, int off, int len) throws IOException {
+    for (int i = off, end = off + len; i < end; i++) {
+      float32(v[i]);
+    }
+  }
+
+  /**
+   * Encodes {@code len} values of the array, in the same way as calling {@link #float64} for each of them.
+   */
+  public void float64s(@NotNull double[] v, int off, int len) throws IOException {
+    for (int i = off, end = off + len; i < end; i++) {
+      float64(v[i]);
     }
   }
 
@@ -39,7 +39,7 @@ public class Handle {
   }
 
   public Handle(@NotNull Decoder d) throws IOException {
-    assert d.stream().read(mValue) == SIZE;
+    d.read(mValue, SIZE);
     mHashCode = ByteBuffer.wrap(mValue).getInt();
   }
 
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.binary;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A fixed size table of recently used strings and their UTF-8 encoding, so that strings that recur in a stream are
+ * only encoded and allocated once. Each string hashes to a single slot, replacing whatever string was there before.
+ */
+final class StringCache {
+  static final Charset UTF8 = Charset.forName("UTF-8");
+  /** Longer strings are not worth caching. */
+  static final int MAX_LENGTH = 256;
+  private static final int SIZE = 1024;
+  @NotNull private final String[] mStrings = new String[SIZE];
+  @NotNull private final byte[][] mBytes = new byte[SIZE][];
+
+  /**
+   * @return the UTF-8 encoding of the string, which must not be modified.
+   */
+  @NotNull
+  byte[] encode(@NotNull String string) {
+    if (string.length() > MAX_LENGTH) {
+      return string.getBytes(UTF8);
+    }
+    int slot = string.hashCode() & (SIZE - 1);
+    if (string.equals(mStrings[slot])) {
+      return mBytes[slot];
+    }
+    byte[] bytes = string.getBytes(UTF8);
+    mStrings[slot] = string;
+    mBytes[slot] = bytes;
+    return bytes;
+  }
+
+  /**
+   * @return the string decoded from the UTF-8 bytes, the same instance as the last time these bytes were decoded if
+   * they are still in the table.
+   */
+  @NotNull
+  String decode(@NotNull byte[] buffer, int offset, int length) {
+    if (length > MAX_LENGTH) {
+      return new String(buffer, offset, length, UTF8);
+    }
+    int hash = 1;
+    for (int i = offset, end = offset + length; i < end; i++) {
+      hash = 31 * hash + buffer[i];
+    }
+    int slot = (hash ^ (hash >>> 16)) & (SIZE - 1);
+    byte[] bytes = mBytes[slot];
+    if (bytes != null && regionEquals(bytes, buffer, offset, length)) {
+      return mStrings[slot];
+    }
+    String string = new String(buffer, offset, length, UTF8);
+    mStrings[slot] = string;
+    mBytes[slot] = Arrays.copyOfRange(buffer, offset, offset + length);
+    return string;
+  }
+
+  private static boolean regionEquals(@NotNull byte[] bytes, @NotNull byte[] buffer, int offset, int length) {
+    if (bytes.length != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (bytes[i] != buffer[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
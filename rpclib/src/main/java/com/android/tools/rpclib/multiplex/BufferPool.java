@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.multiplex;
+
+import com.android.annotations.concurrency.GuardedBy;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+
+/**
+ * A pool of fixed size buffers, used to hold the data of the messages sent and received by a {@link Multiplexer} without
+ * allocating a new buffer for each of them.
+ */
+final class BufferPool {
+  private final int mBufferSize;
+  private final int mMaxPooledCount;
+  @GuardedBy("mBuffers") private final ArrayDeque<byte[]> mBuffers;
+
+  /**
+   * @param bufferSize     the size of the pooled buffers.
+   * @param maxPooledBytes the maximum number of bytes kept by the pool while the buffers are not in use.
+   */
+  BufferPool(int bufferSize, int maxPooledBytes) {
+    mBufferSize = bufferSize;
+    mMaxPooledCount = Math.max(1, maxPooledBytes / bufferSize);
+    mBuffers = new ArrayDeque<byte[]>();
+  }
+
+  int getBufferSize() {
+    return mBufferSize;
+  }
+
+  /**
+   * Returns a buffer of at least {@code size} bytes. Buffers larger than the pooled buffers are not pooled.
+   */
+  @NotNull
+  byte[] acquire(int size) {
+    if (size > mBufferSize) {
+      return new byte[size];
+    }
+    byte[] buffer;
+    synchronized (mBuffers) {
+      buffer = mBuffers.pollFirst();
+    }
+    return buffer != null ? buffer : new byte[mBufferSize];
+  }
+
+  /**
+   * Returns a buffer obtained from {@link #acquire} to the pool. The buffer must not be used afterwards.
+   */
+  void release(@NotNull byte[] buffer) {
+    if (buffer.length != mBufferSize) {
+      return;
+    }
+    synchronized (mBuffers) {
+      if (mBuffers.size() < mMaxPooledCount) {
+        mBuffers.addFirst(buffer);
+      }
+    }
+  }
+}
@@ -16,6 +16,7 @@
 package com.android.tools.rpclib.multiplex;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.Closeable;
 import java.io.IOException;
@@ -29,6 +30,7 @@ public class Channel implements Closeable {
   private final long mId;
   private final EventHandler mEventHandler;
   private boolean mIsClosed;
+  @Nullable private CloseListener mCloseListener;
 
   public Channel(long id, @NotNull EventHandler events) throws IOException {
     PipeInputStream in = new PipeInputStream();
@@ -48,31 +50,77 @@ public class Channel implements Closeable {
     return mOutputStream;
   }
 
+  /**
+   * Sets the listener to call once the channel is closed, by either end or because the connection was lost. If the
+   * channel is already closed, the listener is called before this method returns.
+   */
+  public synchronized void setCloseListener(@NotNull CloseListener listener) {
+    mCloseListener = listener;
+    if (mIsClosed) {
+      listener.onClose(this);
+    }
+  }
+
   @Override
   public synchronized void close() throws IOException {
     if (!mIsClosed) {
       mIsClosed = true;
-      mEventHandler.closeChannel(mId);
-      mInputStream.close();
-      mOutputStream.close();
+      try {
+        mEventHandler.closeChannel(mId);
+      }
+      finally {
+        closeInput();
+        mOutputStream.close();
+        notifyClosed();
+      }
     }
   }
 
-  void receive(byte[] data) throws IOException {
-    mPipeInputStream.getSource().write(data);
+  /**
+   * Queues the received data to be read from the input stream, the buffer is returned to the pool once read.
+   */
+  void receive(@NotNull byte[] data, int count, @NotNull BufferPool pool) {
+    mPipeInputStream.write(data, 0, count, pool);
   }
 
   synchronized void closeNoEvent() throws IOException {
     if (!mIsClosed) {
       mIsClosed = true;
-      mInputStream.close();
-      mOutputStream.close();
+      try {
+        closeInput();
+        mOutputStream.close();
+      }
+      finally {
+        notifyClosed();
+      }
     }
   }
 
+  /**
+   * Ends the input stream, once the data received so far has been read.
+   */
+  private void closeInput() throws IOException {
+    mPipeInputStream.getSource().close();
+  }
+
+  private void notifyClosed() {
+    if (mCloseListener != null) {
+      mCloseListener.onClose(this);
+    }
+  }
+
+  /**
+   * Listener called once a channel is closed. When the other end closed the channel, all the data it sent can then be
+   * read from the input stream of the channel without blocking.
+   */
+  public interface CloseListener {
+    void onClose(@NotNull Channel channel);
+  }
+
   interface EventHandler {
     void closeChannel(long id) throws IOException;
     void writeChannel(long id, byte b[], int off, int len) throws IOException;
+    void flushChannel(long id) throws IOException;
   }
 
   private class Output extends OutputStream {
@@ -88,6 +136,14 @@ public class Channel implements Closeable {
       mEventHandler.writeChannel(mId, b, off, len);
     }
 
+    /**
+     * Waits for the data written so far to be sent.
+     */
+    @Override
+    public void flush() throws IOException {
+      mEventHandler.flushChannel(mId);
+    }
+
     @Override
     public void close() throws IOException {
       Channel.this.close();
@@ -16,6 +16,8 @@
 package com.android.tools.rpclib.multiplex;
 
 import com.android.annotations.concurrency.GuardedBy;
+import com.android.tools.rpclib.binary.ByteBufferDecoder;
+import com.android.tools.rpclib.binary.ByteBufferEncoder;
 import com.android.tools.rpclib.binary.Decoder;
 import com.android.tools.rpclib.binary.Encoder;
 import com.intellij.openapi.diagnostic.Logger;
@@ -24,6 +26,7 @@ import gnu.trove.TLongObjectIterator;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -32,22 +35,26 @@ import java.util.concurrent.atomic.AtomicLong;
 
 public class Multiplexer {
   @NotNull private static final Logger LOG = Logger.getInstance(Multiplexer.class);
+  private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_POOLED_BYTES = 4 * 1024 * 1024;
   private final Decoder mDecoder;
   private final Encoder mEncoder;
   private final NewChannelListener mNewChannelListener;
   private final Channel.EventHandler mChannelEventHandler;
   private final Sender mSender;
+  private final BufferPool mBufferPool;
   private final AtomicLong mNextChannelId;
   @GuardedBy("mChannelMap") private final TLongObjectHashMap<Channel> mChannelMap;
 
   public Multiplexer(@NotNull InputStream in, @NotNull OutputStream out, int mtu,
                      @NotNull ExecutorService executorService,
                      @Nullable NewChannelListener newChannelListener) {
-    mDecoder = new Decoder(in);
-    mEncoder = new Encoder(out);
+    mDecoder = new ByteBufferDecoder(in, STREAM_BUFFER_SIZE, false);
+    mEncoder = new ByteBufferEncoder(out, STREAM_BUFFER_SIZE, false);
     mNewChannelListener = newChannelListener;
     mChannelEventHandler = new ChannelEventHandler();
-    mSender = new Sender(mtu, executorService);
+    mBufferPool = new BufferPool(mtu, MAX_POOLED_BYTES);
+    mSender = new Sender(mtu, mBufferPool, executorService);
     mChannelMap = new TLongObjectHashMap<Channel>();
     mNextChannelId = new AtomicLong(0);
     executorService.execute(new Receiver());
@@ -78,6 +85,7 @@ public class Multiplexer {
       if (mChannelMap.containsKey(id)) {
         // TODO: Mark channel closed.
         mChannelMap.remove(id);
+        mSender.removeChannel(id);
         if (mChannelMap.isEmpty()) {
           mSender.end();
         }
@@ -99,15 +107,23 @@ public class Multiplexer {
 
   private void closeAllChannels() {
     synchronized (mChannelMap) {
-      for (TLongObjectIterator<Channel> it = mChannelMap.iterator(); it.hasNext(); it.advance()) {
+      if (mChannelMap.isEmpty()) {
+        return;
+      }
+      // The connection is gone, so the channels are closed without telling the other end, and without removing them
+      // from the map while it is being iterated.
+      for (TLongObjectIterator<Channel> it = mChannelMap.iterator(); it.hasNext(); ) {
+        it.advance();
         Channel c = it.value();
         try {
-          c.close();
+          c.closeNoEvent();
         }
         catch (IOException e) {
         }
-        it.remove();
+        mSender.removeChannel(it.key());
       }
+      mChannelMap.clear();
+      mSender.end();
     }
   }
 
@@ -122,6 +138,11 @@ public class Multiplexer {
     public void writeChannel(long id, byte[] b, int off, int len) throws IOException {
       mSender.sendData(id, b, off, len);
     }
+
+    @Override
+    public void flushChannel(long id) throws IOException {
+      mSender.flush(id);
+    }
   }
 
   private class Receiver extends Thread {
@@ -153,15 +174,20 @@ public class Multiplexer {
             }
             case Message.DATA: {
               int count = mDecoder.uint32();
-              byte[] buf = new byte[count];
+              byte[] buf = mBufferPool.acquire(count);
               for (int offset = 0; offset < count;) {
-                offset += mDecoder.stream().read(buf, offset, count-offset);
+                int n = mDecoder.stream().read(buf, offset, count-offset);
+                if (n < 0) {
+                  throw new EOFException("Unexpected end of stream in data of channel " + id);
+                }
+                offset += n;
               }
               Channel channel = getChannel(id);
               if (channel != null) {
-                channel.receive(buf);
+                channel.receive(buf, count, mBufferPool);
               }
               else {
+                mBufferPool.release(buf);
                 // Likely this channel was closed this side, and we're receiving data
                 // that should be dropped on the floor.
                 LOG.info("Received data on unknown channel " + id);
@@ -15,11 +15,14 @@
  */
 package com.android.tools.rpclib.multiplex;
 
+import com.android.annotations.concurrency.GuardedBy;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.LinkedList;
-import java.util.concurrent.Semaphore;
+import java.util.ArrayDeque;
 
 /**
  * An object that provides an {@link java.io.InputStream} interface to read data that has been written to a
@@ -33,15 +36,13 @@ import java.util.concurrent.Semaphore;
  * implementation does not use an internal ring buffer, and and does not suffer from 1 second stalls (JDK-4404700).
  */
 public class PipeInputStream extends InputStream {
-  private static final Item ITEM_CLOSE = new Item(null, 0, 0);
+  private static final Item ITEM_CLOSE = new Item(null, 0, 0, null);
   private final OutputStream mSource;
-  private final LinkedList<Item> mQueue;
-  private final Semaphore mSemaphore;
+  @GuardedBy("mQueue") private final ArrayDeque<Item> mQueue;
   private final byte[] mByte;
 
   PipeInputStream() {
-    mQueue = new LinkedList<Item>();
-    mSemaphore = new Semaphore(0);
+    mQueue = new ArrayDeque<Item>();
     mByte = new byte[1];
     mSource = new Writer();
   }
@@ -50,53 +51,74 @@ public class PipeInputStream extends InputStream {
     return mSource;
   }
 
+  /**
+   * Queues {@code len} bytes of the buffer to be read, the buffer is returned to the pool once they have been read.
+   */
+  void write(@NotNull byte[] b, int off, int len, @Nullable BufferPool pool) {
+    if (len > 0) {
+      add(new Item(b, off, off + len, pool));
+    }
+    else if (pool != null) {
+      pool.release(b);
+    }
+  }
+
+  private void add(@NotNull Item item) {
+    synchronized (mQueue) {
+      mQueue.addLast(item);
+      mQueue.notifyAll();
+    }
+  }
+
   @Override
   public int read() throws IOException {
-    return (read(mByte, 0, 1) > 0) ? mByte[0] : -1;
+    return (read(mByte, 0, 1) > 0) ? mByte[0] & 0xff : -1;
   }
 
   @Override
   public int read(byte b[], int off, int len) throws IOException {
     int n = 0;
-    boolean closed = false;
-    while (!closed && len > n) {
-      try {
-        mSemaphore.acquire();
-        synchronized (mQueue) {
-          Item item = mQueue.getFirst();
-          if (item != ITEM_CLOSE) {
-            n += item.read(b, off + n, len - n);
-            if (item.remaining() == 0) {
-              mQueue.removeFirst();
-            }
-            else {
-              mSemaphore.release();
-            }
+    synchronized (mQueue) {
+      while (len > n) {
+        Item item = mQueue.peekFirst();
+        if (item == null) {
+          if (n > 0) {
+            // Return what has been read so far rather than waiting for more
+            break;
           }
-          else {
-            closed = true;
+          try {
+            mQueue.wait();
+          }
+          catch (InterruptedException e) {
+            break;
           }
         }
-      }
-      catch (InterruptedException e) {
-        break;
+        else if (item != ITEM_CLOSE) {
+          n += item.read(b, off + n, len - n);
+          if (item.remaining() == 0) {
+            mQueue.removeFirst();
+            item.release();
+          }
+        }
+        else {
+          return (n == 0) ? -1 : n;
+        }
       }
     }
-    if (n == 0 && closed) {
-      return -1;
-    }
     return n;
   }
 
   private static class Item {
     private final byte[] mData;
     private final int mCount;
+    private final BufferPool mPool;
     private int mOffset;
 
-    public Item(byte[] data, int offset, int count) {
+    public Item(byte[] data, int offset, int count, BufferPool pool) {
       mData = data;
       mCount = count;
       mOffset = offset;
+      mPool = pool;
     }
 
     public int read(byte[] out, int offset, int count) {
@@ -112,6 +134,12 @@ public class PipeInputStream extends InputStream {
     public int remaining() {
       return mCount - mOffset;
     }
+
+    public void release() {
+      if (mPool != null) {
+        mPool.release(mData);
+      }
+    }
   }
 
   private class Writer extends OutputStream {
@@ -122,20 +150,12 @@ public class PipeInputStream extends InputStream {
 
     @Override
     public void write(byte b[], int off, int len) throws IOException {
-      if (len > 0) {
-        synchronized (mQueue) {
-          mQueue.addLast(new Item(b, off, len));
-        }
-        mSemaphore.release();
-      }
+      PipeInputStream.this.write(b, off, len, null);
     }
 
     @Override
     public void close() throws IOException {
-      synchronized (mQueue) {
-        mQueue.addLast(ITEM_CLOSE);
-        mSemaphore.release();
-      }
+      add(ITEM_CLOSE);
     }
   }
 }
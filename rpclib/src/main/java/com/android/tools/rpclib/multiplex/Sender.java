@@ -15,29 +15,52 @@
  */
 package com.android.tools.rpclib.multiplex;
 
+import com.android.annotations.concurrency.GuardedBy;
 import com.android.tools.rpclib.binary.Encoder;
 import gnu.trove.TLongObjectHashMap;
 import gnu.trove.TLongObjectIterator;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
-
+import java.util.concurrent.Semaphore;
+
+/**
+ * Encodes the messages of all the channels of a {@link Multiplexer} on a single worker thread.
+ * <p/>
+ * Sending does not wait for the message to be encoded: the data is copied to a pooled buffer and queued, and the
+ * worker encodes all the queued messages before flushing the stream. Each channel is given a credit of
+ * {@link #CHANNEL_CREDIT} bytes that can be queued but not yet encoded, and writers block once their channel has used
+ * its credit, so a busy channel cannot hold an unbounded amount of memory or starve the others. Errors encoding the
+ * messages are reported by the following calls to the send methods, or by {@link #flush}.
+ */
 class Sender {
   private static final int MAX_PENDING_SEND_COUNT = 1024;
+  /** The number of bytes of data each channel can have queued before writers block. */
+  static final int CHANNEL_CREDIT = 1024 * 1024;
   private static final SendItem NOP_ITEM = new SendNop();
   private final int mMtu;
+  private final int mCredit;
+  @NotNull private final BufferPool mBufferPool;
   @NotNull private ExecutorService mExecutorService;
   @NotNull private final LinkedBlockingQueue<SendItem> mPendingItems;
+  @GuardedBy("mCredits") private final TLongObjectHashMap<Semaphore> mCredits;
+  private volatile IOException mFailure;
   private Worker mWorker;
 
-  Sender(int mtu, @NotNull ExecutorService executorService) {
+  Sender(int mtu, @NotNull BufferPool bufferPool, @NotNull ExecutorService executorService) {
     mMtu = mtu;
+    mCredit = Math.max(CHANNEL_CREDIT, mtu);
+    mBufferPool = bufferPool;
     mExecutorService = executorService;
     mPendingItems = new LinkedBlockingQueue<SendItem>(MAX_PENDING_SEND_COUNT);
+    mCredits = new TLongObjectHashMap<Semaphore>();
   }
 
   void begin(Encoder out) {
@@ -49,7 +72,7 @@ class Sender {
     try {
       synchronized (mWorker) {
         mWorker.setRunning(false);
-        mPendingItems.add(NOP_ITEM); // Unblock the sender
+        mPendingItems.put(NOP_ITEM); // Unblock the sender
         while (!mWorker.isStopped()) {
           mWorker.wait();
         }
@@ -61,7 +84,16 @@ class Sender {
   }
 
   void sendData(long channel, byte b[], int off, int len) throws IOException {
-    send(new SendData(channel, b, off, len));
+    Semaphore credit = getCredit(channel);
+    while (len > 0) {
+      int c = Math.min(len, mMtu);
+      credit.acquireUninterruptibly(c);
+      byte[] data = mBufferPool.acquire(c);
+      System.arraycopy(b, off, data, 0, c);
+      send(new SendData(channel, credit, data, c));
+      off += c;
+      len -= c;
+    }
   }
 
   void sendOpenChannel(long channel) throws IOException {
@@ -72,68 +104,84 @@ class Sender {
     send(new CloseChannel(channel));
   }
 
+  /**
+   * Waits for all the data queued for the channel to be encoded, re-throwing an {@link IOException} if there was an
+   * exception thrown while sending.
+   */
+  void flush(long channel) throws IOException {
+    Semaphore credit = getCredit(channel);
+    credit.acquireUninterruptibly(mCredit);
+    credit.release(mCredit);
+    checkFailure();
+  }
+
+  /** Forgets the credit of a channel that will not be sent any more data. */
+  void removeChannel(long channel) {
+    synchronized (mCredits) {
+      mCredits.remove(channel);
+    }
+  }
+
+  @NotNull
+  private Semaphore getCredit(long channel) {
+    synchronized (mCredits) {
+      Semaphore credit = mCredits.get(channel);
+      if (credit == null) {
+        credit = new Semaphore(mCredit);
+        mCredits.put(channel, credit);
+      }
+      return credit;
+    }
+  }
+
   private void send(SendItem item) throws IOException {
-    if (mWorker == null) {
-      throw new RuntimeException("Attempting to send item when sender is not running");
+    try {
+      checkFailure();
+      if (mWorker == null) {
+        throw new RuntimeException("Attempting to send item when sender is not running");
+      }
+      mPendingItems.put(item);
+    }
+    catch (InterruptedException e) {
+      item.release();
+      throw new InterruptedIOException("Interrupted while sending on channel " + item.mChannel);
+    }
+    catch (IOException e) {
+      item.release();
+      throw e;
+    }
+    catch (RuntimeException e) {
+      item.release();
+      throw e;
+    }
+  }
+
+  private void checkFailure() throws IOException {
+    IOException failure = mFailure;
+    if (failure != null) {
+      throw new IOException("Sending failed", failure);
+    }
+  }
+
+  private void fail(IOException exception) {
+    if (mFailure == null) {
+      mFailure = exception;
     }
-    mPendingItems.add(item);
-    item.sync();
   }
 
   private static abstract class SendItem {
     final long mChannel;
-    private boolean mDone;
-    private IOException mException;
 
     SendItem(long channel) {
       mChannel = channel;
     }
 
-    /**
-     * Encodes the item to the provided {@link Encoder}, unblocking any calls to {@link #sync}.
-     *
-     * @return true if the item was fully sent, or false if there is more to send.
-     */
-    final boolean send(Encoder e) {
-      try {
-        return encode(e);
-      }
-      catch (IOException exception) {
-        synchronized (this) {
-          mException = exception;
-        }
-        return true;
-      }
-      finally {
-        synchronized (this) {
-          mDone = true;
-          notifyAll();
-        }
-      }
-    }
+    /** Encodes the item to the provided {@link Encoder}. */
+    protected abstract void encode(Encoder e) throws IOException;
 
-    /**
-     * Waits for {@link #send} to be called, re-throwing an {@link java.io.IOException} if there was an exception
-     * thrown while sending the item.
-     */
-    final void sync() throws IOException {
-      synchronized (this) {
-        while (!mDone) {
-          try {
-            this.wait();
-          }
-          catch (InterruptedException e) {
-          }
-        }
-        if (mException != null) {
-          throw mException;
-        }
-      }
+    /** Releases the resources held by the item, once it has been encoded or dropped. */
+    protected void release() {
     }
-
-
-    /** @return true if the item was fully sent, or false if there is more to send. */
-    protected abstract boolean encode(Encoder e) throws IOException;
   }
 
   private static class OpenChannel extends SendItem {
@@ -142,10 +190,9 @@ class Sender {
     }
 
     @Override
-    protected boolean encode(Encoder e) throws IOException {
+    protected void encode(Encoder e) throws IOException {
       e.uint8(Message.OPEN_CHANNEL);
       e.uint32(mChannel);
-      return true;
     }
   }
 
@@ -155,10 +202,9 @@ class Sender {
     }
 
     @Override
-    protected boolean encode(Encoder e) throws IOException {
+    protected void encode(Encoder e) throws IOException {
       e.uint8(Message.CLOSE_CHANNEL);
       e.uint32(mChannel);
-      return true;
     }
   }
 
@@ -169,14 +215,13 @@ class Sender {
     }
 
     @Override
-    protected boolean encode(Encoder e) {
-      return true;
+    protected void encode(Encoder e) {
     }
   }
 
   private final class Worker extends Thread {
     private final Encoder mEncoder;
-    private boolean mIsRunning;
+    private volatile boolean mIsRunning;
     private boolean mIsStopped;
 
     Worker(Encoder encoder) {
@@ -196,60 +241,78 @@ class Sender {
     @Override
     public void run() {
       SendMap map = new SendMap();
+      List<SendItem> items = new ArrayList<SendItem>();
       try {
         while (mIsRunning) {
-          SendItem item;
           if (map.size() == 0) {
-            // If there's nothing being worked on, block until we have something.
-            item = mPendingItems.take();
-          }
-          else {
-            // If we're busy, grab more work only if there's something there.
-            item = mPendingItems.poll();
+            // If there's nothing being worked on, send what was encoded so far and block until we have something.
+            flush();
+            map.add(mPendingItems.take());
           }
-          if (item != null) {
+          // Grab all the other pending work, so that it is sent in the same batch.
+          mPendingItems.drainTo(items);
+          for (SendItem item : items) {
             map.add(item);
-            map.flush(mEncoder);
           }
+          items.clear();
+          map.encode(mEncoder);
         }
         // Drain map
+        mPendingItems.drainTo(items);
+        for (SendItem item : items) {
+          map.add(item);
+        }
         while (map.size() > 0) {
-          map.flush(mEncoder);
+          map.encode(mEncoder);
         }
+        flush();
+      }
+      catch (InterruptedException e) {
+        e.printStackTrace();
+      }
+      finally {
         // Signal that this thread is done
         synchronized (this) {
           mIsStopped = true;
           notifyAll();
         }
       }
-      catch (InterruptedException e) {
-        e.printStackTrace();
+    }
+
+    private void flush() {
+      try {
+        mEncoder.stream().flush();
+      }
+      catch (IOException e) {
+        fail(e);
       }
     }
   }
 
   private class SendData extends SendItem {
-    final byte[] mData;
-    int mOffset;
-    int mLength;
+    @NotNull final Semaphore mCredit;
+    @NotNull final byte[] mData;
+    final int mLength;
 
-    SendData(long channel, byte[] data, int off, int len) {
+    SendData(long channel, @NotNull Semaphore credit, @NotNull byte[] data, int len) {
       super(channel);
+      mCredit = credit;
       mData = data;
-      mOffset = off;
       mLength = len;
     }
 
     @Override
-    protected boolean encode(Encoder e) throws IOException {
+    protected void encode(Encoder e) throws IOException {
       e.uint8(Message.DATA);
       e.uint32(mChannel);
-      int c = Math.min(mLength, mMtu);
-      e.uint32(c);
-      e.stream().write(mData, mOffset, c);
-      mOffset += c;
-      mLength -= c;
-      return mLength == 0;
+      e.uint32(mLength);
+      e.stream().write(mData, 0, mLength);
+    }
+
+    @Override
+    protected void release() {
+      mBufferPool.release(mData);
+      mCredit.release(mLength);
     }
   }
 
@@ -271,18 +334,24 @@ class Sender {
       queue.add(item);
     }
 
-    public void flush(Encoder e) {
+    /** Encodes the first item of each channel, so that the channels are interleaved fairly. */
+    public void encode(Encoder e) {
       TLongObjectIterator<Queue<SendItem>> it = mQueues.iterator();
       for (int i = mQueues.size(); i-- > 0; ) {
         it.advance();
         Queue<SendItem> queue = it.value();
-        SendItem item = queue.peek();
-        if (item.send(e)) {
-          // Item has been fully encoded.
-          queue.remove();
-          if (queue.poll() == null) {
-            it.remove();
-          }
+        SendItem item = queue.remove();
+        try {
+          item.encode(e);
+        }
+        catch (IOException exception) {
+          fail(exception);
+        }
+        finally {
+          item.release();
+        }
+        if (queue.isEmpty()) {
+          it.remove();
         }
       }
     }
@@ -15,17 +15,22 @@
  */
 package com.android.tools.rpclib.rpccore;
 
+import com.android.tools.rpclib.binary.ByteBufferDecoder;
+import com.android.tools.rpclib.binary.ByteBufferEncoder;
 import com.android.tools.rpclib.binary.Decoder;
 import com.android.tools.rpclib.binary.Encoder;
 import com.android.tools.rpclib.multiplex.Channel;
 import com.android.tools.rpclib.multiplex.Multiplexer;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 public class Broadcaster {
   private final Multiplexer mMultiplexer;
@@ -48,33 +53,80 @@ public class Broadcaster {
     Channel channel = mMultiplexer.openChannel();
 
     try {
-      BufferedOutputStream out = new BufferedOutputStream(channel.getOutputStream(), mMtu);
-      Encoder e = new Encoder(out);
-      Decoder d = new Decoder(channel.getInputStream());
+      writeCall(channel, call);
+      return readResult(channel);
+    }
+    finally {
+      // Close the channel
+      channel.close();
+    }
+  }
+
+  /**
+   * Sends a call without waiting for its result.
+   * <p/>
+   * Each call is sent on its own channel, which identifies the call to the server, and the call is queued for sending
+   * before this method returns, so any number of calls can be in flight at once. The server closes the channel of a
+   * call once it has written the result, which is then decoded on the receiving thread of the multiplexer: no thread
+   * waits for the results of the calls in flight. The returned future fails with an {@link RpcException} if the call
+   * returned an error, or with an {@link IOException} if the connection was lost.
+   */
+  @NotNull
+  public Future<Result> SendAsync(@NotNull Call call) throws IOException {
+    final Channel channel = mMultiplexer.openChannel();
+
+    try {
+      writeCall(channel, call);
+    }
+    catch (IOException e) {
+      channel.close();
+      throw e;
+    }
 
-      // Write the RPC header
-      writeHeader(e);
+    final FutureTask<Result> result = new FutureTask<Result>(new Callable<Result>() {
+      @Override
+      public Result call() throws Exception {
+        return readResult(channel);
+      }
+    });
+    channel.setCloseListener(new Channel.CloseListener() {
+      @Override
+      public void onClose(@NotNull Channel closed) {
+        // All the data of the result was received, reading it does not block.
+        result.run();
+      }
+    });
+    return result;
+  }
 
-      // Write the call
-      e.object(call);
+  private void writeCall(@NotNull Channel channel, @NotNull Call call) throws IOException {
+    // Encode the whole call before writing it, so that it is queued as a single write
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream(mMtu);
+    ByteBufferEncoder e = new ByteBufferEncoder(buffer, mMtu, false);
 
-      // Flush the buffer
-      out.flush();
+    // Write the RPC header
+    writeHeader(e);
 
-      // Wait for and read the response
-      Object res = d.object();
+    // Write the call
+    e.object(call);
+    e.flush();
 
-      // Check to see if the response was an error
-      if (res instanceof RpcError) {
-        throw new RpcException((RpcError)res);
-      }
+    buffer.writeTo(channel.getOutputStream());
+  }
 
-      return (Result)res;
-    }
-    finally {
-      // Close the channel
-      channel.close();
+  @NotNull
+  private static Result readResult(@NotNull Channel channel) throws IOException, RpcException {
+    Decoder d = new ByteBufferDecoder(channel.getInputStream(), ByteBufferDecoder.DEFAULT_BUFFER_SIZE, false);
+
+    // Wait for and read the response
+    Object res = d.object();
+
+    // Check to see if the response was an error
+    if (res instanceof RpcError) {
+      throw new RpcException((RpcError)res);
     }
+
+    return (Result)res;
   }
 
   static {
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.binary;
+
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class ByteBufferDecoderTest extends TestCase {
+  static {
+    ObjectTypeID.register(new ObjectTypeID(ByteBufferEncoderTest.typeIDBytes), new BinaryObjectCreator() {
+      @Override
+      public BinaryObject create() {
+        return new ByteBufferEncoderTest.Values();
+      }
+    });
+  }
+
+  /** Decodes the values encoded by {@link ByteBufferEncoderTest#encodeAll} */
+  private static void decodeAll(@NotNull Decoder d) throws IOException {
+    assertTrue(d.bool());
+    assertFalse(d.bool());
+    assertEquals(-128, d.int8());
+    assertEquals((byte)0xff, d.uint8());
+    assertEquals(Short.MIN_VALUE, d.int16());
+    assertEquals((short)0xffff, d.uint16());
+    for (int shift = 0; shift < 64; shift += 7) {
+      assertEquals((int)(-1L << shift), d.int32());
+      assertEquals((int)(1L << shift), d.uint32());
+      assertEquals(-1L << shift, d.int64());
+      assertEquals((1L << shift) - 1, d.uint64());
+    }
+    assertEquals(-1L, d.uint64());
+    assertEquals(-64.5F, d.float32(), 0.F);
+    assertTrue(Float.isNaN(d.float32()));
+    assertEquals(Double.MAX_VALUE, d.float64(), 0.D);
+    assertEquals(Double.doubleToLongBits(-0.D), Double.doubleToLongBits(d.float64()));
+
+    assertEquals("", d.string());
+    assertEquals("", d.string());
+    assertEquals("こんにちは世界", d.string());
+    for (int i = 0; i < 10; i++) {
+      assertEquals("recurring " + (i % 3), d.string());
+    }
+    assertEquals(2890, d.string().length());
+
+    ByteBufferEncoderTest.Values values = (ByteBufferEncoderTest.Values)d.object();
+    assertNotNull(values);
+    assertEquals("values", values.mName);
+    Assert.assertArrayEquals(new Object[]{0, 1, -1, Integer.MAX_VALUE, Integer.MIN_VALUE, 12345},
+                             toObjects(values.mInts));
+    assertEquals(Long.MIN_VALUE, values.mLongs[3]);
+    assertEquals(-3.25F, values.mFloats[3], 0.F);
+    assertEquals(Double.MIN_VALUE, values.mDoubles[2], 0.D);
+    assertEquals(300, values.mBytes.length);
+    assertEquals((byte)299, values.mBytes[299]);
+    assertNull(d.object());
+    assertSame(values, d.object());
+
+    byte[] typeID = new byte[ByteBufferEncoderTest.typeIDBytes.length];
+    d.read(typeID, typeID.length);
+    Assert.assertArrayEquals(ByteBufferEncoderTest.typeIDBytes, typeID);
+  }
+
+  public void testDecodeLikeDecoder() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ByteBufferEncoderTest.encodeAll(new Encoder(output));
+    byte[] encoded = output.toByteArray();
+
+    decodeAll(new Decoder(new ByteArrayInputStream(encoded)));
+    for (boolean internStrings : new boolean[]{false, true}) {
+      for (int bufferSize : new int[]{16, 100, ByteBufferDecoder.DEFAULT_BUFFER_SIZE}) {
+        decodeAll(new ByteBufferDecoder(new ByteArrayInputStream(encoded), bufferSize, internStrings));
+        decodeAll(new ByteBufferDecoder(new TrickleInputStream(encoded), bufferSize, internStrings));
+      }
+    }
+  }
+
+  public void testInternStrings() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Encoder e = new Encoder(output);
+    e.string("recurring");
+    e.string("recurring");
+    byte[] encoded = output.toByteArray();
+
+    Decoder d = new ByteBufferDecoder(new ByteArrayInputStream(encoded), 16, true);
+    assertSame(d.string(), d.string());
+    d = new ByteBufferDecoder(new ByteArrayInputStream(encoded), 16, false);
+    assertNotSame(d.string(), d.string());
+  }
+
+  public void testStreamAfterValues() throws IOException {
+    Decoder d = new ByteBufferDecoder(new ByteArrayInputStream(new byte[]{1, 2, 3, 4}), 16, false);
+    assertEquals(1, d.uint32());
+    byte[] rest = new byte[4];
+    assertEquals(3, d.stream().read(rest, 0, 4));
+    Assert.assertArrayEquals(new byte[]{2, 3, 4, 0}, rest);
+    assertEquals(-1, d.stream().read());
+  }
+
+  public void testEndOfStream() throws IOException {
+    Decoder d = new ByteBufferDecoder(new ByteArrayInputStream(new byte[]{(byte)0xc0, 0x01}), 16, false);
+    try {
+      d.uint32();
+      fail("Expected EOFException");
+    }
+    catch (EOFException e) {
+      // expected
+    }
+  }
+
+  private static Object[] toObjects(int[] values) {
+    Object[] objects = new Object[values.length];
+    for (int i = 0; i < values.length; i++) {
+      objects[i] = values[i];
+    }
+    return objects;
+  }
+
+  /** Returns the data a few bytes at a time, like a network stream would */
+  private static class TrickleInputStream extends InputStream {
+    private final byte[] mData;
+    private int mOffset;
+
+    TrickleInputStream(byte[] data) {
+      mData = data;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return mOffset < mData.length ? mData[mOffset++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(@NotNull byte[] b, int off, int len) throws IOException {
+      if (mOffset >= mData.length) {
+        return -1;
+      }
+      int n = Math.min(Math.min(len, 3), mData.length - mOffset);
+      System.arraycopy(mData, mOffset, b, off, n);
+      mOffset += n;
+      return n;
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.binary;
+
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+public class ByteBufferEncoderTest extends TestCase {
+  static final byte[] typeIDBytes = new byte[]{
+    0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09,
+    0x0a, 0x0b, 0x0c, 0x0d, 0x0e, 0x0f, 0x10, 0x11, 0x12, 0x13
+  };
+
+  static class Values implements BinaryObject {
+    String mName;
+    int[] mInts;
+    long[] mLongs;
+    float[] mFloats;
+    double[] mDoubles;
+    byte[] mBytes;
+
+    @Override
+    public ObjectTypeID type() {
+      return new ObjectTypeID(typeIDBytes);
+    }
+
+    @Override
+    public void encode(@NotNull Encoder e) throws IOException {
+      e.string(mName);
+      e.uint32(mInts.length);
+      e.int32s(mInts, 0, mInts.length);
+      e.uint32s(mInts, 0, mInts.length);
+      e.uint32(mLongs.length);
+      e.int64s(mLongs, 0, mLongs.length);
+      e.uint32(mFloats.length);
+      e.float32s(mFloats, 0, mFloats.length);
+      e.uint32(mDoubles.length);
+      e.float64s(mDoubles, 0, mDoubles.length);
+      e.uint32(mBytes.length);
+      e.int8s(mBytes, 0, mBytes.length);
+    }
+
+    @Override
+    public void decode(@NotNull Decoder d) throws IOException {
+      mName = d.string();
+      mInts = new int[d.uint32()];
+      d.int32s(mInts, 0, mInts.length);
+      int[] unsigned = new int[mInts.length];
+      d.uint32s(unsigned, 0, unsigned.length);
+      Assert.assertArrayEquals(toObjects(mInts), toObjects(unsigned));
+      mLongs = new long[d.uint32()];
+      d.int64s(mLongs, 0, mLongs.length);
+      mFloats = new float[d.uint32()];
+      d.float32s(mFloats, 0, mFloats.length);
+      mDoubles = new double[d.uint32()];
+      d.float64s(mDoubles, 0, mDoubles.length);
+      mBytes = new byte[d.uint32()];
+      d.int8s(mBytes, 0, mBytes.length);
+    }
+
+    private static Object[] toObjects(int[] values) {
+      Object[] objects = new Object[values.length];
+      for (int i = 0; i < values.length; i++) {
+        objects[i] = values[i];
+      }
+      return objects;
+    }
+  }
+
+  /** Encodes all kinds of values, with strings and data both smaller and larger than the buffers */
+  static void encodeAll(@NotNull Encoder e) throws IOException {
+    e.bool(true);
+    e.bool(false);
+    e.int8((byte)-128);
+    e.uint8((short)0xff);
+    e.int16(Short.MIN_VALUE);
+    e.uint16(0xffff);
+    for (int shift = 0; shift < 64; shift += 7) {
+      e.int32((int)(-1L << shift));
+      e.uint32(1L << shift);
+      e.int64(-1L << shift);
+      e.uint64((1L << shift) - 1);
+    }
+    e.uint64(-1L);
+    e.float32(-64.5F);
+    e.float32(Float.NaN);
+    e.float64(Double.MAX_VALUE);
+    e.float64(-0.D);
+
+    e.string(null);
+    e.string("");
+    e.string("こんにちは世界");
+    for (int i = 0; i < 10; i++) {
+      e.string("recurring " + (i % 3));
+    }
+    StringBuilder longString = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      longString.append(i);
+    }
+    e.string(longString.toString());
+
+    Values values = new Values();
+    values.mName = "values";
+    values.mInts = new int[]{0, 1, -1, Integer.MAX_VALUE, Integer.MIN_VALUE, 12345};
+    values.mLongs = new long[]{0, -1, Long.MAX_VALUE, Long.MIN_VALUE};
+    values.mFloats = new float[]{0.F, 1.F, Float.MIN_VALUE, -3.25F};
+    values.mDoubles = new double[]{0.D, 1.D, Double.MIN_VALUE, -3.25D};
+    values.mBytes = new byte[300];
+    for (int i = 0; i < values.mBytes.length; i++) {
+      values.mBytes[i] = (byte)i;
+    }
+    e.object(values);
+    e.object(null);
+    e.object(values);
+    e.stream().write(typeIDBytes);
+  }
+
+  public void testEncodeLikeEncoder() throws IOException {
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    encodeAll(new Encoder(expected));
+
+    for (boolean internStrings : new boolean[]{false, true}) {
+      for (int bufferSize : new int[]{16, 100, ByteBufferEncoder.DEFAULT_BUFFER_SIZE}) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteBufferEncoder e = new ByteBufferEncoder(output, bufferSize, internStrings);
+        encodeAll(e);
+        e.flush();
+        Assert.assertArrayEquals(expected.toByteArray(), output.toByteArray());
+      }
+    }
+  }
+
+  public void testEncodeBuffered() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ByteBufferEncoder e = new ByteBufferEncoder(output, 16, false);
+    e.uint32(1);
+    e.stream().write(new byte[]{2, 3}, 0, 2);
+    assertEquals(0, output.size());
+    e.stream().flush();
+    Assert.assertArrayEquals(new byte[]{1, 2, 3}, output.toByteArray());
+  }
+}
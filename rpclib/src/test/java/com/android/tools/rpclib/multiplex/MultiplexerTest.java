@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.multiplex;
+
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class MultiplexerTest extends TestCase {
+  private static final int MTU = 1024;
+
+  private ExecutorService mExecutor;
+  private Socket mClientSocket;
+  private Socket mServerSocket;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mExecutor = Executors.newCachedThreadPool();
+    ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    try {
+      mClientSocket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+      mServerSocket = serverSocket.accept();
+    }
+    finally {
+      serverSocket.close();
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mClientSocket.close();
+    mServerSocket.close();
+    mExecutor.shutdownNow();
+    super.tearDown();
+  }
+
+  public void testPipeInputStream() throws IOException {
+    PipeInputStream in = new PipeInputStream();
+    BufferPool pool = new BufferPool(4, 16);
+    byte[] pooled = pool.acquire(4);
+    pooled[0] = 5;
+    pooled[1] = 6;
+    in.getSource().write(new byte[]{1, 2, 3, 4}, 1, 3);
+    in.write(pooled, 0, 2, pool);
+    in.getSource().close();
+
+    byte[] buffer = new byte[8];
+    assertEquals(5, in.read(buffer, 0, 8));
+    Assert.assertArrayEquals(new byte[]{2, 3, 4, 5, 6, 0, 0, 0}, buffer);
+    assertEquals(-1, in.read(buffer, 0, 8));
+    assertEquals(-1, in.read());
+
+    // The pooled buffer was released once read.
+    assertSame(pooled, pool.acquire(4));
+  }
+
+  public void testEcho() throws Exception {
+    Multiplexer client = startMultiplexers();
+    Channel channel = client.openChannel();
+    byte[] data = randomData(0, MTU * 3 + 17);
+    Assert.assertArrayEquals(data, echo(channel, data));
+    channel.close();
+  }
+
+  public void testConcurrentChannels() throws Exception {
+    final Multiplexer client = startMultiplexers();
+    List<Future<Void>> results = new ArrayList<Future<Void>>();
+    for (int i = 0; i < 16; i++) {
+      final int seed = i;
+      results.add(mExecutor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          for (int call = 0; call < 8; call++) {
+            Channel channel = client.openChannel();
+            try {
+              // Larger than the credit of a channel, such that the writer has to wait for the data to be sent.
+              byte[] data = randomData(seed * 8 + call, Sender.CHANNEL_CREDIT / 4 + seed * MTU + call);
+              Assert.assertArrayEquals(data, echo(channel, data));
+            }
+            finally {
+              channel.close();
+            }
+          }
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> result : results) {
+      result.get(60, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Starts a multiplexer on each end of the socket pair, the server one sending back the data of each channel, and
+   * returns the client one.
+   */
+  @NotNull
+  private Multiplexer startMultiplexers() throws IOException {
+    new Multiplexer(mServerSocket.getInputStream(), mServerSocket.getOutputStream(), MTU, mExecutor,
+                    new NewChannelListener() {
+                      @Override
+                      public void onNewChannel(@NotNull final Channel channel) {
+                        mExecutor.execute(new Runnable() {
+                          @Override
+                          public void run() {
+                            echoServer(channel);
+                          }
+                        });
+                      }
+                    });
+    return new Multiplexer(mClientSocket.getInputStream(), mClientSocket.getOutputStream(), MTU, mExecutor, null);
+  }
+
+  /** Reads the size of the data, then sends back that many bytes as they are received. */
+  private static void echoServer(@NotNull Channel channel) {
+    try {
+      InputStream in = channel.getInputStream();
+      OutputStream out = channel.getOutputStream();
+      byte[] header = new byte[4];
+      readFully(in, header);
+      int remaining = (header[0] & 0xff) << 24 | (header[1] & 0xff) << 16 | (header[2] & 0xff) << 8 | (header[3] & 0xff);
+      byte[] buffer = new byte[MTU * 2 + 5];
+      while (remaining > 0) {
+        int n = in.read(buffer, 0, Math.min(buffer.length, remaining));
+        if (n < 0) {
+          break;
+        }
+        out.write(buffer, 0, n);
+        remaining -= n;
+      }
+      out.flush();
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @NotNull
+  private static byte[] echo(@NotNull Channel channel, @NotNull byte[] data) throws IOException {
+    OutputStream out = channel.getOutputStream();
+    int size = data.length;
+    out.write(new byte[]{(byte)(size >> 24), (byte)(size >> 16), (byte)(size >> 8), (byte)size}, 0, 4);
+    // Written in pieces that are not aligned on the MTU, and reused once written.
+    byte[] buffer = new byte[MTU / 3];
+    for (int offset = 0; offset < size; offset += buffer.length) {
+      int count = Math.min(buffer.length, size - offset);
+      System.arraycopy(data, offset, buffer, 0, count);
+      out.write(buffer, 0, count);
+    }
+    out.flush();
+
+    byte[] result = new byte[size];
+    readFully(channel.getInputStream(), result);
+    return result;
+  }
+
+  private static void readFully(@NotNull InputStream in, @NotNull byte[] buffer) throws IOException {
+    for (int offset = 0; offset < buffer.length; ) {
+      int n = in.read(buffer, offset, buffer.length - offset);
+      if (n < 0) {
+        throw new IOException("Unexpected end of channel");
+      }
+      offset += n;
+    }
+  }
+
+  @NotNull
+  private static byte[] randomData(int seed, int size) {
+    byte[] data = new byte[size];
+    new Random(seed).nextBytes(data);
+    return data;
+  }
+}
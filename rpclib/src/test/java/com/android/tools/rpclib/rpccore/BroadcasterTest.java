@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.rpccore;
+
+import com.android.tools.rpclib.binary.BinaryObject;
+import com.android.tools.rpclib.binary.BinaryObjectCreator;
+import com.android.tools.rpclib.binary.Decoder;
+import com.android.tools.rpclib.binary.Encoder;
+import com.android.tools.rpclib.binary.ObjectTypeID;
+import com.android.tools.rpclib.multiplex.Channel;
+import com.android.tools.rpclib.multiplex.Multiplexer;
+import com.android.tools.rpclib.multiplex.NewChannelListener;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class BroadcasterTest extends TestCase {
+  private static final int MTU = 1024;
+  /** The value of an {@link EchoCall} that the server does not answer. */
+  private static final String NO_ANSWER = "no answer";
+  private static final ObjectTypeID ECHO_CALL_ID = new ObjectTypeID(new byte[]{
+    1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20
+  });
+  private static final ObjectTypeID ECHO_RESULT_ID = new ObjectTypeID(new byte[]{
+    20, 19, 18, 17, 16, 15, 14, 13, 12, 11, 10, 9, 8, 7, 6, 5, 4, 3, 2, 1
+  });
+
+  static {
+    ObjectTypeID.register(ECHO_CALL_ID, new BinaryObjectCreator() {
+      @Override
+      public BinaryObject create() {
+        return new EchoCall();
+      }
+    });
+    ObjectTypeID.register(ECHO_RESULT_ID, new BinaryObjectCreator() {
+      @Override
+      public BinaryObject create() {
+        return new EchoResult();
+      }
+    });
+  }
+
+  private ExecutorService mExecutor;
+  private Socket mClientSocket;
+  private Socket mServerSocket;
+  private Broadcaster mBroadcaster;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mExecutor = Executors.newCachedThreadPool();
+    mBroadcaster = connect(mExecutor);
+  }
+
+  /** Connects a broadcaster using the given executor to a new echo server. */
+  private Broadcaster connect(@NotNull ExecutorService executor) throws IOException {
+    ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    try {
+      mClientSocket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+      mServerSocket = serverSocket.accept();
+    }
+    finally {
+      serverSocket.close();
+    }
+    startEchoServer();
+    return new Broadcaster(mClientSocket.getInputStream(), mClientSocket.getOutputStream(), MTU, executor);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mClientSocket.close();
+    mServerSocket.close();
+    mExecutor.shutdownNow();
+    super.tearDown();
+  }
+
+  public void testSend() throws Exception {
+    assertEquals("hello", ((EchoResult)mBroadcaster.Send(new EchoCall("hello"))).mValue);
+  }
+
+  public void testSendError() throws Exception {
+    try {
+      mBroadcaster.Send(new EchoCall(null));
+      fail("Expected RpcException");
+    }
+    catch (RpcException e) {
+      assertEquals("no value", e.getMessage());
+    }
+  }
+
+  public void testSendAsync() throws Exception {
+    List<Future<Result>> results = new ArrayList<Future<Result>>();
+    for (int i = 0; i < 500; i++) {
+      results.add(mBroadcaster.SendAsync(new EchoCall("call " + i)));
+    }
+    for (int i = 0; i < results.size(); i++) {
+      assertEquals("call " + i, ((EchoResult)results.get(i).get(60, TimeUnit.SECONDS)).mValue);
+    }
+  }
+
+  public void testSendAsyncWithBoundedExecutor() throws Exception {
+    // Only enough threads for the multiplexer to send and receive, none to wait for the results.
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      mClientSocket.close();
+      mServerSocket.close();
+      Broadcaster broadcaster = connect(executor);
+
+      List<Future<Result>> results = new ArrayList<Future<Result>>();
+      for (int i = 0; i < 100; i++) {
+        results.add(broadcaster.SendAsync(new EchoCall("call " + i)));
+      }
+      for (int i = 0; i < results.size(); i++) {
+        assertEquals("call " + i, ((EchoResult)results.get(i).get(60, TimeUnit.SECONDS)).mValue);
+      }
+    }
+    finally {
+      mClientSocket.close();
+      executor.shutdownNow();
+    }
+  }
+
+  public void testSendAsyncConnectionLost() throws Exception {
+    List<Future<Result>> results = new ArrayList<Future<Result>>();
+    for (int i = 0; i < 10; i++) {
+      results.add(mBroadcaster.SendAsync(new EchoCall(NO_ANSWER)));
+    }
+    mServerSocket.close();
+    for (Future<Result> result : results) {
+      try {
+        result.get(60, TimeUnit.SECONDS);
+        fail("Expected IOException");
+      }
+      catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof IOException);
+      }
+    }
+  }
+
+  public void testSendAsyncError() throws Exception {
+    Future<Result> result = mBroadcaster.SendAsync(new EchoCall(null));
+    try {
+      result.get(60, TimeUnit.SECONDS);
+      fail("Expected RpcException");
+    }
+    catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RpcException);
+      assertEquals("no value", e.getCause().getMessage());
+    }
+  }
+
+  /** Starts a server answering each {@link EchoCall} with the value of the call, or an error if there is none. */
+  private void startEchoServer() throws IOException {
+    new Multiplexer(mServerSocket.getInputStream(), mServerSocket.getOutputStream(), MTU, mExecutor,
+                    new NewChannelListener() {
+                      @Override
+                      public void onNewChannel(@NotNull final Channel channel) {
+                        mExecutor.execute(new Runnable() {
+                          @Override
+                          public void run() {
+                            try {
+                              serve(channel);
+                            }
+                            catch (IOException e) {
+                              throw new RuntimeException(e);
+                            }
+                          }
+                        });
+                      }
+                    });
+  }
+
+  private static void serve(@NotNull Channel channel) throws IOException {
+    boolean answered = false;
+    try {
+      Decoder d = new Decoder(channel.getInputStream());
+      byte[] header = new byte[4];
+      d.read(header, header.length);
+      assertEquals("rpc0", new String(header, "US-ASCII"));
+      EchoCall call = (EchoCall)d.object();
+      if (NO_ANSWER.equals(call.mValue)) {
+        // Keep the channel open, until the connection is closed.
+        return;
+      }
+
+      BinaryObject response;
+      if (call.mValue != null) {
+        response = new EchoResult(call.mValue);
+      }
+      else {
+        RpcError error = new RpcError();
+        error.mMessage = "no value";
+        response = error;
+      }
+      BufferedOutputStream out = new BufferedOutputStream(channel.getOutputStream(), MTU);
+      new Encoder(out).object(response);
+      out.flush();
+      answered = true;
+    }
+    finally {
+      if (answered) {
+        channel.close();
+      }
+    }
+  }
+
+  private static class EchoCall implements Call {
+    String mValue;
+
+    EchoCall() {
+    }
+
+    EchoCall(String value) {
+      mValue = value;
+    }
+
+    @Override
+    public ObjectTypeID type() {
+      return ECHO_CALL_ID;
+    }
+
+    @Override
+    public void encode(@NotNull Encoder e) throws IOException {
+      e.bool(mValue != null);
+      if (mValue != null) {
+        e.string(mValue);
+      }
+    }
+
+    @Override
+    public void decode(@NotNull Decoder d) throws IOException {
+      mValue = d.bool() ? d.string() : null;
+    }
+  }
+
+  private static class EchoResult implements Result {
+    String mValue;
+
+    EchoResult() {
+    }
+
+    EchoResult(String value) {
+      mValue = value;
+    }
+
+    @Override
+    public ObjectTypeID type() {
+      return ECHO_RESULT_ID;
+    }
+
+    @Override
+    public void encode(@NotNull Encoder e) throws IOException {
+      e.string(mValue);
+    }
+
+    @Override
+    public void decode(@NotNull Decoder d) throws IOException {
+      mValue = d.string();
+    }
+  }
+}
@@ -241,16 +241,43 @@ public class VdPreview {
         if (xmlFileContent == null || xmlFileContent.isEmpty()) {
             return null;
         }
-        VdParser p = new VdParser();
-        VdTree vdTree;
-
-        InputStream inputStream = new ByteArrayInputStream(
-                xmlFileContent.getBytes(Charsets.UTF_8));
-        vdTree = p.parse(inputStream, vdErrorLog);
+        VdTree vdTree = parseVdTree(xmlFileContent, vdErrorLog);
         if (vdTree == null) {
             return null;
         }
+        return getPreviewFromVdTree(targetSize, vdTree, vdErrorLog);
+    }
 
+    /**
+     * Parses the VectorDrawable's content {@code xmlFileContent}, so that it can be drawn at
+     * several sizes with {@link #getPreviewFromVdTree} without being parsed again.
+     *
+     * @param xmlFileContent  VectorDrawable's XML file's content.
+     * @param vdErrorLog      log for the parsing errors and warnings.
+     * @return the parsed VectorDrawable, or null if it could not be parsed.
+     */
+    @Nullable
+    public static VdTree parseVdTree(@NonNull String xmlFileContent,
+                                     @Nullable StringBuilder vdErrorLog) {
+        VdParser p = new VdParser();
+        InputStream inputStream = new ByteArrayInputStream(
+                xmlFileContent.getBytes(Charsets.UTF_8));
+        return p.parse(inputStream, vdErrorLog);
+    }
+
+    /**
+     * This generates an image from a parsed VectorDrawable. The tree is only read, so images of
+     * the same tree can be generated from several threads at once.
+     *
+     * @param targetSize the size of result image.
+     * @param vdTree     the VectorDrawable parsed by {@link #parseVdTree}.
+     * @param vdErrorLog log for the errors and warnings.
+     * @return an preview image of the VectorDrawable
+     */
+    @NonNull
+    public static BufferedImage getPreviewFromVdTree(@NonNull TargetSize targetSize,
+                                                     @NonNull VdTree vdTree,
+                                                     @Nullable StringBuilder vdErrorLog) {
         // If the forceImageSize is set (>0), then we honor that.
         // Otherwise, we will ask the vectorDrawable for the prefer size, then apply the imageScale.
         float vdWidth = vdTree.getBaseWidth();
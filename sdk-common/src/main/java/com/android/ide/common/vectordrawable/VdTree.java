@@ -27,8 +27,10 @@ import java.util.logging.Logger;
 
 /**
  * Used to represent the whole VectorDrawable XML file's tree.
+ *
+ * <p>Obtained with {@link VdPreview#parseVdTree}. Drawing does not modify the tree.
  */
-class VdTree {
+public class VdTree {
     private static Logger logger = Logger.getLogger(VdTree.class.getSimpleName());
 
     VdGroup mCurrentGroup = new VdGroup();